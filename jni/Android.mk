@@ -8,6 +8,6 @@ LOCAL_CFLAGS := -DANDROID_NDK \
                 -DDISABLE_IMPORTGL
                 
 LOCAL_SRC_FILES := stb_image.c mem_utils.c bitmap.c bicubic_resize.c filter.c transform.c colour_space.c matrix.c blur.c photo_processing.c
-LOCAL_LDLIBS    := -lm -llog
+LOCAL_LDLIBS    := -lm -llog -ljnigraphics
 
 include $(BUILD_SHARED_LIBRARY)
\ No newline at end of file
@@ -1,2 +1,3 @@
 APP_OPTIM := release
-APP_ABI := armeabi armeabi-v7a
\ No newline at end of file
+APP_ABI := armeabi armeabi-v7a
+APP_PLATFORM := android-8
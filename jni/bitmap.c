@@ -16,6 +16,7 @@
 
 
 #include <jni.h>
+#include <android/bitmap.h>
 #include <math.h>
 #include <android/log.h>
 
@@ -106,6 +107,8 @@ int initBitmapMemory(Bitmap* bitmap, int width, int height) {
 	if (resultCode != MEMORY_OK) {
 		return resultCode;
 	}
+
+	return MEMORY_OK;
 }
 
 int decodeResizeImage(char const *filename, int maxPixels, Bitmap* bitmap) {
@@ -304,3 +307,147 @@ void setBitmapRowFromIntegers(Bitmap* bitmap, int y, int* pixels) {
 		(*bitmap).blue[i] = blue(pixels[x]);
 	}
 }
+
+void getBitmapAsIntegers(Bitmap* bitmap, int* pixels) {
+	register unsigned int i;
+	for (i = (*bitmap).width * (*bitmap).height; i--;) {
+		pixels[i] = rgb((int)(*bitmap).red[i], (int)(*bitmap).green[i], (int)(*bitmap).blue[i]);
+	}
+}
+
+void setBitmapFromIntegers(Bitmap* bitmap, int* pixels) {
+	register unsigned int i;
+	for (i = (*bitmap).width * (*bitmap).height; i--;) {
+		(*bitmap).red[i] = red(pixels[i]);
+		(*bitmap).green[i] = green(pixels[i]);
+		(*bitmap).blue[i] = blue(pixels[i]);
+	}
+}
+
+// Copies locked Android bitmap pixels (RGBA_8888 or RGB_565) into the bitmap in a single pass
+int setBitmapFromAndroidPixels(Bitmap* bitmap, void* pixels, unsigned int stride, int format) {
+	unsigned int width = (*bitmap).width;
+	unsigned int height = (*bitmap).height;
+	unsigned int x, y;
+	register unsigned int i = 0;
+
+	if (format == ANDROID_BITMAP_FORMAT_RGBA_8888) {
+		for (y = 0; y < height; y++) {
+			unsigned char* row = (unsigned char*)pixels + (y * stride);
+			for (x = 0; x < width; x++, i++, row += 4) {
+				(*bitmap).red[i] = row[0];
+				(*bitmap).green[i] = row[1];
+				(*bitmap).blue[i] = row[2];
+			}
+		}
+	} else if (format == ANDROID_BITMAP_FORMAT_RGB_565) {
+		for (y = 0; y < height; y++) {
+			unsigned short* row = (unsigned short*)((unsigned char*)pixels + (y * stride));
+			for (x = 0; x < width; x++, i++) {
+				unsigned short colour = row[x];
+				unsigned char r = (colour >> 11) & 0x1F;
+				unsigned char g = (colour >> 5) & 0x3F;
+				unsigned char b = colour & 0x1F;
+				(*bitmap).red[i] = (r << 3) | (r >> 2);
+				(*bitmap).green[i] = (g << 2) | (g >> 4);
+				(*bitmap).blue[i] = (b << 3) | (b >> 2);
+			}
+		}
+	} else {
+		return UNSUPPORTED_BITMAP_FORMAT_ERROR;
+	}
+
+	return MEMORY_OK;
+}
+
+// Copies the bitmap into locked Android bitmap pixels (RGBA_8888 or RGB_565) in a single pass
+int getBitmapAsAndroidPixels(Bitmap* bitmap, void* pixels, unsigned int stride, int format) {
+	unsigned int width = (*bitmap).width;
+	unsigned int height = (*bitmap).height;
+	unsigned int x, y;
+	register unsigned int i = 0;
+
+	if (format == ANDROID_BITMAP_FORMAT_RGBA_8888) {
+		for (y = 0; y < height; y++) {
+			unsigned char* row = (unsigned char*)pixels + (y * stride);
+			for (x = 0; x < width; x++, i++, row += 4) {
+				row[0] = (*bitmap).red[i];
+				row[1] = (*bitmap).green[i];
+				row[2] = (*bitmap).blue[i];
+				row[3] = 0xFF;
+			}
+		}
+	} else if (format == ANDROID_BITMAP_FORMAT_RGB_565) {
+		for (y = 0; y < height; y++) {
+			unsigned short* row = (unsigned short*)((unsigned char*)pixels + (y * stride));
+			for (x = 0; x < width; x++, i++) {
+				row[x] = (((*bitmap).red[i] >> 3) << 11) | (((*bitmap).green[i] >> 2) << 5) | ((*bitmap).blue[i] >> 3);
+			}
+		}
+	} else {
+		return UNSUPPORTED_BITMAP_FORMAT_ERROR;
+	}
+
+	return MEMORY_OK;
+}
+
+// Copies the bitmap into locked Android bitmap pixels, flipping it horizontally (if flip is set) and then rotating it
+// clockwise by rotation degrees on the way. The Android bitmap must already have the transformed dimensions.
+int getBitmapAsAndroidPixelsTransformed(Bitmap* bitmap, void* pixels, unsigned int stride, int format, int rotation, int flip) {
+	int width = (*bitmap).width;
+	int height = (*bitmap).height;
+	int bytesPerPixel;
+	if (format == ANDROID_BITMAP_FORMAT_RGBA_8888) {
+		bytesPerPixel = 4;
+	} else if (format == ANDROID_BITMAP_FORMAT_RGB_565) {
+		bytesPerPixel = 2;
+	} else {
+		return UNSUPPORTED_BITMAP_FORMAT_ERROR;
+	}
+
+	// Destination x and y as (origin + step * x + step * y) of the source x and y. The flip is folded in as flippedX = flipOrigin + flipStep * x
+	int flipOrigin = flip ? width - 1 : 0;
+	int flipStep = flip ? -1 : 1;
+	int dstXOrigin, dstXStepX, dstXStepY, dstYOrigin, dstYStepX, dstYStepY;
+	switch (rotation) {
+	case 90:
+		dstXOrigin = height - 1; dstXStepX = 0; dstXStepY = -1;
+		dstYOrigin = flipOrigin; dstYStepX = flipStep; dstYStepY = 0;
+		break;
+	case 180:
+		dstXOrigin = width - 1 - flipOrigin; dstXStepX = -flipStep; dstXStepY = 0;
+		dstYOrigin = height - 1; dstYStepX = 0; dstYStepY = -1;
+		break;
+	case 270:
+		dstXOrigin = 0; dstXStepX = 0; dstXStepY = 1;
+		dstYOrigin = width - 1 - flipOrigin; dstYStepX = -flipStep; dstYStepY = 0;
+		break;
+	default:
+		dstXOrigin = flipOrigin; dstXStepX = flipStep; dstXStepY = 0;
+		dstYOrigin = 0; dstYStepX = 0; dstYStepY = 1;
+		break;
+	}
+
+	int rowStride = (int)stride;
+	int offset = dstYOrigin * rowStride + dstXOrigin * bytesPerPixel;
+	int stepX = dstYStepX * rowStride + dstXStepX * bytesPerPixel;
+	int stepY = dstYStepY * rowStride + dstXStepY * bytesPerPixel;
+
+	int x, y;
+	register unsigned int i = 0;
+	for (y = 0; y < height; y++) {
+		unsigned char* dst = (unsigned char*)pixels + offset + (y * stepY);
+		for (x = 0; x < width; x++, i++, dst += stepX) {
+			if (bytesPerPixel == 4) {
+				dst[0] = (*bitmap).red[i];
+				dst[1] = (*bitmap).green[i];
+				dst[2] = (*bitmap).blue[i];
+				dst[3] = 0xFF;
+			} else {
+				*((unsigned short*)dst) = (((*bitmap).red[i] >> 3) << 11) | (((*bitmap).green[i] >> 2) << 5) | ((*bitmap).blue[i] >> 3);
+			}
+		}
+	}
+
+	return MEMORY_OK;
+}
@@ -21,6 +21,8 @@
 #include <transform.h>
 
 static const int INCONSISTENT_BITMAP_ERROR = 5;
+static const int BITMAP_LOCK_ERROR = 7;
+static const int UNSUPPORTED_BITMAP_FORMAT_ERROR = 8;
 
 typedef struct {
 	unsigned int width;
@@ -15,7 +15,10 @@
  */
 
 #include <jni.h>
+#include <android/bitmap.h>
 #include <stdlib.h>
+#include <stdint.h>
+#include <string.h>
 #include <bitmap.h>
 #include <mem_utils.h>
 #include <android/log.h>
@@ -24,160 +27,457 @@
 #define  LOGI(...)  __android_log_print(ANDROID_LOG_INFO,LOG_TAG,__VA_ARGS__)
 #define  LOGE(...)  __android_log_print(ANDROID_LOG_ERROR,LOG_TAG,__VA_ARGS__)
 
+// Image used by the legacy single-image API. Calls on it must all come from one thread.
 static Bitmap bitmap;
 
-int Java_com_lightbox_android_photoprocessing_PhotoProcessing_nativeInitBitmap(JNIEnv* env, jobject thiz, jint width, jint height) {
+static inline Bitmap* imageFromHandle(jlong handle) {
+	return (Bitmap*)(intptr_t)handle;
+}
+
+static int getAndroidBitmapPixels(JNIEnv* env, Bitmap* image, jobject androidBitmap) {
+	AndroidBitmapInfo info;
+	void* pixels;
+	if (AndroidBitmap_getInfo(env, androidBitmap, &info) < 0) {
+		return BITMAP_LOCK_ERROR;
+	}
+	if (info.width != (*image).width || info.height != (*image).height) {
+		return INCONSISTENT_BITMAP_ERROR;
+	}
+	if (AndroidBitmap_lockPixels(env, androidBitmap, &pixels) < 0) {
+		return BITMAP_LOCK_ERROR;
+	}
+	int resultCode = getBitmapAsAndroidPixels(image, pixels, info.stride, info.format);
+	AndroidBitmap_unlockPixels(env, androidBitmap);
+	return resultCode;
+}
+
+static int getAndroidBitmapPixelsTransformed(JNIEnv* env, Bitmap* image, jobject androidBitmap, int rotation, int flip) {
+	AndroidBitmapInfo info;
+	void* pixels;
+	if (AndroidBitmap_getInfo(env, androidBitmap, &info) < 0) {
+		return BITMAP_LOCK_ERROR;
+	}
+	int swapDimensions = rotation == 90 || rotation == 270;
+	if (info.width != (swapDimensions ? (*image).height : (*image).width)
+			|| info.height != (swapDimensions ? (*image).width : (*image).height)) {
+		return INCONSISTENT_BITMAP_ERROR;
+	}
+	if (AndroidBitmap_lockPixels(env, androidBitmap, &pixels) < 0) {
+		return BITMAP_LOCK_ERROR;
+	}
+	int resultCode = getBitmapAsAndroidPixelsTransformed(image, pixels, info.stride, info.format, rotation, flip);
+	AndroidBitmap_unlockPixels(env, androidBitmap);
+	return resultCode;
+}
+
+static int setAndroidBitmapPixels(JNIEnv* env, Bitmap* image, jobject androidBitmap) {
+	AndroidBitmapInfo info;
+	void* pixels;
+	if (AndroidBitmap_getInfo(env, androidBitmap, &info) < 0) {
+		return BITMAP_LOCK_ERROR;
+	}
+	if (info.width != (*image).width || info.height != (*image).height) {
+		return INCONSISTENT_BITMAP_ERROR;
+	}
+	if (AndroidBitmap_lockPixels(env, androidBitmap, &pixels) < 0) {
+		return BITMAP_LOCK_ERROR;
+	}
+	int resultCode = setBitmapFromAndroidPixels(image, pixels, info.stride, info.format);
+	AndroidBitmap_unlockPixels(env, androidBitmap);
+	return resultCode;
+}
+
+static void getImageArray(JNIEnv* env, Bitmap* image, jintArray pixels) {
+	jint* cpixels = (*env)->GetPrimitiveArrayCritical(env, pixels, 0);
+	getBitmapAsIntegers(image, cpixels);
+	(*env)->ReleasePrimitiveArrayCritical(env, pixels, cpixels, 0);
+}
+
+static void setImageArray(JNIEnv* env, Bitmap* image, jintArray pixels) {
+	jint* cpixels = (*env)->GetPrimitiveArrayCritical(env, pixels, 0);
+	setBitmapFromIntegers(image, cpixels);
+	(*env)->ReleasePrimitiveArrayCritical(env, pixels, cpixels, JNI_ABORT);
+}
+
+// Layouts of com.rayboot.util.ImageBuffer
+#define BUFFER_LAYOUT_INTERLEAVED 0
+#define BUFFER_LAYOUT_PLANAR 1
+
+// Copies between an image and an ImageBuffer's direct memory. offset and stride are in pixels, planeSize in bytes.
+static int copyImageBuffer(JNIEnv* env, Bitmap* image, jobject buffer, int layout, int offset, int stride, int planeSize, int toImage) {
+	unsigned char* data = (unsigned char*)(*env)->GetDirectBufferAddress(env, buffer);
+	if (data == NULL) {
+		return UNSUPPORTED_BITMAP_FORMAT_ERROR;
+	}
+
+	unsigned int width = (*image).width;
+	unsigned int height = (*image).height;
+	unsigned int x, y;
+	for (y = 0; y < height; y++) {
+		unsigned char* red = (*image).red + y * width;
+		unsigned char* green = (*image).green + y * width;
+		unsigned char* blue = (*image).blue + y * width;
+		if (layout == BUFFER_LAYOUT_PLANAR) {
+			unsigned char* row = data + offset + y * stride;
+			if (toImage) {
+				memcpy(red, row, width);
+				memcpy(green, row + planeSize, width);
+				memcpy(blue, row + 2 * planeSize, width);
+			} else {
+				memcpy(row, red, width);
+				memcpy(row + planeSize, green, width);
+				memcpy(row + 2 * planeSize, blue, width);
+			}
+		} else {
+			// Interleaved R, G, B, A
+			unsigned char* p = data + (offset + y * stride) * 4;
+			if (toImage) {
+				for (x = 0; x < width; x++, p += 4) {
+					red[x] = p[0];
+					green[x] = p[1];
+					blue[x] = p[2];
+				}
+			} else {
+				for (x = 0; x < width; x++, p += 4) {
+					p[0] = red[x];
+					p[1] = green[x];
+					p[2] = blue[x];
+					p[3] = 0xFF;
+				}
+			}
+		}
+	}
+	return MEMORY_OK;
+}
+
+static int rotateImage90(Bitmap* image) {
+	int resultCode = rotate90(image, 1, 1, 1);
+	if (resultCode != MEMORY_OK) {
+		return resultCode;
+	}
+
+	//All the component dimensions should have changed, so copy the correct dimensions
+	(*image).width = (*image).redWidth;
+	(*image).height = (*image).redHeight;
+	return MEMORY_OK;
+}
+
+static int cropImage(Bitmap* image, float left, float top, float right, float bottom) {
+	int resultCode = crop(image, &left, &top, &right, &bottom, 1, 1, 1);
+	if (resultCode != MEMORY_OK) {
+		return resultCode;
+	}
+
+	//All the component dimensions should have changed, so copy the correct dimensions
+	(*image).width = (*image).redWidth;
+	(*image).height = (*image).redHeight;
+	return MEMORY_OK;
+}
+
+static void applyFilter(Bitmap* image, int position) {
+	switch (position) {
+	case 1: // Instafix
+		applyInstafix(image);
+		break;
+	case 2: // Ansel
+		applyAnselFilter(image);
+		break;
+	case 3: // Testino
+		applyTestino(image);
+		break;
+	case 4: // XPro
+		applyXPro(image);
+		break;
+	case 5: // Retro
+		applyRetro(image);
+		break;
+	case 6: // Black & White
+		applyBlackAndWhiteFilter(image);
+		break;
+	case 7: // Sepia
+		applySepia(image);
+		break;
+	case 8: // Cyano
+		applyCyano(image);
+		break;
+	case 9: // Georgia
+		applyGeorgia(image);
+		break;
+	case 10: // Sahara
+		applySahara(image);
+		break;
+	case 11: // HDR
+		applyHDR(image);
+		break;
+	}
+}
+
+static int loadResizedImage(JNIEnv* env, Bitmap* image, jstring filePath, jint maxPixels) {
+	const char *nativeFilePath = (*env)->GetStringUTFChars(env, filePath, 0);
+
+	int resultCode = decodeResizeImage(nativeFilePath, maxPixels, image);
+	(*env)->ReleaseStringUTFChars(env, filePath, nativeFilePath);
+
+	if (resultCode != MEMORY_OK) {
+		deleteBitmap(image);
+		LOGE("error decoding jpeg resultCode=%d", resultCode);
+		return resultCode;
+	}
+
+	return MEMORY_OK;
+}
+
+static int resizeImage(Bitmap* image, int newWidth, int newHeight) {
+	unsigned char* newRed;
+	int resultCode = newUnsignedCharArray(newWidth*newHeight, &newRed);
+	if (resultCode != MEMORY_OK) {
+		return resultCode;
+	}
+	resizeChannelBicubic((*image).red, (*image).width, (*image).height, newRed, newWidth, newHeight);
+	freeUnsignedCharArray(&(*image).red);
+	(*image).red = newRed;
+	(*image).redWidth = newWidth;
+	(*image).redHeight = newHeight;
+
+	unsigned char* newGreen;
+	resultCode = newUnsignedCharArray(newWidth*newHeight, &newGreen);
+	if (resultCode != MEMORY_OK) {
+		return resultCode;
+	}
+	resizeChannelBicubic((*image).green, (*image).width, (*image).height, newGreen, newWidth, newHeight);
+	freeUnsignedCharArray(&(*image).green);
+	(*image).green = newGreen;
+	(*image).greenWidth = newWidth;
+	(*image).greenHeight = newHeight;
+
+	unsigned char* newBlue;
+	resultCode = newUnsignedCharArray(newWidth*newHeight, &newBlue);
+	if (resultCode != MEMORY_OK) {
+		return resultCode;
+	}
+	resizeChannelBicubic((*image).blue, (*image).width, (*image).height, newBlue, newWidth, newHeight);
+	freeUnsignedCharArray(&(*image).blue);
+	(*image).blue = newBlue;
+	(*image).blueWidth = newWidth;
+	(*image).blueHeight = newHeight;
+
+	(*image).width = newWidth;
+	(*image).height = newHeight;
+	return MEMORY_OK;
+}
+
+///////////////////////////////////////////////
+// Legacy single-image API
+
+int Java_com_rayboot_util_PhotoProcessing_nativeInitBitmap(JNIEnv* env, jobject thiz, jint width, jint height) {
 	return initBitmapMemory(&bitmap, width, height);
 }
 
-void Java_com_lightbox_android_photoprocessing_PhotoProcessing_nativeGetBitmapRow(JNIEnv* env, jobject thiz, jint y, jintArray pixels) {
+void Java_com_rayboot_util_PhotoProcessing_nativeGetBitmapRow(JNIEnv* env, jobject thiz, jint y, jintArray pixels) {
 	int cpixels[bitmap.width];
 	getBitmapRowAsIntegers(&bitmap, (int)y, &cpixels);
 	(*env)->SetIntArrayRegion(env, pixels, 0, bitmap.width, cpixels);
 }
 
-void Java_com_lightbox_android_photoprocessing_PhotoProcessing_nativeSetBitmapRow(JNIEnv* env, jobject thiz, jint y, jintArray pixels) {
+void Java_com_rayboot_util_PhotoProcessing_nativeSetBitmapRow(JNIEnv* env, jobject thiz, jint y, jintArray pixels) {
 	int cpixels[bitmap.width];
 	(*env)->GetIntArrayRegion(env, pixels, 0, bitmap.width, cpixels);
 	setBitmapRowFromIntegers(&bitmap, (int)y, &cpixels);
 }
 
-int Java_com_lightbox_android_photoprocessing_PhotoProcessing_nativeGetBitmapWidth(JNIEnv* env, jobject thiz) {
+void Java_com_rayboot_util_PhotoProcessing_nativeGetBitmapArray(JNIEnv* env, jobject thiz, jintArray pixels) {
+	getImageArray(env, &bitmap, pixels);
+}
+
+void Java_com_rayboot_util_PhotoProcessing_nativeSetBitmapArray(JNIEnv* env, jobject thiz, jintArray pixels) {
+	setImageArray(env, &bitmap, pixels);
+}
+
+int Java_com_rayboot_util_PhotoProcessing_nativeGetBitmapPixels(JNIEnv* env, jobject thiz, jobject androidBitmap) {
+	return getAndroidBitmapPixels(env, &bitmap, androidBitmap);
+}
+
+int Java_com_rayboot_util_PhotoProcessing_nativeSetBitmapPixels(JNIEnv* env, jobject thiz, jobject androidBitmap) {
+	return setAndroidBitmapPixels(env, &bitmap, androidBitmap);
+}
+
+int Java_com_rayboot_util_PhotoProcessing_nativeGetBitmapWidth(JNIEnv* env, jobject thiz) {
 	return bitmap.width;
 }
 
-int Java_com_lightbox_android_photoprocessing_PhotoProcessing_nativeGetBitmapHeight(JNIEnv* env, jobject thiz) {
+int Java_com_rayboot_util_PhotoProcessing_nativeGetBitmapHeight(JNIEnv* env, jobject thiz) {
 	return bitmap.height;
 }
 
-void Java_com_lightbox_android_photoprocessing_PhotoProcessing_nativeDeleteBitmap(JNIEnv* env, jobject thiz) {
+void Java_com_rayboot_util_PhotoProcessing_nativeDeleteBitmap(JNIEnv* env, jobject thiz) {
 	deleteBitmap(&bitmap);
 }
 
-void Java_com_lightbox_android_photoprocessing_PhotoProcessing_nativeFlipHorizontally(JNIEnv* env, jobject thiz) {
+void Java_com_rayboot_util_PhotoProcessing_nativeFlipHorizontally(JNIEnv* env, jobject thiz) {
 	flipHorizontally(&bitmap, 1, 1, 1);
 }
 
-int Java_com_lightbox_android_photoprocessing_PhotoProcessing_nativeRotate90(JNIEnv* env, jobject thiz) {
-	int resultCode = rotate90(&bitmap, 1, 1, 1);
-	if (resultCode != MEMORY_OK) {
-		return resultCode;
-	}
-
-	//All the component dimensions should have changed, so copy the correct dimensions
-	bitmap.width = bitmap.redWidth;
-	bitmap.height = bitmap.redHeight;
+int Java_com_rayboot_util_PhotoProcessing_nativeRotate90(JNIEnv* env, jobject thiz) {
+	return rotateImage90(&bitmap);
 }
 
-void Java_com_lightbox_android_photoprocessing_PhotoProcessing_nativeRotate180(JNIEnv* env, jobject thiz) {
+void Java_com_rayboot_util_PhotoProcessing_nativeRotate180(JNIEnv* env, jobject thiz) {
 	rotate180(&bitmap, 1, 1, 1);
 }
 
-int Java_com_lightbox_android_photoprocessing_PhotoProcessing_nativeCrop(JNIEnv* env, jobject thiz, jfloat left, jfloat top, jfloat right, jfloat bottom) {
-    int resultCode = crop(&bitmap, &left, &top, &right, &bottom, 1, 1, 1);
-    if (resultCode != MEMORY_OK) {
-        return resultCode;
-    }
-    
-	//All the component dimensions should have changed, so copy the correct dimensions
-	bitmap.width = bitmap.redWidth;
-	bitmap.height = bitmap.redHeight;
+int Java_com_rayboot_util_PhotoProcessing_nativeCrop(JNIEnv* env, jobject thiz, jfloat left, jfloat top, jfloat right, jfloat bottom) {
+	return cropImage(&bitmap, left, top, right, bottom);
 }
 
-void Java_com_lightbox_android_photoprocessing_PhotoProcessing_nativeApplyInstafix(JNIEnv* env, jobject thiz) {
+void Java_com_rayboot_util_PhotoProcessing_nativeApplyInstafix(JNIEnv* env, jobject thiz) {
 	applyInstafix(&bitmap);
 }
 
-void Java_com_lightbox_android_photoprocessing_PhotoProcessing_nativeApplyAnsel(JNIEnv* env, jobject thiz) {
+void Java_com_rayboot_util_PhotoProcessing_nativeApplyAnsel(JNIEnv* env, jobject thiz) {
 	applyAnselFilter(&bitmap);
 }
 
-void Java_com_lightbox_android_photoprocessing_PhotoProcessing_nativeApplyTestino(JNIEnv* env, jobject thiz) {
+void Java_com_rayboot_util_PhotoProcessing_nativeApplyTestino(JNIEnv* env, jobject thiz) {
 	applyTestino(&bitmap);
 }
 
-void Java_com_lightbox_android_photoprocessing_PhotoProcessing_nativeApplyXPro(JNIEnv* env, jobject thiz) {
+void Java_com_rayboot_util_PhotoProcessing_nativeApplyXPro(JNIEnv* env, jobject thiz) {
 	applyXPro(&bitmap);
 }
 
-void Java_com_lightbox_android_photoprocessing_PhotoProcessing_nativeApplyRetro(JNIEnv* env, jobject thiz) {
+void Java_com_rayboot_util_PhotoProcessing_nativeApplyRetro(JNIEnv* env, jobject thiz) {
 	applyRetro(&bitmap);
 }
 
-void Java_com_lightbox_android_photoprocessing_PhotoProcessing_nativeApplyBW(JNIEnv* env, jobject thiz) {
+void Java_com_rayboot_util_PhotoProcessing_nativeApplyBW(JNIEnv* env, jobject thiz) {
 	applyBlackAndWhiteFilter(&bitmap);
 }
 
-void Java_com_lightbox_android_photoprocessing_PhotoProcessing_nativeApplySepia(JNIEnv* env, jobject thiz) {
+void Java_com_rayboot_util_PhotoProcessing_nativeApplySepia(JNIEnv* env, jobject thiz) {
 	applySepia(&bitmap);
 }
 
-void Java_com_lightbox_android_photoprocessing_PhotoProcessing_nativeApplyCyano(JNIEnv* env, jobject thiz) {
+void Java_com_rayboot_util_PhotoProcessing_nativeApplyCyano(JNIEnv* env, jobject thiz) {
 	applyCyano(&bitmap);
 }
 
-void Java_com_lightbox_android_photoprocessing_PhotoProcessing_nativeApplyGeorgia(JNIEnv* env, jobject thiz) {
+void Java_com_rayboot_util_PhotoProcessing_nativeApplyGeorgia(JNIEnv* env, jobject thiz) {
 	applyGeorgia(&bitmap);
 }
 
-void Java_com_lightbox_android_photoprocessing_PhotoProcessing_nativeApplySahara(JNIEnv* env, jobject thiz) {
+void Java_com_rayboot_util_PhotoProcessing_nativeApplySahara(JNIEnv* env, jobject thiz) {
 	applySahara(&bitmap);
 }
 
-void Java_com_lightbox_android_photoprocessing_PhotoProcessing_nativeApplyHDR(JNIEnv* env, jobject thiz) {
+void Java_com_rayboot_util_PhotoProcessing_nativeApplyHDR(JNIEnv* env, jobject thiz) {
 	applyHDR(&bitmap);
 }
 
-int Java_com_lightbox_android_photoprocessing_PhotoProcessing_nativeLoadResizedBitmap(JNIEnv* env, jobject thiz, jstring filePath, jint maxPixels) {
-    
-    const char *nativeFilePath = (*env)->GetStringUTFChars(env, filePath, 0);
-
-	int resultCode = decodeResizeImage(nativeFilePath, maxPixels, &bitmap);
-	if (resultCode != MEMORY_OK) {
-		deleteBitmap(&bitmap);
-		LOGE("error decoding jpeg resultCode=%d", resultCode);
-		return resultCode;
-	}
-    
-    (*env)->ReleaseStringUTFChars(env, filePath, nativeFilePath);
+int Java_com_rayboot_util_PhotoProcessing_nativeLoadResizedBitmap(JNIEnv* env, jobject thiz, jstring filePath, jint maxPixels) {
+	return loadResizedImage(env, &bitmap, filePath, maxPixels);
+}
 
-	return MEMORY_OK;
+int Java_com_rayboot_util_PhotoProcessing_nativeResizeBitmap(JNIEnv* env, jobject thiz, jint newWidth, jint newHeight) {
+	return resizeImage(&bitmap, newWidth, newHeight);
 }
 
-int Java_com_lightbox_android_photoprocessing_PhotoProcessing_nativeResizeBitmap(JNIEnv* env, jobject thiz, jint newWidth, jint newHeight) {
-	unsigned char* newRed;
-	int resultCode = newUnsignedCharArray(newWidth*newHeight, &newRed);
-	if (resultCode != MEMORY_OK) {
-		return resultCode;
-	}
-	resizeChannelBicubic(bitmap.red, bitmap.width, bitmap.height, newRed, (int)newWidth, (int)newHeight);
-	freeUnsignedCharArray(&bitmap.red);
-	bitmap.red = newRed;
-	bitmap.redWidth = newWidth;
-	bitmap.redHeight = newHeight;
+///////////////////////////////////////////////
+// Handle-based API. Each handle owns its own image, so different handles can be used from different threads.
 
-	unsigned char* newGreen;
-	resultCode = newUnsignedCharArray(newWidth*newHeight, &newGreen);
-	if (resultCode != MEMORY_OK) {
-		return resultCode;
+jlong Java_com_rayboot_util_PhotoProcessing_nativeCreateImage(JNIEnv* env, jobject thiz) {
+	Bitmap* image = (Bitmap*)calloc(1, sizeof(Bitmap));
+	if (image == NULL) {
+		LOGE("error allocating native image");
 	}
-	resizeChannelBicubic(bitmap.green, bitmap.width, bitmap.height, newGreen, (int)newWidth, (int)newHeight);
-	freeUnsignedCharArray(&bitmap.green);
-	bitmap.green = newGreen;
-	bitmap.greenWidth = newWidth;
-	bitmap.greenHeight = newHeight;
+	return (jlong)(intptr_t)image;
+}
 
-	unsigned char* newBlue;
-	resultCode = newUnsignedCharArray(newWidth*newHeight, &newBlue);
-	if (resultCode != MEMORY_OK) {
-		return resultCode;
+void Java_com_rayboot_util_PhotoProcessing_nativeReleaseImage(JNIEnv* env, jobject thiz, jlong handle) {
+	Bitmap* image = imageFromHandle(handle);
+	if (image != NULL) {
+		deleteBitmap(image);
+		free(image);
 	}
-	resizeChannelBicubic(bitmap.blue, bitmap.width, bitmap.height, newBlue, (int)newWidth, (int)newHeight);
-	freeUnsignedCharArray(&bitmap.blue);
-	bitmap.blue = newBlue;
-	bitmap.blueWidth = newWidth;
-	bitmap.blueHeight = newHeight;
+}
+
+int Java_com_rayboot_util_PhotoProcessing_nativeInitImage(JNIEnv* env, jobject thiz, jlong handle, jint width, jint height) {
+	return initBitmapMemory(imageFromHandle(handle), width, height);
+}
+
+int Java_com_rayboot_util_PhotoProcessing_nativeGetImageWidth(JNIEnv* env, jobject thiz, jlong handle) {
+	return (*imageFromHandle(handle)).width;
+}
+
+int Java_com_rayboot_util_PhotoProcessing_nativeGetImageHeight(JNIEnv* env, jobject thiz, jlong handle) {
+	return (*imageFromHandle(handle)).height;
+}
+
+void Java_com_rayboot_util_PhotoProcessing_nativeGetImageArray(JNIEnv* env, jobject thiz, jlong handle, jintArray pixels) {
+	getImageArray(env, imageFromHandle(handle), pixels);
+}
+
+void Java_com_rayboot_util_PhotoProcessing_nativeSetImageArray(JNIEnv* env, jobject thiz, jlong handle, jintArray pixels) {
+	setImageArray(env, imageFromHandle(handle), pixels);
+}
+
+void Java_com_rayboot_util_PhotoProcessing_nativeGetImageRow(JNIEnv* env, jobject thiz, jlong handle, jint y, jintArray pixels) {
+	Bitmap* image = imageFromHandle(handle);
+	int cpixels[(*image).width];
+	getBitmapRowAsIntegers(image, (int)y, &cpixels);
+	(*env)->SetIntArrayRegion(env, pixels, 0, (*image).width, cpixels);
+}
+
+void Java_com_rayboot_util_PhotoProcessing_nativeSetImageRow(JNIEnv* env, jobject thiz, jlong handle, jint y, jintArray pixels) {
+	Bitmap* image = imageFromHandle(handle);
+	int cpixels[(*image).width];
+	(*env)->GetIntArrayRegion(env, pixels, 0, (*image).width, cpixels);
+	setBitmapRowFromIntegers(image, (int)y, &cpixels);
+}
+
+int Java_com_rayboot_util_PhotoProcessing_nativeGetImagePixels(JNIEnv* env, jobject thiz, jlong handle, jobject androidBitmap) {
+	return getAndroidBitmapPixels(env, imageFromHandle(handle), androidBitmap);
+}
+
+int Java_com_rayboot_util_PhotoProcessing_nativeGetImagePixelsTransformed(JNIEnv* env, jobject thiz, jlong handle, jobject androidBitmap, jint rotation, jboolean flip) {
+	return getAndroidBitmapPixelsTransformed(env, imageFromHandle(handle), androidBitmap, rotation, flip);
+}
+
+int Java_com_rayboot_util_PhotoProcessing_nativeSetImagePixels(JNIEnv* env, jobject thiz, jlong handle, jobject androidBitmap) {
+	return setAndroidBitmapPixels(env, imageFromHandle(handle), androidBitmap);
+}
+
+int Java_com_rayboot_util_PhotoProcessing_nativeGetImageBuffer(JNIEnv* env, jobject thiz, jlong handle, jobject buffer, jint layout, jint offset, jint stride, jint planeSize) {
+	return copyImageBuffer(env, imageFromHandle(handle), buffer, layout, offset, stride, planeSize, 0);
+}
+
+int Java_com_rayboot_util_PhotoProcessing_nativeSetImageBuffer(JNIEnv* env, jobject thiz, jlong handle, jobject buffer, jint layout, jint offset, jint stride, jint planeSize) {
+	return copyImageBuffer(env, imageFromHandle(handle), buffer, layout, offset, stride, planeSize, 1);
+}
+
+void Java_com_rayboot_util_PhotoProcessing_nativeImageFlipHorizontally(JNIEnv* env, jobject thiz, jlong handle) {
+	flipHorizontally(imageFromHandle(handle), 1, 1, 1);
+}
+
+int Java_com_rayboot_util_PhotoProcessing_nativeImageRotate90(JNIEnv* env, jobject thiz, jlong handle) {
+	return rotateImage90(imageFromHandle(handle));
+}
+
+void Java_com_rayboot_util_PhotoProcessing_nativeImageRotate180(JNIEnv* env, jobject thiz, jlong handle) {
+	rotate180(imageFromHandle(handle), 1, 1, 1);
+}
+
+int Java_com_rayboot_util_PhotoProcessing_nativeImageCrop(JNIEnv* env, jobject thiz, jlong handle, jfloat left, jfloat top, jfloat right, jfloat bottom) {
+	return cropImage(imageFromHandle(handle), left, top, right, bottom);
+}
+
+void Java_com_rayboot_util_PhotoProcessing_nativeImageApplyFilter(JNIEnv* env, jobject thiz, jlong handle, jint position) {
+	applyFilter(imageFromHandle(handle), position);
+}
+
+int Java_com_rayboot_util_PhotoProcessing_nativeImageLoadResized(JNIEnv* env, jobject thiz, jlong handle, jstring filePath, jint maxPixels) {
+	return loadResizedImage(env, imageFromHandle(handle), filePath, maxPixels);
+}
 
-	bitmap.width = newWidth;
-	bitmap.height = newHeight;
+int Java_com_rayboot_util_PhotoProcessing_nativeImageResize(JNIEnv* env, jobject thiz, jlong handle, jint newWidth, jint newHeight) {
+	return resizeImage(imageFromHandle(handle), newWidth, newHeight);
 }
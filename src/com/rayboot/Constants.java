@@ -18,6 +18,25 @@ package com.rayboot;
 public final class Constants
 {
     public static final float IMAGE_CACHE_HEAP_PERCENTAGE = 1f / 6f;
+    public static final float IMAGE_CACHE_MIN_HEAP_PERCENTAGE = 1f / 16f;
+    public static final float IMAGE_CACHE_MAX_HEAP_PERCENTAGE = 1f / 3f;
+    public static final float IMAGE_CACHE_COMPRESSED_HEAP_PERCENTAGE = 1f / 12f;
+
+    public static final float BITMAP_POOL_HEAP_PERCENTAGE = 1f / 12f;
+
+    public static final long IMAGE_CACHE_DISK_BYTES = 48 * 1024 * 1024;
+    public static final String IMAGE_CACHE_DIR = "images";
+
+    public static final float PREVIEW_CACHE_HEAP_PERCENTAGE = 1f / 16f;
+    public static final long PREVIEW_CACHE_DISK_BYTES = 8 * 1024 * 1024;
+    public static final String PREVIEW_CACHE_DIR = "filter_previews";
+
+    public static final float TILE_CACHE_HEAP_PERCENTAGE = 1f / 16f;
+
+    public static final String PHOTO_METADATA_CACHE_FILE = "photo_metadata";
 
     public static final int FACE_DETECTOR_MAX_FACES = 8;
+
+    public static final int FULL_SIZE_MAX_PIXELS = 2048 * 1536;
+    public static final int EXPORT_JPEG_QUALITY = 90;
 }
@@ -2,6 +2,9 @@ package com.rayboot.ImgProc;
 
 import android.app.ActionBar;
 import android.app.Activity;
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.media.MediaScannerConnection;
 import android.os.Bundle;
 import android.support.v4.view.PagerAdapter;
 import android.support.v4.view.ViewPager;
@@ -10,11 +13,23 @@ import android.view.MenuItem;
 import android.view.View;
 import android.view.ViewGroup;
 import android.widget.RadioGroup;
+import android.widget.Toast;
+import com.rayboot.Constants;
+import com.rayboot.MyApp;
 import com.rayboot.model.Filter;
 import com.rayboot.model.PhotoObj;
+import com.rayboot.tasks.PhotupThreadRunnable;
+import com.rayboot.util.BitmapPool;
+import com.rayboot.util.Flags;
+import com.rayboot.util.Utils;
 import com.rayboot.views.FiltersRadioGroup;
 import com.rayboot.views.MultiTouchImageView;
 import com.rayboot.views.PhotoTagItemLayout;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.ref.WeakReference;
 
 /**
  * @author rayboot
@@ -24,6 +39,71 @@ import com.rayboot.views.PhotoTagItemLayout;
 public class PhotoEditActivity extends Activity
         implements RadioGroup.OnCheckedChangeListener,ViewPager.OnPageChangeListener
 {
+    /**
+     * Renders the photo's edits at full size and saves them as a JPEG in the Pictures folder,
+     * where the gallery will pick it up.
+     */
+    static final class ExportPhotoRunnable extends PhotupThreadRunnable {
+
+        private final WeakReference<PhotoEditActivity> mActivity;
+        private final Context mContext;
+        private final PhotoObj mPhoto;
+
+        public ExportPhotoRunnable(PhotoEditActivity activity, PhotoObj photo) {
+            mActivity = new WeakReference<PhotoEditActivity>(activity);
+            mContext = activity.getApplicationContext();
+            mPhoto = photo;
+        }
+
+        public void runImpl() {
+            final Bitmap bitmap = mPhoto.getProcessedFullImage(mContext);
+            final File file = null != bitmap ? save(bitmap) : null;
+            if (null != bitmap) {
+                BitmapPool.getDefault().put(bitmap);
+            }
+
+            if (null != file) {
+                MediaScannerConnection.scanFile(mContext, new String[] { file.getAbsolutePath() },
+                        new String[] { "image/jpeg" }, null);
+            }
+
+            final PhotoEditActivity activity = mActivity.get();
+            if (null != activity) {
+                activity.runOnUiThread(new Runnable() {
+                    public void run() {
+                        activity.onPhotoExported(file);
+                    }
+                });
+            }
+        }
+
+        private File save(Bitmap bitmap) {
+            final File file = Utils.getExportPhotoFile();
+            OutputStream out = null;
+            try {
+                out = new FileOutputStream(file);
+                if (bitmap.compress(Bitmap.CompressFormat.JPEG, Constants.EXPORT_JPEG_QUALITY,
+                        out)) {
+                    return file;
+                }
+            } catch (IOException e) {
+                if (Flags.DEBUG) {
+                    e.printStackTrace();
+                }
+            } finally {
+                if (null != out) {
+                    try {
+                        out.close();
+                    } catch (IOException e) {
+                        // Already failed or written
+                    }
+                }
+            }
+            file.delete();
+            return null;
+        }
+    }
+
     private FiltersRadioGroup mFilterGroup;
     private ViewGroup mContentView;
     private ViewPager mViewPager;
@@ -41,6 +121,9 @@ public class PhotoEditActivity extends Activity
         mViewPager.setPageMargin(
                 getResources().getDimensionPixelSize(R.dimen.viewpager_margin));
         mViewPager.setOnPageChangeListener(this);
+
+        // One batched lookup now, rather than a MediaStore query per photo as each is shown
+        PhotoObj.prefetchMetadata(this, PhotoObj.getSelections());
     }
 
     @Override
@@ -75,6 +158,9 @@ public class PhotoEditActivity extends Activity
             //startActivityForResult(new Intent(this, CropImageActivity.class),
             //        REQUEST_CROP_PHOTO);
             return true;
+        case R.id.menu_save:
+            exportCurrentPhoto();
+            return true;
         case R.id.menu_reset:
             resetCurrentPhoto();
             return true;
@@ -114,7 +200,32 @@ public class PhotoEditActivity extends Activity
         PhotoTagItemLayout currentView = getCurrentView();
         PhotoObj upload = currentView.getPhotoSelection();
         upload.rotateClockwise();
-        reloadView(currentView);
+
+        MultiTouchImageView imageView = currentView.getImageView();
+        if (imageView.isUserRotationOnScreen()) {
+            // Nothing to render, the pixels are only rotated when the photo is saved
+            imageView.setScreenRotation(upload.getUserRotation());
+        } else {
+            reloadView(currentView);
+        }
+    }
+
+    private void exportCurrentPhoto() {
+        PhotoObj upload = getCurrentUpload();
+        if (null != upload) {
+            // Queued behind any filter renders, which it shares the photo processing thread with
+            MyApp.getApplication(this).getPhotoFilterThreadExecutorService().submit(
+                    new ExportPhotoRunnable(this, upload));
+        }
+    }
+
+    void onPhotoExported(File file) {
+        if (null != file) {
+            Toast.makeText(this, getString(R.string.photo_saved, file.getAbsolutePath()),
+                    Toast.LENGTH_SHORT).show();
+        } else {
+            Toast.makeText(this, R.string.photo_save_failed, Toast.LENGTH_SHORT).show();
+        }
     }
 
     private void resetCurrentPhoto() {
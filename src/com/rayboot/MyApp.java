@@ -6,10 +6,17 @@ import android.util.Log;
 import android.view.Display;
 import android.view.WindowManager;
 import com.rayboot.tasks.PhotupThreadFactory;
+import com.rayboot.util.BitmapMemoryCache;
+import com.rayboot.util.BitmapPool;
+import com.rayboot.util.CacheGovernor;
+import com.rayboot.util.CompressedBitmapCache;
+import com.rayboot.util.DiskBitmapCache;
+import com.rayboot.util.FilterPreviewCache;
 import com.rayboot.util.Flags;
+import com.rayboot.util.PhotoMetadataCache;
+import java.io.File;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
-import uk.co.senab.bitmapcache.BitmapLruCache;
 
 /**
  * @author rayboot
@@ -18,25 +25,42 @@ import uk.co.senab.bitmapcache.BitmapLruCache;
  */
 public class MyApp extends Application
 {
-    private ExecutorService  mMultiThreadExecutor,mSingleThreadExecutor;
+    private ExecutorService  mMultiThreadExecutor,mPhotoFilterExecutor;
     static final float EXECUTOR_POOL_SIZE_PER_CORE = 1.5f;
     public static final String THREAD_FILTERS = "filters_thread";
-    private BitmapLruCache mImageCache;
+    private BitmapMemoryCache mImageCache;
+    /** Read without the lock by the memory callbacks, so only set once fully set up */
+    private volatile CacheGovernor mCacheGovernor;
+    private DiskBitmapCache mDiskImageCache;
+    private FilterPreviewCache mFilterPreviewCache;
+    private PhotoMetadataCache mPhotoMetadataCache;
+    private BitmapMemoryCache mTileCache;
 
     public static MyApp getApplication(Context context) {
         return (MyApp) context.getApplicationContext();
     }
 
-    public ExecutorService getPhotoFilterThreadExecutorService() {
-        if (null == mSingleThreadExecutor || mSingleThreadExecutor.isShutdown()) {
-            mSingleThreadExecutor = Executors
-                    .newSingleThreadExecutor(
+    /**
+     * Pool used for PhotoProcessing work, with one thread per core. Each job works on its own
+     * NativeImage so jobs can run side by side. All threads are named {@link #THREAD_FILTERS}.
+     */
+    public synchronized ExecutorService getPhotoFilterThreadExecutorService() {
+        if (null == mPhotoFilterExecutor || mPhotoFilterExecutor.isShutdown()) {
+            final int numThreads = Runtime.getRuntime().availableProcessors();
+            mPhotoFilterExecutor = Executors
+                    .newFixedThreadPool(numThreads,
                             new PhotupThreadFactory(THREAD_FILTERS));
+
+            if (Flags.DEBUG) {
+                Log.d("MyApp", "PhotoFilterExecutor created with "
+                        + numThreads
+                        + " threads");
+            }
         }
-        return mSingleThreadExecutor;
+        return mPhotoFilterExecutor;
     }
 
-    public ExecutorService getMultiThreadExecutorService() {
+    public synchronized ExecutorService getMultiThreadExecutorService() {
         if (null == mMultiThreadExecutor || mMultiThreadExecutor.isShutdown()) {
             final int numThreads = Math.round(Runtime.getRuntime().availableProcessors()
                     * EXECUTOR_POOL_SIZE_PER_CORE);
@@ -52,13 +76,95 @@ public class MyApp extends Application
         return mMultiThreadExecutor;
     }
 
-    public BitmapLruCache getImageCache() {
+    public synchronized BitmapMemoryCache getImageCache() {
         if (null == mImageCache) {
-            mImageCache = new BitmapLruCache(this, Constants.IMAGE_CACHE_HEAP_PERCENTAGE);
+            final long heap = Runtime.getRuntime().maxMemory();
+            // Evicted bitmaps are kept compressed, at around a tenth of the size
+            final CompressedBitmapCache compressedTier = new CompressedBitmapCache(
+                    Math.round(heap * Constants.IMAGE_CACHE_COMPRESSED_HEAP_PERCENTAGE));
+            mImageCache = new BitmapMemoryCache(
+                    Math.round(heap * Constants.IMAGE_CACHE_HEAP_PERCENTAGE), compressedTier);
+            getCacheGovernor().setImageCache(mImageCache);
         }
         return mImageCache;
     }
 
+    /**
+     * Disk tier beneath {@link #getImageCache()}, holding decodes and renders the memory cache
+     * has evicted or never had in this process.
+     */
+    public synchronized DiskBitmapCache getDiskImageCache() {
+        if (null == mDiskImageCache) {
+            mDiskImageCache = new DiskBitmapCache(new File(getCacheDir(),
+                    Constants.IMAGE_CACHE_DIR), Constants.IMAGE_CACHE_DISK_BYTES);
+        }
+        return mDiskImageCache;
+    }
+
+    public synchronized FilterPreviewCache getFilterPreviewCache() {
+        if (null == mFilterPreviewCache) {
+            final int maxMemory = Math.round(Runtime.getRuntime().maxMemory()
+                    * Constants.PREVIEW_CACHE_HEAP_PERCENTAGE);
+            mFilterPreviewCache = new FilterPreviewCache(maxMemory,
+                    new File(getCacheDir(), Constants.PREVIEW_CACHE_DIR),
+                    Constants.PREVIEW_CACHE_DISK_BYTES);
+            getCacheGovernor().setFilterPreviewCache(mFilterPreviewCache);
+        }
+        return mFilterPreviewCache;
+    }
+
+    /**
+     * Tiles of photos shown zoomed in. Kept apart from {@link #getImageCache()}, so that panning
+     * around one photo doesn't push every other photo's render out.
+     */
+    public synchronized BitmapMemoryCache getTileCache() {
+        if (null == mTileCache) {
+            mTileCache = new BitmapMemoryCache(Math.round(Runtime.getRuntime().maxMemory()
+                    * Constants.TILE_CACHE_HEAP_PERCENTAGE));
+            getCacheGovernor().setTileCache(mTileCache);
+        }
+        return mTileCache;
+    }
+
+    public synchronized PhotoMetadataCache getPhotoMetadataCache() {
+        if (null == mPhotoMetadataCache) {
+            mPhotoMetadataCache = new PhotoMetadataCache(new File(getCacheDir(),
+                    Constants.PHOTO_METADATA_CACHE_FILE));
+        }
+        return mPhotoMetadataCache;
+    }
+
+    /**
+     * Resizes the memory caches from their hit rates, and sheds them under memory pressure.
+     */
+    public synchronized CacheGovernor getCacheGovernor() {
+        if (null == mCacheGovernor) {
+            final CacheGovernor governor = new CacheGovernor(
+                    Constants.IMAGE_CACHE_MIN_HEAP_PERCENTAGE,
+                    Constants.IMAGE_CACHE_MAX_HEAP_PERCENTAGE);
+            governor.setBitmapPool(BitmapPool.getDefault());
+            mCacheGovernor = governor;
+        }
+        return mCacheGovernor;
+    }
+
+    @Override
+    public void onTrimMemory(int level) {
+        super.onTrimMemory(level);
+        // Nothing to shed if the caches were never created
+        if (null != mCacheGovernor) {
+            mCacheGovernor.onTrimMemory(level);
+        }
+    }
+
+    @Override
+    public void onLowMemory() {
+        super.onLowMemory();
+        if (null != mCacheGovernor) {
+            mCacheGovernor.onLowMemory();
+        }
+    }
+
     @SuppressWarnings("deprecation")
     public int getSmallestScreenDimension() {
         WindowManager wm = (WindowManager) getSystemService(Context.WINDOW_SERVICE);
@@ -0,0 +1,18 @@
+package com.rayboot.listeners;
+
+import com.rayboot.util.BitmapMemoryCache;
+
+/**
+ * @author rayboot
+ * @from 14-5-20 16:05
+ * @TODO
+ */
+public interface OnCacheMissListener
+{
+
+    /**
+     * Called on whichever thread missed, often the UI thread, so must return quickly.
+     */
+    void onCacheMiss(BitmapMemoryCache cache);
+
+}
@@ -1,14 +1,18 @@
 package com.rayboot.model;
 
+import android.annotation.TargetApi;
 import android.content.ContentResolver;
 import android.content.Context;
 import android.content.res.Resources;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
+import android.graphics.BitmapRegionDecoder;
 import android.graphics.PointF;
+import android.graphics.Rect;
 import android.graphics.RectF;
 import android.media.FaceDetector;
 import android.net.Uri;
+import android.os.Build;
 import android.provider.MediaStore;
 import android.text.TextUtils;
 import android.util.Log;
@@ -17,12 +21,22 @@ import com.rayboot.ImgProc.R;
 import com.rayboot.MyApp;
 import com.rayboot.listeners.OnFaceDetectionListener;
 import com.rayboot.listeners.OnPhotoTagsChangedListener;
+import com.rayboot.util.BitmapMemoryCache;
+import com.rayboot.util.BitmapPool;
+import com.rayboot.util.CacheableBitmap;
 import com.rayboot.util.Flags;
-import com.rayboot.util.PhotoProcessing;
+import com.rayboot.util.ImageHeaderParser;
+import com.rayboot.util.ImagePyramid;
+import com.rayboot.util.NativeImage;
+import com.rayboot.util.PhotoMetadataCache;
+import com.rayboot.util.RewindableInputStream;
 import com.rayboot.util.Utils;
 import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
 import java.lang.ref.WeakReference;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
@@ -52,6 +66,10 @@ public class PhotoObj
 
     private int mUserRotation;
     private Filter mFilter;
+    private float mSharpenAmount;
+    private float mBlurAmount;
+    /** Last modified time of the original, as last looked up, see {@link #updateSourceVersion} */
+    private volatile long mSourceModified;
     static final String LOG_TAG = "PhotoUpload";
     private boolean mCompletedDetection;
     private HashSet<PhotoTag> mTags;
@@ -74,6 +92,36 @@ public class PhotoObj
         return item;
     }
 
+    /**
+     * @return every photo which has been selected
+     */
+    public static List<PhotoObj> getSelections() {
+        return new ArrayList<PhotoObj>(SELECTION_CACHE.values());
+    }
+
+    /**
+     * Looks up the metadata of all the photos in the background, with a query per batch of
+     * photos rather than one per photo as each is loaded.
+     */
+    public static void prefetchMetadata(Context context, Collection<PhotoObj> photos) {
+        if (photos.isEmpty()) {
+            return;
+        }
+
+        final ArrayList<Uri> uris = new ArrayList<Uri>(photos.size());
+        for (PhotoObj photo : photos) {
+            uris.add(photo.getOriginalPhotoUri());
+        }
+
+        final MyApp app = MyApp.getApplication(context);
+        final ContentResolver resolver = context.getContentResolver();
+        app.getMultiThreadExecutorService().submit(new Runnable() {
+            public void run() {
+                app.getPhotoMetadataCache().prefetch(resolver, uris);
+            }
+        });
+    }
+
     private PhotoObj(Uri uri) {
         mFullUri = uri;
         mFullUriString = uri.toString();
@@ -84,6 +132,8 @@ public class PhotoObj
         mCropLeft = mCropTop = MIN_CROP_VALUE;
         mCropRight = mCropBottom = MAX_CROP_VALUE;
         mFilter = null;
+        mSharpenAmount = 0f;
+        mBlurAmount = 0f;
         mCompletedDetection = false;
     }
 
@@ -102,6 +152,33 @@ public class PhotoObj
         return null != mFilter && mFilter != Filter.ORIGINAL;
     }
 
+    /**
+     * @return how much the photo is sharpened, see {@link com.rayboot.util.Convolution#sharpen}
+     */
+    public float getSharpenAmount() {
+        return mSharpenAmount;
+    }
+
+    public void setSharpenAmount(float amount) {
+        mSharpenAmount = amount;
+    }
+
+    /**
+     * @return the blur radius, relative to the longest side of the photo so that it looks the
+     * same whatever size the photo is rendered at
+     */
+    public float getBlurAmount() {
+        return mBlurAmount;
+    }
+
+    public void setBlurAmount(float amount) {
+        mBlurAmount = amount;
+    }
+
+    public boolean beenAdjusted() {
+        return mSharpenAmount != 0f || mBlurAmount > 0f;
+    }
+
 
     public boolean beenCropped() {
         return checkCropValues(mCropLeft, mCropTop, mCropRight, mCropBottom);
@@ -135,27 +212,87 @@ public class PhotoObj
     }
 
     public Bitmap getThumbnailImage(Context context) {
+        // If the display image has already been decoded, there's no need to decode again
+        final Bitmap derived = deriveThumbnailImage(context);
+        if (null != derived) {
+            return derived;
+        }
+
         if (ContentResolver.SCHEME_CONTENT.equals(getOriginalPhotoUri().getScheme())) {
             return getThumbnailImageFromMediaStore(context);
         }
 
+        try {
+            final PhotoMetadataCache.Metadata metadata = getMetadata(context);
+            Bitmap bitmap = Utils
+                    .decodeImage(context.getContentResolver(),
+                            getOriginalPhotoUri(), getThumbnailSize(context), metadata);
+            bitmap = Utils.rotate(bitmap, getExifRotation(context, metadata));
+            return bitmap;
+        } catch (FileNotFoundException e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    private static int getThumbnailSize(Context context) {
         final Resources res = context.getResources();
         int size = res.getBoolean(R.bool.load_mini_thumbnails) ? MINI_THUMBNAIL_SIZE
                 : MICRO_THUMBNAIL_SIZE;
         if (size == MINI_THUMBNAIL_SIZE && res.getBoolean(R.bool.sample_mini_thumbnails)) {
             size /= 2;
         }
+        return size;
+    }
 
-        try {
-            Bitmap bitmap = Utils
-                    .decodeImage(context.getContentResolver(),
-                            getOriginalPhotoUri(), size);
-            bitmap = Utils.rotate(bitmap, getExifRotation(context));
-            return bitmap;
-        } catch (FileNotFoundException e) {
-            e.printStackTrace();
+    /**
+     * @return the thumbnail, downsampled from the display image if it's in the memory cache,
+     * otherwise null
+     */
+    private Bitmap deriveThumbnailImage(Context context) {
+        final BitmapMemoryCache cache = MyApp.getApplication(context).getImageCache();
+        final CacheableBitmap.Lease display = cache.get(getDisplayImageKey());
+        if (null == display) {
             return null;
         }
+
+        try {
+            return takeThumbnailLevel(context, display.getBitmap());
+        } finally {
+            display.release();
+        }
+    }
+
+    /**
+     * Downsamples a freshly decoded display image into the thumbnail and caches it, so that the
+     * thumbnail and filter previews don't need a decode of their own.
+     *
+     * @param rotation - Clockwise rotation needed to make the display image upright
+     */
+    private void cacheThumbnailImage(Context context, Bitmap display, int rotation) {
+        final BitmapMemoryCache cache = MyApp.getApplication(context).getImageCache();
+        final CacheableBitmap.Lease cached = cache.get(getThumbnailImageKey());
+        if (null != cached) {
+            cached.release();
+            return;
+        }
+
+        Bitmap thumbnail = takeThumbnailLevel(context, display);
+        if (null != thumbnail) {
+            thumbnail = Utils.rotate(thumbnail, rotation);
+            cache.put(getThumbnailImageKey(), thumbnail).release();
+        }
+    }
+
+    private static Bitmap takeThumbnailLevel(Context context, Bitmap display) {
+        final ImagePyramid pyramid = ImagePyramid.build(display, getThumbnailSize(context));
+        try {
+            // The display image belongs to the caller, so can't be used as the thumbnail
+            final int level = pyramid.getSmallestLevel();
+            return level > 0 ? pyramid.takeLevel(level) : null;
+        } finally {
+            pyramid.release();
+        }
     }
 
     private Bitmap getThumbnailImageFromMediaStore(Context context) {
@@ -186,57 +323,81 @@ public class PhotoObj
     }
 
     public int getExifRotation(Context context) {
+        return getExifRotation(context, getMetadata(context));
+    }
+
+    private int getExifRotation(Context context, PhotoMetadataCache.Metadata metadata) {
+        if (null != metadata) {
+            return metadata.getOrientation();
+        }
         return Utils
                 .getOrientationFromContentUri(context.getContentResolver(), getOriginalPhotoUri());
     }
 
+    /**
+     * @return the orientation, dimensions and MIME type of the original photo, from the cache if
+     * they've been looked up before. Null if the photo can't be read.
+     */
+    public PhotoMetadataCache.Metadata getMetadata(Context context) {
+        final PhotoMetadataCache.Metadata metadata = MyApp.getApplication(context)
+                .getPhotoMetadataCache().get(context.getContentResolver(), getOriginalPhotoUri());
+        if (null != metadata) {
+            mSourceModified = metadata.getLastModified();
+        }
+        return metadata;
+    }
+
 
     public Bitmap processBitmapUsingFilter(final Bitmap bitmap, final Filter filter,
             final boolean fullSize,
             final boolean modifyOriginal) {
+        return processBitmapUsingFilter(bitmap, filter, fullSize, modifyOriginal, true);
+    }
+
+    /**
+     * @param withUserRotation - Whether to rotate the pixels by the user's rotation. If not, the
+     * rotation should be applied when the result is drawn.
+     */
+    public Bitmap processBitmapUsingFilter(final Bitmap bitmap, final Filter filter,
+            final boolean fullSize,
+            final boolean modifyOriginal, final boolean withUserRotation) {
         Utils.checkPhotoProcessingThread();
 
-        PhotoProcessing.sendBitmapToNative(bitmap);
+        // The bitmap has already been rotated upright
+        Bitmap result = RenderPlan.forPhoto(this, filter, 0, fullSize, withUserRotation)
+                .render(bitmap);
         if (modifyOriginal) {
-            bitmap.recycle();
+            BitmapPool.getDefault().put(bitmap);
         }
-
-        if (fullSize && beenCropped()) {
-            RectF rect = getCropValues();
-            PhotoProcessing.nativeCrop(rect.left, rect.top, rect.right, rect.bottom);
-        }
-
-        if (null != filter) {
-            PhotoProcessing.filterPhoto(filter.getId());
-        }
-
-        switch (getUserRotation()) {
-        case 90:
-            PhotoProcessing.nativeRotate90();
-            break;
-        case 180:
-            PhotoProcessing.nativeRotate180();
-            break;
-        case 270:
-            PhotoProcessing.nativeRotate180();
-            PhotoProcessing.nativeRotate90();
-            break;
-        }
-
-        return PhotoProcessing.getBitmapFromNative(null);
+        return result;
     }
 
     public Bitmap processBitmap(Bitmap bitmap, final boolean fullSize,
             final boolean modifyOriginal) {
-        if (requiresProcessing(fullSize)) {
-            return processBitmapUsingFilter(bitmap, mFilter, fullSize, modifyOriginal);
+        return processBitmap(bitmap, fullSize, modifyOriginal, true);
+    }
+
+    public Bitmap processBitmap(Bitmap bitmap, final boolean fullSize,
+            final boolean modifyOriginal, final boolean withUserRotation) {
+        if (requiresProcessing(fullSize, withUserRotation)) {
+            return processBitmapUsingFilter(bitmap, mFilter, fullSize, modifyOriginal,
+                    withUserRotation);
         } else {
             return bitmap;
         }
     }
 
     public boolean requiresProcessing(final boolean fullSize) {
-        return getUserRotation() != 0 || beenFiltered() || (fullSize && beenCropped());
+        return requiresProcessing(fullSize, true);
+    }
+
+    /**
+     * @param withUserRotation - Whether the user's rotation needs to be applied to the pixels,
+     * rather than when they're drawn
+     */
+    public boolean requiresProcessing(final boolean fullSize, final boolean withUserRotation) {
+        return (withUserRotation && getUserRotation() != 0) || beenFiltered() || beenAdjusted()
+                || (fullSize && beenCropped());
     }
 
     public void setTagChangedListener(OnPhotoTagsChangedListener tagChangedListener) {
@@ -280,7 +441,7 @@ public class PhotoObj
 
         // We must have created a converted 565 bitmap
         if (bitmap != originalBitmap) {
-            bitmap.recycle();
+            BitmapPool.getDefault().put(bitmap);
             bitmap = null;
         }
 
@@ -362,20 +523,295 @@ public class PhotoObj
     }
 
     public String getDisplayImageKey() {
-        return "dsply_" + getOriginalPhotoUri();
+        return "dsply_" + getOriginalPhotoUri() + "_m" + mSourceModified;
     }
 
     public String getThumbnailImageKey() {
-        return "thumb_" + getOriginalPhotoUri();
+        return "thumb_" + getOriginalPhotoUri() + "_m" + mSourceModified;
+    }
+
+    /**
+     * Looks up when the original photo was last modified, which all of this photo's keys include
+     * so that anything cached of an earlier version of it, on disk in particular, is never
+     * mistaken for the current one. The key getters only read what was last looked up here or by
+     * {@link #getMetadata(Context)}, so are safe on the UI thread; workers should call this
+     * before building keys to use with the disk cache. May hit the disk.
+     */
+    public void updateSourceVersion(Context context) {
+        getMetadata(context);
     }
 
+    /**
+     * @return the key of this photo's render, with its current edits, at the given size. Anything
+     * which changes the rendered pixels is part of the key, so a render can be reused for as long
+     * as the edits are the same, and is simply never asked for again once they change.
+     */
+    public String getRenderedImageKey(Context context, final boolean fullSize) {
+        return getRenderedImageKey(context, fullSize, true);
+    }
+
+    /**
+     * @param withUserRotation - Whether the render has the user's rotation applied. Renders
+     * without it are shared by every rotation.
+     */
+    public String getRenderedImageKey(Context context, final boolean fullSize,
+            final boolean withUserRotation) {
+        final StringBuilder key = new StringBuilder("render_");
+        if (fullSize) {
+            key.append("dsply").append(MyApp.getApplication(context).getSmallestScreenDimension());
+        } else {
+            key.append("thumb");
+        }
+        appendEditsToKey(key, getFilterUsed(), fullSize, withUserRotation);
+        return key.toString();
+    }
+
+    /**
+     * @return the key of this photo's preview in the filter strip for the given filter. As with
+     * {@link #getRenderedImageKey(Context, boolean)}, previews with different edits have
+     * different keys.
+     */
+    public String getFilterPreviewKey(Filter filter) {
+        final StringBuilder key = new StringBuilder("preview");
+        appendEditsToKey(key, filter, false, true);
+        return key.toString();
+    }
+
+    /**
+     * @return the key shared by this photo's zoomed in tiles with its current edits. Tiles are
+     * rendered without the user's rotation, so every rotation shares them.
+     */
+    public String getTileKey() {
+        final StringBuilder key = new StringBuilder("tile");
+        appendEditsToKey(key, getFilterUsed(), true, false);
+        return key.toString();
+    }
+
+    private void appendEditsToKey(StringBuilder key, Filter filter, boolean fullSize,
+            boolean withUserRotation) {
+        key.append('_').append(getOriginalPhotoUri());
+        key.append("_m").append(mSourceModified);
+        key.append("_f").append(filter.getId());
+        key.append("_r").append(withUserRotation ? getUserRotation() : 0);
+        if (fullSize && beenCropped()) {
+            key.append("_c").append(mCropLeft).append(',').append(mCropTop).append(',')
+                    .append(mCropRight).append(',').append(mCropBottom);
+        }
+        if (beenAdjusted()) {
+            key.append("_s").append(mSharpenAmount).append("_b").append(mBlurAmount);
+        }
+    }
+
+    /**
+     * Decodes the display sized image, upright. The thumbnail is derived from the same decode and
+     * cached along with it.
+     */
     public Bitmap getDisplayImage(Context context) {
-        try {
+        final PhotoMetadataCache.Metadata metadata = getMetadata(context);
+        Bitmap bitmap = decodeDisplayImage(context, metadata);
+        if (null != bitmap) {
+            bitmap = Utils.rotate(bitmap, getExifRotation(context, metadata));
+            cacheThumbnailImage(context, bitmap, 0);
+        }
+        return bitmap;
+    }
+
+    /**
+     * Decodes the display sized image and renders the current edits onto it, rotating it upright
+     * as part of the same pass rather than as a separate step. As with
+     * {@link #getDisplayImage(Context)}, the thumbnail is derived from the same decode.
+     */
+    public Bitmap getProcessedDisplayImage(Context context) {
+        return getProcessedDisplayImage(context, true);
+    }
+
+    /**
+     * @param withUserRotation - Whether to rotate the pixels by the user's rotation, or leave it
+     * to the view to rotate when drawing
+     */
+    public Bitmap getProcessedDisplayImage(Context context, final boolean withUserRotation) {
+        Utils.checkPhotoProcessingThread();
+
+        final PhotoMetadataCache.Metadata metadata = getMetadata(context);
+        final int exifRotation = getExifRotation(context, metadata);
+        final RenderPlan plan = RenderPlan.forPhoto(this, mFilter, exifRotation, true,
+                withUserRotation);
+
+        if (beenCropped()) {
+            // Roughly as many pixels as a display sized decode of the whole photo
             final int size = MyApp.getApplication(context).getSmallestScreenDimension();
-            Bitmap bitmap = Utils
-                    .decodeImage(context.getContentResolver(), getOriginalPhotoUri(), size);
-            bitmap = Utils.rotate(bitmap, getExifRotation(context));
+            final Bitmap region = decodeCropRegion(context, metadata, exifRotation, size * size,
+                    Bitmap.Config.RGB_565);
+            if (null != region) {
+                final Bitmap result = plan.withoutCrop().render(region);
+                BitmapPool.getDefault().put(region);
+                return result;
+            }
+        }
+
+        final Bitmap bitmap = decodeDisplayImage(context, metadata);
+        if (null == bitmap) {
+            return null;
+        }
+
+        cacheThumbnailImage(context, bitmap, exifRotation);
+
+        Bitmap result = plan.render(bitmap);
+        BitmapPool.getDefault().put(bitmap);
+        return result;
+    }
+
+    /**
+     * Renders the current edits onto the full size image, downsampled to at most maxPixels. Local
+     * JPEGs are decoded straight into native memory and processed there, so the returned bitmap
+     * is the only full size copy made on the Java heap. Anything else falls back to decoding
+     * through BitmapFactory. Cropped photos only have their crop decoded, where possible, so the
+     * cost scales with the crop rather than the whole photo.
+     */
+    public Bitmap getProcessedFullImage(Context context, final int maxPixels) {
+        Utils.checkPhotoProcessingThread();
+
+        final ContentResolver resolver = context.getContentResolver();
+        final PhotoMetadataCache.Metadata metadata = getMetadata(context);
+        final int exifRotation = getExifRotation(context, metadata);
+        // Saved, so the filter can't be approximated
+        final RenderPlan plan = RenderPlan.forPhoto(this, mFilter, exifRotation, true)
+                .withExactFilter();
+
+        if (beenCropped()) {
+            final Bitmap region = decodeCropRegion(context, metadata, exifRotation, maxPixels,
+                    Bitmap.Config.ARGB_8888);
+            if (null != region) {
+                final Bitmap result = plan.withoutCrop().render(region);
+                BitmapPool.getDefault().put(region);
+                return result;
+            }
+        }
+
+        final String path = null != metadata ? metadata.getPath()
+                : Utils.getPathFromContentUri(resolver, getOriginalPhotoUri());
+        if (null != path) {
+            final NativeImage image = NativeImage.loadResized(path, maxPixels);
+            if (null != image) {
+                try {
+                    return plan.render(image);
+                } finally {
+                    image.release();
+                }
+            }
+        }
+
+        if (Flags.DEBUG) {
+            Log.d(LOG_TAG, "Native decode failed, falling back to BitmapFactory: " + path);
+        }
+
+        try {
+            final Bitmap bitmap = Utils.decodeImage(resolver, getOriginalPhotoUri(),
+                    (int) Math.sqrt(maxPixels), metadata, Bitmap.Config.ARGB_8888);
+            if (null == bitmap) {
+                return null;
+            }
+            Bitmap result = plan.render(bitmap);
+            BitmapPool.getDefault().put(bitmap);
+            return result;
+        } catch (FileNotFoundException e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    public Bitmap getProcessedFullImage(Context context) {
+        return getProcessedFullImage(context, Constants.FULL_SIZE_MAX_PIXELS);
+    }
+
+    /**
+     * Decodes only the cropped part of the photo with BitmapRegionDecoder, sampled down by powers
+     * of two until it's no more than maxPixels. RGB_565 halves the memory for display, anything
+     * saved needs ARGB_8888 to avoid banding.
+     *
+     * @return the crop, which still needs rotating by the EXIF rotation to be upright. Null if
+     * region decoding isn't available or the photo can't be region decoded.
+     */
+    @TargetApi(Build.VERSION_CODES.GINGERBREAD_MR1)
+    private Bitmap decodeCropRegion(Context context, PhotoMetadataCache.Metadata metadata,
+            int exifRotation, int maxPixels, Bitmap.Config config) {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.GINGERBREAD_MR1 || null == metadata
+                || !isRegionDecodable(metadata.getMimeType())) {
+            return null;
+        }
+
+        // The crop is of the upright photo, and the decoder works on the source
+        final RectF crop = RenderPlan.toSourceCrop(getCropValues(), exifRotation);
+
+        BitmapRegionDecoder decoder = null;
+        InputStream in = null;
+        try {
+            if (null != metadata.getPath()) {
+                decoder = BitmapRegionDecoder.newInstance(metadata.getPath(), false);
+            } else {
+                in = context.getContentResolver().openInputStream(getOriginalPhotoUri());
+                decoder = BitmapRegionDecoder.newInstance(in, false);
+            }
+            if (null == decoder) {
+                return null;
+            }
+
+            // The decoder's size, as the metadata can be stale or missing for a content Uri
+            final int width = decoder.getWidth();
+            final int height = decoder.getHeight();
+            final Rect region = new Rect((int) (width * crop.left), (int) (height * crop.top),
+                    (int) (width * crop.right), (int) (height * crop.bottom));
+            if (!region.intersect(0, 0, width, height)) {
+                return null;
+            }
+
+            int sampleSize = 1;
+            while ((long) (region.width() / sampleSize) * (region.height() / sampleSize)
+                    > maxPixels) {
+                sampleSize *= 2;
+            }
+
+            final BitmapFactory.Options opts = new BitmapFactory.Options();
+            opts.inSampleSize = sampleSize;
+            opts.inPreferredConfig = config;
+
+            final Bitmap bitmap = decoder.decodeRegion(region, opts);
+            if (Flags.DEBUG && null != bitmap) {
+                Log.d(LOG_TAG, "Region decoded " + region.toShortString() + " of " + width + "x"
+                        + height + " at 1/" + sampleSize + " to " + bitmap.getWidth() + "x"
+                        + bitmap.getHeight());
+            }
             return bitmap;
+        } catch (IOException e) {
+            if (Flags.DEBUG) {
+                e.printStackTrace();
+            }
+            return null;
+        } catch (IllegalArgumentException e) {
+            // Thrown for a region outside the image, fall back to a whole decode
+            if (Flags.DEBUG) {
+                e.printStackTrace();
+            }
+            return null;
+        } finally {
+            if (null != decoder) {
+                decoder.recycle();
+            }
+            RewindableInputStream.closeQuietly(in);
+        }
+    }
+
+    private static boolean isRegionDecodable(String mimeType) {
+        // The only formats BitmapRegionDecoder supports
+        return ImageHeaderParser.MIME_JPEG.equals(mimeType)
+                || ImageHeaderParser.MIME_PNG.equals(mimeType);
+    }
+
+    private Bitmap decodeDisplayImage(Context context, PhotoMetadataCache.Metadata metadata) {
+        try {
+            final int size = MyApp.getApplication(context).getSmallestScreenDimension();
+            return Utils.decodeImage(context.getContentResolver(), getOriginalPhotoUri(), size,
+                    metadata);
         } catch (FileNotFoundException e) {
             e.printStackTrace();
             return null;
@@ -0,0 +1,240 @@
+package com.rayboot.model;
+
+import android.graphics.Bitmap;
+import android.graphics.RectF;
+import android.util.Log;
+import com.rayboot.util.BitmapPool;
+import com.rayboot.util.BitmapTransforms;
+import com.rayboot.util.Convolution;
+import com.rayboot.util.EditTransform;
+import com.rayboot.util.Flags;
+import com.rayboot.util.NativeImage;
+import com.rayboot.util.PhotoProcessing;
+
+/**
+ * Renders the edits of a {@link PhotoObj} in one pass. The EXIF rotation is applied while the
+ * crop is read out of the source, the filter runs over just the cropped pixels, and the user
+ * rotation is applied while those pixels are written into the result. Only one pixel buffer, the
+ * size of the crop, is allocated along with the resulting Bitmap.
+ *
+ * @author rayboot
+ * @from 14-5-12 15:10
+ * @TODO
+ */
+public class RenderPlan {
+
+    private final int mExifRotation;
+    private final RectF mCrop;
+    private final Filter mFilter;
+    private final int mUserRotation;
+    private final boolean mParallel;
+    private final float mSharpenAmount;
+    private final float mBlurAmount;
+    /** Whether the filter has to match its kernel exactly, rather than a table approximating it */
+    private final boolean mExactFilter;
+
+    /**
+     * @param exifRotation - Clockwise rotation needed to display the source upright
+     * @param crop - Crop, relative (0 to 1) to the upright image. Can be null
+     * @param filter - Filter to apply. Can be null
+     * @param userRotation - Clockwise rotation the user has applied
+     * @param parallel - Whether to spread filtering across all cores
+     */
+    public RenderPlan(int exifRotation, RectF crop, Filter filter, int userRotation,
+            boolean parallel) {
+        this(exifRotation, crop, filter, userRotation, parallel, 0f, 0f);
+    }
+
+    /**
+     * @param sharpenAmount - See {@link Convolution#sharpen(int[], int, int, float)}, 0 for none
+     * @param blurAmount - Gaussian blur radius relative to the longest side, 0 for none
+     */
+    public RenderPlan(int exifRotation, RectF crop, Filter filter, int userRotation,
+            boolean parallel, float sharpenAmount, float blurAmount) {
+        this(exifRotation, crop, filter, userRotation, parallel, sharpenAmount, blurAmount,
+                false);
+    }
+
+    private RenderPlan(int exifRotation, RectF crop, Filter filter, int userRotation,
+            boolean parallel, float sharpenAmount, float blurAmount, boolean exactFilter) {
+        mExifRotation = normaliseAngle(exifRotation);
+        mCrop = crop;
+        mFilter = filter;
+        mUserRotation = normaliseAngle(userRotation);
+        mParallel = parallel;
+        mSharpenAmount = sharpenAmount;
+        mBlurAmount = blurAmount;
+        mExactFilter = exactFilter;
+    }
+
+    /**
+     * Plans the render of a photo's current edits. The crop is only applied to full size renders.
+     */
+    public static RenderPlan forPhoto(PhotoObj photo, Filter filter, int exifRotation,
+            boolean fullSize) {
+        return forPhoto(photo, filter, exifRotation, fullSize, true);
+    }
+
+    /**
+     * @param withUserRotation - Whether to rotate the pixels by the user's rotation, or leave it
+     * to be applied when the render is drawn
+     */
+    public static RenderPlan forPhoto(PhotoObj photo, Filter filter, int exifRotation,
+            boolean fullSize, boolean withUserRotation) {
+        return new RenderPlan(exifRotation,
+                fullSize && photo.beenCropped() ? photo.getCropValues() : null, filter,
+                withUserRotation ? photo.getUserRotation() : 0, fullSize,
+                photo.getSharpenAmount(), photo.getBlurAmount());
+    }
+
+    /**
+     * @return the same plan for a source which has already been cropped
+     */
+    public RenderPlan withoutCrop() {
+        if (null == mCrop) {
+            return this;
+        }
+        return new RenderPlan(mExifRotation, null, mFilter, mUserRotation, mParallel,
+                mSharpenAmount, mBlurAmount, mExactFilter);
+    }
+
+    /**
+     * @return the same plan, with the filter run exactly rather than approximated. Anything which
+     * leaves the app, such as a saved photo, needs this.
+     */
+    public RenderPlan withExactFilter() {
+        if (mExactFilter) {
+            return this;
+        }
+        return new RenderPlan(mExifRotation, mCrop, mFilter, mUserRotation, mParallel,
+                mSharpenAmount, mBlurAmount, true);
+    }
+
+    /**
+     * Renders the source into a new ARGB_8888 bitmap. The source isn't modified or recycled.
+     *
+     * @throws java.util.concurrent.CancellationException if the thread is interrupted while the
+     * pixels are filtered or adjusted in bands, rather than returning a half finished render
+     */
+    public Bitmap render(Bitmap source) {
+        final long start = Flags.DEBUG ? System.currentTimeMillis() : 0;
+
+        // Size of the source once upright
+        final boolean exifSwaps = BitmapTransforms.swapsDimensions(mExifRotation);
+        final int uprightWidth = exifSwaps ? source.getHeight() : source.getWidth();
+        final int uprightHeight = exifSwaps ? source.getWidth() : source.getHeight();
+
+        // Crop rect in upright pixels, truncated in the same way as nativeCrop
+        int left = 0, top = 0, right = uprightWidth, bottom = uprightHeight;
+        if (null != mCrop) {
+            left = (int) (uprightWidth * mCrop.left);
+            top = (int) (uprightHeight * mCrop.top);
+            right = (int) (uprightWidth * mCrop.right);
+            bottom = (int) (uprightHeight * mCrop.bottom);
+        }
+        final int width = right - left;
+        final int height = bottom - top;
+
+        final int[] pixels = new int[width * height];
+        BitmapTransforms.readRotated(source, mExifRotation, left, top, width, height, pixels);
+
+        if (null != mFilter) {
+            // Unless asked to be exact, the render is only shown on screen, so filters may be
+            // approximated by tables
+            final boolean allowApproximate = !mExactFilter;
+            if (mParallel) {
+                PhotoProcessing.filterPixelsInParallel(mFilter.getId(), pixels, width, height,
+                        allowApproximate);
+            } else {
+                PhotoProcessing.filterPixels(mFilter.getId(), pixels, width, height,
+                        allowApproximate);
+            }
+        }
+        applyAdjustments(pixels, width, height);
+
+        final boolean userSwaps = BitmapTransforms.swapsDimensions(mUserRotation);
+        // Every pixel is written, so a pooled bitmap will do
+        final Bitmap result = BitmapPool.getDefault().getOrCreate(userSwaps ? height : width,
+                userSwaps ? width : height, Bitmap.Config.ARGB_8888);
+        BitmapTransforms.writeRotated(pixels, width, height, mUserRotation, result);
+
+        if (Flags.DEBUG) {
+            Log.d("RenderPlan", "Rendered " + result.getWidth() + "x" + result.getHeight()
+                    + " from " + source.getWidth() + "x" + source.getHeight() + " in "
+                    + (System.currentTimeMillis() - start) + "ms");
+        }
+
+        return result;
+    }
+
+    /**
+     * Renders a source which is already in native memory, processing it there so that the only
+     * copy on the Java heap is the resulting ARGB_8888 bitmap. The image is cropped and filtered
+     * in place, but isn't released.
+     */
+    public Bitmap render(NativeImage image) {
+        final long start = Flags.DEBUG ? System.currentTimeMillis() : 0;
+
+        if (null != mCrop) {
+            image.crop(toSourceCrop(mCrop, mExifRotation));
+        }
+        if (null != mFilter) {
+            image.filter(mFilter.getId());
+        }
+        if (hasAdjustments()) {
+            // Convolutions run in Java, so this is the one case where the pixels visit the heap
+            final int width = image.getWidth();
+            final int height = image.getHeight();
+            int[] pixels = new int[width * height];
+            image.getPixels(pixels);
+            applyAdjustments(pixels, width, height);
+            image.setPixels(pixels);
+        }
+        final Bitmap result = image.toBitmap(null,
+                EditTransform.rotation(mExifRotation + mUserRotation));
+
+        if (Flags.DEBUG) {
+            Log.d("RenderPlan", "Rendered " + result.getWidth() + "x" + result.getHeight()
+                    + " in native memory in " + (System.currentTimeMillis() - start) + "ms");
+        }
+
+        return result;
+    }
+
+    private boolean hasAdjustments() {
+        return mSharpenAmount != 0f || mBlurAmount > 0f;
+    }
+
+    private void applyAdjustments(int[] pixels, int width, int height) {
+        if (mBlurAmount > 0f) {
+            Convolution.gaussianBlur(pixels, width, height,
+                    mBlurAmount * Math.max(width, height));
+        }
+        if (mSharpenAmount != 0f) {
+            Convolution.sharpen(pixels, width, height, mSharpenAmount);
+        }
+    }
+
+    /**
+     * Maps a crop of the upright image back onto the source, which still needs rotating
+     * clockwise by exifRotation to be upright.
+     */
+    static RectF toSourceCrop(RectF crop, int exifRotation) {
+        switch (exifRotation) {
+            case 90:
+                return new RectF(crop.top, 1f - crop.right, crop.bottom, 1f - crop.left);
+            case 180:
+                return new RectF(1f - crop.right, 1f - crop.bottom, 1f - crop.left,
+                        1f - crop.top);
+            case 270:
+                return new RectF(1f - crop.bottom, crop.left, 1f - crop.top, crop.right);
+            default:
+                return crop;
+        }
+    }
+
+    static int normaliseAngle(int angle) {
+        angle %= 360;
+        return angle < 0 ? angle + 360 : angle;
+    }
+}
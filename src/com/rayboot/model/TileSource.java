@@ -0,0 +1,313 @@
+package com.rayboot.model;
+
+import android.annotation.TargetApi;
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.BitmapRegionDecoder;
+import android.graphics.Rect;
+import android.graphics.RectF;
+import android.os.Build;
+import android.util.Log;
+import com.rayboot.util.BitmapPool;
+import com.rayboot.util.CompiledFilter;
+import com.rayboot.util.Flags;
+import com.rayboot.util.ImageHeaderParser;
+import com.rayboot.util.PhotoMetadataCache;
+import com.rayboot.util.RewindableInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Renders a photo's edits a tile at a time, at full resolution or sampled down by a power of
+ * two, so that it can be shown zoomed in without the whole photo ever being decoded. Tiles are
+ * cells of a grid laid over the source, each region decoded and then rendered with the photo's
+ * filter and EXIF rotation.
+ * <p/>
+ * Tiles are rendered without the user's rotation, so stay valid however the photo is turned;
+ * whoever draws them turns them along with the render underneath. Only edits which work on each
+ * pixel alone can be tiled, see {@link #canTile(PhotoObj)}.
+ * <p/>
+ * The decoder is shared by every tile, so {@link #recycle()} must be called once the tiles are
+ * no longer wanted.
+ *
+ * @author rayboot
+ * @from 14-5-24 14:30
+ * @TODO
+ */
+@TargetApi(Build.VERSION_CODES.GINGERBREAD_MR1)
+public class TileSource {
+
+    static final String LOG_TAG = "TileSource";
+
+    /** Width and height of a tile once decoded */
+    public static final int TILE_SIZE = 256;
+
+    /**
+     * One cell of the grid, at one sample size.
+     */
+    public static final class Tile {
+
+        private final String mKey;
+        private final Rect mRegion;
+        private final RectF mRenderRect;
+        private final int mSampleSize;
+
+        Tile(String key, Rect region, RectF renderRect, int sampleSize) {
+            mKey = key;
+            mRegion = region;
+            mRenderRect = renderRect;
+            mSampleSize = sampleSize;
+        }
+
+        public String getKey() {
+            return mKey;
+        }
+
+        /**
+         * @return where the tile goes, relative (0 to 1) to the render before the user's rotation
+         */
+        public RectF getRenderRect() {
+            return mRenderRect;
+        }
+
+        /**
+         * @return the number of pixels the tile has once decoded
+         */
+        public int getPixelCount() {
+            return (mRegion.width() / mSampleSize) * (mRegion.height() / mSampleSize);
+        }
+    }
+
+    private final BitmapRegionDecoder mDecoder;
+    private final String mKey;
+    private final int mSourceWidth;
+    private final int mSourceHeight;
+    private final int mExifRotation;
+    /** Crop relative to the upright photo, the whole photo if it isn't cropped */
+    private final RectF mCrop;
+    /** The same crop, in source pixels */
+    private final Rect mSourceCrop;
+    private final RenderPlan mPlan;
+
+    private TileSource(BitmapRegionDecoder decoder, String key, int sourceWidth,
+            int sourceHeight, int exifRotation, RectF crop, Filter filter) {
+        mDecoder = decoder;
+        mKey = key;
+        mSourceWidth = sourceWidth;
+        mSourceHeight = sourceHeight;
+        mExifRotation = RenderPlan.normaliseAngle(exifRotation);
+        mCrop = crop;
+
+        final RectF sourceCrop = RenderPlan.toSourceCrop(crop, mExifRotation);
+        mSourceCrop = new Rect((int) (sourceWidth * sourceCrop.left),
+                (int) (sourceHeight * sourceCrop.top), (int) (sourceWidth * sourceCrop.right),
+                (int) (sourceHeight * sourceCrop.bottom));
+        if (!mSourceCrop.intersect(0, 0, sourceWidth, sourceHeight)) {
+            mSourceCrop.setEmpty();
+        }
+
+        // Tiles are small and many are rendered at once, so each is filtered on one core
+        mPlan = new RenderPlan(mExifRotation, null, filter, 0, false);
+    }
+
+    /**
+     * @return whether the photo's current edits can be rendered in tiles. Filters which look at
+     * more than one pixel, and the blur and sharpen adjustments, would show seams at the tile
+     * edges so can't be.
+     */
+    public static boolean canTile(PhotoObj photo) {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.GINGERBREAD_MR1 || photo.beenAdjusted()) {
+            return false;
+        }
+        // Tiles are only ever shown on screen, so approximated filters are fine
+        return !photo.beenFiltered()
+                || null != CompiledFilter.get(photo.getFilterUsed().getId(), true);
+    }
+
+    /**
+     * Opens the photo's source for region decoding. Reads from disk, so shouldn't be called from
+     * the UI thread.
+     *
+     * @return the tile source, or null if the photo's edits or format can't be tiled
+     */
+    public static TileSource open(Context context, PhotoObj photo) {
+        if (!canTile(photo)) {
+            return null;
+        }
+
+        final PhotoMetadataCache.Metadata metadata = photo.getMetadata(context);
+        if (null == metadata || !(ImageHeaderParser.MIME_JPEG.equals(metadata.getMimeType())
+                || ImageHeaderParser.MIME_PNG.equals(metadata.getMimeType()))) {
+            return null;
+        }
+
+        BitmapRegionDecoder decoder = null;
+        InputStream in = null;
+        try {
+            if (null != metadata.getPath()) {
+                decoder = BitmapRegionDecoder.newInstance(metadata.getPath(), false);
+            } else {
+                in = context.getContentResolver().openInputStream(photo.getOriginalPhotoUri());
+                decoder = BitmapRegionDecoder.newInstance(in, false);
+            }
+        } catch (IOException e) {
+            if (Flags.DEBUG) {
+                e.printStackTrace();
+            }
+        } finally {
+            // The decoder has read everything it needs by now
+            RewindableInputStream.closeQuietly(in);
+        }
+
+        if (null == decoder) {
+            return null;
+        }
+        if (decoder.getWidth() <= 0 || decoder.getHeight() <= 0) {
+            decoder.recycle();
+            return null;
+        }
+
+        // The decoder's size rather than the metadata's, which can be stale or missing for a
+        // content Uri, so that every tile's region lies within what the decoder can decode
+        return new TileSource(decoder, photo.getTileKey(), decoder.getWidth(),
+                decoder.getHeight(), metadata.getOrientation(),
+                photo.beenCropped() ? photo.getCropValues() : new RectF(0f, 0f, 1f, 1f),
+                photo.beenFiltered() ? photo.getFilterUsed() : null);
+    }
+
+    /**
+     * @return the key of the photo and edits the tiles are of, see {@link PhotoObj#getTileKey()}
+     */
+    public String getKey() {
+        return mKey;
+    }
+
+    /**
+     * @return width of the render at full resolution, before the user's rotation
+     */
+    public int getRenderWidth() {
+        return mExifRotation == 90 || mExifRotation == 270 ? mSourceCrop.height()
+                : mSourceCrop.width();
+    }
+
+    /**
+     * @return height of the render at full resolution, before the user's rotation
+     */
+    public int getRenderHeight() {
+        return mExifRotation == 90 || mExifRotation == 270 ? mSourceCrop.width()
+                : mSourceCrop.height();
+    }
+
+    /**
+     * Works out which tiles cover part of the displayed photo.
+     *
+     * @param visible - Area wanted, relative (0 to 1) to the photo as displayed
+     * @param userRotation - Clockwise rotation the photo is displayed with
+     * @param sampleSize - Power of two the tiles are sampled down by
+     */
+    public List<Tile> getTiles(RectF visible, int userRotation, int sampleSize) {
+        // Displayed is the render turned by the user's rotation, then the render is the upright
+        // photo cropped, and the upright photo is the source turned by the EXIF rotation
+        final RectF render = RenderPlan.toSourceCrop(visible,
+                RenderPlan.normaliseAngle(userRotation));
+        final RectF upright = new RectF(mCrop.left + render.left * mCrop.width(),
+                mCrop.top + render.top * mCrop.height(), mCrop.left + render.right * mCrop.width(),
+                mCrop.top + render.bottom * mCrop.height());
+        final RectF source = RenderPlan.toSourceCrop(upright, mExifRotation);
+
+        final int tileSize = TILE_SIZE * sampleSize;
+        final int firstColumn = Math.max((int) (source.left * mSourceWidth), mSourceCrop.left)
+                / tileSize;
+        final int lastColumn = (Math.min((int) Math.ceil(source.right * mSourceWidth),
+                mSourceCrop.right) - 1) / tileSize;
+        final int firstRow = Math.max((int) (source.top * mSourceHeight), mSourceCrop.top)
+                / tileSize;
+        final int lastRow = (Math.min((int) Math.ceil(source.bottom * mSourceHeight),
+                mSourceCrop.bottom) - 1) / tileSize;
+
+        final ArrayList<Tile> tiles = new ArrayList<Tile>();
+        for (int row = firstRow; row <= lastRow; row++) {
+            for (int column = firstColumn; column <= lastColumn; column++) {
+                final Rect region = new Rect(column * tileSize, row * tileSize,
+                        (column + 1) * tileSize, (row + 1) * tileSize);
+                if (!region.intersect(mSourceCrop) || region.width() < sampleSize
+                        || region.height() < sampleSize) {
+                    continue;
+                }
+                tiles.add(new Tile(mKey + "_" + sampleSize + "_" + column + "," + row, region,
+                        toRenderRect(region), sampleSize));
+            }
+        }
+        return tiles;
+    }
+
+    /**
+     * Decodes and renders a tile. Can be called from several threads at once, though decoding
+     * is done one tile at a time.
+     *
+     * @return the rendered tile, or null if it couldn't be decoded or the source has been
+     * recycled
+     */
+    public Bitmap renderTile(Tile tile) {
+        final BitmapFactory.Options opts = new BitmapFactory.Options();
+        opts.inSampleSize = tile.mSampleSize;
+        opts.inPreferredConfig = Bitmap.Config.RGB_565;
+
+        final Bitmap region;
+        synchronized (mDecoder) {
+            if (mDecoder.isRecycled()) {
+                return null;
+            }
+            try {
+                region = mDecoder.decodeRegion(tile.mRegion, opts);
+            } catch (IllegalArgumentException e) {
+                // Thrown for a region outside the image
+                if (Flags.DEBUG) {
+                    e.printStackTrace();
+                }
+                return null;
+            }
+        }
+        if (null == region) {
+            return null;
+        }
+
+        final Bitmap result = mPlan.render(region);
+        BitmapPool.getDefault().put(region);
+
+        if (Flags.DEBUG) {
+            Log.d(LOG_TAG, "Rendered tile " + tile.mRegion.toShortString() + " at 1/"
+                    + tile.mSampleSize);
+        }
+        return result;
+    }
+
+    /**
+     * Frees the decoder. Waits for any tile being decoded, so shouldn't be called from the UI
+     * thread.
+     */
+    public void recycle() {
+        synchronized (mDecoder) {
+            mDecoder.recycle();
+        }
+    }
+
+    /**
+     * Maps source pixels to where they are in the render, relative to it.
+     */
+    private RectF toRenderRect(Rect region) {
+        final RectF source = new RectF(region.left / (float) mSourceWidth,
+                region.top / (float) mSourceHeight, region.right / (float) mSourceWidth,
+                region.bottom / (float) mSourceHeight);
+        // Turning back by the EXIF rotation is turning on by the rest of a full turn
+        final RectF upright = RenderPlan.toSourceCrop(source,
+                RenderPlan.normaliseAngle(-mExifRotation));
+        return new RectF((upright.left - mCrop.left) / mCrop.width(),
+                (upright.top - mCrop.top) / mCrop.height(),
+                (upright.right - mCrop.left) / mCrop.width(),
+                (upright.bottom - mCrop.top) / mCrop.height());
+    }
+}
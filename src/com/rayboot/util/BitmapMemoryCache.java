@@ -0,0 +1,298 @@
+package com.rayboot.util;
+
+import android.graphics.Bitmap;
+import android.util.Log;
+import com.rayboot.listeners.OnCacheMissListener;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Memory cache for decoded and rendered bitmaps, sized in bytes. Lookups don't take a lock, so
+ * the UI thread never waits behind a worker adding a bitmap; they just stamp the entry with the
+ * cache's clock. Adds and removals are serialised, and evict the entries with the oldest stamps
+ * once the cache is over size.
+ * <p/>
+ * Bitmaps are reference counted (see {@link CacheableBitmap}). The cache holds one reference on
+ * each bitmap it contains, and every lookup hands out a {@link CacheableBitmap.Lease} which must
+ * be released, or passed to a {@link com.rayboot.views.CacheableImageView} which releases it
+ * once the bitmap is no longer displayed. A bitmap goes back to the {@link BitmapPool} once it
+ * has been evicted and every lease on it has been released.
+ * <p/>
+ * If given a {@link CompressedBitmapCache}, bitmaps evicted to make room are handed to it, and
+ * {@link #getOrInflate(String)} looks there before giving up.
+ *
+ * @author rayboot
+ * @from 14-5-19 11:40
+ * @TODO
+ */
+public class BitmapMemoryCache {
+
+    static final String LOG_TAG = "BitmapMemoryCache";
+
+    private final ConcurrentHashMap<String, CacheableBitmap> mEntries
+            = new ConcurrentHashMap<String, CacheableBitmap>();
+    private final AtomicLong mClock = new AtomicLong();
+    private final Object mWriteLock = new Object();
+
+    private volatile int mMaxBytes;
+    private final CompressedBitmapCache mCompressedTier;
+    private OnCacheMissListener mMissListener;
+    /** Guarded by mWriteLock */
+    private int mSize;
+
+    private final AtomicLong mHitCount = new AtomicLong();
+    private final AtomicLong mMissCount = new AtomicLong();
+    private final AtomicLong mPutCount = new AtomicLong();
+    private final AtomicLong mEvictionCount = new AtomicLong();
+    private final AtomicLong mInflateCount = new AtomicLong();
+
+    /**
+     * @param maxBytes - Total size of the bitmaps the cache may hold
+     */
+    public BitmapMemoryCache(int maxBytes) {
+        this(maxBytes, null);
+    }
+
+    /**
+     * @param compressedTier - Tier to keep evicted bitmaps in, can be null
+     */
+    public BitmapMemoryCache(int maxBytes, CompressedBitmapCache compressedTier) {
+        mMaxBytes = maxBytes;
+        mCompressedTier = compressedTier;
+    }
+
+    /**
+     * @return a lease on the bitmap cached for key, or null if there isn't one. Doesn't block, so
+     * is safe to call from the UI thread.
+     */
+    public CacheableBitmap.Lease get(String key) {
+        final CacheableBitmap entry = mEntries.get(key);
+        if (null != entry) {
+            final CacheableBitmap.Lease lease = entry.acquire();
+            if (null != lease && entry.hasValidBitmap()) {
+                entry.mLastAccess = mClock.incrementAndGet();
+                mHitCount.incrementAndGet();
+                return lease;
+            }
+
+            // Recycled by someone else, so can't be used
+            if (null != lease) {
+                lease.release();
+            }
+            removeEntry(key, entry);
+        }
+
+        mMissCount.incrementAndGet();
+        final OnCacheMissListener listener = mMissListener;
+        if (null != listener) {
+            listener.onCacheMiss(this);
+        }
+        return null;
+    }
+
+    /**
+     * As {@link #get(String)}, but on a miss inflates the bitmap from the compressed tier if it's
+     * there, and caches it again. Inflating takes a while, so this should only be called from
+     * worker threads.
+     */
+    public CacheableBitmap.Lease getOrInflate(String key) {
+        final CacheableBitmap.Lease lease = get(key);
+        if (null != lease || null == mCompressedTier) {
+            return lease;
+        }
+
+        final Bitmap bitmap = mCompressedTier.inflate(key);
+        if (null == bitmap) {
+            return null;
+        }
+        mInflateCount.incrementAndGet();
+        return put(key, bitmap);
+    }
+
+    /**
+     * Caches the bitmap under key, replacing anything already cached for it.
+     *
+     * @return a lease on the bitmap for the caller, which must be released. The bitmap stays
+     * usable through it even if the cache evicts it straight away.
+     */
+    public CacheableBitmap.Lease put(String key, Bitmap bitmap) {
+        final CacheableBitmap entry = new CacheableBitmap(key, bitmap);
+        final CacheableBitmap.Lease lease = entry.acquire();
+        put(entry);
+        return lease;
+    }
+
+    /**
+     * Caches the bitmap under its key, replacing anything already cached for it. Bitmaps which
+     * are larger than the whole cache, or have already been recycled, aren't cached.
+     */
+    public void put(CacheableBitmap entry) {
+        if (entry.getByteCount() > mMaxBytes) {
+            if (Flags.DEBUG) {
+                Log.d(LOG_TAG, "Too large to cache: " + entry.getKey());
+            }
+            return;
+        }
+
+        synchronized (mWriteLock) {
+            if (!entry.retain()) {
+                return;
+            }
+
+            entry.mLastAccess = mClock.incrementAndGet();
+            final CacheableBitmap previous = mEntries.put(entry.getKey(), entry);
+            mSize += entry.getByteCount();
+            mPutCount.incrementAndGet();
+
+            if (null != previous) {
+                mSize -= previous.getByteCount();
+                previous.release();
+            }
+
+            trimToSize(mMaxBytes, true);
+        }
+    }
+
+    public void remove(String key) {
+        synchronized (mWriteLock) {
+            final CacheableBitmap entry = mEntries.remove(key);
+            if (null != entry) {
+                mSize -= entry.getByteCount();
+                entry.release();
+            }
+        }
+        if (null != mCompressedTier) {
+            mCompressedTier.remove(key);
+        }
+    }
+
+    /**
+     * Evicts the least recently used bitmaps until the cache holds at most maxBytes. Bitmaps
+     * which are still leased stay usable by their holders, and are pooled once released.
+     *
+     * @param keepCompressed - Whether evicted bitmaps should be handed to the compressed tier
+     */
+    public void trimToSize(int maxBytes, boolean keepCompressed) {
+        synchronized (mWriteLock) {
+            if (mSize <= maxBytes) {
+                return;
+            }
+
+            final ArrayList<CacheableBitmap> entries = new ArrayList<CacheableBitmap>(
+                    mEntries.values());
+            Collections.sort(entries, new Comparator<CacheableBitmap>() {
+                public int compare(CacheableBitmap lhs, CacheableBitmap rhs) {
+                    final long l = lhs.mLastAccess;
+                    final long r = rhs.mLastAccess;
+                    return l < r ? -1 : (l == r ? 0 : 1);
+                }
+            });
+
+            for (int i = 0, z = entries.size(); i < z && mSize > maxBytes; i++) {
+                final CacheableBitmap entry = entries.get(i);
+                if (mEntries.remove(entry.getKey(), entry)) {
+                    mSize -= entry.getByteCount();
+                    mEvictionCount.incrementAndGet();
+                    // Offered before our reference goes, so it can't be recycled in between
+                    if (keepCompressed && null != mCompressedTier) {
+                        mCompressedTier.offer(entry);
+                    }
+                    entry.release();
+                }
+            }
+
+            if (Flags.DEBUG) {
+                Log.d(LOG_TAG, "Trimmed to " + mSize + " bytes. " + this);
+            }
+        }
+    }
+
+    /**
+     * Changes how much the cache may hold. Shrinking is done to free memory, so anything evicted
+     * isn't kept compressed.
+     */
+    public void resize(int maxBytes) {
+        synchronized (mWriteLock) {
+            mMaxBytes = maxBytes;
+            trimToSize(maxBytes, false);
+        }
+    }
+
+    /**
+     * Called on every miss, on the thread which missed. Used by {@link CacheGovernor} to look
+     * at the hit rate.
+     */
+    public void setOnCacheMissListener(OnCacheMissListener listener) {
+        mMissListener = listener;
+    }
+
+    /**
+     * Evicts everything, from the compressed tier too.
+     */
+    public void evictAll() {
+        trimToSize(-1, false);
+        if (null != mCompressedTier) {
+            mCompressedTier.evictAll();
+        }
+    }
+
+    public int size() {
+        synchronized (mWriteLock) {
+            return mSize;
+        }
+    }
+
+    public int maxSize() {
+        return mMaxBytes;
+    }
+
+    public CompressedBitmapCache getCompressedTier() {
+        return mCompressedTier;
+    }
+
+    public long getHitCount() {
+        return mHitCount.get();
+    }
+
+    public long getMissCount() {
+        return mMissCount.get();
+    }
+
+    public long getPutCount() {
+        return mPutCount.get();
+    }
+
+    public long getEvictionCount() {
+        return mEvictionCount.get();
+    }
+
+    /**
+     * @return how many misses were served by inflating from the compressed tier
+     */
+    public long getInflateCount() {
+        return mInflateCount.get();
+    }
+
+    @Override
+    public String toString() {
+        final long hits = mHitCount.get();
+        final long accesses = hits + mMissCount.get();
+        final long hitPercent = accesses != 0 ? (100 * hits / accesses) : 0;
+        return String.format("BitmapMemoryCache[maxSize=%d,hits=%d,misses=%d,puts=%d,"
+                        + "evictions=%d,inflates=%d,hitRate=%d%%]", mMaxBytes, hits,
+                mMissCount.get(), mPutCount.get(), mEvictionCount.get(), mInflateCount.get(),
+                hitPercent);
+    }
+
+    private void removeEntry(String key, CacheableBitmap entry) {
+        synchronized (mWriteLock) {
+            if (mEntries.remove(key, entry)) {
+                mSize -= entry.getByteCount();
+                entry.release();
+            }
+        }
+    }
+}
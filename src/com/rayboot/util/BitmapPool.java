@@ -0,0 +1,240 @@
+package com.rayboot.util;
+
+import android.annotation.TargetApi;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.os.Build;
+import com.rayboot.Constants;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.Map;
+
+/**
+ * Pool of mutable bitmaps which are no longer used, so that rotating, resizing, filtering and
+ * decoding can draw into one of them rather than allocating a new bitmap each time. Bitmaps are
+ * bucketed by width, height and config; the least recently used buckets are emptied first once
+ * the pool is over its size.
+ * <p/>
+ * Bitmaps handed out hold whatever was last drawn into them, so callers must overwrite every
+ * pixel. Anything which would otherwise have been recycled should be handed to
+ * {@link #put(Bitmap)} instead.
+ *
+ * @author rayboot
+ * @from 14-5-21 10:30
+ * @TODO
+ */
+public class BitmapPool {
+
+    static final String LOG_TAG = "BitmapPool";
+
+    private static BitmapPool sDefault;
+
+    /**
+     * @return the pool shared by the whole app
+     */
+    public static synchronized BitmapPool getDefault() {
+        if (null == sDefault) {
+            sDefault = new BitmapPool(Math.round(Runtime.getRuntime().maxMemory()
+                    * Constants.BITMAP_POOL_HEAP_PERCENTAGE));
+        }
+        return sDefault;
+    }
+
+    /** Bucket key to pooled bitmaps, buckets in access order */
+    private final LinkedHashMap<Long, LinkedList<Bitmap>> mBuckets
+            = new LinkedHashMap<Long, LinkedList<Bitmap>>(0, 0.75f, true);
+
+    private final int mMaxBytes;
+    private int mSize;
+
+    private int mHitCount;
+    private int mMissCount;
+    private int mPutCount;
+    private int mEvictionCount;
+
+    public BitmapPool(int maxBytes) {
+        mMaxBytes = maxBytes;
+    }
+
+    /**
+     * @return a pooled bitmap of exactly this size and config, or null if there isn't one
+     */
+    public synchronized Bitmap get(int width, int height, Bitmap.Config config) {
+        final Long key = getKey(width, height, config);
+        final LinkedList<Bitmap> bucket = mBuckets.get(key);
+        if (null == bucket) {
+            mMissCount++;
+            return null;
+        }
+
+        final Bitmap bitmap = bucket.removeFirst();
+        if (bucket.isEmpty()) {
+            mBuckets.remove(key);
+        }
+        mSize -= getByteCount(bitmap);
+        mHitCount++;
+        return bitmap;
+    }
+
+    /**
+     * @return a pooled bitmap of this size and config, or a new one if there isn't one
+     */
+    public Bitmap getOrCreate(int width, int height, Bitmap.Config config) {
+        if (null == config) {
+            config = Bitmap.Config.ARGB_8888;
+        }
+        final Bitmap bitmap = get(width, height, config);
+        return null != bitmap ? bitmap : Bitmap.createBitmap(width, height, config);
+    }
+
+    /**
+     * Returns the bitmap to the pool. Bitmaps which can't be reused, or don't fit, are recycled.
+     */
+    public void put(Bitmap bitmap) {
+        if (null == bitmap || bitmap.isRecycled()) {
+            return;
+        }
+        if (!bitmap.isMutable() || null == bitmap.getConfig()
+                || getByteCount(bitmap) > mMaxBytes) {
+            bitmap.recycle();
+            return;
+        }
+
+        synchronized (this) {
+            final Long key = getKey(bitmap.getWidth(), bitmap.getHeight(), bitmap.getConfig());
+            LinkedList<Bitmap> bucket = mBuckets.get(key);
+            if (null == bucket) {
+                bucket = new LinkedList<Bitmap>();
+                mBuckets.put(key, bucket);
+            } else if (bucket.contains(bitmap)) {
+                return;
+            }
+            bucket.addFirst(bitmap);
+            mSize += getByteCount(bitmap);
+            mPutCount++;
+
+            trimToSize(mMaxBytes);
+        }
+    }
+
+    /**
+     * Sets opts up to decode into a pooled bitmap, if there's one it can use. Before KitKat the
+     * decoded size has to match exactly, and the image can't be sampled; from KitKat any pooled
+     * bitmap with enough memory will do. If the decode then fails with an
+     * IllegalArgumentException, the bitmap couldn't be reused, so should be returned with
+     * {@link #put(Bitmap)} and the decode tried again without opts.inBitmap.
+     *
+     * @param width - Width the decode will produce
+     * @param height - Height the decode will produce
+     */
+    @TargetApi(Build.VERSION_CODES.HONEYCOMB)
+    public void setInBitmap(BitmapFactory.Options opts, int width, int height) {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.HONEYCOMB) {
+            return;
+        }
+
+        final Bitmap.Config config = null != opts.inPreferredConfig ? opts.inPreferredConfig
+                : Bitmap.Config.ARGB_8888;
+        // Decoded bitmaps can only be pooled later if they're mutable
+        opts.inMutable = true;
+
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
+            opts.inBitmap = getForDecode(width * height * getBytesPerPixel(config), config);
+        } else if (opts.inSampleSize <= 1) {
+            opts.inBitmap = get(width, height, config);
+        }
+    }
+
+    public synchronized void trimToSize(int maxBytes) {
+        final Iterator<Map.Entry<Long, LinkedList<Bitmap>>> it = mBuckets.entrySet()
+                .iterator();
+        while (mSize > maxBytes && it.hasNext()) {
+            final LinkedList<Bitmap> bucket = it.next().getValue();
+            while (mSize > maxBytes && !bucket.isEmpty()) {
+                final Bitmap bitmap = bucket.removeLast();
+                mSize -= getByteCount(bitmap);
+                mEvictionCount++;
+                bitmap.recycle();
+            }
+            if (bucket.isEmpty()) {
+                it.remove();
+            }
+        }
+    }
+
+    public void evictAll() {
+        trimToSize(-1);
+    }
+
+    public synchronized int size() {
+        return mSize;
+    }
+
+    @Override
+    public synchronized String toString() {
+        final int accesses = mHitCount + mMissCount;
+        final int hitPercent = accesses != 0 ? (100 * mHitCount / accesses) : 0;
+        return String.format("BitmapPool[maxSize=%d,size=%d,hits=%d,misses=%d,puts=%d,"
+                        + "evictions=%d,hitRate=%d%%]", mMaxBytes, mSize, mHitCount, mMissCount,
+                mPutCount, mEvictionCount, hitPercent);
+    }
+
+    /**
+     * @return the smallest pooled bitmap of the config with at least byteCount bytes, as long as
+     * it's not so big that reusing it would waste more than it saves
+     */
+    @TargetApi(Build.VERSION_CODES.KITKAT)
+    private synchronized Bitmap getForDecode(int byteCount, Bitmap.Config config) {
+        Long bestKey = null;
+        int bestByteCount = Integer.MAX_VALUE;
+        for (Map.Entry<Long, LinkedList<Bitmap>> entry : mBuckets.entrySet()) {
+            final Bitmap bitmap = entry.getValue().getFirst();
+            final int size = bitmap.getAllocationByteCount();
+            if (bitmap.getConfig() == config && size >= byteCount && size <= byteCount * 2
+                    && size < bestByteCount) {
+                bestKey = entry.getKey();
+                bestByteCount = size;
+            }
+        }
+
+        if (null == bestKey) {
+            mMissCount++;
+            return null;
+        }
+
+        final LinkedList<Bitmap> bucket = mBuckets.get(bestKey);
+        final Bitmap bitmap = bucket.removeFirst();
+        if (bucket.isEmpty()) {
+            mBuckets.remove(bestKey);
+        }
+        mSize -= getByteCount(bitmap);
+        mHitCount++;
+        return bitmap;
+    }
+
+    private static Long getKey(int width, int height, Bitmap.Config config) {
+        return ((long) width << 32) | ((long) height << 8) | config.ordinal();
+    }
+
+    @TargetApi(Build.VERSION_CODES.KITKAT)
+    private static int getByteCount(Bitmap bitmap) {
+        // Bitmaps reused by a smaller decode still hold on to all of their memory
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
+            return bitmap.getAllocationByteCount();
+        }
+        return bitmap.getRowBytes() * bitmap.getHeight();
+    }
+
+    private static int getBytesPerPixel(Bitmap.Config config) {
+        switch (config) {
+            case ALPHA_8:
+                return 1;
+            case RGB_565:
+            case ARGB_4444:
+                return 2;
+            default:
+                return 4;
+        }
+    }
+}
@@ -0,0 +1,105 @@
+package com.rayboot.util;
+
+import android.graphics.Bitmap;
+
+/**
+ * Moves pixels between a {@link Bitmap} and an ARGB int[] while rotating them, so that a
+ * rotation costs no more than the copy that was happening anyway. Rotated rows are read and
+ * written a column at a time, using getPixels/setPixels with a width of 1 (and a negative stride
+ * where the column needs to run backwards).
+ *
+ * @author rayboot
+ * @from 14-5-12 11:30
+ * @TODO
+ */
+public final class BitmapTransforms {
+
+    private BitmapTransforms() {
+    }
+
+    /**
+     * @return true if rotating by angle swaps the width and height
+     */
+    public static boolean swapsDimensions(int angle) {
+        return angle == 90 || angle == 270;
+    }
+
+    /**
+     * Reads a rect of the bitmap, as it would look once rotated clockwise by angle, into pixels.
+     * The rect is in the rotated coordinate space; pixels must hold width * height values and is
+     * filled row by row.
+     *
+     * @param angle - 0, 90, 180 or 270
+     */
+    public static void readRotated(Bitmap src, int angle, int left, int top, int width,
+            int height, int[] pixels) {
+        final int srcWidth = src.getWidth();
+        final int srcHeight = src.getHeight();
+
+        switch (angle) {
+            case 90:
+                // Rotated row y is source column y, read from the bottom up
+                for (int y = 0; y < height; y++) {
+                    src.getPixels(pixels, y * width + width - 1, -1, top + y,
+                            srcHeight - left - width, 1, width);
+                }
+                break;
+            case 180:
+                // Read the rows bottom up, then reverse each row
+                src.getPixels(pixels, (height - 1) * width, -width, srcWidth - left - width,
+                        srcHeight - top - height, width, height);
+                reverseRows(pixels, width, height);
+                break;
+            case 270:
+                // Rotated row y is source column (srcWidth - 1 - y), read from the top down
+                for (int y = 0; y < height; y++) {
+                    src.getPixels(pixels, y * width, 1, srcWidth - 1 - top - y, left, 1, width);
+                }
+                break;
+            default:
+                src.getPixels(pixels, 0, width, left, top, width, height);
+                break;
+        }
+    }
+
+    /**
+     * Writes pixels, an image of width x height, into dst rotated clockwise by angle. dst must
+     * already have the rotated dimensions. For 180 degrees the rows of pixels are reversed in
+     * place, so the array shouldn't be reused afterwards.
+     *
+     * @param angle - 0, 90, 180 or 270
+     */
+    public static void writeRotated(int[] pixels, int width, int height, int angle, Bitmap dst) {
+        switch (angle) {
+            case 90:
+                // Row y becomes column (height - 1 - y), top down
+                for (int y = 0; y < height; y++) {
+                    dst.setPixels(pixels, y * width, 1, height - 1 - y, 0, 1, width);
+                }
+                break;
+            case 180:
+                reverseRows(pixels, width, height);
+                dst.setPixels(pixels, (height - 1) * width, -width, 0, 0, width, height);
+                break;
+            case 270:
+                // Row y becomes column y, bottom up
+                for (int y = 0; y < height; y++) {
+                    dst.setPixels(pixels, y * width + width - 1, -1, y, 0, 1, width);
+                }
+                break;
+            default:
+                dst.setPixels(pixels, 0, width, 0, 0, width, height);
+                break;
+        }
+    }
+
+    static void reverseRows(int[] pixels, int width, int height) {
+        for (int rowStart = 0, end = width * height; rowStart < end; rowStart += width) {
+            for (int i = rowStart, j = rowStart + width - 1; i < j; i++, j--) {
+                final int p = pixels[i];
+                pixels[i] = pixels[j];
+                pixels[j] = p;
+            }
+        }
+    }
+}
@@ -20,6 +20,8 @@ import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
 import android.graphics.BitmapFactory.Options;
 import android.util.FloatMath;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
 
 /** 
  * BitmapUtils 
@@ -30,29 +32,46 @@ public class BitmapUtils {
 	@SuppressWarnings("unused")
 	private static final String TAG = "BitmapUtils";
 	
+	/**
+	 * Reads the bounds and decodes from the same stream, so the file is only opened and its
+	 * header only read from disk once.
+	 */
 	public static Bitmap getSampledBitmap(String filePath, int reqWidth, int reqHeight) {		
-		Options options = new Options();
-		options.inJustDecodeBounds = true;
-		
-		BitmapFactory.decodeFile(filePath, options);
+		RewindableInputStream in = null;
+		try {
+			in = new RewindableInputStream(new FileInputStream(filePath));
+			
+			Options options = new Options();
+			options.inJustDecodeBounds = true;
+			
+			BitmapFactory.decodeStream(in, null, options);
+			
+			// Raw height and width of image
+		    final int height = options.outHeight;
+		    final int width = options.outWidth;
+		    int inSampleSize = 1;
 		
-		// Raw height and width of image
-	    final int height = options.outHeight;
-	    final int width = options.outWidth;
-	    int inSampleSize = 1;
-	
-	    if (height > reqHeight || width > reqWidth) {
-	        if (width > height) {
-	            inSampleSize = (int)FloatMath.floor(((float)height / reqHeight)+0.5f); //Math.round((float)height / (float)reqHeight);
-	        } else {
-	            inSampleSize = (int)FloatMath.floor(((float)width / reqWidth)+0.5f); //Math.round((float)width / (float)reqWidth);
-	        }
-	    }
-	    
-	    options.inSampleSize = inSampleSize;
-	    options.inJustDecodeBounds = false;
-	    	    
-	    return BitmapFactory.decodeFile(filePath, options);
+		    if (height > reqHeight || width > reqWidth) {
+		        if (width > height) {
+		            inSampleSize = (int)FloatMath.floor(((float)height / reqHeight)+0.5f); //Math.round((float)height / (float)reqHeight);
+		        } else {
+		            inSampleSize = (int)FloatMath.floor(((float)width / reqWidth)+0.5f); //Math.round((float)width / (float)reqWidth);
+		        }
+		    }
+		    
+		    options.inSampleSize = inSampleSize;
+		    options.inJustDecodeBounds = false;
+		    
+		    if (!in.rewind()) {
+		    	// Header was too big to go back over, so read the file again
+		    	return BitmapFactory.decodeFile(filePath, options);
+		    }
+		    return BitmapFactory.decodeStream(in, null, options);
+		} catch (FileNotFoundException e) {
+			return null;
+		} finally {
+			RewindableInputStream.closeQuietly(in);
+		}
 	}
 	
 	public static BitmapSize getBitmapSize(String filePath) {
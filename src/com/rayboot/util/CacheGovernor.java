@@ -0,0 +1,232 @@
+package com.rayboot.util;
+
+import android.content.ComponentCallbacks2;
+import android.util.Log;
+import com.rayboot.listeners.OnCacheMissListener;
+import com.rayboot.tasks.PhotupThreadFactory;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Sizes the in-memory caches as the app runs, rather than leaving them at a fixed fraction of
+ * the heap. Every so many misses it looks at how the image cache has done since last time: if
+ * it's missing often while evicting, and the heap has room, the cache is grown; if the heap is
+ * running short, the cache is shrunk. Sizes stay between a floor and a ceiling set as fractions
+ * of the heap.
+ * <p/>
+ * Memory pressure from the system sheds caches in order of how cheap they are to rebuild: the
+ * bitmap pool first, then the compressed tier, then the filter previews (which are also on
+ * disk) and zoomed in tiles, then the image cache itself. Bitmaps which are on screen are
+ * leased by their views, so survive the caches being emptied.
+ * <p/>
+ * Misses are reported from whichever thread missed, the UI thread included, so they're only
+ * counted there. Looking at the hit rate, resizing and shedding happen on a thread of the
+ * governor's own.
+ *
+ * @author rayboot
+ * @from 14-5-20 16:20
+ * @TODO
+ */
+public class CacheGovernor implements OnCacheMissListener {
+
+    static final String LOG_TAG = "CacheGovernor";
+    static final String THREAD_GOVERNOR = "cache_governor_thread";
+
+    /** Misses between each look at the hit rate */
+    static final int MISSES_PER_SAMPLE = 16;
+    /** Miss rate over a sample above which the image cache is grown */
+    static final float GROW_MISS_RATE = 0.4f;
+    /** Factor the image cache grows or shrinks by at each step */
+    static final float RESIZE_STEP = 1.25f;
+    /** Fraction of the heap which should be left free for decoding and rendering */
+    static final float MIN_HEADROOM = 0.25f;
+
+    static final int SHED_SOME = 1;
+    static final int SHED_MOST = 2;
+    static final int SHED_ALL = 3;
+
+    private final long mHeapBytes;
+    private final int mMinImageCacheBytes;
+    private final int mMaxImageCacheBytes;
+
+    private BitmapMemoryCache mImageCache;
+    private FilterPreviewCache mFilterPreviewCache;
+    private BitmapMemoryCache mTileCache;
+    private BitmapPool mBitmapPool;
+
+    private final AtomicInteger mMissesSinceSample = new AtomicInteger();
+    /** Whether a sample is queued but yet to run, so misses meanwhile don't queue another */
+    private final AtomicBoolean mSamplePending = new AtomicBoolean();
+    private final ExecutorService mSampleExecutor = Executors
+            .newSingleThreadExecutor(new PhotupThreadFactory(THREAD_GOVERNOR));
+
+    private long mLastHitCount;
+    private long mLastMissCount;
+    private long mLastInflateCount;
+    private long mLastEvictionCount;
+
+    /**
+     * @param minImageCacheFraction - Smallest the image cache is shrunk to, as a fraction of heap
+     * @param maxImageCacheFraction - Largest the image cache is grown to, as a fraction of heap
+     */
+    public CacheGovernor(float minImageCacheFraction, float maxImageCacheFraction) {
+        mHeapBytes = Runtime.getRuntime().maxMemory();
+        mMinImageCacheBytes = Math.round(mHeapBytes * minImageCacheFraction);
+        mMaxImageCacheBytes = Math.round(mHeapBytes * maxImageCacheFraction);
+    }
+
+    public synchronized void setImageCache(BitmapMemoryCache cache) {
+        mImageCache = cache;
+        cache.setOnCacheMissListener(this);
+    }
+
+    public synchronized void setFilterPreviewCache(FilterPreviewCache cache) {
+        mFilterPreviewCache = cache;
+    }
+
+    public synchronized void setTileCache(BitmapMemoryCache cache) {
+        mTileCache = cache;
+    }
+
+    public synchronized void setBitmapPool(BitmapPool pool) {
+        mBitmapPool = pool;
+    }
+
+    /**
+     * Counts the miss, and every {@link #MISSES_PER_SAMPLE} misses queues a look at the hit rate.
+     * Never blocks, so is safe on the UI thread.
+     */
+    public void onCacheMiss(final BitmapMemoryCache cache) {
+        if (mMissesSinceSample.incrementAndGet() < MISSES_PER_SAMPLE) {
+            return;
+        }
+        mMissesSinceSample.set(0);
+
+        if (mSamplePending.compareAndSet(false, true)) {
+            mSampleExecutor.execute(new Runnable() {
+                public void run() {
+                    mSamplePending.set(false);
+                    sample(cache);
+                }
+            });
+        }
+    }
+
+    /**
+     * Resizes the cache from its hit rate since the last sample, shedding first if the heap is
+     * running short.
+     */
+    synchronized void sample(BitmapMemoryCache cache) {
+        // Misses which were inflated from the compressed tier were cheap, so count as hits
+        final long inflates = cache.getInflateCount() - mLastInflateCount;
+        final long hits = cache.getHitCount() - mLastHitCount + inflates;
+        final long misses = cache.getMissCount() - mLastMissCount - inflates;
+        final long evictions = cache.getEvictionCount() - mLastEvictionCount;
+        mLastHitCount = cache.getHitCount();
+        mLastMissCount = cache.getMissCount();
+        mLastInflateCount = cache.getInflateCount();
+        mLastEvictionCount = cache.getEvictionCount();
+
+        final float missRate = misses / (float) Math.max(1, hits + misses);
+        final long headroom = getHeadroom();
+        final int current = cache.maxSize();
+        int target = current;
+
+        if (headroom < mHeapBytes * MIN_HEADROOM) {
+            // Running short, so give back what's cheapest to rebuild before shrinking
+            shed(SHED_SOME);
+            target = Math.max(mMinImageCacheBytes, Math.round(current / RESIZE_STEP));
+        } else if (missRate > GROW_MISS_RATE && evictions > 0) {
+            // Missing because it's full, not because it's cold
+            final int grown = Math.min(mMaxImageCacheBytes, Math.round(current * RESIZE_STEP));
+            // Only grow into memory which is actually free
+            target = (int) Math.min(grown, current + headroom - mHeapBytes * MIN_HEADROOM);
+            target = Math.max(current, target);
+        }
+
+        if (target != current) {
+            cache.resize(target);
+        }
+
+        if (Flags.DEBUG) {
+            Log.d(LOG_TAG, "Miss rate " + Math.round(missRate * 100) + "%, headroom "
+                    + headroom / 1024 + "KB, image cache " + current / 1024 + "KB -> "
+                    + target / 1024 + "KB. " + cache);
+        }
+    }
+
+    /**
+     * Should be called from {@link android.app.Application#onTrimMemory(int)}.
+     */
+    public void onTrimMemory(int level) {
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_BACKGROUND) {
+            // On the list to be killed, so keep as little as possible
+            shed(SHED_ALL);
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_UI_HIDDEN) {
+            // Keep some of the image cache so that coming back is quick
+            shed(SHED_MOST);
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL) {
+            shed(SHED_ALL);
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW) {
+            shed(SHED_MOST);
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_MODERATE) {
+            shed(SHED_SOME);
+        }
+    }
+
+    /**
+     * Should be called from {@link android.app.Application#onLowMemory()}.
+     */
+    public void onLowMemory() {
+        shed(SHED_ALL);
+    }
+
+    synchronized void shed(int stage) {
+        final BitmapMemoryCache imageCache = mImageCache;
+        final CompressedBitmapCache compressedTier = null != imageCache
+                ? imageCache.getCompressedTier() : null;
+
+        if (null != compressedTier) {
+            if (stage == SHED_SOME) {
+                compressedTier.trimToSize(compressedTier.size() / 2);
+            } else {
+                compressedTier.evictAll();
+            }
+        }
+
+        if (stage >= SHED_MOST) {
+            if (null != mFilterPreviewCache) {
+                mFilterPreviewCache.clearMemory();
+            }
+            if (null != mTileCache) {
+                mTileCache.evictAll();
+            }
+
+            if (null != imageCache) {
+                if (stage == SHED_ALL) {
+                    imageCache.evictAll();
+                    imageCache.resize(mMinImageCacheBytes);
+                } else {
+                    imageCache.resize(Math.max(mMinImageCacheBytes, imageCache.size() / 2));
+                }
+            }
+        }
+
+        // Holds nothing anyone is waiting for, so always goes. Emptied last, as bitmaps evicted
+        // above are returned to it
+        if (null != mBitmapPool) {
+            mBitmapPool.evictAll();
+        }
+
+        if (Flags.DEBUG) {
+            Log.d(LOG_TAG, "Shed caches at stage " + stage + ". " + imageCache);
+        }
+    }
+
+    private static long getHeadroom() {
+        final Runtime runtime = Runtime.getRuntime();
+        return runtime.maxMemory() - (runtime.totalMemory() - runtime.freeMemory());
+    }
+}
@@ -0,0 +1,135 @@
+package com.rayboot.util;
+
+import android.graphics.Bitmap;
+import android.util.Log;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A bitmap kept in {@link BitmapMemoryCache}, along with a count of the references to it. The
+ * cache holds one reference for as long as the bitmap is cached, and anything else using the
+ * bitmap holds one through a {@link Lease}. When the last reference is released the bitmap is
+ * handed to the {@link BitmapPool} for reuse, after which no more leases can be taken out on it.
+ *
+ * @author rayboot
+ * @from 14-5-19 11:05
+ * @TODO
+ */
+public class CacheableBitmap {
+
+    static final String LOG_TAG = "CacheableBitmap";
+
+    /** Reference count once the bitmap has been given up */
+    static final int RECYCLED = -1;
+
+    private final String mKey;
+    private final Bitmap mBitmap;
+    private final int mByteCount;
+    private final AtomicInteger mRefCount = new AtomicInteger();
+
+    /** Last time the cache handed this out, by the cache's clock */
+    volatile long mLastAccess;
+
+    public CacheableBitmap(String key, Bitmap bitmap) {
+        mKey = key;
+        mBitmap = bitmap;
+        mByteCount = bitmap.getRowBytes() * bitmap.getHeight();
+    }
+
+    /**
+     * Takes out a reference on the bitmap, which is kept from being recycled until the lease is
+     * released.
+     *
+     * @return the lease, or null if the bitmap has already been given up
+     */
+    public Lease acquire() {
+        return retain() ? new Lease(this) : null;
+    }
+
+    public String getKey() {
+        return mKey;
+    }
+
+    public Bitmap getBitmap() {
+        return mBitmap;
+    }
+
+    public int getByteCount() {
+        return mByteCount;
+    }
+
+    public boolean hasValidBitmap() {
+        return mRefCount.get() != RECYCLED && !mBitmap.isRecycled();
+    }
+
+    boolean retain() {
+        for (; ; ) {
+            final int count = mRefCount.get();
+            if (count == RECYCLED) {
+                return false;
+            }
+            if (mRefCount.compareAndSet(count, count + 1)) {
+                return true;
+            }
+        }
+    }
+
+    void release() {
+        // If another reference is taken between the two, the CAS fails and it's left to that
+        // reference to give up the bitmap
+        if (mRefCount.decrementAndGet() == 0 && mRefCount.compareAndSet(0, RECYCLED)) {
+            BitmapPool.getDefault().put(mBitmap);
+
+            if (Flags.DEBUG) {
+                Log.d(LOG_TAG, "Returned to pool: " + mKey);
+            }
+        }
+    }
+
+    /**
+     * A single reference on a {@link CacheableBitmap}. Releasing it more than once has no
+     * further effect, so it's always safe to release in a finally block. A lease which becomes
+     * unreachable without being released is released when it's finalized.
+     */
+    public static final class Lease {
+
+        private final CacheableBitmap mCacheableBitmap;
+        private final AtomicBoolean mReleased = new AtomicBoolean();
+
+        Lease(CacheableBitmap cacheableBitmap) {
+            mCacheableBitmap = cacheableBitmap;
+        }
+
+        public CacheableBitmap getCacheableBitmap() {
+            return mCacheableBitmap;
+        }
+
+        public Bitmap getBitmap() {
+            return mCacheableBitmap.getBitmap();
+        }
+
+        public String getKey() {
+            return mCacheableBitmap.getKey();
+        }
+
+        public void release() {
+            if (mReleased.compareAndSet(false, true)) {
+                mCacheableBitmap.release();
+            }
+        }
+
+        @Override
+        protected void finalize() throws Throwable {
+            try {
+                if (!mReleased.get()) {
+                    if (Flags.DEBUG) {
+                        Log.w(LOG_TAG, "Lease was never released: " + getKey());
+                    }
+                    release();
+                }
+            } finally {
+                super.finalize();
+            }
+        }
+    }
+}
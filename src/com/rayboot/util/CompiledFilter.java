@@ -0,0 +1,422 @@
+package com.rayboot.util;
+
+/**
+ * A point-wise filter baked into lookup tables, so that applying it is a few table lookups per
+ * pixel instead of the floating point arithmetic in {@link FilterKernels}. Tables are built the
+ * first time a filter is asked for and then kept for the life of the process.
+ * <p/>
+ * Black &amp; White, Ansel, Sepia, Georgia, Retro and Cyano only depend on one or two values
+ * which can be worked out per pixel exactly as the kernels do, so their tables give the same
+ * output as the kernels. Testino and XPro mix all three channels together, so they are sampled
+ * into a small 3D lookup table which is interpolated between; that is close but not exact, so is
+ * only handed out when approximate results are allowed. Instafix, Sahara and HDR look at more
+ * than the single pixel so can't be compiled.
+ *
+ * @author rayboot
+ * @from 14-5-15 10:20
+ * @TODO
+ */
+public abstract class CompiledFilter {
+
+    /** Number of samples along each edge of the 3D lookup table */
+    static final int CUBE_SIZE = 33;
+
+    private static final CompiledFilter[] sExact = new CompiledFilter[FilterKernels.FILTER_COUNT];
+    private static final CompiledFilter[] sApproximate = new CompiledFilter[FilterKernels.FILTER_COUNT];
+
+    /**
+     * @param position - Position in {@link PhotoProcessing#FILTERS}
+     * @param allowApproximate - Whether a filter which can only be approximated by a table may be
+     * returned
+     * @return the compiled filter, or null if the filter can't be compiled
+     */
+    public static CompiledFilter get(int position, boolean allowApproximate) {
+        if (position <= 0 || position >= sExact.length) {
+            return null;
+        }
+
+        synchronized (sExact) {
+            if (null == sExact[position]) {
+                sExact[position] = compileExact(position);
+            }
+            if (null != sExact[position] || !allowApproximate) {
+                return sExact[position];
+            }
+
+            if (null == sApproximate[position]) {
+                sApproximate[position] = compileApproximate(position);
+            }
+            return sApproximate[position];
+        }
+    }
+
+    /**
+     * Filters pixels[offset] to pixels[offset + length - 1] in place.
+     */
+    public abstract void apply(int[] pixels, int offset, int length);
+
+    /**
+     * @return true if this gives exactly the same output as the filter's kernel
+     */
+    public abstract boolean isExact();
+
+    private static CompiledFilter compileExact(int position) {
+        switch (position) {
+            case 2: // Ansel
+                return compileAnsel();
+            case 5: // Retro
+                return compileRetro();
+            case 6: // Black & White
+                return compileBlackAndWhite();
+            case 7: // Sepia
+                return compileSepia();
+            case 8: // Cyano
+                return compileCyano();
+            case 9: // Georgia
+                return compileGeorgia();
+        }
+        return null;
+    }
+
+    private static CompiledFilter compileApproximate(int position) {
+        switch (position) {
+            case 3: // Testino
+            case 4: // XPro
+                return new ColourCube(position);
+        }
+        return null;
+    }
+
+    ///////////////////////////////////////////////
+    // Per filter tables, each following its kernel in FilterKernels
+
+    private static CompiledFilter compileBlackAndWhite() {
+        final int[] table = new int[256];
+        for (int grey = 0; grey < 256; grey++) {
+            table[grey] = FilterKernels.rgb(grey, grey, grey);
+        }
+        return new GreyTable(table);
+    }
+
+    private static CompiledFilter compileAnsel() {
+        final int[] table = new int[256];
+        for (int grey = 0; grey < 256; grey++) {
+            final int secondGrey = (int) FilterKernels.blackAndWhite(grey, grey, grey);
+            final int c = FilterKernels.hardLight(secondGrey, secondGrey);
+            table[grey] = FilterKernels.rgb(c, c, c);
+        }
+        return new GreyTable(table);
+    }
+
+    private static CompiledFilter compileSepia() {
+        final float[] red = new float[256];
+        final float[] green = new float[256];
+        final double[] blue = new double[256];
+        final int[] table = new int[256];
+        for (int i = 0; i < 256; i++) {
+            red[i] = 0.21f * ((float) i / 255);
+            green[i] = 0.72f * ((float) i / 255);
+            blue[i] = 0.07 * ((float) i / 255);
+            table[i] = FilterKernels.rgb(FilterKernels.SEPIA_RED_LUT[i],
+                    FilterKernels.SEPIA_GREEN_LUT[i], FilterKernels.SEPIA_BLUE_LUT[i]);
+        }
+
+        return new CompiledFilter() {
+            @Override
+            public void apply(int[] pixels, int offset, int length) {
+                for (int i = offset + length; i-- > offset; ) {
+                    final int p = pixels[i];
+                    final int luminosity = Math.min(255, (int) (float) (((red[(p >> 16) & 0xFF]
+                            + green[(p >> 8) & 0xFF]) + blue[p & 0xFF]) * 255));
+                    pixels[i] = table[luminosity];
+                }
+            }
+
+            @Override
+            public boolean isExact() {
+                return true;
+            }
+        };
+    }
+
+    private static CompiledFilter compileGeorgia() {
+        final int[] brightnessLut = new int[256];
+        final int[] contrastLut = new int[256];
+        for (int i = 0; i < 256; i++) {
+            final float pixelf = i / 255.0f;
+            brightnessLut[i] = FilterKernels.clamp(255 * FilterKernels.brightness(pixelf, 0.4724f));
+            contrastLut[i] = FilterKernels.clamp(255 * FilterKernels.contrast(pixelf, 0.3149f));
+        }
+
+        final int[] red = new int[256];
+        final int[] green = new int[256];
+        final int[] blue = new int[256];
+        for (int i = 0; i < 256; i++) {
+            final int c = contrastLut[brightnessLut[i]];
+            red[i] = 0xFF000000 | FilterKernels.multiply(250, c) << 16;
+            green[i] = FilterKernels.multiply(220, (int) ((c * 0.87f) + 33)) << 8;
+            blue[i] = FilterKernels.multiply(175, (int) ((c * 0.439f) + 143));
+        }
+        return new ChannelTables(red, green, blue);
+    }
+
+    private static CompiledFilter compileRetro() {
+        final byte[] red = new byte[256 * 256];
+        final byte[] green = new byte[256 * 256];
+        final byte[] blue = new byte[256 * 256];
+        for (int grey = 0; grey < 256; grey++) {
+            for (int c = 0; c < 256; c++) {
+                final int r = FilterKernels.overlay(grey, c, 1.0f);
+                red[(grey << 8) | c] = (byte) FilterKernels.screen(9, 0.168627f,
+                        FilterKernels.screen(232, 0.2f,
+                                FilterKernels.multiplyWithAlpha(251, 0.588235f, r)));
+                green[(grey << 8) | c] = (byte) FilterKernels.screen(73, 0.168627f,
+                        FilterKernels.screen(101, 0.2f,
+                                FilterKernels.multiplyWithAlpha(242, 0.588235f, r)));
+                blue[(grey << 8) | c] = (byte) FilterKernels.screen(233, 0.168627f,
+                        FilterKernels.screen(179, 0.2f,
+                                FilterKernels.multiplyWithAlpha(163, 0.588235f, r)));
+            }
+        }
+
+        final Luminance luminance = Luminance.BLACK_AND_WHITE;
+        return new CompiledFilter() {
+            @Override
+            public void apply(int[] pixels, int offset, int length) {
+                for (int i = offset + length; i-- > offset; ) {
+                    final int p = pixels[i];
+                    final int r = (p >> 16) & 0xFF;
+                    final int g = (p >> 8) & 0xFF;
+                    final int b = p & 0xFF;
+                    final int row = luminance.get(r, g, b) << 8;
+                    pixels[i] = 0xFF000000 | (red[row | r] & 0xFF) << 16
+                            | (green[row | g] & 0xFF) << 8 | (blue[row | b] & 0xFF);
+                }
+            }
+
+            @Override
+            public boolean isExact() {
+                return true;
+            }
+        };
+    }
+
+    private static CompiledFilter compileCyano() {
+        // Keyed by both of the greys the kernel works out
+        final int[] table = new int[256 * 256];
+        for (int bwGrey = 0; bwGrey < 256; bwGrey++) {
+            for (int grey = 0; grey < 256; grey++) {
+                final int r = (int) FilterKernels.componentCeiling(61.0f + grey);
+                final int g = (int) FilterKernels.componentCeiling(87.0f + grey);
+                final int b = (int) FilterKernels.componentCeiling(136.0f + grey);
+                table[(bwGrey << 8) | grey] = FilterKernels.rgb(
+                        FilterKernels.overlay(bwGrey, r, 0.9f),
+                        FilterKernels.overlay(bwGrey, g, 0.9f),
+                        FilterKernels.overlay(bwGrey, b, 0.9f));
+            }
+        }
+
+        final float[] third = new float[256];
+        for (int i = 0; i < 256; i++) {
+            third[i] = i * 0.222f;
+        }
+        final Luminance luminance = Luminance.BLACK_AND_WHITE;
+        return new CompiledFilter() {
+            @Override
+            public void apply(int[] pixels, int offset, int length) {
+                for (int i = offset + length; i-- > offset; ) {
+                    final int p = pixels[i];
+                    final int r = (p >> 16) & 0xFF;
+                    final int g = (p >> 8) & 0xFF;
+                    final int b = p & 0xFF;
+                    final int grey = (int) ((third[r] + third[g]) + third[b]);
+                    pixels[i] = table[(luminance.get(r, g, b) << 8) | grey];
+                }
+            }
+
+            @Override
+            public boolean isExact() {
+                return true;
+            }
+        };
+    }
+
+    ///////////////////////////////////////////////
+    // Table shapes
+
+    /**
+     * (int) {@link FilterKernels#blackAndWhite(int, int, int)}, with the products looked up
+     * rather than multiplied. The sum is made in the same order so rounds the same way.
+     */
+    static final class Luminance {
+
+        static final Luminance BLACK_AND_WHITE = new Luminance(0.3f, 0.59f, 0.11f);
+
+        private final float[] mRed = new float[256];
+        private final float[] mGreen = new float[256];
+        private final float[] mBlue = new float[256];
+
+        private Luminance(float red, float green, float blue) {
+            for (int i = 0; i < 256; i++) {
+                mRed[i] = i * red;
+                mGreen[i] = i * green;
+                mBlue[i] = i * blue;
+            }
+        }
+
+        int get(int r, int g, int b) {
+            return (int) ((mRed[r] + mGreen[g]) + mBlue[b]);
+        }
+    }
+
+    /**
+     * Output only depends on the black and white grey of the pixel.
+     */
+    static final class GreyTable extends CompiledFilter {
+
+        private final int[] mTable;
+        private final Luminance mLuminance = Luminance.BLACK_AND_WHITE;
+
+        GreyTable(int[] table) {
+            mTable = table;
+        }
+
+        @Override
+        public void apply(int[] pixels, int offset, int length) {
+            final int[] table = mTable;
+            final Luminance luminance = mLuminance;
+            for (int i = offset + length; i-- > offset; ) {
+                final int p = pixels[i];
+                pixels[i] = table[luminance.get((p >> 16) & 0xFF, (p >> 8) & 0xFF, p & 0xFF)];
+            }
+        }
+
+        @Override
+        public boolean isExact() {
+            return true;
+        }
+    }
+
+    /**
+     * Each output channel only depends on the same input channel. The tables hold the output
+     * already shifted into place, so they are just or'd together.
+     */
+    static final class ChannelTables extends CompiledFilter {
+
+        private final int[] mRed;
+        private final int[] mGreen;
+        private final int[] mBlue;
+
+        ChannelTables(int[] red, int[] green, int[] blue) {
+            mRed = red;
+            mGreen = green;
+            mBlue = blue;
+        }
+
+        @Override
+        public void apply(int[] pixels, int offset, int length) {
+            final int[] red = mRed;
+            final int[] green = mGreen;
+            final int[] blue = mBlue;
+            for (int i = offset + length; i-- > offset; ) {
+                final int p = pixels[i];
+                pixels[i] = red[(p >> 16) & 0xFF] | green[(p >> 8) & 0xFF] | blue[p & 0xFF];
+            }
+        }
+
+        @Override
+        public boolean isExact() {
+            return true;
+        }
+    }
+
+    /**
+     * The filter sampled on a CUBE_SIZE^3 grid of colours, trilinearly interpolated in between.
+     */
+    static final class ColourCube extends CompiledFilter {
+
+        private final int[] mCube;
+        private final int[] mIndex = new int[256];
+        private final int[] mFraction = new int[256];
+
+        ColourCube(int position) {
+            final int size = CUBE_SIZE;
+            final int[] nodes = new int[size];
+            for (int i = 0; i < size; i++) {
+                nodes[i] = i * 255 / (size - 1);
+            }
+
+            mCube = new int[size * size * size];
+            for (int r = 0, i = 0; r < size; r++) {
+                for (int g = 0; g < size; g++) {
+                    for (int b = 0; b < size; b++, i++) {
+                        mCube[i] = FilterKernels.rgb(nodes[r], nodes[g], nodes[b]);
+                    }
+                }
+            }
+            FilterKernels.apply(position, mCube, mCube.length, 1);
+
+            // Which cell each channel value falls in, and how far across it (0 - 256)
+            for (int v = 0; v < 256; v++) {
+                final int scaled = v * (size - 1) * 256 / 255;
+                final int cell = Math.min(scaled >> 8, size - 2);
+                mIndex[v] = cell;
+                mFraction[v] = scaled - (cell << 8);
+            }
+        }
+
+        @Override
+        public void apply(int[] pixels, int offset, int length) {
+            final int size = CUBE_SIZE;
+            final int[] cube = mCube;
+            final int[] index = mIndex;
+            final int[] fraction = mFraction;
+            final int gStep = size;
+            final int rStep = size * size;
+
+            for (int i = offset + length; i-- > offset; ) {
+                final int p = pixels[i];
+                final int r = (p >> 16) & 0xFF;
+                final int g = (p >> 8) & 0xFF;
+                final int b = p & 0xFF;
+
+                final int base = index[r] * rStep + index[g] * gStep + index[b];
+                final int fr = fraction[r];
+                final int fg = fraction[g];
+                final int fb = fraction[b];
+
+                pixels[i] = 0xFF000000
+                        | interpolate(cube, base, rStep, gStep, fr, fg, fb, 16) << 16
+                        | interpolate(cube, base, rStep, gStep, fr, fg, fb, 8) << 8
+                        | interpolate(cube, base, rStep, gStep, fr, fg, fb, 0);
+            }
+        }
+
+        private static int interpolate(int[] cube, int base, int rStep, int gStep, int fr,
+                int fg, int fb, int shift) {
+            final int c000 = (cube[base] >> shift) & 0xFF;
+            final int c001 = (cube[base + 1] >> shift) & 0xFF;
+            final int c010 = (cube[base + gStep] >> shift) & 0xFF;
+            final int c011 = (cube[base + gStep + 1] >> shift) & 0xFF;
+            final int c100 = (cube[base + rStep] >> shift) & 0xFF;
+            final int c101 = (cube[base + rStep + 1] >> shift) & 0xFF;
+            final int c110 = (cube[base + rStep + gStep] >> shift) & 0xFF;
+            final int c111 = (cube[base + rStep + gStep + 1] >> shift) & 0xFF;
+
+            // Blue, then green, then red, keeping 8 bits of fraction from each step. The last
+            // step needs 32 bits before the sign, so is done as a long
+            final int c00 = (c000 << 8) + (c001 - c000) * fb;
+            final int c01 = (c010 << 8) + (c011 - c010) * fb;
+            final int c10 = (c100 << 8) + (c101 - c100) * fb;
+            final int c11 = (c110 << 8) + (c111 - c110) * fb;
+            final int c0 = (c00 << 8) + (c01 - c00) * fg;
+            final int c1 = (c10 << 8) + (c11 - c10) * fg;
+            return (int) ((((long) c0 << 8) + (long) (c1 - c0) * fr + (1 << 23)) >> 24);
+        }
+
+        @Override
+        public boolean isExact() {
+            return false;
+        }
+    }
+}
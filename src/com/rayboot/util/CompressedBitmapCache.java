@@ -0,0 +1,221 @@
+package com.rayboot.util;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.util.Log;
+import com.rayboot.tasks.PhotupThreadFactory;
+import java.io.ByteArrayOutputStream;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Tier beneath {@link BitmapMemoryCache} which keeps the bitmaps it evicts as JPEGs in memory. A
+ * display sized bitmap compresses to around a tenth of its decoded size, so many more fit in the
+ * same budget, and inflating one again is much quicker than going back to the original photo or
+ * the disk cache.
+ * <p/>
+ * Bitmaps are compressed on a background thread, with a lease held on them until they have
+ * been. Inflating happens on the calling thread, so should only be done from worker threads.
+ *
+ * @author rayboot
+ * @from 14-5-20 10:15
+ * @TODO
+ */
+public class CompressedBitmapCache {
+
+    static final String LOG_TAG = "CompressedBitmapCache";
+    static final String THREAD_COMPRESS = "compress_thread";
+
+    static final int JPEG_QUALITY = 90;
+
+    private static final class Entry {
+
+        final byte[] data;
+        final int width;
+        final int height;
+        final Bitmap.Config config;
+
+        Entry(byte[] data, int width, int height, Bitmap.Config config) {
+            this.data = data;
+            this.width = width;
+            this.height = height;
+            this.config = config;
+        }
+    }
+
+    /** Key to compressed entry, in access order */
+    private final LinkedHashMap<String, Entry> mEntries
+            = new LinkedHashMap<String, Entry>(0, 0.75f, true);
+    /** Keys which are queued to be compressed */
+    private final Set<String> mPending = new HashSet<String>();
+
+    private volatile int mMaxBytes;
+    private int mSize;
+
+    private int mHitCount;
+    private int mMissCount;
+    private int mEvictionCount;
+
+    private final ExecutorService mCompressExecutor = Executors
+            .newSingleThreadExecutor(new PhotupThreadFactory(THREAD_COMPRESS));
+
+    /**
+     * @param maxBytes - Total size of the compressed data the cache may hold
+     */
+    public CompressedBitmapCache(int maxBytes) {
+        mMaxBytes = maxBytes;
+    }
+
+    /**
+     * Compresses the bitmap in the background, unless it's already held.
+     */
+    public void offer(final CacheableBitmap bitmap) {
+        final String key = bitmap.getKey();
+        synchronized (this) {
+            if (mPending.contains(key) || mEntries.containsKey(key)) {
+                return;
+            }
+            mPending.add(key);
+        }
+
+        final CacheableBitmap.Lease lease = bitmap.acquire();
+        if (null == lease) {
+            synchronized (this) {
+                mPending.remove(key);
+            }
+            return;
+        }
+
+        mCompressExecutor.submit(new Runnable() {
+            public void run() {
+                try {
+                    compress(key, lease.getBitmap());
+                } finally {
+                    synchronized (CompressedBitmapCache.this) {
+                        mPending.remove(key);
+                    }
+                    lease.release();
+                }
+            }
+        });
+    }
+
+    /**
+     * Inflates the bitmap held for key back into the config it had when it was compressed.
+     *
+     * @return a new bitmap, or null if nothing is held for key
+     */
+    public Bitmap inflate(String key) {
+        final Entry entry;
+        synchronized (this) {
+            entry = mEntries.get(key);
+            if (null == entry) {
+                mMissCount++;
+                return null;
+            }
+            mHitCount++;
+        }
+
+        final BitmapFactory.Options opts = new BitmapFactory.Options();
+        opts.inPreferredConfig = entry.config;
+        // Most likely the bitmap compressed is still sitting in the pool
+        BitmapPool.getDefault().setInBitmap(opts, entry.width, entry.height);
+
+        Bitmap bitmap;
+        try {
+            bitmap = BitmapFactory.decodeByteArray(entry.data, 0, entry.data.length, opts);
+        } catch (IllegalArgumentException e) {
+            BitmapPool.getDefault().put(opts.inBitmap);
+            opts.inBitmap = null;
+            bitmap = BitmapFactory.decodeByteArray(entry.data, 0, entry.data.length, opts);
+        }
+
+        if (Flags.DEBUG) {
+            Log.d(LOG_TAG, "Inflated " + key + " from " + entry.data.length + " bytes");
+        }
+        return bitmap;
+    }
+
+    public synchronized void remove(String key) {
+        final Entry entry = mEntries.remove(key);
+        if (null != entry) {
+            mSize -= entry.data.length;
+        }
+    }
+
+    /**
+     * Evicts the least recently used entries until the cache holds at most maxBytes.
+     */
+    public synchronized void trimToSize(int maxBytes) {
+        final Iterator<Map.Entry<String, Entry>> it = mEntries.entrySet().iterator();
+        while (mSize > maxBytes && it.hasNext()) {
+            mSize -= it.next().getValue().data.length;
+            it.remove();
+            mEvictionCount++;
+        }
+    }
+
+    public synchronized void resize(int maxBytes) {
+        mMaxBytes = maxBytes;
+        trimToSize(maxBytes);
+    }
+
+    public void evictAll() {
+        trimToSize(-1);
+    }
+
+    public synchronized int size() {
+        return mSize;
+    }
+
+    public int maxSize() {
+        return mMaxBytes;
+    }
+
+    @Override
+    public synchronized String toString() {
+        final int accesses = mHitCount + mMissCount;
+        final int hitPercent = accesses != 0 ? (100 * mHitCount / accesses) : 0;
+        return String.format("CompressedBitmapCache[maxSize=%d,entries=%d,hits=%d,misses=%d,"
+                        + "evictions=%d,hitRate=%d%%]", mMaxBytes, mEntries.size(), mHitCount,
+                mMissCount, mEvictionCount, hitPercent);
+    }
+
+    private void compress(String key, Bitmap bitmap) {
+        if (bitmap.isRecycled()) {
+            return;
+        }
+
+        final ByteArrayOutputStream out = new ByteArrayOutputStream(
+                bitmap.getRowBytes() * bitmap.getHeight() / 8);
+        if (!bitmap.compress(Bitmap.CompressFormat.JPEG, JPEG_QUALITY, out)) {
+            return;
+        }
+        final byte[] data = out.toByteArray();
+        if (data.length > mMaxBytes) {
+            return;
+        }
+
+        final Bitmap.Config config = null != bitmap.getConfig() ? bitmap.getConfig()
+                : Bitmap.Config.ARGB_8888;
+
+        synchronized (this) {
+            final Entry previous = mEntries.put(key,
+                    new Entry(data, bitmap.getWidth(), bitmap.getHeight(), config));
+            mSize += data.length;
+            if (null != previous) {
+                mSize -= previous.data.length;
+            }
+            trimToSize(mMaxBytes);
+        }
+
+        if (Flags.DEBUG) {
+            Log.d(LOG_TAG, "Compressed " + key + " to " + data.length + " bytes. " + this);
+        }
+    }
+}
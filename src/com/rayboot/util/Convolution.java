@@ -0,0 +1,516 @@
+package com.rayboot.util;
+
+import java.util.Arrays;
+
+/**
+ * Blur, sharpen and unsharp mask over ARGB pixels. Every kernel is separable, so an image is
+ * convolved by a horizontal pass and then a vertical one, costing 2 * (2r + 1) taps per pixel
+ * rather than (2r + 1)^2. Gaussians wider than {@link #MAX_KERNEL_RADIUS} are approximated by
+ * {@link #BOX_PASSES} box blurs, each of which keeps a running sum so costs the same whatever
+ * the radius. Edges are clamped, and alpha is left as it is.
+ * <p/>
+ * Both passes are split into the same horizontal bands as {@link ParallelFilter}, and work in
+ * place. For the vertical pass, each band keeps the original copies of the few rows either side
+ * of the row being written which the kernel still needs. If the calling thread is interrupted,
+ * the pixels are left part way through and a {@link java.util.concurrent.CancellationException}
+ * is thrown, so a half blurred image is never mistaken for a finished one.
+ *
+ * @author rayboot
+ * @from 14-5-16 11:15
+ * @TODO
+ */
+public final class Convolution {
+
+    /** Fixed point precision of kernel weights */
+    static final int KERNEL_SHIFT = 14;
+
+    /** Gaussians needing a wider kernel than this are done with box blurs instead */
+    static final int MAX_KERNEL_RADIUS = 8;
+
+    /** Three box blurs come within a few percent of a true gaussian */
+    static final int BOX_PASSES = 3;
+
+    /** Radius of the blur subtracted by {@link #sharpen(int[], int, int, float)} */
+    public static final float SHARPEN_SIGMA = 1f;
+
+    private Convolution() {
+    }
+
+    /**
+     * A 1D kernel, used for both the horizontal and vertical passes.
+     */
+    public static final class Kernel {
+
+        final int[] mWeights;
+        final int mRadius;
+
+        private Kernel(int[] weights) {
+            mWeights = weights;
+            mRadius = weights.length / 2;
+        }
+
+        /**
+         * @param weights - Odd number of weights, centred on the middle one. They are normalised
+         * to add up to 1, so can be given in any scale.
+         */
+        public static Kernel fromWeights(float[] weights) {
+            if (weights.length % 2 == 0) {
+                throw new IllegalArgumentException("Kernel needs an odd number of weights");
+            }
+
+            float total = 0f;
+            for (float weight : weights) {
+                total += weight;
+            }
+
+            final int[] fixed = new int[weights.length];
+            int sum = 0;
+            for (int i = 0; i < weights.length; i++) {
+                fixed[i] = Math.round(weights[i] / total * (1 << KERNEL_SHIFT));
+                sum += fixed[i];
+            }
+            // Put any rounding error into the centre, so flat areas stay exactly the same
+            fixed[weights.length / 2] += (1 << KERNEL_SHIFT) - sum;
+            return new Kernel(fixed);
+        }
+
+        public static Kernel gaussian(float sigma) {
+            final int radius = Math.max(1, (int) Math.ceil(3 * sigma));
+            final float[] weights = new float[2 * radius + 1];
+            for (int i = -radius; i <= radius; i++) {
+                weights[i + radius] = (float) Math.exp(-(i * i) / (2 * sigma * sigma));
+            }
+            return fromWeights(weights);
+        }
+
+        public int getRadius() {
+            return mRadius;
+        }
+    }
+
+    /**
+     * Convolves the pixels in place with the kernel, horizontally and then vertically.
+     */
+    public static void convolve(int[] pixels, int width, int height, Kernel kernel) {
+        convolve(pixels, width, height, kernel, getBandCount(height));
+    }
+
+    /**
+     * Same as {@link #convolve(int[], int, int, Kernel)}, split into the given number of bands.
+     */
+    static void convolve(final int[] pixels, final int width, final int height,
+            final Kernel kernel, int bands) {
+        final int radius = kernel.mRadius;
+
+        ParallelFilter.runInBands(height, bands, new ParallelFilter.BandTask() {
+            public void run(int top, int bottom) {
+                final int[] padded = new int[width + 2 * radius];
+                for (int y = top; y < bottom; y++) {
+                    convolveRow(pixels, y * width, width, kernel, padded);
+                }
+            }
+        });
+
+        runVertical(pixels, width, height, bands, radius, new VerticalPass() {
+            public void run(int[] pixels, int top, int bottom, RowWindow window) {
+                convolveColumns(pixels, width, top, bottom, kernel, window);
+            }
+        });
+    }
+
+    /**
+     * Blurs the pixels in place with a box of (2 * radius + 1) pixels square.
+     */
+    public static void boxBlur(int[] pixels, int width, int height, int radius) {
+        boxBlur(pixels, width, height, radius, getBandCount(height));
+    }
+
+    /**
+     * Same as {@link #boxBlur(int[], int, int, int)}, split into the given number of bands.
+     */
+    static void boxBlur(final int[] pixels, final int width, final int height, final int radius,
+            int bands) {
+        if (radius <= 0) {
+            return;
+        }
+
+        ParallelFilter.runInBands(height, bands, new ParallelFilter.BandTask() {
+            public void run(int top, int bottom) {
+                final int[] padded = new int[width + 2 * radius];
+                for (int y = top; y < bottom; y++) {
+                    boxBlurRow(pixels, y * width, width, radius, padded);
+                }
+            }
+        });
+
+        runVertical(pixels, width, height, bands, radius, new VerticalPass() {
+            public void run(int[] pixels, int top, int bottom, RowWindow window) {
+                boxBlurColumns(pixels, width, top, bottom, radius, window);
+            }
+        });
+    }
+
+    /**
+     * Blurs the pixels in place with a gaussian of the given standard deviation, in pixels.
+     */
+    public static void gaussianBlur(int[] pixels, int width, int height, float sigma) {
+        if (sigma <= 0f) {
+            return;
+        }
+
+        if (Math.ceil(3 * sigma) <= MAX_KERNEL_RADIUS) {
+            convolve(pixels, width, height, Kernel.gaussian(sigma));
+        } else {
+            for (int radius : boxRadiiForGaussian(sigma, BOX_PASSES)) {
+                boxBlur(pixels, width, height, radius);
+            }
+        }
+    }
+
+    /**
+     * Sharpens by adding back the difference between each pixel and a blurred copy of the image.
+     *
+     * @param sigma - Standard deviation of the blur, in pixels
+     * @param amount - How much of the difference to add, where 1 doubles the local contrast
+     * @param threshold - Differences smaller than this, in levels, are left alone so that flat
+     * areas don't get noisier
+     */
+    public static void unsharpMask(final int[] pixels, final int width, final int height,
+            float sigma, float amount, final int threshold) {
+        if (amount == 0f || sigma <= 0f) {
+            return;
+        }
+
+        final int[] blurred = pixels.clone();
+        gaussianBlur(blurred, width, height, sigma);
+
+        final int fixedAmount = Math.round(amount * 256);
+        ParallelFilter.runInBands(height, getBandCount(height), new ParallelFilter.BandTask() {
+            public void run(int top, int bottom) {
+                for (int i = top * width, end = bottom * width; i < end; i++) {
+                    final int p = pixels[i];
+                    final int b = blurred[i];
+                    pixels[i] = (p & 0xFF000000)
+                            | sharpenChannel(p >> 16 & 0xFF, b >> 16 & 0xFF, fixedAmount,
+                                    threshold) << 16
+                            | sharpenChannel(p >> 8 & 0xFF, b >> 8 & 0xFF, fixedAmount,
+                                    threshold) << 8
+                            | sharpenChannel(p & 0xFF, b & 0xFF, fixedAmount, threshold);
+                }
+            }
+        });
+    }
+
+    public static void sharpen(int[] pixels, int width, int height, float amount) {
+        unsharpMask(pixels, width, height, SHARPEN_SIGMA, amount, 0);
+    }
+
+    private static int sharpenChannel(int value, int blurred, int amount, int threshold) {
+        final int diff = value - blurred;
+        if (diff < threshold && -diff < threshold) {
+            return value;
+        }
+        return clamp(value + ((diff * amount + 128) >> 8));
+    }
+
+    /**
+     * @return the radii of n box blurs which together approximate a gaussian of sigma
+     */
+    static int[] boxRadiiForGaussian(float sigma, int n) {
+        final double ideal = Math.sqrt(12 * sigma * sigma / n + 1);
+        int lower = (int) Math.floor(ideal);
+        if (lower % 2 == 0) {
+            lower--;
+        }
+        final int upper = lower + 2;
+        final long lowerCount = Math.round((12 * sigma * sigma - n * lower * lower - 4 * n * lower
+                - 3 * n) / (double) (-4 * lower - 4));
+
+        final int[] radii = new int[n];
+        for (int i = 0; i < n; i++) {
+            radii[i] = ((i < lowerCount ? lower : upper) - 1) / 2;
+        }
+        return radii;
+    }
+
+    private static int getBandCount(int height) {
+        return Math.max(1, Math.min(ParallelFilter.getBandCount(),
+                height / ParallelFilter.MIN_BAND_HEIGHT));
+    }
+
+    ///////////////////////////////////////////////
+    // Horizontal passes, one row at a time
+
+    /**
+     * Copies a row into padded, with its edge pixels repeated radius times either side.
+     */
+    private static void padRow(int[] pixels, int offset, int width, int radius, int[] padded) {
+        System.arraycopy(pixels, offset, padded, radius, width);
+        final int first = pixels[offset];
+        final int last = pixels[offset + width - 1];
+        for (int i = 0; i < radius; i++) {
+            padded[i] = first;
+            padded[radius + width + i] = last;
+        }
+    }
+
+    private static void convolveRow(int[] pixels, int offset, int width, Kernel kernel,
+            int[] padded) {
+        final int[] weights = kernel.mWeights;
+        final int taps = weights.length;
+        padRow(pixels, offset, width, kernel.mRadius, padded);
+
+        for (int x = 0; x < width; x++) {
+            int r = 0, g = 0, b = 0;
+            for (int k = 0; k < taps; k++) {
+                final int p = padded[x + k];
+                final int weight = weights[k];
+                r += (p >> 16 & 0xFF) * weight;
+                g += (p >> 8 & 0xFF) * weight;
+                b += (p & 0xFF) * weight;
+            }
+            pixels[offset + x] = (padded[x + kernel.mRadius] & 0xFF000000) | toChannel(r) << 16
+                    | toChannel(g) << 8 | toChannel(b);
+        }
+    }
+
+    private static void boxBlurRow(int[] pixels, int offset, int width, int radius,
+            int[] padded) {
+        final int size = 2 * radius + 1;
+        final int multiplier = boxMultiplier(size);
+        padRow(pixels, offset, width, radius, padded);
+
+        int r = 0, g = 0, b = 0;
+        for (int i = 0; i < size; i++) {
+            final int p = padded[i];
+            r += p >> 16 & 0xFF;
+            g += p >> 8 & 0xFF;
+            b += p & 0xFF;
+        }
+
+        for (int x = 0; x < width; x++) {
+            pixels[offset + x] = (padded[x + radius] & 0xFF000000)
+                    | boxAverage(r, multiplier) << 16 | boxAverage(g, multiplier) << 8
+                    | boxAverage(b, multiplier);
+
+            if (x + 1 < width) {
+                final int in = padded[x + size];
+                final int out = padded[x];
+                r += (in >> 16 & 0xFF) - (out >> 16 & 0xFF);
+                g += (in >> 8 & 0xFF) - (out >> 8 & 0xFF);
+                b += (in & 0xFF) - (out & 0xFF);
+            }
+        }
+    }
+
+    ///////////////////////////////////////////////
+    // Vertical passes, one band at a time
+
+    private static interface VerticalPass {
+
+        void run(int[] pixels, int top, int bottom, RowWindow window);
+    }
+
+    /**
+     * Runs a vertical pass in place. The rows within radius of each band's edges are copied
+     * before any band starts writing, so that no band sees rows its neighbour has already
+     * filtered.
+     */
+    private static void runVertical(final int[] pixels, final int width, final int height,
+            int bands, final int radius, final VerticalPass pass) {
+        final int bandHeight = ParallelFilter.bandHeight(height, bands);
+        final RowWindow[] windows = new RowWindow[bands];
+
+        ParallelFilter.runInBands(height, bands, new ParallelFilter.BandTask() {
+            public void run(int top, int bottom) {
+                windows[top / bandHeight] = new RowWindow(pixels, width, height, top, bottom,
+                        radius);
+            }
+        });
+
+        ParallelFilter.runInBands(height, bands, new ParallelFilter.BandTask() {
+            public void run(int top, int bottom) {
+                pass.run(pixels, top, bottom, windows[top / bandHeight]);
+            }
+        });
+    }
+
+    /**
+     * Gives a band access to the original contents of any row, clamped to the image, while the
+     * band is being overwritten from the top down. Rows above the band and below it are copied
+     * up front; rows of the band which have already been written are kept in a ring of the last
+     * radius + 1 originals.
+     */
+    static final class RowWindow {
+
+        private final int[] mPixels;
+        private final int mWidth;
+        private final int mHeight;
+        private final int mTop;
+        private final int mBottom;
+
+        private final int mAboveStart;
+        private final int[] mAbove;
+        private final int[] mBelow;
+        private final int[] mRing;
+        private final int mRingRows;
+
+        /** Rows of the band before this one have been overwritten */
+        private int mRetired;
+
+        /** Array holding the row found by the last call to {@link #locate(int)} */
+        int[] mRowArray;
+
+        RowWindow(int[] pixels, int width, int height, int top, int bottom, int radius) {
+            mPixels = pixels;
+            mWidth = width;
+            mHeight = height;
+            mTop = top;
+            mBottom = bottom;
+            mRetired = top;
+
+            mAboveStart = Math.max(0, top - radius);
+            mAbove = new int[(top - mAboveStart) * width];
+            System.arraycopy(pixels, mAboveStart * width, mAbove, 0, mAbove.length);
+
+            final int belowEnd = Math.min(height, bottom + radius);
+            mBelow = new int[(belowEnd - bottom) * width];
+            System.arraycopy(pixels, bottom * width, mBelow, 0, mBelow.length);
+
+            mRingRows = Math.min(radius + 1, bottom - top);
+            mRing = new int[mRingRows * width];
+        }
+
+        /**
+         * Finds the original row y, clamped to the image, leaving the array holding it in
+         * {@link #mRowArray}.
+         *
+         * @return the offset of the row in {@link #mRowArray}
+         */
+        int locate(int y) {
+            if (y < 0) {
+                y = 0;
+            } else if (y >= mHeight) {
+                y = mHeight - 1;
+            }
+
+            if (y < mTop) {
+                mRowArray = mAbove;
+                return (y - mAboveStart) * mWidth;
+            } else if (y < mRetired) {
+                mRowArray = mRing;
+                return ((y - mTop) % mRingRows) * mWidth;
+            } else if (y < mBottom) {
+                mRowArray = mPixels;
+                return y * mWidth;
+            }
+            mRowArray = mBelow;
+            return (y - mBottom) * mWidth;
+        }
+
+        /**
+         * Keeps the original copy of the next row of the band, which is about to be overwritten.
+         */
+        void retire() {
+            System.arraycopy(mPixels, mRetired * mWidth, mRing,
+                    ((mRetired - mTop) % mRingRows) * mWidth, mWidth);
+            mRetired++;
+        }
+    }
+
+    private static void convolveColumns(int[] pixels, int width, int top, int bottom,
+            Kernel kernel, RowWindow window) {
+        final int[] weights = kernel.mWeights;
+        final int radius = kernel.mRadius;
+        final int[] red = new int[width];
+        final int[] green = new int[width];
+        final int[] blue = new int[width];
+
+        for (int y = top; y < bottom; y++) {
+            Arrays.fill(red, 0);
+            Arrays.fill(green, 0);
+            Arrays.fill(blue, 0);
+
+            for (int k = -radius; k <= radius; k++) {
+                final int offset = window.locate(y + k);
+                final int[] row = window.mRowArray;
+                final int weight = weights[k + radius];
+                for (int x = 0; x < width; x++) {
+                    final int p = row[offset + x];
+                    red[x] += (p >> 16 & 0xFF) * weight;
+                    green[x] += (p >> 8 & 0xFF) * weight;
+                    blue[x] += (p & 0xFF) * weight;
+                }
+            }
+
+            window.retire();
+            for (int x = 0, i = y * width; x < width; x++, i++) {
+                pixels[i] = (pixels[i] & 0xFF000000) | toChannel(red[x]) << 16
+                        | toChannel(green[x]) << 8 | toChannel(blue[x]);
+            }
+        }
+    }
+
+    private static void boxBlurColumns(int[] pixels, int width, int top, int bottom, int radius,
+            RowWindow window) {
+        final int multiplier = boxMultiplier(2 * radius + 1);
+        final int[] red = new int[width];
+        final int[] green = new int[width];
+        final int[] blue = new int[width];
+
+        for (int k = -radius; k <= radius; k++) {
+            final int offset = window.locate(top + k);
+            final int[] row = window.mRowArray;
+            for (int x = 0; x < width; x++) {
+                final int p = row[offset + x];
+                red[x] += p >> 16 & 0xFF;
+                green[x] += p >> 8 & 0xFF;
+                blue[x] += p & 0xFF;
+            }
+        }
+
+        for (int y = top; y < bottom; y++) {
+            window.retire();
+            for (int x = 0, i = y * width; x < width; x++, i++) {
+                pixels[i] = (pixels[i] & 0xFF000000) | boxAverage(red[x], multiplier) << 16
+                        | boxAverage(green[x], multiplier) << 8 | boxAverage(blue[x], multiplier);
+            }
+
+            if (y + 1 < bottom) {
+                // Slide the window down a row; the leaving row has just been retired
+                final int outOffset = window.locate(y - radius);
+                final int[] outRow = window.mRowArray;
+                final int inOffset = window.locate(y + radius + 1);
+                final int[] inRow = window.mRowArray;
+                for (int x = 0; x < width; x++) {
+                    final int in = inRow[inOffset + x];
+                    final int out = outRow[outOffset + x];
+                    red[x] += (in >> 16 & 0xFF) - (out >> 16 & 0xFF);
+                    green[x] += (in >> 8 & 0xFF) - (out >> 8 & 0xFF);
+                    blue[x] += (in & 0xFF) - (out & 0xFF);
+                }
+            }
+        }
+    }
+
+    ///////////////////////////////////////////////
+
+    private static int toChannel(int fixed) {
+        return clamp((fixed + (1 << (KERNEL_SHIFT - 1))) >> KERNEL_SHIFT);
+    }
+
+    /**
+     * @return the multiplier which, shifted down 16 bits, divides a sum of size values
+     */
+    private static int boxMultiplier(int size) {
+        return ((1 << 16) + size / 2) / size;
+    }
+
+    private static int boxAverage(int sum, int multiplier) {
+        return Math.min(255, (sum * multiplier + (1 << 15)) >>> 16);
+    }
+
+    private static int clamp(int value) {
+        return value < 0 ? 0 : (value > 255 ? 255 : value);
+    }
+}
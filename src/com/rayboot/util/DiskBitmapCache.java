@@ -0,0 +1,416 @@
+package com.rayboot.util;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.util.Log;
+import com.rayboot.tasks.PhotupThreadFactory;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.io.Writer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Second level cache for decoded and rendered bitmaps, kept on disk as JPEGs so they survive the
+ * memory cache evicting them and the process dying. Entries are evicted least recently used
+ * first once the total size passes its cap.
+ * <p/>
+ * Which entries exist, and the order they were used in, is kept in an append-only journal of
+ * CLEAN, READ and REMOVE lines which is replayed when the cache is first used, and rewritten
+ * once it holds too many redundant lines. A file only gets its CLEAN line once it has been
+ * completely written, so files left over from a crash are found and deleted on the next start.
+ * <p/>
+ * Writes are made behind the caller's back on a single background thread. Reads happen on the
+ * calling thread, so should only be made from worker threads.
+ *
+ * @author rayboot
+ * @from 14-5-18 10:40
+ * @TODO
+ */
+public class DiskBitmapCache {
+
+    static final String LOG_TAG = "DiskBitmapCache";
+    static final String THREAD_DISK_CACHE = "disk_cache_thread";
+
+    static final String JOURNAL_FILE = "journal";
+    static final String JOURNAL_FILE_TEMP = "journal.tmp";
+    static final String JOURNAL_MAGIC = "com.rayboot.DiskBitmapCache";
+    static final String JOURNAL_VERSION = "1";
+    static final String CLEAN = "CLEAN";
+    static final String READ = "READ";
+    static final String REMOVE = "REMOVE";
+
+    /** Once the journal has this many more lines than entries, it's rewritten */
+    static final int REDUNDANT_OP_COMPACT_THRESHOLD = 2000;
+
+    static final int JPEG_QUALITY = 85;
+    static final String ENTRY_SUFFIX = ".jpg";
+    static final String TEMP_SUFFIX = ".tmp";
+
+    private final File mDirectory;
+    private final long mMaxBytes;
+
+    /** Hashed key to entry size in bytes, in access order */
+    private final LinkedHashMap<String, Long> mEntries
+            = new LinkedHashMap<String, Long>(0, 0.75f, true);
+    /** Hashed keys which are queued to be written */
+    private final Set<String> mPending = new HashSet<String>();
+
+    private long mSize;
+    private int mRedundantOps;
+    private Writer mJournalWriter;
+    private boolean mOpened;
+
+    private final ExecutorService mWriteExecutor = Executors
+            .newSingleThreadExecutor(new PhotupThreadFactory(THREAD_DISK_CACHE));
+
+    /**
+     * The directory isn't read until the cache is first used, so this is safe to call on the UI
+     * thread.
+     *
+     * @param directory - Directory to keep entries in, used by nothing else
+     * @param maxBytes - Size the cache is trimmed back to
+     */
+    public DiskBitmapCache(File directory, long maxBytes) {
+        mDirectory = directory;
+        mMaxBytes = maxBytes;
+    }
+
+    /**
+     * Decodes the entry for key, returning null if there isn't one.
+     *
+     * @param config - Config to decode the entry into
+     */
+    public Bitmap get(String key, Bitmap.Config config) {
+        final String hash = hashKey(key);
+        synchronized (this) {
+            if (!open() || !mEntries.containsKey(hash)) {
+                return null;
+            }
+            mEntries.get(hash);
+            appendToJournal(READ, hash, -1);
+        }
+
+        final BitmapFactory.Options opts = new BitmapFactory.Options();
+        opts.inPreferredConfig = config;
+        final Bitmap bitmap = BitmapFactory.decodeFile(getEntryFile(hash).getPath(), opts);
+
+        if (null == bitmap) {
+            // Deleted or corrupted from under us
+            synchronized (this) {
+                removeEntry(hash);
+            }
+        } else if (Flags.DEBUG) {
+            Log.d(LOG_TAG, "Disk cache hit: " + key);
+        }
+        return bitmap;
+    }
+
+    /**
+     * Writes the bitmap to disk in the background, unless it's already there. A lease is held on
+     * the bitmap until the write has finished, so that it isn't recycled half way through.
+     */
+    public void put(final String key, final CacheableBitmap bitmap) {
+        if (null == bitmap) {
+            return;
+        }
+
+        final String hash = hashKey(key);
+        synchronized (this) {
+            if (mPending.contains(hash) || (mOpened && mEntries.containsKey(hash))) {
+                return;
+            }
+            mPending.add(hash);
+        }
+
+        final CacheableBitmap.Lease lease = bitmap.acquire();
+        if (null == lease) {
+            synchronized (this) {
+                mPending.remove(hash);
+            }
+            return;
+        }
+
+        mWriteExecutor.submit(new Runnable() {
+            public void run() {
+                try {
+                    write(hash, lease.getBitmap());
+                } finally {
+                    synchronized (DiskBitmapCache.this) {
+                        mPending.remove(hash);
+                    }
+                    lease.release();
+                }
+            }
+        });
+    }
+
+    public synchronized boolean contains(String key) {
+        return open() && mEntries.containsKey(hashKey(key));
+    }
+
+    public synchronized void remove(String key) {
+        if (open()) {
+            removeEntry(hashKey(key));
+        }
+    }
+
+    private void write(String hash, Bitmap bitmap) {
+        synchronized (this) {
+            if (!open() || mEntries.containsKey(hash)) {
+                return;
+            }
+        }
+
+        final File file = getEntryFile(hash);
+        final File temp = new File(mDirectory, hash + TEMP_SUFFIX);
+
+        OutputStream out = null;
+        boolean written = false;
+        try {
+            out = new FileOutputStream(temp);
+            written = bitmap.compress(Bitmap.CompressFormat.JPEG, JPEG_QUALITY, out);
+            out.close();
+            out = null;
+            written = written && temp.renameTo(file);
+        } catch (IOException e) {
+            if (Flags.DEBUG) {
+                e.printStackTrace();
+            }
+        } finally {
+            if (null != out) {
+                try {
+                    out.close();
+                } catch (IOException e) {
+                    // Do nothing
+                }
+            }
+            if (!written) {
+                temp.delete();
+            }
+        }
+
+        if (written) {
+            synchronized (this) {
+                final long size = file.length();
+                mEntries.put(hash, size);
+                mSize += size;
+                appendToJournal(CLEAN, hash, size);
+                trimToSize();
+            }
+        }
+    }
+
+    /**
+     * Reads the journal and deletes any files it doesn't know about. Must be called with the
+     * lock held.
+     *
+     * @return false if the cache can't be used
+     */
+    private boolean open() {
+        if (mOpened) {
+            return null != mJournalWriter;
+        }
+        mOpened = true;
+
+        if (!mDirectory.isDirectory() && !mDirectory.mkdirs()) {
+            Log.e(LOG_TAG, "Unable to create disk cache at " + mDirectory);
+            return false;
+        }
+
+        final File journal = new File(mDirectory, JOURNAL_FILE);
+        if (journal.exists()) {
+            try {
+                readJournal(journal);
+            } catch (IOException e) {
+                // Corrupt, so start again
+                Log.e(LOG_TAG, "Unable to read journal, clearing disk cache", e);
+                mEntries.clear();
+                mRedundantOps = 0;
+            }
+        }
+
+        deleteUnknownFiles();
+
+        try {
+            rewriteJournal();
+        } catch (IOException e) {
+            Log.e(LOG_TAG, "Unable to write journal, disk cache disabled", e);
+            return false;
+        }
+
+        if (Flags.DEBUG) {
+            Log.d(LOG_TAG, "Opened with " + mEntries.size() + " entries, " + mSize + " bytes");
+        }
+        trimToSize();
+        return true;
+    }
+
+    private void readJournal(File journal) throws IOException {
+        BufferedReader reader = new BufferedReader(new FileReader(journal));
+        try {
+            if (!JOURNAL_MAGIC.equals(reader.readLine())
+                    || !JOURNAL_VERSION.equals(reader.readLine())) {
+                throw new IOException("Unexpected journal header");
+            }
+
+            int lines = 0;
+            String line;
+            while (null != (line = reader.readLine())) {
+                lines++;
+                final String[] parts = line.split(" ");
+                if (parts.length < 2) {
+                    // Probably a line cut short by a crash
+                    continue;
+                }
+
+                final String op = parts[0];
+                final String hash = parts[1];
+                if (CLEAN.equals(op) && parts.length == 3) {
+                    mEntries.put(hash, Long.parseLong(parts[2]));
+                } else if (READ.equals(op)) {
+                    mEntries.get(hash);
+                } else if (REMOVE.equals(op)) {
+                    mEntries.remove(hash);
+                }
+            }
+            mRedundantOps = lines - mEntries.size();
+        } catch (NumberFormatException e) {
+            throw new IOException("Corrupt journal line");
+        } finally {
+            reader.close();
+        }
+    }
+
+    private void deleteUnknownFiles() {
+        final File[] files = mDirectory.listFiles();
+        if (null != files) {
+            for (File file : files) {
+                final String name = file.getName();
+                if (JOURNAL_FILE.equals(name)) {
+                    continue;
+                }
+                if (!name.endsWith(ENTRY_SUFFIX) || !mEntries.containsKey(
+                        name.substring(0, name.length() - ENTRY_SUFFIX.length()))) {
+                    file.delete();
+                }
+            }
+        }
+
+        // Entries whose files have gone missing
+        mSize = 0;
+        for (Iterator<Map.Entry<String, Long>> it = mEntries.entrySet().iterator();
+                it.hasNext(); ) {
+            final Map.Entry<String, Long> entry = it.next();
+            if (getEntryFile(entry.getKey()).exists()) {
+                mSize += entry.getValue();
+            } else {
+                it.remove();
+            }
+        }
+    }
+
+    /**
+     * Replaces the journal with one CLEAN line per entry, in access order.
+     */
+    private void rewriteJournal() throws IOException {
+        if (null != mJournalWriter) {
+            mJournalWriter.close();
+            mJournalWriter = null;
+        }
+
+        final File temp = new File(mDirectory, JOURNAL_FILE_TEMP);
+        Writer writer = new BufferedWriter(new FileWriter(temp));
+        try {
+            writer.write(JOURNAL_MAGIC + "\n" + JOURNAL_VERSION + "\n");
+            for (Map.Entry<String, Long> entry : mEntries.entrySet()) {
+                writer.write(CLEAN + " " + entry.getKey() + " " + entry.getValue() + "\n");
+            }
+        } finally {
+            writer.close();
+        }
+
+        final File journal = new File(mDirectory, JOURNAL_FILE);
+        if (!temp.renameTo(journal)) {
+            throw new IOException("Unable to replace journal");
+        }
+        mRedundantOps = 0;
+        mJournalWriter = new BufferedWriter(new FileWriter(journal, true));
+    }
+
+    private void appendToJournal(String op, String hash, long size) {
+        if (null == mJournalWriter) {
+            return;
+        }
+
+        try {
+            mJournalWriter.write(size >= 0 ? op + " " + hash + " " + size + "\n"
+                    : op + " " + hash + "\n");
+            mJournalWriter.flush();
+
+            if (!CLEAN.equals(op)) {
+                mRedundantOps++;
+            }
+            if (mRedundantOps >= REDUNDANT_OP_COMPACT_THRESHOLD
+                    && mRedundantOps >= mEntries.size()) {
+                rewriteJournal();
+            }
+        } catch (IOException e) {
+            Log.e(LOG_TAG, "Unable to write journal, disk cache disabled", e);
+            mJournalWriter = null;
+        }
+    }
+
+    private void removeEntry(String hash) {
+        final Long size = mEntries.remove(hash);
+        if (null != size) {
+            getEntryFile(hash).delete();
+            mSize -= size;
+            appendToJournal(REMOVE, hash, -1);
+        }
+    }
+
+    private void trimToSize() {
+        while (mSize > mMaxBytes && !mEntries.isEmpty()) {
+            // Access ordered, so the first entry is the least recently used
+            removeEntry(mEntries.keySet().iterator().next());
+        }
+    }
+
+    private File getEntryFile(String hash) {
+        return new File(mDirectory, hash + ENTRY_SUFFIX);
+    }
+
+    /**
+     * @return the MD5 of key as hex, which is always a valid file name
+     */
+    static String hashKey(String key) {
+        try {
+            final byte[] digest = MessageDigest.getInstance("MD5").digest(key.getBytes("UTF-8"));
+            final StringBuilder hex = new StringBuilder(digest.length * 2);
+            for (byte b : digest) {
+                hex.append(Character.forDigit((b >> 4) & 0xF, 16));
+                hex.append(Character.forDigit(b & 0xF, 16));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            return Integer.toHexString(key.hashCode());
+        } catch (UnsupportedEncodingException e) {
+            return Integer.toHexString(key.hashCode());
+        }
+    }
+}
@@ -0,0 +1,128 @@
+package com.rayboot.util;
+
+import android.graphics.Bitmap;
+
+/**
+ * An orientation change: an optional horizontal flip followed by a clockwise rotation of 0, 90,
+ * 180 or 270 degrees. Any chain of flips and rotations collapses into one of these, so a chain of
+ * {@link PhotoProcessing#EDIT_ACTIONS} can be applied to a bitmap with a single remapped copy.
+ *
+ * @author rayboot
+ * @from 14-5-13 16:40
+ * @TODO
+ */
+public final class EditTransform {
+
+    public static final EditTransform IDENTITY = new EditTransform(0, false);
+
+    private final int mRotation;
+    private final boolean mFlip;
+
+    private EditTransform(int rotation, boolean flip) {
+        rotation %= 360;
+        mRotation = rotation < 0 ? rotation + 360 : rotation;
+        mFlip = flip;
+    }
+
+    public static EditTransform rotation(int angle) {
+        return new EditTransform(angle, false);
+    }
+
+    public static EditTransform flipHorizontally() {
+        return new EditTransform(0, true);
+    }
+
+    /**
+     * @param position - Position in {@link PhotoProcessing#EDIT_ACTIONS}
+     */
+    public static EditTransform forEditAction(int position) {
+        switch (position) {
+            case 0: // Flip
+                return flipHorizontally();
+            case 1: // Rotate 90 right
+                return rotation(90);
+            case 2: // Rotate 90 left
+                return rotation(270);
+            case 3: // Rotate 180
+                return rotation(180);
+        }
+        return IDENTITY;
+    }
+
+    /**
+     * @return the transform which applies this one and then next
+     */
+    public EditTransform then(EditTransform next) {
+        // A flip reverses the direction of any rotation made before it
+        final int rotation = next.mRotation + (next.mFlip ? -mRotation : mRotation);
+        return new EditTransform(rotation, mFlip != next.mFlip);
+    }
+
+    public int getRotation() {
+        return mRotation;
+    }
+
+    public boolean isFlipped() {
+        return mFlip;
+    }
+
+    public boolean isIdentity() {
+        return mRotation == 0 && !mFlip;
+    }
+
+    public boolean swapsDimensions() {
+        return BitmapTransforms.swapsDimensions(mRotation);
+    }
+
+    /**
+     * Applies the transform with one copy into native memory and one remapped copy back out, or
+     * through an int[] with {@link BitmapTransforms} if libphotoprocessing isn't available. As
+     * with the other PhotoProcessing operations, the original bitmap is recycled unless it can be
+     * reused for the result.
+     */
+    public Bitmap apply(Bitmap bitmap) {
+        if (isIdentity()) {
+            return bitmap;
+        }
+
+        if (!PhotoProcessing.isNativeAvailable()) {
+            final int width = bitmap.getWidth();
+            final int height = bitmap.getHeight();
+            int[] pixels = new int[width * height];
+            bitmap.getPixels(pixels, 0, width, 0, 0, width, height);
+            if (mFlip) {
+                BitmapTransforms.reverseRows(pixels, width, height);
+            }
+            final boolean swap = swapsDimensions();
+            bitmap = NativeImage.prepareBitmap(bitmap, swap ? height : width, swap ? width : height);
+            BitmapTransforms.writeRotated(pixels, width, height, mRotation, bitmap);
+            return bitmap;
+        }
+
+        NativeImage image = NativeImage.fromBitmap(bitmap);
+        try {
+            return image.toBitmap(bitmap, this);
+        } finally {
+            image.release();
+        }
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (!(o instanceof EditTransform)) {
+            return false;
+        }
+        final EditTransform other = (EditTransform) o;
+        return mRotation == other.mRotation && mFlip == other.mFlip;
+    }
+
+    @Override
+    public int hashCode() {
+        return mRotation * 2 + (mFlip ? 1 : 0);
+    }
+
+    @Override
+    public String toString() {
+        return "EditTransform{rotation=" + mRotation + ", flip=" + mFlip + "}";
+    }
+}
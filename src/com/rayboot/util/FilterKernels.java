@@ -0,0 +1,811 @@
+/*
+ * Copyright (C) 2012 Lightbox
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.rayboot.util;
+
+/**
+ * FilterKernels
+ * <p/>
+ * Pure Java port of jni/filter.c, working on ARGB {@code int[]} buffers. The arithmetic follows
+ * the native code step by step (including its float rounding and truncation) so that both
+ * backends of {@link PhotoProcessing} produce the same output. This class has no Android
+ * dependencies, so it can be run and profiled on a plain JVM.
+ */
+public final class FilterKernels {
+
+    /** Number of filters, including the original at 0, the same as {@link PhotoProcessing#FILTERS} */
+    static final int FILTER_COUNT = 12;
+
+    static final float PI = 3.1415926535897932f;
+
+    static final float RLUM = 0.3086f;
+    static final float GLUM = 0.6094f;
+    static final float BLUM = 0.0820f;
+
+    static final int[] SEPIA_RED_LUT = {24, 24, 25, 26, 27, 28, 29, 30, 30, 30, 31, 32, 33, 34, 35, 36, 37, 37, 38, 38, 39, 40, 41, 42, 43, 43, 44, 45, 46, 47, 47, 48, 49, 50, 50, 51, 52, 53, 54, 55, 56, 57, 57, 58, 58, 59, 60, 61, 62, 63, 64, 64, 65, 66, 67, 68, 69, 70, 71, 71, 72, 72, 73, 74, 75, 76, 77, 78, 78, 79, 80, 81, 82, 83, 84, 85, 85, 86, 87, 88, 89, 89, 90, 91, 92, 93, 93, 94, 95, 96, 97, 97, 98, 99, 100, 101, 102, 102, 103, 104, 105, 106, 107, 108, 109, 109, 110, 111, 112, 113, 114, 115, 116, 117, 118, 118, 119, 120, 121, 122, 123, 124, 125, 126, 127, 128, 129, 129, 130, 131, 132, 133, 134, 135, 136, 137, 138, 139, 140, 141, 142, 143, 144, 145, 146, 146, 147, 148, 149, 150, 151, 152, 153, 153, 154, 155, 156, 157, 158, 159, 160, 161, 162, 163, 164, 165, 166, 167, 168, 169, 170, 171, 172, 173, 174, 175, 176, 177, 178, 178, 180, 181, 182, 183, 184, 185, 186, 186, 187, 188, 189, 190, 191, 193, 194, 195, 195, 196, 197, 198, 199, 200, 201, 202, 203, 204, 205, 206, 207, 208, 209, 210, 211, 212, 213, 214, 215, 216, 217, 218, 219, 220, 221, 222, 223, 224, 225, 226, 227, 228, 229, 230, 231, 232, 233, 234, 235, 236, 237, 238, 239, 240, 241, 242, 243, 244, 245, 246, 247, 248, 249, 250, 251, 252, 253, 255};
+    static final int[] SEPIA_GREEN_LUT = {16, 16, 16, 17, 18, 18, 19, 20, 20, 20, 21, 22, 22, 23, 24, 24, 25, 25, 26, 26, 27, 28, 28, 29, 30, 30, 31, 31, 32, 33, 33, 34, 35, 36, 36, 36, 37, 38, 39, 39, 40, 41, 42, 43, 43, 44, 45, 46, 47, 47, 48, 48, 49, 50, 51, 51, 52, 53, 54, 54, 55, 55, 56, 57, 58, 59, 60, 61, 61, 61, 62, 63, 64, 65, 66, 67, 67, 68, 68, 69, 70, 72, 73, 74, 75, 75, 76, 77, 78, 78, 79, 80, 81, 81, 82, 83, 84, 85, 86, 87, 88, 90, 90, 91, 92, 93, 94, 95, 96, 97, 97, 98, 99, 100, 101, 103, 104, 105, 106, 106, 107, 108, 109, 110, 111, 112, 113, 114, 115, 116, 117, 118, 119, 120, 122, 123, 123, 124, 125, 127, 128, 129, 130, 131, 132, 132, 134, 135, 136, 137, 138, 139, 141, 141, 142, 144, 145, 146, 147, 148, 149, 150, 151, 152, 154, 155, 156, 157, 158, 160, 160, 161, 162, 163, 165, 166, 167, 168, 169, 170, 171, 173, 174, 175, 176, 177, 178, 179, 180, 182, 183, 184, 185, 187, 188, 189, 189, 191, 192, 193, 194, 196, 197, 198, 198, 200, 201, 202, 203, 205, 206, 207, 208, 209, 210, 211, 212, 213, 215, 216, 217, 218, 219, 220, 221, 223, 224, 225, 226, 227, 228, 229, 230, 231, 232, 233, 235, 236, 237, 238, 239, 240, 241, 242, 243, 244, 245, 246, 247, 248, 249, 250, 251, 252, 253, 255};
+    static final int[] SEPIA_BLUE_LUT = {5, 5, 5, 5, 5, 6, 6, 7, 7, 8, 8, 9, 9, 9, 10, 10, 11, 11, 11, 11, 12, 12, 13, 13, 14, 14, 14, 14, 15, 15, 16, 16, 17, 17, 17, 18, 18, 19, 20, 20, 21, 21, 21, 22, 22, 23, 23, 24, 25, 25, 26, 27, 28, 28, 29, 29, 30, 31, 31, 31, 32, 33, 33, 34, 35, 36, 37, 38, 38, 39, 39, 40, 41, 42, 43, 43, 44, 45, 46, 47, 47, 48, 49, 50, 51, 52, 53, 53, 54, 55, 56, 57, 58, 59, 60, 60, 61, 62, 63, 65, 66, 67, 67, 68, 69, 70, 72, 73, 74, 75, 75, 76, 78, 79, 80, 81, 82, 83, 84, 85, 86, 87, 88, 90, 91, 92, 93, 93, 95, 97, 98, 99, 100, 101, 102, 104, 104, 106, 107, 108, 109, 111, 112, 114, 115, 115, 117, 118, 120, 121, 122, 123, 124, 125, 127, 128, 129, 131, 132, 133, 135, 136, 137, 138, 139, 141, 142, 144, 145, 147, 147, 149, 150, 151, 153, 154, 156, 157, 159, 159, 161, 162, 164, 165, 167, 168, 169, 170, 172, 173, 174, 176, 177, 178, 180, 181, 182, 184, 185, 186, 188, 189, 191, 192, 193, 194, 196, 197, 198, 200, 201, 203, 204, 205, 206, 207, 209, 210, 211, 213, 214, 215, 216, 218, 219, 220, 221, 223, 224, 225, 226, 227, 229, 230, 231, 232, 234, 235, 236, 237, 238, 239, 241, 242, 243, 244, 245, 246, 247, 248, 249, 250, 251, 252, 253, 255};
+
+    static final int[] XPRO_RED_CURVE_LUT = {0, 0, 0, 0, 0, 0, 0, 0, 0, 1, 1, 1,
+            1, 2, 2, 2, 2, 2, 3, 3, 3, 3, 4, 4, 4, 4, 5, 5, 5, 6, 6, 6, 6, 7, 7, 7,
+            8, 8, 8, 9, 9, 9, 10, 10, 11, 11, 11, 12, 12, 13, 13, 14, 14, 14, 15,
+            15, 16, 16, 17, 18, 18, 19, 19, 20, 20, 21, 22, 22, 23, 24, 24, 25, 26,
+            27, 27, 28, 29, 30, 30, 31, 32, 33, 34, 35, 36, 37, 37, 38, 39, 40, 41,
+            42, 44, 44, 45, 46, 47, 49, 50, 52, 53, 54, 56, 57, 58, 60, 61, 63, 64,
+            66, 68, 69, 71, 73, 75, 76, 78, 80, 81, 83, 85, 87, 89, 91, 93, 95, 97,
+            98, 101, 103, 105, 107, 109, 111, 113, 115, 117, 119, 121, 123, 125,
+            127, 129, 131, 133, 135, 137, 139, 141, 143, 145, 147, 149, 151, 154,
+            156, 157, 159, 161, 163, 165, 167, 169, 171, 173, 175, 177, 178, 180,
+            182, 184, 185, 187, 188, 191, 192, 193, 195, 197, 198, 200, 202, 203,
+            205, 206, 208, 209, 211, 212, 214, 215, 217, 219, 220, 221, 223, 224,
+            225, 227, 228, 230, 231, 232, 234, 235, 236, 237, 239, 240, 241, 242,
+            243, 244, 245, 246, 247, 248, 249, 250, 251, 252, 253, 254, 255, 255,
+            255, 255, 255, 255, 255, 255, 255, 255, 255, 255, 255, 255, 255, 255,
+            255, 255, 255, 255, 255, 255, 255, 255, 255, 255, 255, 255, 255, 255,
+            255, 255, 255};
+    static final int[] XPRO_GREEN_CURVE_LUT = {0, 0, 1, 2, 3, 4, 5, 6, 7, 8, 9,
+            10, 11, 12, 13, 14, 15, 16, 17, 18, 19, 20, 21, 22, 23, 24, 25, 26, 27,
+            28, 29, 30, 31, 32, 33, 34, 35, 36, 37, 38, 39, 40, 41, 42, 43, 44, 45,
+            47, 48, 49, 50, 51, 52, 53, 54, 55, 56, 58, 59, 60, 61, 62, 63, 64, 65,
+            67, 69, 70, 71, 72, 73, 75, 76, 77, 78, 80, 81, 82, 83, 85, 86, 87, 88,
+            90, 91, 92, 94, 95, 96, 97, 99, 100, 101, 103, 104, 105, 107, 108, 109,
+            111, 112, 113, 115, 116, 117, 119, 120, 121, 123, 124, 125, 127, 129,
+            130, 132, 133, 134, 136, 137, 138, 140, 141, 142, 144, 145, 146, 147,
+            149, 149, 150, 152, 153, 154, 155, 157, 158, 159, 160, 162, 163, 164,
+            166, 167, 168, 170, 171, 172, 173, 174, 176, 177, 178, 179, 181, 182,
+            183, 184, 185, 187, 188, 189, 190, 191, 192, 193, 195, 196, 197, 198,
+            199, 200, 201, 202, 204, 205, 206, 207, 208, 209, 210, 211, 212, 213,
+            213, 215, 216, 217, 217, 218, 219, 220, 221, 222, 222, 223, 224, 225,
+            226, 226, 227, 228, 229, 229, 230, 231, 231, 232, 233, 233, 234, 235,
+            235, 236, 236, 237, 238, 238, 239, 239, 240, 240, 241, 241, 242, 242,
+            243, 243, 244, 244, 245, 245, 245, 246, 246, 247, 247, 248, 248, 248,
+            249, 249, 250, 250, 250, 251, 251, 251, 252, 252, 253, 253, 254, 254,
+            255, 255, 255};
+    static final int[] XPRO_BLUE_CURVE_LUT = {21, 21, 21, 22, 23, 24, 25, 26,
+            27, 28, 29, 29, 30, 31, 32, 33, 34, 34, 35, 36, 37, 38, 39, 39, 40, 41,
+            42, 43, 44, 44, 45, 46, 47, 48, 49, 49, 50, 51, 52, 53, 54, 54, 55, 56,
+            57, 58, 59, 59, 60, 61, 62, 63, 64, 64, 65, 66, 67, 68, 69, 69, 70, 71,
+            72, 73, 74, 74, 75, 76, 77, 78, 79, 80, 80, 81, 82, 83, 84, 84, 85, 86,
+            87, 88, 89, 89, 91, 91, 92, 93, 94, 95, 95, 96, 97, 98, 99, 100, 101,
+            101, 102, 103, 104, 105, 106, 106, 107, 108, 109, 110, 111, 111, 112,
+            113, 114, 115, 115, 116, 117, 118, 119, 120, 121, 121, 122, 123, 124,
+            125, 126, 126, 127, 128, 129, 130, 131, 132, 132, 133, 134, 135, 136,
+            137, 137, 138, 139, 140, 141, 142, 142, 143, 144, 145, 146, 147, 147,
+            148, 149, 150, 151, 152, 152, 153, 154, 155, 156, 157, 157, 158, 159,
+            160, 160, 162, 162, 163, 164, 165, 166, 167, 167, 168, 169, 170, 171,
+            172, 172, 173, 174, 175, 176, 176, 177, 178, 179, 180, 181, 181, 182,
+            183, 184, 185, 186, 186, 187, 188, 189, 190, 191, 191, 192, 193, 194,
+            195, 196, 197, 198, 198, 199, 200, 201, 202, 203, 203, 204, 205, 206,
+            207, 208, 208, 209, 210, 211, 212, 213, 213, 214, 215, 216, 217, 218,
+            218, 219, 220, 221, 222, 223, 223, 224, 225, 226, 227, 228, 228, 229,
+            230, 231, 232, 232, 233};
+
+    private FilterKernels() {
+    }
+
+    /**
+     * Applies the filter at {@code position} (same numbering as {@link PhotoProcessing#FILTERS})
+     * to the given ARGB pixels in place. The alpha channel is set to opaque, as it is when the
+     * image goes through native memory.
+     */
+    public static void apply(int position, int[] pixels, int width, int height) {
+        switch (position) {
+        case 0: // Original
+            break;
+        case 1: // Instafix
+            applyInstafix(pixels, width, height);
+            break;
+        case 2: // Ansel
+            applyAnsel(pixels, width, height);
+            break;
+        case 3: // Testino
+            applyTestino(pixels, width, height);
+            break;
+        case 4: // XPro
+            applyXPro(pixels, width, height);
+            break;
+        case 5: // Retro
+            applyRetro(pixels, width, height);
+            break;
+        case 6: // Black & White
+            applyBlackAndWhite(pixels, width, height);
+            break;
+        case 7: // Sepia
+            applySepia(pixels, width, height);
+            break;
+        case 8: // Cyano
+            applyCyano(pixels, width, height);
+            break;
+        case 9: // Georgia
+            applyGeorgia(pixels, width, height);
+            break;
+        case 10: // Sahara
+            applySahara(pixels, width, height);
+            break;
+        case 11: // HDR
+            applyHDR(pixels, width, height);
+            break;
+        }
+    }
+
+    public static void applyBlackAndWhite(int[] pixels, int width, int height) {
+        for (int i = width * height; i-- > 0; ) {
+            final int p = pixels[i];
+            final int grey = (int) blackAndWhite(red(p), green(p), blue(p));
+            pixels[i] = rgb(grey, grey, grey);
+        }
+    }
+
+    public static void applyAnsel(int[] pixels, int width, int height) {
+        applyBlackAndWhite(pixels, width, height);
+        for (int i = width * height; i-- > 0; ) {
+            final int p = pixels[i];
+            final int grey = (int) blackAndWhite(red(p), green(p), blue(p));
+            final int c = hardLight(grey, grey);
+            pixels[i] = rgb(c, c, c);
+        }
+    }
+
+    public static void applySepia(int[] pixels, int width, int height) {
+        for (int i = width * height; i-- > 0; ) {
+            final int p = pixels[i];
+            final float r = (float) red(p) / 255;
+            final float g = (float) green(p) / 255;
+            final float b = (float) blue(p) / 255;
+
+            // create grey scale luminosity
+            final int luminosity = Math.min(255,
+                    (int) (float) ((0.21f * r + 0.72f * g + 0.07 * b) * 255));
+
+            pixels[i] = rgb(SEPIA_RED_LUT[luminosity], SEPIA_GREEN_LUT[luminosity],
+                    SEPIA_BLUE_LUT[luminosity]);
+        }
+    }
+
+    public static void applyGeorgia(int[] pixels, int width, int height) {
+        final int[] brightnessLut = new int[256];
+        final int[] contrastLut = new int[256];
+        for (int i = 0; i < 256; i++) {
+            final float pixelf = i / 255.0f;
+            brightnessLut[i] = clamp(255 * brightness(pixelf, 0.4724f));
+            contrastLut[i] = clamp(255 * contrast(pixelf, 0.3149f));
+        }
+
+        for (int i = width * height; i-- > 0; ) {
+            final int p = pixels[i];
+            final int r = contrastLut[brightnessLut[red(p)]];
+            int g = contrastLut[brightnessLut[green(p)]];
+            int b = contrastLut[brightnessLut[blue(p)]];
+
+            g = (int) ((g * 0.87f) + 33); // compress the green channel between 33 - 255
+            b = (int) ((b * 0.439f) + 143); // compress the blue channel between 143 - 255
+
+            // multiply by a wheat colour rgb(250, 220, 175)
+            pixels[i] = rgb(multiply(250, r), multiply(220, g), multiply(175, b));
+        }
+    }
+
+    public static void applyInstafix(int[] pixels, int width, int height) {
+        gammaCorrection(pixels, width, height);
+        normaliseColours(pixels, width, height);
+    }
+
+    static void gammaCorrection(int[] pixels, int width, int height) {
+        final int length = width * height;
+
+        final float[] averages = channelAverages(pixels, length);
+        final int[] redLut = gammaLut(averages[0]);
+        final int[] greenLut = gammaLut(averages[1]);
+        final int[] blueLut = gammaLut(averages[2]);
+        for (int i = 0; i < length; i++) {
+            final int p = pixels[i];
+            pixels[i] = rgb(redLut[red(p)], greenLut[green(p)], blueLut[blue(p)]);
+        }
+    }
+
+    /**
+     * @return the red, green and blue averages of the first length pixels. Kept as a running
+     * average, in pixel order, as the native code does; the rounding that gives is part of the
+     * filter's output, so the averages have to be worked out this way to match it.
+     */
+    static float[] channelAverages(int[] pixels, int length) {
+        float redAverage = 0;
+        float greenAverage = 0;
+        float blueAverage = 0;
+        int n = 1;
+        for (int i = 0; i < length; i++) {
+            final int p = pixels[i];
+            redAverage = ((n - 1) * redAverage + red(p)) / n;
+            greenAverage = ((n - 1) * greenAverage + green(p)) / n;
+            blueAverage = ((n - 1) * blueAverage + blue(p)) / n;
+            n++;
+        }
+        return new float[]{redAverage, greenAverage, blueAverage};
+    }
+
+    static int[] gammaLut(float average) {
+        final float gamma = (float) (Math.log(128.0f / 255) / Math.log(average / 255));
+        final int[] lut = new int[256];
+        for (int i = 0; i < 256; i++) {
+            lut[i] = clamp(255.0f * (float) Math.pow(i / 255.0f, gamma));
+        }
+        return lut;
+    }
+
+    static void normaliseColours(int[] pixels, int width, int height) {
+        final int length = width * height;
+        final int[][] histogram = new int[3][256];
+        for (int i = 0; i < length; i++) {
+            final int p = pixels[i];
+            histogram[0][red(p)]++;
+            histogram[1][green(p)]++;
+            histogram[2][blue(p)]++;
+        }
+
+        normaliseMaps(histogram, length);
+
+        final int[] redMap = histogram[0];
+        final int[] greenMap = histogram[1];
+        final int[] blueMap = histogram[2];
+        for (int i = 0; i < length; i++) {
+            final int p = pixels[i];
+            pixels[i] = rgb(redMap[red(p)] & 0xFF, greenMap[green(p)] & 0xFF,
+                    blueMap[blue(p)] & 0xFF);
+        }
+    }
+
+    /**
+     * Turns the red, green and blue histograms of an image of {@code length} pixels into the
+     * lookup tables used by {@link #normaliseColours(int[], int, int)}, in place. Only the low 8
+     * bits of each table entry are meaningful.
+     */
+    static void normaliseMaps(int[][] histogram, int length) {
+        final float count = length;
+        float percentage;
+        float nextPercentage;
+        int low = 0;
+        int high = 255;
+
+        // low and high intentionally carry over between channels, as in the native code
+        for (int channel = 3; channel-- > 0; ) {
+            final int[] h = histogram[channel];
+
+            nextPercentage = (float) h[0] / count;
+            for (int i = 0; i <= 255; i++) {
+                percentage = nextPercentage;
+                nextPercentage += (float) (i < 255 ? h[i + 1] : 0) / count;
+                if (Math.abs(percentage - 0.006) < Math.abs(nextPercentage - 0.006)) {
+                    low = i;
+                    break;
+                }
+            }
+
+            nextPercentage = (float) h[255] / count;
+            for (int i = 255; i >= 0; i--) {
+                percentage = nextPercentage;
+                nextPercentage += (i > 0 ? h[i - 1] : 0) / count;
+                if (Math.abs(percentage - 0.006) < Math.abs(nextPercentage - 0.006)) {
+                    high = i;
+                    break;
+                }
+            }
+
+            // high - low is unsigned in the native code
+            final float mult = 255.0f / (float) ((high - low) & 0xFFFFFFFFL);
+            for (int i = low; i-- > 0; ) {
+                h[i] = 0;
+            }
+            for (int i = 255; i > high; i--) {
+                h[i] = 255;
+            }
+
+            float base = 0;
+            for (int i = low; i <= high; i++) {
+                h[i] = (int) base;
+                base += mult;
+            }
+        }
+    }
+
+    public static void applySahara(int[] pixels, int width, int height) {
+        final int length = width * height;
+
+        final int[] brightnessLut = new int[256];
+        final int[] contrastLut = new int[256];
+        for (int i = 0; i < 256; i++) {
+            final float pixelf = i / 255.0f;
+            brightnessLut[i] = clamp(255 * brightness(pixelf, 0.45f));
+            contrastLut[i] = clamp(255 * contrast(pixelf, 0.1f));
+        }
+        for (int i = length; i-- > 0; ) {
+            final int p = pixels[i];
+            final int r = contrastLut[brightnessLut[red(p)]];
+            final int g = contrastLut[brightnessLut[green(p)]];
+            final int b = contrastLut[brightnessLut[blue(p)]];
+
+            pixels[i] = rgb((int) ((r * 0.8431f) + 40), g, (int) ((b * 0.8823f) + 30));
+        }
+
+        applyMatrix(pixels, length, saturationMatrix(0.65f));
+
+        final byte[] red = new byte[length];
+        final byte[] green = new byte[length];
+        final byte[] blue = new byte[length];
+        split(pixels, length, red, green, blue);
+
+        final byte[] blurRed = new byte[length];
+        final byte[] blurGreen = new byte[length];
+        final byte[] blurBlue = new byte[length];
+        stackBlur(1, red, green, blue, width, height, blurRed, blurGreen, blurBlue);
+
+        for (int i = length; i-- > 0; ) {
+            int r = overlay(blurRed[i] & 0xFF, red[i] & 0xFF, 1.0f);
+            int g = overlay(blurGreen[i] & 0xFF, green[i] & 0xFF, 1.0f);
+            int b = overlay(blurBlue[i] & 0xFF, blue[i] & 0xFF, 1.0f);
+
+            // Multiply by a wheat colour rgb(255, 227, 187)
+            pixels[i] = rgb(multiply(255, r), multiply(227, g), multiply(187, b));
+        }
+    }
+
+    public static void applyHDR(int[] pixels, int width, int height) {
+        final int length = width * height;
+
+        final byte[] red = new byte[length];
+        final byte[] green = new byte[length];
+        final byte[] blue = new byte[length];
+        split(pixels, length, red, green, blue);
+
+        final byte[] blurRed = new byte[length];
+        final byte[] blurGreen = new byte[length];
+        final byte[] blurBlue = new byte[length];
+        stackBlur(9, red, green, blue, width, height, blurRed, blurGreen, blurBlue);
+
+        final float[] matrix = saturationMatrix(1.3f);
+        for (int i = length; i-- > 0; ) {
+            final int r = red[i] & 0xFF;
+            final int g = green[i] & 0xFF;
+            final int b = blue[i] & 0xFF;
+
+            // invert the blurred pixel and grain merge it with the original
+            final int r1 = grainMerge(255 - (blurRed[i] & 0xFF), r);
+            final int g1 = grainMerge(255 - (blurGreen[i] & 0xFF), g);
+
+            // boost the saturation of the original pixel
+            final int saturated = applyMatrixToPixel(r, g, b, matrix);
+
+            // grain merge the saturated pixel with the inverted grain merged pixel. Blue is merged
+            // with the green channel, matching the native filter.
+            pixels[i] = rgb(grainMerge(red(saturated), r1), grainMerge(green(saturated), g1),
+                    grainMerge(blue(saturated), g1));
+        }
+
+        applyMatrix(pixels, length, matrix);
+    }
+
+    public static void applyTestino(int[] pixels, int width, int height) {
+        final int length = width * height;
+        applyMatrix(pixels, length, saturationMatrix(1.5f));
+
+        for (int i = length; i-- > 0; ) {
+            final int p = pixels[i];
+            int r = red(p);
+            int g = green(p);
+            int b = blue(p);
+
+            int grey = (r + g + b) / 3;
+            r = greyscaleInvertMaskScreen(grey, 0.5f, r);
+            g = greyscaleInvertMaskScreen(grey, 0.5f, g);
+            b = greyscaleInvertMaskScreen(grey, 0.5f, b);
+
+            // Create black and white pixel
+            grey = (int) blackAndWhite(red(p), green(p), blue(p));
+
+            r = overlay(grey, overlay(grey, r, 1.0f), 1.0f);
+            g = overlay(grey, overlay(grey, g, 1.0f), 1.0f);
+            b = overlay(grey, overlay(grey, b, 1.0f), 1.0f);
+            pixels[i] = rgb(r, g, b);
+        }
+    }
+
+    public static void applyXPro(int[] pixels, int width, int height) {
+        final float[] hsb = new float[3];
+        final int[] rgb = new int[3];
+        for (int i = width * height; i-- > 0; ) {
+            final int p = pixels[i];
+            final int red = red(p);
+            final int green = green(p);
+            final int blue = blue(p);
+            final float value = brightness(red, green, blue);
+
+            rgb[0] = XPRO_RED_CURVE_LUT[red];
+            rgb[1] = XPRO_GREEN_CURVE_LUT[green];
+            rgb[2] = XPRO_BLUE_CURVE_LUT[blue];
+            rgbToHsb(rgb[0], rgb[1], rgb[2], hsb);
+            hsb[2] = value;
+            hsbToRgb(hsb, rgb);
+
+            pixels[i] = rgb(overlay(red, rgb[0], 1.0f), overlay(green, rgb[1], 1.0f),
+                    overlay(blue, rgb[2], 1.0f));
+        }
+    }
+
+    public static void applyCyano(int[] pixels, int width, int height) {
+        for (int i = width * height; i-- > 0; ) {
+            final int p = pixels[i];
+            final int red = red(p);
+            final int green = green(p);
+            final int blue = blue(p);
+
+            int grey = (int) ((red * 0.222f) + (green * 0.222f) + (blue * 0.222f));
+            final int r = (int) componentCeiling(61.0f + grey);
+            final int g = (int) componentCeiling(87.0f + grey);
+            final int b = (int) componentCeiling(136.0f + grey);
+
+            grey = (int) blackAndWhite(red, green, blue);
+            pixels[i] = rgb(overlay(grey, r, 0.9f), overlay(grey, g, 0.9f),
+                    overlay(grey, b, 0.9f));
+        }
+    }
+
+    public static void applyRetro(int[] pixels, int width, int height) {
+        final int[] multiply251Lut = new int[256];
+        final int[] multiply242Lut = new int[256];
+        final int[] multiply163Lut = new int[256];
+        final int[] screen232Lut = new int[256];
+        final int[] screen101Lut = new int[256];
+        final int[] screen179Lut = new int[256];
+        final int[] screen9Lut = new int[256];
+        final int[] screen73Lut = new int[256];
+        final int[] screen233Lut = new int[256];
+        for (int i = 256; i-- > 0; ) {
+            multiply251Lut[i] = multiplyWithAlpha(251, 0.588235f, i);
+            multiply242Lut[i] = multiplyWithAlpha(242, 0.588235f, i);
+            multiply163Lut[i] = multiplyWithAlpha(163, 0.588235f, i);
+
+            screen232Lut[i] = screen(232, 0.2f, i);
+            screen101Lut[i] = screen(101, 0.2f, i);
+            screen179Lut[i] = screen(179, 0.2f, i);
+
+            screen9Lut[i] = screen(9, 0.168627f, i);
+            screen73Lut[i] = screen(73, 0.168627f, i);
+            screen233Lut[i] = screen(233, 0.168627f, i);
+        }
+
+        for (int i = width * height; i-- > 0; ) {
+            final int p = pixels[i];
+            final int red = red(p);
+            final int green = green(p);
+            final int blue = blue(p);
+
+            // Overlay grey
+            final int grey = (int) blackAndWhite(red, green, blue);
+            int r = overlay(grey, red, 1.0f);
+            int g = overlay(grey, green, 1.0f);
+            int b = overlay(grey, blue, 1.0f);
+
+            // Multiply rgba(251, 242, 163, 150) colour
+            r = multiply251Lut[r];
+            g = multiply242Lut[g];
+            b = multiply163Lut[b];
+
+            // Screen merge rgba(232, 101, 179, 51) colour
+            r = screen232Lut[r];
+            g = screen101Lut[g];
+            b = screen179Lut[b];
+
+            // Screen merge rgba(9, 73, 233, 43) colour
+            pixels[i] = rgb(screen9Lut[r], screen73Lut[g], screen233Lut[b]);
+        }
+    }
+
+    ///////////////////////////////////////////////
+    // Blending modes, same as the GIMP layer modes used by the native filters
+
+    static int hardLight(int maskComponent, int imageComponent) {
+        return (maskComponent > 128)
+                ? 255 - (((255 - (2 * (maskComponent - 128))) * (255 - imageComponent)) / 256)
+                : (2 * maskComponent * imageComponent) / 256;
+    }
+
+    static int overlay(int overlayComponent, int underlayComponent, float alpha) {
+        final float underlay = underlayComponent * alpha;
+        return (int) ((underlay / 255)
+                * (underlay + ((2.0f * overlayComponent) / 255) * (255 - underlay)));
+    }
+
+    static int multiplyWithAlpha(int overlayComponent, float alpha, int underlayComponent) {
+        return (int) ((underlayComponent * (overlayComponent * alpha)) / 255);
+    }
+
+    static int multiply(int overlayComponent, int underlayComponent) {
+        return (underlayComponent * overlayComponent) / 255;
+    }
+
+    static int grainMerge(int overlayComponent, int underlayComponent) {
+        final int component = (underlayComponent + overlayComponent) - 128;
+        return (component > 255) ? 255 : (component < 0) ? 0 : component;
+    }
+
+    static int screen(int maskComponent, float alpha, int imageComponent) {
+        return (int) (255.0f - (((255.0f - ((float) maskComponent * alpha))
+                * (255.0f - imageComponent)) / 255.0f));
+    }
+
+    static int greyscaleInvertMaskScreen(int maskGrey, float alpha, int imageComponent) {
+        return screen(maskGrey, (1.0f - ((float) maskGrey / 255.0f)) * alpha, imageComponent);
+    }
+
+    // brightness is between -1.0 to +1.0, colourComponent between 0.0 and 1.0
+    static float brightness(float colourComponent, float brightness) {
+        final float scaled = brightness / 2;
+        if (scaled < 0.0) {
+            return colourComponent * (1.0f + scaled);
+        } else {
+            return colourComponent + ((1.0f - colourComponent) * scaled);
+        }
+    }
+
+    // contrast is between -1.0 to +1.0, pixelComponent between 0.0 and 1.0
+    static float contrast(float pixelComponent, float contrast) {
+        final double value = (pixelComponent - 0.5f) * Math.tan((contrast + 1) * PI / 4) + 0.5f;
+        return (float) (1.0f <= value ? 1.0f : value);
+    }
+
+    static float blackAndWhite(int r, int g, int b) {
+        return (r * 0.3f) + (g * 0.59f) + (b * 0.11f);
+    }
+
+    static float componentCeiling(float x) {
+        return (x > 255) ? 255 : x;
+    }
+
+    ///////////////////////////////////////////////
+    // Colour space, see jni/colour_space.c
+
+    static float brightness(int red, int green, int blue) {
+        return Math.max(red, Math.max(green, blue)) / 255f;
+    }
+
+    static void rgbToHsb(int red, int green, int blue, float[] hsb) {
+        float min, max;
+        if (red < green) {
+            min = red;
+            max = green;
+        } else {
+            min = green;
+            max = red;
+        }
+        if (blue > max) {
+            max = blue;
+        } else if (blue < min) {
+            min = blue;
+        }
+        float delta = max - min;
+
+        hsb[2] = max / 255;
+        hsb[1] = (max != 0.0f) ? delta / max : 0.0f;
+
+        if (hsb[1] == 0.0f) {
+            hsb[0] = 0;
+        } else {
+            delta *= 6;
+            if (red == max) {
+                hsb[0] = (green - blue) / delta;
+            } else if (green == max) {
+                hsb[0] = 0.333333f + (blue - red) / delta;
+            } else {
+                hsb[0] = 0.666666f + (red - green) / delta;
+            }
+
+            if (hsb[0] < 0) {
+                hsb[0]++;
+            }
+        }
+    }
+
+    // rgb keeps its current values if the hue falls outside of the six sectors
+    static void hsbToRgb(float[] hsb, int[] rgb) {
+        final float s = hsb[1];
+        final float b = hsb[2];
+        if (s == 0) {
+            rgb[0] = rgb[1] = rgb[2] = convert(b);
+        } else {
+            float h = hsb[0];
+            if (h == 1.0f) {
+                h = 0;
+            }
+
+            h *= 6.0f;
+            final int i = (int) Math.floor(h);
+            final float f = h - i;
+            final float aa = b * (1 - s);
+            final float bb = b * (1 - (s * f));
+            final float cc = b * (1 - (s * (1 - f)));
+            switch (i) {
+            case 0:
+                rgb[0] = convert(b);
+                rgb[1] = convert(cc);
+                rgb[2] = convert(aa);
+                break;
+            case 1:
+                rgb[0] = convert(bb);
+                rgb[1] = convert(b);
+                rgb[2] = convert(aa);
+                break;
+            case 2:
+                rgb[0] = convert(aa);
+                rgb[1] = convert(b);
+                rgb[2] = convert(cc);
+                break;
+            case 3:
+                rgb[0] = convert(aa);
+                rgb[1] = convert(bb);
+                rgb[2] = convert(b);
+                break;
+            case 4:
+                rgb[0] = convert(cc);
+                rgb[1] = convert(aa);
+                rgb[2] = convert(b);
+                break;
+            case 5:
+                rgb[0] = convert(b);
+                rgb[1] = convert(aa);
+                rgb[2] = convert(bb);
+                break;
+            }
+        }
+    }
+
+    static int convert(float val) {
+        return clamp((float) Math.floor((255 * val) + 0.5f));
+    }
+
+    ///////////////////////////////////////////////
+    // Colour matrices, see jni/matrix.c
+
+    static float[] saturationMatrix(float saturation) {
+        final float a = (1.0f - saturation) * RLUM + saturation;
+        final float b = (1.0f - saturation) * RLUM;
+        final float d = (1.0f - saturation) * GLUM;
+        final float e = (1.0f - saturation) * GLUM + saturation;
+        final float g = (1.0f - saturation) * BLUM;
+        final float i = (1.0f - saturation) * BLUM + saturation;
+
+        // Column major 3x3, the translation row of the native 4x4 matrix is always zero here
+        return new float[]{a, b, b, d, e, d, g, g, i};
+    }
+
+    static void applyMatrix(int[] pixels, int length, float[] matrix) {
+        for (int i = 0; i < length; i++) {
+            final int p = pixels[i];
+            pixels[i] = applyMatrixToPixel(red(p), green(p), blue(p), matrix);
+        }
+    }
+
+    static int applyMatrixToPixel(int r1, int g1, int b1, float[] m) {
+        float r2 = r1 * m[0] + g1 * m[3] + b1 * m[6] + 0.0f;
+        float g2 = r1 * m[1] + g1 * m[4] + b1 * m[7] + 0.0f;
+        float b2 = r1 * m[2] + g1 * m[5] + b1 * m[8] + 0.0f;
+        return rgb(clamp(r2), clamp(g2), clamp(b2));
+    }
+
+    ///////////////////////////////////////////////
+    // Stack blur, see jni/blur.c
+
+    static void stackBlur(int radius, byte[] srcRed, byte[] srcGreen, byte[] srcBlue, int width,
+            int height, byte[] dstRed, byte[] dstGreen, byte[] dstBlue) {
+        final byte[] srcComponentCopy = new byte[width * height];
+        stackBlurComponent(radius, srcRed, width, height, dstRed, srcComponentCopy);
+        stackBlurComponent(radius, srcGreen, width, height, dstGreen, srcComponentCopy);
+        stackBlurComponent(radius, srcBlue, width, height, dstBlue, srcComponentCopy);
+    }
+
+    static void stackBlurComponent(int radius, byte[] srcComponent, int width, int height,
+            byte[] dstComponent, byte[] scratch) {
+        final int size = width * height;
+        System.arraycopy(srcComponent, 0, scratch, 0, size);
+        for (int i = 3; i-- > 0; ) {
+            // horizontal pass
+            fastBlurComponent(radius, scratch, width, height, dstComponent);
+            // vertical pass
+            fastBlurComponent(radius, dstComponent, height, width, scratch);
+        }
+        System.arraycopy(scratch, 0, dstComponent, 0, size);
+    }
+
+    // Box blurs each row of src and writes it transposed into dst
+    static void fastBlurComponent(int radius, byte[] srcComponent, int width, int height,
+            byte[] dstComponent) {
+        final int windowSize = radius * 2 + 1;
+        final int radiusPlusOne = radius + 1;
+
+        final int[] indexLookupTable = new int[radiusPlusOne];
+        if (radius < width) {
+            for (int i = radiusPlusOne; i-- > 0; ) {
+                indexLookupTable[i] = i;
+            }
+        } else {
+            for (int i = width; i-- > 0; ) {
+                indexLookupTable[i] = i;
+            }
+            for (int i = width; i < radiusPlusOne; i++) {
+                indexLookupTable[i] = width - 1;
+            }
+        }
+
+        int srcIndex = 0;
+        for (int y = 0; y < height; y++) {
+            int sum = radiusPlusOne * (srcComponent[srcIndex] & 0xFF);
+            for (int i = 1; i <= radius; i++) {
+                sum += srcComponent[srcIndex + indexLookupTable[i]] & 0xFF;
+            }
+
+            int dstIndex = y;
+            for (int x = 0; x < width; x++) {
+                dstComponent[dstIndex] = (byte) (sum / windowSize);
+                dstIndex += height;
+
+                int nextPixelIndex = x + radiusPlusOne;
+                if (nextPixelIndex >= width) {
+                    nextPixelIndex = width - 1;
+                }
+
+                int previousPixelIndex = x - radius;
+                if (previousPixelIndex < 0) {
+                    previousPixelIndex = 0;
+                }
+
+                sum += srcComponent[srcIndex + nextPixelIndex] & 0xFF;
+                sum -= srcComponent[srcIndex + previousPixelIndex] & 0xFF;
+            }
+
+            srcIndex += width;
+        }
+    }
+
+    ///////////////////////////////////////////////
+    // Pixel helpers
+
+    static void split(int[] pixels, int length, byte[] red, byte[] green, byte[] blue) {
+        for (int i = 0; i < length; i++) {
+            final int p = pixels[i];
+            red[i] = (byte) (p >> 16);
+            green[i] = (byte) (p >> 8);
+            blue[i] = (byte) p;
+        }
+    }
+
+    static int clamp(float component) {
+        return (component > 255) ? 255 : (component < 0) ? 0 : (int) component;
+    }
+
+    static int red(int color) {
+        return (color >> 16) & 0xFF;
+    }
+
+    static int green(int color) {
+        return (color >> 8) & 0xFF;
+    }
+
+    static int blue(int color) {
+        return color & 0xFF;
+    }
+
+    static int rgb(int red, int green, int blue) {
+        return 0xFF000000 | (red << 16) | (green << 8) | blue;
+    }
+}
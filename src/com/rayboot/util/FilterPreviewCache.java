@@ -0,0 +1,249 @@
+package com.rayboot.util;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.support.v4.util.LruCache;
+import android.util.Log;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * Holds the previews shown in the filter strip, so reopening the strip for a photo doesn't mean
+ * rendering every filter again. Previews are kept in a memory LRU sized in bytes and, if a
+ * directory is given, written through to disk as small JPEGs so they outlive the process. The
+ * disk copy is trimmed oldest first (by last access) once it grows past its limit. Its size is
+ * counted from the directory once, then kept up to date as previews are written.
+ * <p/>
+ * Memory lookups are cheap enough for the UI thread; disk lookups and writes are not, and belong
+ * on a worker thread. Bitmaps handed out are shared, so must not be recycled by the caller.
+ *
+ * @author rayboot
+ * @from 14-5-17 15:30
+ * @TODO
+ */
+public class FilterPreviewCache {
+
+    static final String LOG_TAG = "FilterPreviewCache";
+
+    static final int DISK_JPEG_QUALITY = 90;
+    static final String DISK_FILE_SUFFIX = ".jpg";
+    static final String DISK_TEMP_SUFFIX = ".tmp";
+
+    /** Temp files older than this weren't finished by an earlier run, so are deleted */
+    static final long STALE_TEMP_MILLIS = 60 * 1000;
+
+    private final LruCache<String, Bitmap> mMemoryCache;
+    private final File mDiskDir;
+    private final long mMaxDiskBytes;
+
+    /** Bytes of previews on disk, or -1 until the directory has been counted */
+    private long mDiskSize = -1;
+
+    /**
+     * @param maxMemoryBytes - Size of the memory LRU
+     * @param diskDir - Directory to keep previews in, or null to only keep them in memory
+     * @param maxDiskBytes - Size the directory is trimmed back to
+     */
+    public FilterPreviewCache(int maxMemoryBytes, File diskDir, long maxDiskBytes) {
+        mMemoryCache = new LruCache<String, Bitmap>(maxMemoryBytes) {
+            @Override
+            protected int sizeOf(String key, Bitmap value) {
+                return value.getRowBytes() * value.getHeight();
+            }
+        };
+
+        if (null != diskDir && !diskDir.isDirectory() && !diskDir.mkdirs()) {
+            Log.e(LOG_TAG, "Unable to create preview cache at " + diskDir);
+            diskDir = null;
+        }
+        mDiskDir = diskDir;
+        mMaxDiskBytes = maxDiskBytes;
+    }
+
+    /**
+     * @return the preview if it's in memory, otherwise null. Safe to call from the UI thread.
+     */
+    public Bitmap getFromMemory(String key) {
+        final Bitmap bitmap = mMemoryCache.get(key);
+        if (null != bitmap && bitmap.isRecycled()) {
+            mMemoryCache.remove(key);
+            return null;
+        }
+        return bitmap;
+    }
+
+    /**
+     * @return the preview from memory, or failing that from disk, otherwise null. Reads the disk
+     * so shouldn't be called from the UI thread.
+     */
+    public Bitmap get(String key) {
+        Bitmap bitmap = getFromMemory(key);
+        if (null != bitmap || null == mDiskDir) {
+            return bitmap;
+        }
+
+        final File file = getDiskFile(key);
+        if (!file.exists()) {
+            return null;
+        }
+
+        bitmap = BitmapFactory.decodeFile(file.getAbsolutePath());
+        if (null == bitmap) {
+            // Probably only half written, so get rid of it
+            final long length = file.length();
+            if (file.delete()) {
+                onDiskSizeChanged(-length);
+            }
+            return null;
+        }
+
+        file.setLastModified(System.currentTimeMillis());
+        mMemoryCache.put(key, bitmap);
+
+        if (Flags.DEBUG) {
+            Log.d(LOG_TAG, "Loaded preview from disk: " + key);
+        }
+        return bitmap;
+    }
+
+    /**
+     * Adds the preview to memory, and writes it to disk if there is a disk cache. Writes to disk
+     * so shouldn't be called from the UI thread.
+     */
+    public void put(String key, Bitmap bitmap) {
+        mMemoryCache.put(key, bitmap);
+
+        if (null != mDiskDir) {
+            writeToDisk(key, bitmap);
+        }
+    }
+
+    public void clearMemory() {
+        mMemoryCache.evictAll();
+    }
+
+    private void writeToDisk(String key, Bitmap bitmap) {
+        final File file = getDiskFile(key);
+
+        File temp = null;
+        OutputStream out = null;
+        try {
+            // A name of its own, as two threads can be writing the same key at once
+            temp = File.createTempFile(file.getName(), DISK_TEMP_SUFFIX, mDiskDir);
+            out = new FileOutputStream(temp);
+            if (bitmap.compress(Bitmap.CompressFormat.JPEG, DISK_JPEG_QUALITY, out)) {
+                out.close();
+                out = null;
+                // Only ever expose complete files under the real name
+                final long replaced = file.length();
+                final long length = temp.length();
+                if (temp.renameTo(file)) {
+                    onDiskSizeChanged(length - replaced);
+                }
+            }
+        } catch (IOException e) {
+            if (Flags.DEBUG) {
+                e.printStackTrace();
+            }
+        } finally {
+            if (null != out) {
+                try {
+                    out.close();
+                } catch (IOException e) {
+                    // Do nothing
+                }
+            }
+            if (null != temp) {
+                // Gone already if it was renamed, otherwise it's incomplete or unwanted
+                temp.delete();
+            }
+        }
+    }
+
+    /**
+     * Adds delta to the size of the disk cache, trimming it if that takes it over the limit.
+     * The first call counts the directory instead.
+     */
+    private synchronized void onDiskSizeChanged(long delta) {
+        if (mDiskSize < 0) {
+            mDiskSize = countDisk();
+        } else {
+            mDiskSize += delta;
+        }
+
+        if (mDiskSize > mMaxDiskBytes) {
+            trimDisk();
+        }
+    }
+
+    /**
+     * @return the bytes of previews in the directory, deleting any temp files left behind by an
+     * earlier run
+     */
+    private long countDisk() {
+        final File[] files = mDiskDir.listFiles();
+        if (null == files) {
+            return 0;
+        }
+
+        final long staleBefore = System.currentTimeMillis() - STALE_TEMP_MILLIS;
+        long size = 0;
+        for (File file : files) {
+            final String name = file.getName();
+            if (name.endsWith(DISK_FILE_SUFFIX)) {
+                size += file.length();
+            } else if (name.endsWith(DISK_TEMP_SUFFIX) && file.lastModified() < staleBefore) {
+                file.delete();
+            }
+        }
+        return size;
+    }
+
+    /**
+     * Deletes the least recently used previews until the disk cache is back under its limit.
+     * Temp files are still being written, so are left alone.
+     */
+    private void trimDisk() {
+        final File[] files = mDiskDir.listFiles(new FilenameFilter() {
+            public boolean accept(File dir, String name) {
+                return name.endsWith(DISK_FILE_SUFFIX);
+            }
+        });
+        if (null == files) {
+            return;
+        }
+
+        // Recount while we're here, so the running size can't drift
+        long size = 0;
+        for (File file : files) {
+            size += file.length();
+        }
+
+        // Oldest first
+        Arrays.sort(files, new Comparator<File>() {
+            public int compare(File lhs, File rhs) {
+                final long l = lhs.lastModified();
+                final long r = rhs.lastModified();
+                return l < r ? -1 : (l == r ? 0 : 1);
+            }
+        });
+
+        for (int i = 0; i < files.length && size > mMaxDiskBytes; i++) {
+            final long length = files[i].length();
+            if (files[i].delete()) {
+                size -= length;
+            }
+        }
+        mDiskSize = size;
+    }
+
+    private File getDiskFile(String key) {
+        // Keys contain URIs, so hash them into something which is always a valid file name
+        return new File(mDiskDir, DiskBitmapCache.hashKey(key) + DISK_FILE_SUFFIX);
+    }
+}
@@ -0,0 +1,343 @@
+package com.rayboot.util;
+
+import android.graphics.Bitmap;
+import android.graphics.Bitmap.Config;
+import android.graphics.RectF;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Pixels held in direct memory, outside of the Java heap, so that working on a large image
+ * doesn't mean a large int[] for the GC to deal with. Pixels can be laid out in one of two ways:
+ * <ul>
+ * <li>{@link #LAYOUT_INTERLEAVED}: four bytes per pixel, in the same R, G, B, A order as an
+ * ARGB_8888 Bitmap's memory, so the whole buffer moves to and from a bitmap in one copy.</li>
+ * <li>{@link #LAYOUT_PLANAR}: a plane of bytes for each of red, green and blue, with alpha
+ * always opaque. This is the same layout as libphotoprocessing's images, and lets channel-wise
+ * kernels stream through one plane at a time.</li>
+ * </ul>
+ * A buffer can also be a view onto a sub-rectangle of another, sharing its memory, which makes
+ * cropping free. Like a Bitmap, a buffer isn't thread safe, although different rows may be
+ * written from different threads.
+ *
+ * @author rayboot
+ * @from 14-5-15 10:20
+ * @TODO
+ */
+public final class ImageBuffer {
+
+    public static final int LAYOUT_INTERLEAVED = 0;
+    public static final int LAYOUT_PLANAR = 1;
+
+    public static final int CHANNEL_RED = 0;
+    public static final int CHANNEL_GREEN = 1;
+    public static final int CHANNEL_BLUE = 2;
+
+    static final int INTERLEAVED_BYTES_PER_PIXEL = 4;
+    static final int PLANES = 3;
+
+    private final ByteBuffer mData;
+    private final int mLayout;
+    private final int mWidth;
+    private final int mHeight;
+
+    /** Index of this view's first pixel in the backing buffer */
+    private final int mOffset;
+    /** Pixels between the start of each row in the backing buffer */
+    private final int mStride;
+    /** Bytes in each plane of the backing buffer, only used by planar buffers */
+    private final int mPlaneSize;
+
+    private ImageBuffer(ByteBuffer data, int layout, int width, int height, int offset,
+            int stride, int planeSize) {
+        mData = data;
+        mLayout = layout;
+        mWidth = width;
+        mHeight = height;
+        mOffset = offset;
+        mStride = stride;
+        mPlaneSize = planeSize;
+    }
+
+    /**
+     * Allocates a buffer of the given size. Its pixels start off as transparent black, or black
+     * for planar buffers.
+     */
+    public static ImageBuffer allocate(int width, int height, int layout) {
+        if (width <= 0 || height <= 0) {
+            throw new IllegalArgumentException("Invalid size " + width + "x" + height);
+        }
+
+        final int pixels = width * height;
+        final int bytes = layout == LAYOUT_PLANAR ? pixels * PLANES
+                : pixels * INTERLEAVED_BYTES_PER_PIXEL;
+        final ByteBuffer data = ByteBuffer.allocateDirect(bytes).order(ByteOrder.BIG_ENDIAN);
+        return new ImageBuffer(data, layout, width, height, 0, width, pixels);
+    }
+
+    /**
+     * Copies the bitmap into a new buffer. Interleaved copies of ARGB_8888 bitmaps are made in
+     * one call; everything else is converted a row at a time.
+     */
+    public static ImageBuffer fromBitmap(Bitmap bitmap, int layout) {
+        final ImageBuffer buffer = allocate(bitmap.getWidth(), bitmap.getHeight(), layout);
+        buffer.setPixels(bitmap);
+        return buffer;
+    }
+
+    public int getWidth() {
+        return mWidth;
+    }
+
+    public int getHeight() {
+        return mHeight;
+    }
+
+    public int getLayout() {
+        return mLayout;
+    }
+
+    /**
+     * @return true if the rows follow on from each other with no gaps, which is the case for
+     * anything but a view narrower than its parent
+     */
+    public boolean isContiguous() {
+        return mStride == mWidth || mHeight == 1;
+    }
+
+    /**
+     * @return a view onto the given rect of this buffer. Changes to either are seen by the other.
+     */
+    public ImageBuffer subRect(int left, int top, int width, int height) {
+        if (left < 0 || top < 0 || width <= 0 || height <= 0 || left + width > mWidth
+                || top + height > mHeight) {
+            throw new IllegalArgumentException("Rect " + left + "," + top + " " + width + "x"
+                    + height + " is outside of " + mWidth + "x" + mHeight);
+        }
+        return new ImageBuffer(mData, mLayout, width, height, mOffset + top * mStride + left,
+                mStride, mPlaneSize);
+    }
+
+    /**
+     * @return a view onto the given rect, with each value being relative (0 to 1) to the size of
+     * this buffer. Values are truncated to pixels in the same way as
+     * {@link NativeImage#crop(RectF)}.
+     */
+    public ImageBuffer crop(RectF rect) {
+        final int left = (int) (mWidth * rect.left);
+        final int top = (int) (mHeight * rect.top);
+        final int right = (int) (mWidth * rect.right);
+        final int bottom = (int) (mHeight * rect.bottom);
+        return subRect(left, top, right - left, bottom - top);
+    }
+
+    /**
+     * @return the ARGB value of the pixel
+     */
+    public int getPixel(int x, int y) {
+        final int i = mOffset + y * mStride + x;
+        if (mLayout == LAYOUT_PLANAR) {
+            return 0xFF000000 | (mData.get(i) & 0xFF) << 16
+                    | (mData.get(mPlaneSize + i) & 0xFF) << 8
+                    | (mData.get(2 * mPlaneSize + i) & 0xFF);
+        }
+        // Stored as RGBA, so rotate alpha round to the top
+        return Integer.rotateRight(mData.getInt(i * INTERLEAVED_BYTES_PER_PIXEL), 8);
+    }
+
+    public void setPixel(int x, int y, int argb) {
+        final int i = mOffset + y * mStride + x;
+        if (mLayout == LAYOUT_PLANAR) {
+            mData.put(i, (byte) (argb >> 16));
+            mData.put(mPlaneSize + i, (byte) (argb >> 8));
+            mData.put(2 * mPlaneSize + i, (byte) argb);
+        } else {
+            mData.putInt(i * INTERLEAVED_BYTES_PER_PIXEL, Integer.rotateLeft(argb, 8));
+        }
+    }
+
+    /**
+     * Copies row y, as ARGB ints, into row, which must hold at least {@link #getWidth()} values.
+     */
+    public void getRow(int y, int[] row) {
+        final ByteBuffer data = mData;
+        final int start = mOffset + y * mStride;
+        if (mLayout == LAYOUT_PLANAR) {
+            final int green = mPlaneSize;
+            final int blue = 2 * mPlaneSize;
+            for (int x = 0, i = start; x < mWidth; x++, i++) {
+                row[x] = 0xFF000000 | (data.get(i) & 0xFF) << 16
+                        | (data.get(green + i) & 0xFF) << 8 | (data.get(blue + i) & 0xFF);
+            }
+        } else {
+            for (int x = 0, i = start * INTERLEAVED_BYTES_PER_PIXEL; x < mWidth;
+                    x++, i += INTERLEAVED_BYTES_PER_PIXEL) {
+                row[x] = Integer.rotateRight(data.getInt(i), 8);
+            }
+        }
+    }
+
+    /**
+     * Replaces row y with the ARGB ints in row.
+     */
+    public void setRow(int y, int[] row) {
+        final ByteBuffer data = mData;
+        final int start = mOffset + y * mStride;
+        if (mLayout == LAYOUT_PLANAR) {
+            final int green = mPlaneSize;
+            final int blue = 2 * mPlaneSize;
+            for (int x = 0, i = start; x < mWidth; x++, i++) {
+                final int p = row[x];
+                data.put(i, (byte) (p >> 16));
+                data.put(green + i, (byte) (p >> 8));
+                data.put(blue + i, (byte) p);
+            }
+        } else {
+            for (int x = 0, i = start * INTERLEAVED_BYTES_PER_PIXEL; x < mWidth;
+                    x++, i += INTERLEAVED_BYTES_PER_PIXEL) {
+                data.putInt(i, Integer.rotateLeft(row[x], 8));
+            }
+        }
+    }
+
+    /**
+     * @return the given plane of a planar buffer. Row y of this view starts at
+     * {@link #getPlaneRowStart(int)} and is {@link #getWidth()} bytes long.
+     * @param channel - One of the CHANNEL constants
+     */
+    public ByteBuffer getPlane(int channel) {
+        if (mLayout != LAYOUT_PLANAR) {
+            throw new IllegalStateException("Only planar buffers have planes");
+        }
+        final ByteBuffer plane = mData.duplicate();
+        plane.position(channel * mPlaneSize);
+        plane.limit((channel + 1) * mPlaneSize);
+        return plane.slice();
+    }
+
+    public int getPlaneRowStart(int y) {
+        return mOffset + y * mStride;
+    }
+
+    /**
+     * Copies the bitmap, which must be the same size, into this buffer.
+     */
+    public void setPixels(Bitmap bitmap) {
+        checkSize(bitmap.getWidth(), bitmap.getHeight());
+
+        if (canCopyDirectly(bitmap)) {
+            final ByteBuffer data = mData.duplicate();
+            data.position(mOffset * INTERLEAVED_BYTES_PER_PIXEL);
+            bitmap.copyPixelsToBuffer(data);
+            return;
+        }
+
+        int[] row = new int[mWidth];
+        for (int y = 0; y < mHeight; y++) {
+            bitmap.getPixels(row, 0, mWidth, 0, y, mWidth, 1);
+            setRow(y, row);
+        }
+    }
+
+    /**
+     * Copies this buffer into a bitmap. The given bitmap is reused if it's mutable and the right
+     * size, otherwise it's returned to the {@link BitmapPool} and an ARGB_8888 one is taken from
+     * the pool.
+     *
+     * @param bitmap - Bitmap to reuse, can be null
+     */
+    public Bitmap toBitmap(Bitmap bitmap) {
+        if (bitmap == null || mWidth != bitmap.getWidth() || mHeight != bitmap.getHeight()
+                || !bitmap.isMutable()) {
+            if (bitmap != null) {
+                BitmapPool.getDefault().put(bitmap);
+            }
+            bitmap = BitmapPool.getDefault().getOrCreate(mWidth, mHeight, Config.ARGB_8888);
+        }
+
+        if (canCopyDirectly(bitmap)) {
+            final ByteBuffer data = mData.duplicate();
+            data.position(mOffset * INTERLEAVED_BYTES_PER_PIXEL);
+            bitmap.copyPixelsFromBuffer(data);
+            return bitmap;
+        }
+
+        int[] row = new int[mWidth];
+        for (int y = 0; y < mHeight; y++) {
+            getRow(y, row);
+            bitmap.setPixels(row, 0, mWidth, 0, y, mWidth, 1);
+        }
+        return bitmap;
+    }
+
+    /**
+     * Copies this buffer into dst, which must be the same size but can have a different layout.
+     */
+    public void copyTo(ImageBuffer dst) {
+        dst.checkSize(mWidth, mHeight);
+
+        if (mLayout == dst.mLayout) {
+            final int planes = mLayout == LAYOUT_PLANAR ? PLANES : 1;
+            final int bytesPerPixel = mLayout == LAYOUT_PLANAR ? 1 : INTERLEAVED_BYTES_PER_PIXEL;
+            final ByteBuffer src = mData.duplicate();
+            final ByteBuffer out = dst.mData.duplicate();
+            for (int plane = 0; plane < planes; plane++) {
+                for (int y = 0; y < mHeight; y++) {
+                    final int from = (plane * mPlaneSize + mOffset + y * mStride) * bytesPerPixel;
+                    final int to = (plane * dst.mPlaneSize + dst.mOffset + y * dst.mStride)
+                            * bytesPerPixel;
+                    src.limit(from + mWidth * bytesPerPixel).position(from);
+                    out.position(to);
+                    out.put(src);
+                }
+            }
+            return;
+        }
+
+        int[] row = new int[mWidth];
+        for (int y = 0; y < mHeight; y++) {
+            getRow(y, row);
+            dst.setRow(y, row);
+        }
+    }
+
+    /**
+     * @return a compact copy of this buffer, in the given layout
+     */
+    public ImageBuffer copy(int layout) {
+        final ImageBuffer copy = allocate(mWidth, mHeight, layout);
+        copyTo(copy);
+        return copy;
+    }
+
+    private boolean canCopyDirectly(Bitmap bitmap) {
+        return mLayout == LAYOUT_INTERLEAVED && isContiguous()
+                && bitmap.getConfig() == Config.ARGB_8888
+                && bitmap.getRowBytes() == mWidth * INTERLEAVED_BYTES_PER_PIXEL;
+    }
+
+    private void checkSize(int width, int height) {
+        if (width != mWidth || height != mHeight) {
+            throw new IllegalArgumentException("Expected " + mWidth + "x" + mHeight + " but was "
+                    + width + "x" + height);
+        }
+    }
+
+    // Used by NativeImage to hand the memory straight to libphotoprocessing
+
+    ByteBuffer getData() {
+        return mData;
+    }
+
+    int getOffset() {
+        return mOffset;
+    }
+
+    int getStride() {
+        return mStride;
+    }
+
+    int getPlaneSize() {
+        return mPlaneSize;
+    }
+}
@@ -0,0 +1,329 @@
+package com.rayboot.util;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Reads the dimensions, EXIF orientation and embedded thumbnail of a JPEG, or the dimensions of
+ * a PNG, from the start of its stream. Only the segments in front of the frame header are read,
+ * which for a photo is normally just the EXIF block, so it replaces a MediaStore query, an
+ * ExifInterface parse and a bounds decode with a single short read.
+ * <p/>
+ * Pure Java, with nothing from Android, so it can be run anywhere.
+ *
+ * @author rayboot
+ * @from 14-5-23 10:30
+ * @TODO
+ */
+public final class ImageHeaderParser {
+
+    public static final String MIME_JPEG = "image/jpeg";
+    public static final String MIME_PNG = "image/png";
+
+    /** Largest EXIF block read, which is as big as a JPEG segment can be */
+    static final int MAX_EXIF_BYTES = 64 * 1024;
+
+    static final int MARKER_SOI = 0xD8;
+    static final int MARKER_EOI = 0xD9;
+    static final int MARKER_SOS = 0xDA;
+    static final int MARKER_APP1 = 0xE1;
+    static final int MARKER_TEM = 0x01;
+
+    static final int TAG_ORIENTATION = 0x0112;
+    static final int TAG_THUMBNAIL_OFFSET = 0x0201;
+    static final int TAG_THUMBNAIL_LENGTH = 0x0202;
+
+    static final byte[] EXIF_PREAMBLE = {'E', 'x', 'i', 'f', 0, 0};
+    static final byte[] PNG_SIGNATURE = {(byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1A, '\n'};
+
+    /**
+     * What was read from the header. Width and height are of the encoded image, before the
+     * orientation is applied.
+     */
+    public static final class Header {
+
+        public final int width;
+        public final int height;
+        /** Clockwise rotation needed to show the image upright */
+        public final int orientation;
+        public final String mimeType;
+        /** Offset from the start of the stream of the EXIF thumbnail JPEG, or -1 if none */
+        public final long thumbnailOffset;
+        public final int thumbnailLength;
+
+        Header(int width, int height, int orientation, String mimeType, long thumbnailOffset,
+                int thumbnailLength) {
+            this.width = width;
+            this.height = height;
+            this.orientation = orientation;
+            this.mimeType = mimeType;
+            this.thumbnailOffset = thumbnailOffset;
+            this.thumbnailLength = thumbnailLength;
+        }
+
+        public boolean hasThumbnail() {
+            return thumbnailOffset >= 0 && thumbnailLength > 0;
+        }
+    }
+
+    private final InputStream mIn;
+    /** Bytes read from the stream so far */
+    private long mPosition;
+
+    private int mOrientation;
+    private long mThumbnailOffset = -1;
+    private int mThumbnailLength;
+
+    private ImageHeaderParser(InputStream in) {
+        mIn = in;
+    }
+
+    /**
+     * Reads the header from the current position of the stream. The stream isn't closed, and is
+     * left part way through the image.
+     *
+     * @return the header, or null if the stream isn't a JPEG or PNG, or is corrupt
+     */
+    public static Header parse(InputStream in) throws IOException {
+        final ImageHeaderParser parser = new ImageHeaderParser(in);
+        try {
+            final int first = parser.read();
+            final int second = parser.read();
+            if (first == 0xFF && second == MARKER_SOI) {
+                return parser.parseJpeg();
+            }
+            if (first == (PNG_SIGNATURE[0] & 0xFF) && second == PNG_SIGNATURE[1]) {
+                return parser.parsePng();
+            }
+            return null;
+        } catch (EOFException e) {
+            return null;
+        }
+    }
+
+    /**
+     * @return the clockwise rotation for an EXIF orientation value. Mirrored orientations aren't
+     * supported, so are treated as upright.
+     */
+    public static int getRotation(int exifOrientation) {
+        switch (exifOrientation) {
+            case 3:
+                return 180;
+            case 6:
+                return 90;
+            case 8:
+                return 270;
+            default:
+                return 0;
+        }
+    }
+
+    private Header parseJpeg() throws IOException {
+        for (; ; ) {
+            if (read() != 0xFF) {
+                // Not at a marker, so something's wrong
+                return null;
+            }
+            int marker;
+            do {
+                // Any number of 0xFF may pad a marker
+                marker = read();
+            } while (marker == 0xFF);
+
+            if (marker == MARKER_SOS || marker == MARKER_EOI) {
+                // Into the image data without finding a frame header
+                return null;
+            }
+            if (marker == MARKER_TEM || (marker >= 0xD0 && marker <= 0xD7)) {
+                // Stand alone markers, without a length
+                continue;
+            }
+
+            final int length = readUnsignedShort() - 2;
+            if (length < 0) {
+                return null;
+            }
+
+            if (isStartOfFrame(marker)) {
+                // Sample precision, then the dimensions
+                read();
+                final int height = readUnsignedShort();
+                final int width = readUnsignedShort();
+                return new Header(width, height, getRotation(mOrientation), MIME_JPEG,
+                        mThumbnailOffset, mThumbnailLength);
+            }
+
+            if (marker == MARKER_APP1 && length > EXIF_PREAMBLE.length
+                    && length <= MAX_EXIF_BYTES) {
+                final long start = mPosition;
+                final byte[] segment = new byte[length];
+                readFully(segment);
+                if (startsWith(segment, EXIF_PREAMBLE)) {
+                    parseTiff(segment, EXIF_PREAMBLE.length, start + EXIF_PREAMBLE.length);
+                }
+            } else {
+                skipFully(length);
+            }
+        }
+    }
+
+    private Header parsePng() throws IOException {
+        for (int i = 2; i < PNG_SIGNATURE.length; i++) {
+            if (read() != (PNG_SIGNATURE[i] & 0xFF)) {
+                return null;
+            }
+        }
+
+        // The first chunk is always IHDR, which starts with the dimensions
+        final int length = readInt();
+        final int type = readInt();
+        if (type != 0x49484452 || length < 8) {
+            return null;
+        }
+        final int width = readInt();
+        final int height = readInt();
+        return new Header(width, height, 0, MIME_PNG, -1, 0);
+    }
+
+    /**
+     * Reads the orientation from IFD0 and the thumbnail from IFD1. Anything which points outside
+     * the segment is ignored.
+     *
+     * @param offset - Offset of the TIFF header in data
+     * @param streamOffset - Offset of the TIFF header in the stream, which the thumbnail's offset
+     * is relative to
+     */
+    private void parseTiff(byte[] data, int offset, long streamOffset) {
+        if (data.length - offset < 8) {
+            return;
+        }
+
+        final boolean littleEndian;
+        if (data[offset] == 'I' && data[offset + 1] == 'I') {
+            littleEndian = true;
+        } else if (data[offset] == 'M' && data[offset + 1] == 'M') {
+            littleEndian = false;
+        } else {
+            return;
+        }
+        if (getShort(data, offset + 2, littleEndian) != 42) {
+            return;
+        }
+
+        final int ifd0 = getInt(data, offset + 4, littleEndian);
+        final int ifd1 = parseIfd(data, offset, ifd0, littleEndian);
+        if (ifd1 > 0) {
+            parseIfd(data, offset, ifd1, littleEndian);
+        }
+        if (mThumbnailOffset >= 0) {
+            mThumbnailOffset += streamOffset;
+        }
+    }
+
+    /**
+     * @return offset of the next IFD relative to the TIFF header, or 0 if there isn't one
+     */
+    private int parseIfd(byte[] data, int tiffOffset, int ifdOffset, boolean littleEndian) {
+        final int start = tiffOffset + ifdOffset;
+        if (ifdOffset < 8 || start + 2 > data.length) {
+            return 0;
+        }
+
+        final int count = getShort(data, start, littleEndian);
+        final int end = start + 2 + count * 12;
+        if (end > data.length) {
+            return 0;
+        }
+
+        for (int entry = start + 2; entry < end; entry += 12) {
+            final int tag = getShort(data, entry, littleEndian);
+            // Short values sit in the first half of the value field, longs fill it
+            switch (tag) {
+                case TAG_ORIENTATION:
+                    mOrientation = getShort(data, entry + 8, littleEndian);
+                    break;
+                case TAG_THUMBNAIL_OFFSET:
+                    mThumbnailOffset = getInt(data, entry + 8, littleEndian) & 0xFFFFFFFFL;
+                    break;
+                case TAG_THUMBNAIL_LENGTH:
+                    mThumbnailLength = getInt(data, entry + 8, littleEndian);
+                    break;
+            }
+        }
+
+        return end + 4 <= data.length ? getInt(data, end, littleEndian) : 0;
+    }
+
+    private static boolean isStartOfFrame(int marker) {
+        // SOF0 to SOF15, apart from DHT, JPG and DAC which share the range
+        return marker >= 0xC0 && marker <= 0xCF && marker != 0xC4 && marker != 0xC8
+                && marker != 0xCC;
+    }
+
+    private static boolean startsWith(byte[] data, byte[] prefix) {
+        for (int i = 0; i < prefix.length; i++) {
+            if (data[i] != prefix[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int getShort(byte[] data, int offset, boolean littleEndian) {
+        final int b0 = data[offset] & 0xFF;
+        final int b1 = data[offset + 1] & 0xFF;
+        return littleEndian ? (b1 << 8) | b0 : (b0 << 8) | b1;
+    }
+
+    private static int getInt(byte[] data, int offset, boolean littleEndian) {
+        final int s0 = getShort(data, offset, littleEndian);
+        final int s1 = getShort(data, offset + 2, littleEndian);
+        return littleEndian ? (s1 << 16) | s0 : (s0 << 16) | s1;
+    }
+
+    private int read() throws IOException {
+        final int b = mIn.read();
+        if (b < 0) {
+            throw new EOFException();
+        }
+        mPosition++;
+        return b;
+    }
+
+    private int readUnsignedShort() throws IOException {
+        return (read() << 8) | read();
+    }
+
+    private int readInt() throws IOException {
+        return (readUnsignedShort() << 16) | readUnsignedShort();
+    }
+
+    private void readFully(byte[] buffer) throws IOException {
+        int offset = 0;
+        while (offset < buffer.length) {
+            final int count = mIn.read(buffer, offset, buffer.length - offset);
+            if (count < 0) {
+                throw new EOFException();
+            }
+            offset += count;
+        }
+        mPosition += buffer.length;
+    }
+
+    private void skipFully(long count) throws IOException {
+        long remaining = count;
+        while (remaining > 0) {
+            final long skipped = mIn.skip(remaining);
+            if (skipped > 0) {
+                remaining -= skipped;
+            } else {
+                // Some streams won't skip until they've been read from
+                read();
+                remaining--;
+                mPosition--;
+            }
+        }
+        mPosition += count;
+    }
+}
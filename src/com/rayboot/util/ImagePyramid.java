@@ -0,0 +1,120 @@
+package com.rayboot.util;
+
+import android.graphics.Bitmap;
+import android.util.Log;
+import java.util.ArrayList;
+
+/**
+ * Successively halved copies of one decoded image, so that every size a photo is shown at can
+ * come from a single decode. Each level is made from the one above it by averaging 2x2 blocks,
+ * which is both quicker and smoother than decoding the source again at a coarser sample size.
+ * <p/>
+ * Level 0 is the bitmap the pyramid was built from, and is never modified. Levels below it are
+ * owned by the pyramid until taken with {@link #takeLevel(int)}; whatever is left is returned to
+ * the {@link BitmapPool} by {@link #release()}.
+ *
+ * @author rayboot
+ * @from 14-5-21 15:10
+ * @TODO
+ */
+public class ImagePyramid {
+
+    static final String LOG_TAG = "ImagePyramid";
+
+    private final ArrayList<Bitmap> mLevels = new ArrayList<Bitmap>();
+
+    private ImagePyramid(Bitmap base) {
+        mLevels.add(base);
+    }
+
+    /**
+     * Builds levels down to the smallest whose longest side is still at least minSize, matching
+     * how {@link Utils#decodeImage(android.content.ContentResolver, android.net.Uri, int)} picks
+     * a sample size.
+     */
+    public static ImagePyramid build(Bitmap base, int minSize) {
+        final long start = Flags.DEBUG ? System.currentTimeMillis() : 0;
+
+        final ImagePyramid pyramid = new ImagePyramid(base);
+        Bitmap level = base;
+        while (level.getWidth() / 2 >= minSize || level.getHeight() / 2 >= minSize) {
+            level = downsample(level);
+            pyramid.mLevels.add(level);
+        }
+
+        if (Flags.DEBUG) {
+            Log.d(LOG_TAG, "Built " + pyramid.mLevels.size() + " levels from " + base.getWidth()
+                    + "x" + base.getHeight() + " in " + (System.currentTimeMillis() - start)
+                    + "ms");
+        }
+        return pyramid;
+    }
+
+    public int getLevelCount() {
+        return mLevels.size();
+    }
+
+    /**
+     * @return the smallest level, which is the base if it was already small enough
+     */
+    public int getSmallestLevel() {
+        return mLevels.size() - 1;
+    }
+
+    public Bitmap getLevel(int level) {
+        return mLevels.get(level);
+    }
+
+    /**
+     * Takes ownership of a level away from the pyramid, so it isn't pooled on release.
+     */
+    public Bitmap takeLevel(int level) {
+        return mLevels.set(level, null);
+    }
+
+    /**
+     * Returns the levels below the base which haven't been taken to the pool.
+     */
+    public void release() {
+        final BitmapPool pool = BitmapPool.getDefault();
+        for (int i = 1, z = mLevels.size(); i < z; i++) {
+            final Bitmap level = mLevels.set(i, null);
+            if (null != level) {
+                pool.put(level);
+            }
+        }
+    }
+
+    /**
+     * @return a new bitmap, half the size of the source in each dimension, each pixel of which is
+     * the average of a 2x2 block of the source. An odd last row or column is dropped.
+     */
+    public static Bitmap downsample(Bitmap src) {
+        final int srcWidth = src.getWidth();
+        final int width = srcWidth / 2;
+        final int height = src.getHeight() / 2;
+
+        final Bitmap dst = BitmapPool.getDefault().getOrCreate(width, height, src.getConfig());
+
+        final int[] rows = new int[srcWidth * 2];
+        final int[] out = new int[width];
+        for (int y = 0; y < height; y++) {
+            src.getPixels(rows, 0, srcWidth, 0, y * 2, srcWidth, 2);
+            for (int x = 0, i = 0; x < width; x++, i += 2) {
+                final int p0 = rows[i];
+                final int p1 = rows[i + 1];
+                final int p2 = rows[srcWidth + i];
+                final int p3 = rows[srcWidth + i + 1];
+
+                // Red and blue, then alpha and green, each summed in their own 16 bit lanes
+                final int rb = (p0 & 0xFF00FF) + (p1 & 0xFF00FF) + (p2 & 0xFF00FF)
+                        + (p3 & 0xFF00FF) + 0x00020002;
+                final int ag = ((p0 >>> 8) & 0xFF00FF) + ((p1 >>> 8) & 0xFF00FF)
+                        + ((p2 >>> 8) & 0xFF00FF) + ((p3 >>> 8) & 0xFF00FF) + 0x00020002;
+                out[x] = (((ag >>> 2) & 0xFF00FF) << 8) | ((rb >>> 2) & 0xFF00FF);
+            }
+            dst.setPixels(out, 0, width, 0, y, width, 1);
+        }
+        return dst;
+    }
+}
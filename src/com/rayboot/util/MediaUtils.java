@@ -17,10 +17,12 @@ package com.rayboot.util;
 
 import android.app.Activity;
 import android.database.Cursor;
-import android.media.ExifInterface;
 import android.net.Uri;
 import android.provider.MediaStore;
+import java.io.BufferedInputStream;
+import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 
 /** 
  * MediaUtils 
@@ -40,32 +42,22 @@ public class MediaUtils {
 	    return cursor.getString(column_index);
 	}
 	
+	/**
+	 * Reads the orientation with {@link ImageHeaderParser}, which only reads up to the start of
+	 * the image rather than building a whole ExifInterface.
+	 */
 	public static int getExifOrientation(String filepath) {
-		int degree = 0;
-		ExifInterface exif = null;
+		InputStream in = null;
 		try {
-			exif = new ExifInterface(filepath);
+			in = new BufferedInputStream(new FileInputStream(filepath));
+			ImageHeaderParser.Header header = ImageHeaderParser.parse(in);
+			// We only recognise a subset of orientation tag values.
+			return null != header ? header.orientation : 0;
 		} catch (IOException ex) {
 			ex.printStackTrace();
+			return 0;
+		} finally {
+			RewindableInputStream.closeQuietly(in);
 		}
-		if (exif != null) {
-			int orientation = exif.getAttributeInt(ExifInterface.TAG_ORIENTATION, -1);
-			if (orientation != -1) {
-				// We only recognise a subset of orientation tag values.
-				switch (orientation) {
-				case ExifInterface.ORIENTATION_ROTATE_90:
-					degree = 90;
-					break;
-				case ExifInterface.ORIENTATION_ROTATE_180:
-					degree = 180;
-					break;
-				case ExifInterface.ORIENTATION_ROTATE_270:
-					degree = 270;
-					break;
-				}
-
-			}
-		}
-		return degree;
 	}
 }
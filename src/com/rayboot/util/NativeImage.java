@@ -0,0 +1,331 @@
+package com.rayboot.util;
+
+import android.graphics.Bitmap;
+import android.graphics.Bitmap.Config;
+import android.graphics.RectF;
+
+/**
+ * An image held in native memory by libphotoprocessing. Unlike the single global image behind
+ * {@link PhotoProcessing#sendBitmapToNative(Bitmap)}, every instance owns its own native context,
+ * so different instances can be processed on different threads at the same time. An instance
+ * itself is not thread safe, and must be {@link #release() released} once finished with.
+ * <p/>
+ * Only usable if {@link PhotoProcessing#isNativeAvailable()}; otherwise creating an image throws
+ * UnsupportedOperationException.
+ *
+ * @author rayboot
+ * @from 14-5-6 14:20
+ * @TODO
+ */
+public final class NativeImage {
+
+    private long mHandle;
+
+    private NativeImage(long handle) {
+        mHandle = handle;
+    }
+
+    private static NativeImage create() {
+        if (!PhotoProcessing.isNativeAvailable()) {
+            throw new UnsupportedOperationException("libphotoprocessing isn't available");
+        }
+        final long handle = PhotoProcessing.nativeCreateImage();
+        if (0 == handle) {
+            throw new OutOfMemoryError("Unable to allocate native image");
+        }
+        return new NativeImage(handle);
+    }
+
+    /**
+     * Creates a native image of the given size. Its pixels are undefined until set.
+     */
+    public static NativeImage create(int width, int height) {
+        final NativeImage image = create();
+        image.init(width, height);
+        return image;
+    }
+
+    /**
+     * Copies the bitmap into a new native image.
+     */
+    public static NativeImage fromBitmap(Bitmap bitmap) {
+        final NativeImage image = create(bitmap.getWidth(), bitmap.getHeight());
+        image.setPixels(bitmap);
+        return image;
+    }
+
+    /**
+     * Copies the buffer into a new native image.
+     */
+    public static NativeImage fromBuffer(ImageBuffer buffer) {
+        final NativeImage image = create(buffer.getWidth(), buffer.getHeight());
+        image.setPixels(buffer);
+        return image;
+    }
+
+    /**
+     * Decodes the JPEG at filePath straight into native memory, downsampled to at most maxPixels.
+     *
+     * @return the image, or null if the file couldn't be decoded or native memory can't be used
+     */
+    public static NativeImage loadResized(String filePath, int maxPixels) {
+        if (!PhotoProcessing.isNativeAvailable()) {
+            return null;
+        }
+        final NativeImage image = create();
+        if (PhotoProcessing.nativeImageLoadResized(image.mHandle, filePath, maxPixels) != 0) {
+            image.release();
+            return null;
+        }
+        return image;
+    }
+
+    private void init(int width, int height) {
+        if (PhotoProcessing.nativeInitImage(checkHandle(), width, height) != 0) {
+            release();
+            throw new OutOfMemoryError("Unable to allocate native image of " + width + "x" + height);
+        }
+    }
+
+    public int getWidth() {
+        return PhotoProcessing.nativeGetImageWidth(checkHandle());
+    }
+
+    public int getHeight() {
+        return PhotoProcessing.nativeGetImageHeight(checkHandle());
+    }
+
+    /**
+     * Copies the bitmap's pixels into this image, which must be the same size.
+     */
+    public void setPixels(Bitmap bitmap) {
+        final long handle = checkHandle();
+        if (PhotoProcessing.nativeSetImagePixels(handle, bitmap) != 0) {
+            final int width = bitmap.getWidth();
+            final int height = bitmap.getHeight();
+            int[] row = new int[width];
+            for (int y = 0; y < height; y++) {
+                bitmap.getPixels(row, 0, width, 0, y, width, 1);
+                PhotoProcessing.nativeSetImageRow(handle, y, row);
+            }
+        }
+    }
+
+    /**
+     * Copies all of the pixels, as ARGB ints, into the array.
+     */
+    public void getPixels(int[] pixels) {
+        PhotoProcessing.nativeGetImageArray(checkHandle(), pixels);
+    }
+
+    /**
+     * Replaces all of the pixels with the ARGB ints in the array.
+     */
+    public void setPixels(int[] pixels) {
+        PhotoProcessing.nativeSetImageArray(checkHandle(), pixels);
+    }
+
+    /**
+     * Copies the buffer's pixels, which must be the same size, into this image. Planar buffers
+     * share the native layout, so are copied a plane row at a time.
+     */
+    public void setPixels(ImageBuffer buffer) {
+        final long handle = checkHandle();
+        if (PhotoProcessing.nativeSetImageBuffer(handle, buffer.getData(), buffer.getLayout(),
+                buffer.getOffset(), buffer.getStride(), buffer.getPlaneSize()) != 0) {
+            int[] row = new int[buffer.getWidth()];
+            for (int y = 0, height = buffer.getHeight(); y < height; y++) {
+                buffer.getRow(y, row);
+                PhotoProcessing.nativeSetImageRow(handle, y, row);
+            }
+        }
+    }
+
+    /**
+     * Copies all of the pixels into the buffer, which must be the same size.
+     */
+    public void getPixels(ImageBuffer buffer) {
+        final long handle = checkHandle();
+        if (PhotoProcessing.nativeGetImageBuffer(handle, buffer.getData(), buffer.getLayout(),
+                buffer.getOffset(), buffer.getStride(), buffer.getPlaneSize()) != 0) {
+            int[] row = new int[buffer.getWidth()];
+            for (int y = 0, height = buffer.getHeight(); y < height; y++) {
+                PhotoProcessing.nativeGetImageRow(handle, y, row);
+                buffer.setRow(y, row);
+            }
+        }
+    }
+
+    /**
+     * @return a new buffer, in the given layout, holding a copy of this image
+     */
+    public ImageBuffer toBuffer(int layout) {
+        final ImageBuffer buffer = ImageBuffer.allocate(getWidth(), getHeight(), layout);
+        getPixels(buffer);
+        return buffer;
+    }
+
+    /**
+     * Copies this image into a bitmap. The given bitmap is reused if it's mutable and the right
+     * size, otherwise it's returned to the {@link BitmapPool} and one of the same config is taken
+     * from the pool.
+     *
+     * @param bitmap - Bitmap to reuse, can be null
+     */
+    public Bitmap toBitmap(Bitmap bitmap) {
+        final long handle = checkHandle();
+        final int width = getWidth();
+        final int height = getHeight();
+
+        bitmap = prepareBitmap(bitmap, width, height);
+        if (PhotoProcessing.nativeGetImagePixels(handle, bitmap) != 0) {
+            int[] row = new int[width];
+            for (int y = 0; y < height; y++) {
+                PhotoProcessing.nativeGetImageRow(handle, y, row);
+                bitmap.setPixels(row, 0, width, 0, y, width, 1);
+            }
+        }
+        return bitmap;
+    }
+
+    /**
+     * Same as {@link #toBitmap(Bitmap)}, but flips and rotates the image as part of the copy, so
+     * the transform costs nothing over a plain copy.
+     *
+     * @param bitmap - Bitmap to reuse, can be null
+     */
+    public Bitmap toBitmap(Bitmap bitmap, EditTransform transform) {
+        if (transform.isIdentity()) {
+            return toBitmap(bitmap);
+        }
+
+        final long handle = checkHandle();
+        final int width = getWidth();
+        final int height = getHeight();
+        final boolean swap = transform.swapsDimensions();
+
+        bitmap = prepareBitmap(bitmap, swap ? height : width, swap ? width : height);
+        if (PhotoProcessing.nativeGetImagePixelsTransformed(handle, bitmap,
+                transform.getRotation(), transform.isFlipped()) != 0) {
+            int[] pixels = new int[width * height];
+            getPixels(pixels);
+            if (transform.isFlipped()) {
+                BitmapTransforms.reverseRows(pixels, width, height);
+            }
+            BitmapTransforms.writeRotated(pixels, width, height, transform.getRotation(), bitmap);
+        }
+        return bitmap;
+    }
+
+    /**
+     * @return bitmap if it's mutable and the given size, otherwise one of the same config from the
+     *         {@link BitmapPool}, with bitmap returned to the pool
+     */
+    static Bitmap prepareBitmap(Bitmap bitmap, int width, int height) {
+        if (bitmap == null || width != bitmap.getWidth() || height != bitmap.getHeight()
+                || !bitmap.isMutable()) {
+            Config config = Config.ARGB_8888;
+            if (bitmap != null) {
+                config = bitmap.getConfig();
+                BitmapPool.getDefault().put(bitmap);
+            }
+            bitmap = BitmapPool.getDefault().getOrCreate(width, height, config);
+        }
+        return bitmap;
+    }
+
+    /**
+     * Crops to the given rect, with each value being relative (0 to 1) to the image size.
+     *
+     * @throws OutOfMemoryError if native memory for the cropped image can't be allocated
+     */
+    public void crop(RectF rect) {
+        checkResult(PhotoProcessing.nativeImageCrop(checkHandle(), rect.left, rect.top,
+                rect.right, rect.bottom), "crop");
+    }
+
+    /**
+     * Rotates clockwise by 90, 180 or 270 degrees. Any other angle is ignored.
+     *
+     * @throws OutOfMemoryError if native memory for the rotated image can't be allocated
+     */
+    public void rotate(int angle) {
+        final long handle = checkHandle();
+        switch (angle) {
+            case 90:
+                checkResult(PhotoProcessing.nativeImageRotate90(handle), "rotate");
+                break;
+            case 180:
+                PhotoProcessing.nativeImageRotate180(handle);
+                break;
+            case 270:
+                PhotoProcessing.nativeImageRotate180(handle);
+                checkResult(PhotoProcessing.nativeImageRotate90(handle), "rotate");
+                break;
+        }
+    }
+
+    public void flipHorizontally() {
+        PhotoProcessing.nativeImageFlipHorizontally(checkHandle());
+    }
+
+    /**
+     * @throws OutOfMemoryError if native memory for the resized image can't be allocated
+     */
+    public void resize(int newWidth, int newHeight) {
+        checkResult(PhotoProcessing.nativeImageResize(checkHandle(), newWidth, newHeight),
+                "resize to " + newWidth + "x" + newHeight);
+    }
+
+    /**
+     * Applies the filter at the given position of {@link PhotoProcessing#FILTERS}, using the
+     * selected {@link PhotoProcessing#getBackend() backend}.
+     */
+    public void filter(int position) {
+        if (position == 0) {
+            return;
+        }
+
+        if (PhotoProcessing.getBackend() == PhotoProcessing.BACKEND_JAVA) {
+            final int width = getWidth();
+            final int height = getHeight();
+            int[] pixels = new int[width * height];
+            getPixels(pixels);
+            FilterKernels.apply(position, pixels, width, height);
+            setPixels(pixels);
+        } else {
+            PhotoProcessing.nativeImageApplyFilter(checkHandle(), position);
+        }
+    }
+
+    /**
+     * Frees the native memory. The image can't be used afterwards; calling this again does nothing.
+     */
+    public void release() {
+        if (0 != mHandle) {
+            PhotoProcessing.nativeReleaseImage(mHandle);
+            mHandle = 0;
+        }
+    }
+
+    public boolean isReleased() {
+        return 0 == mHandle;
+    }
+
+    /**
+     * The native operations only fail when they can't allocate the new image. One channel may
+     * have been changed by then, so the image is no longer usable and should be released.
+     */
+    private static void checkResult(int result, String operation) {
+        if (result != 0) {
+            throw new OutOfMemoryError("Unable to " + operation + " native image");
+        }
+    }
+
+    private long checkHandle() {
+        if (0 == mHandle) {
+            throw new IllegalStateException("NativeImage has already been released");
+        }
+        return mHandle;
+    }
+}
@@ -0,0 +1,318 @@
+package com.rayboot.util;
+
+import com.rayboot.tasks.PhotupThreadFactory;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Runs a filter over an image split into horizontal bands, one band per core. Filters which
+ * blur (Sahara, HDR) are given enough halo rows above and below each band for the band to come
+ * out the same as if the whole image had been filtered at once. Instafix works on statistics of
+ * the whole image: histograms are gathered per band and merged, and the channel averages are
+ * taken in one pass exactly as the serial kernel takes them, before the bands are mapped.
+ * <p/>
+ * Bands are filtered by whatever {@link SerialFilter} the caller passes in, normally
+ * {@link PhotoProcessing#filterPixelsInParallel(int, int[], int, int, boolean) PhotoProcessing's}
+ * selected backend, so this class has no Android dependencies and runs on a plain JVM.
+ *
+ * @author rayboot
+ * @from 14-5-8 10:05
+ * @TODO
+ */
+public final class ParallelFilter {
+
+    static final String THREAD_BANDS = "filter_bands_thread";
+
+    /** Bands shorter than this aren't worth the overhead of another thread */
+    static final int MIN_BAND_HEIGHT = 128;
+
+    /** Stack blur does 3 vertical box passes, so a row sees 3 * radius rows either side */
+    static final int SAHARA_HALO = 3 * 1;
+    static final int HDR_HALO = 3 * 9;
+
+    private static ExecutorService sExecutor;
+
+    private ParallelFilter() {
+    }
+
+    private static synchronized ExecutorService getExecutor() {
+        if (null == sExecutor) {
+            sExecutor = Executors.newFixedThreadPool(getBandCount(),
+                    new PhotupThreadFactory(THREAD_BANDS));
+        }
+        return sExecutor;
+    }
+
+    static int getBandCount() {
+        return Runtime.getRuntime().availableProcessors();
+    }
+
+    /**
+     * Filters a whole image, or one band of it, in place on the calling thread.
+     */
+    public interface SerialFilter {
+
+        void apply(int position, int[] pixels, int width, int height, boolean allowApproximate);
+    }
+
+    /**
+     * Applies the filter at {@code position} (same numbering as {@link PhotoProcessing#FILTERS})
+     * to the given ARGB pixels in place, spreading the work across all cores. Each band is
+     * filtered by serialFilter, as are images too small to be worth splitting, which are
+     * filtered on the calling thread.
+     *
+     * @param allowApproximate - Whether filters may be approximated by their
+     * {@link CompiledFilter} tables
+     * @throws java.util.concurrent.CancellationException if the calling thread is interrupted
+     * while the bands run, in which case the pixels are only partly filtered
+     */
+    public static void apply(final int position, final int[] pixels, final int width,
+            final int height, final boolean allowApproximate, final SerialFilter serialFilter) {
+        apply(position, pixels, width, height, allowApproximate, serialFilter,
+                Math.min(getBandCount(), height / MIN_BAND_HEIGHT));
+    }
+
+    /**
+     * Same as {@link #apply(int, int[], int, int, boolean, SerialFilter)}, split into the given
+     * number of bands.
+     */
+    static void apply(final int position, final int[] pixels, final int width, final int height,
+            final boolean allowApproximate, final SerialFilter serialFilter, int bands) {
+        if (position == 0) {
+            return;
+        }
+
+        if (bands <= 1) {
+            serialFilter.apply(position, pixels, width, height, allowApproximate);
+            return;
+        }
+
+        final CompiledFilter compiled = CompiledFilter.get(position, allowApproximate);
+        if (null != compiled) {
+            // Tables don't need any neighbouring pixels, so bands can be filtered in place
+            runInBands(height, bands, new BandTask() {
+                public void run(int top, int bottom) {
+                    compiled.apply(pixels, top * width, (bottom - top) * width);
+                }
+            });
+            return;
+        }
+
+        switch (position) {
+            case 1: // Instafix
+                applyInstafix(pixels, width, height, bands);
+                break;
+            case 10: // Sahara
+                applyWithHalo(position, pixels, width, height, bands, SAHARA_HALO, serialFilter);
+                break;
+            case 11: // HDR
+                applyWithHalo(position, pixels, width, height, bands, HDR_HALO, serialFilter);
+                break;
+            default: // Everything else is point-wise
+                applyWithHalo(position, pixels, width, height, bands, 0, serialFilter);
+                break;
+        }
+    }
+
+    private static void applyWithHalo(final int position, final int[] pixels, final int width,
+            final int height, int bands, final int halo, final SerialFilter serialFilter) {
+        final int bandHeight = bandHeight(height, bands);
+
+        // Bands read their neighbours' rows as halo, so the results can only be copied back
+        // once every band has finished
+        final int[][] results = new int[bands][];
+        runInBands(height, bands, new BandTask() {
+            public void run(int top, int bottom) {
+                final int haloTop = Math.max(0, top - halo);
+                final int haloBottom = Math.min(height, bottom + halo);
+                final int[] band = new int[(haloBottom - haloTop) * width];
+                System.arraycopy(pixels, haloTop * width, band, 0, band.length);
+
+                serialFilter.apply(position, band, width, haloBottom - haloTop, false);
+
+                if (halo == 0) {
+                    System.arraycopy(band, 0, pixels, top * width, band.length);
+                } else {
+                    results[top / bandHeight] = band;
+                }
+            }
+        });
+
+        if (halo == 0) {
+            return;
+        }
+
+        for (int i = 0; i < bands; i++) {
+            final int top = i * bandHeight;
+            if (null == results[i]) { // Rounding can leave the last band empty
+                continue;
+            }
+            final int bottom = Math.min(height, top + bandHeight);
+            System.arraycopy(results[i], (top - Math.max(0, top - halo)) * width, pixels,
+                    top * width, (bottom - top) * width);
+        }
+    }
+
+    private static void applyInstafix(final int[] pixels, final int width, final int height,
+            int bands) {
+        final int length = width * height;
+
+        final int bandHeight = bandHeight(height, bands);
+
+        // Gather the histograms of each band, then merge them
+        final int[][][] bandHistograms = new int[bands][][];
+        runInBands(height, bands, new BandTask() {
+            public void run(int top, int bottom) {
+                final int[][] histogram = new int[3][256];
+                for (int i = top * width, end = bottom * width; i < end; i++) {
+                    final int p = pixels[i];
+                    histogram[0][FilterKernels.red(p)]++;
+                    histogram[1][FilterKernels.green(p)]++;
+                    histogram[2][FilterKernels.blue(p)]++;
+                }
+                bandHistograms[top / bandHeight] = histogram;
+            }
+        });
+
+        final int[][] histogram = new int[3][256];
+        for (int[][] bandHistogram : bandHistograms) {
+            if (null == bandHistogram) { // Rounding can leave the last band empty
+                continue;
+            }
+            for (int channel = 0; channel < 3; channel++) {
+                for (int i = 0; i < 256; i++) {
+                    histogram[channel][i] += bandHistogram[channel][i];
+                }
+            }
+        }
+
+        // Gamma correct using the channel averages. The running average the serial kernel keeps
+        // rounds differently to an exact one, and that shows in about a fifth of the pixels, so
+        // it's worked out the same way here, on this thread, to give identical output
+        final float[] averages = FilterKernels.channelAverages(pixels, length);
+        final int[][] gammaLuts = new int[3][];
+        final int[][] corrected = new int[3][256];
+        for (int channel = 0; channel < 3; channel++) {
+            gammaLuts[channel] = FilterKernels.gammaLut(averages[channel]);
+
+            // The histogram after gamma correction, needed to normalise the colours
+            for (int i = 0; i < 256; i++) {
+                corrected[channel][gammaLuts[channel][i]] += histogram[channel][i];
+            }
+        }
+        FilterKernels.normaliseMaps(corrected, length);
+
+        // Fold both steps into one table per channel
+        final int[] redLut = new int[256];
+        final int[] greenLut = new int[256];
+        final int[] blueLut = new int[256];
+        for (int i = 0; i < 256; i++) {
+            redLut[i] = corrected[0][gammaLuts[0][i]] & 0xFF;
+            greenLut[i] = corrected[1][gammaLuts[1][i]] & 0xFF;
+            blueLut[i] = corrected[2][gammaLuts[2][i]] & 0xFF;
+        }
+
+        runInBands(height, bands, new BandTask() {
+            public void run(int top, int bottom) {
+                for (int i = top * width, end = bottom * width; i < end; i++) {
+                    final int p = pixels[i];
+                    pixels[i] = FilterKernels.rgb(redLut[FilterKernels.red(p)],
+                            greenLut[FilterKernels.green(p)], blueLut[FilterKernels.blue(p)]);
+                }
+            }
+        });
+    }
+
+    static int bandHeight(int height, int bands) {
+        return (height + bands - 1) / bands;
+    }
+
+    static interface BandTask {
+
+        void run(int top, int bottom);
+    }
+
+    /**
+     * Runs the task once per band, the first band on the calling thread and the rest on the band
+     * pool, returning once all have finished. Bands write into the caller's pixels, so this never
+     * returns or throws while any band is still running.
+     *
+     * @throws CancellationException if the calling thread is interrupted. Bands which haven't
+     * started are skipped, so the pixels are left part way through and must be thrown away. The
+     * interrupt flag is left set.
+     */
+    static void runInBands(final int height, final int bands, final BandTask task) {
+        final int bandHeight = bandHeight(height, bands);
+        final ExecutorService executor = getExecutor();
+
+        int pooledBands = 0;
+        for (int top = bandHeight; top < height; top += bandHeight) {
+            pooledBands++;
+        }
+
+        final CountDownLatch finished = new CountDownLatch(pooledBands);
+        final AtomicBoolean cancelled = new AtomicBoolean();
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+        for (int top = bandHeight; top < height; top += bandHeight) {
+            final int bandTop = top;
+            final int bandBottom = Math.min(height, top + bandHeight);
+            executor.execute(new Runnable() {
+                public void run() {
+                    try {
+                        if (!cancelled.get()) {
+                            task.run(bandTop, bandBottom);
+                        }
+                    } catch (Throwable t) {
+                        failure.compareAndSet(null, t);
+                        cancelled.set(true);
+                    } finally {
+                        finished.countDown();
+                    }
+                }
+            });
+        }
+
+        try {
+            task.run(0, Math.min(height, bandHeight));
+        } catch (RuntimeException e) {
+            failure.compareAndSet(null, e);
+        } catch (Error e) {
+            failure.compareAndSet(null, e);
+        } finally {
+            // Bands already running can't be stopped, so wait for them whatever happens
+            boolean interrupted = Thread.currentThread().isInterrupted();
+            if (interrupted || null != failure.get()) {
+                cancelled.set(true);
+            }
+            for (; ; ) {
+                try {
+                    finished.await();
+                    break;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                    cancelled.set(true);
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        final Throwable cause = failure.get();
+        if (cause instanceof RuntimeException) {
+            throw (RuntimeException) cause;
+        } else if (cause instanceof Error) {
+            throw (Error) cause;
+        } else if (null != cause) {
+            throw new RuntimeException(cause);
+        }
+
+        if (Thread.currentThread().isInterrupted()) {
+            throw new CancellationException("Interrupted while filtering in bands");
+        }
+    }
+}
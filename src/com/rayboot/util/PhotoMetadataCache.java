@@ -0,0 +1,563 @@
+package com.rayboot.util;
+
+import android.annotation.TargetApi;
+import android.content.ContentResolver;
+import android.database.Cursor;
+import android.graphics.BitmapFactory;
+import android.net.Uri;
+import android.os.Build;
+import android.provider.BaseColumns;
+import android.provider.MediaStore;
+import android.text.TextUtils;
+import android.util.Log;
+import com.rayboot.tasks.PhotupThreadFactory;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Remembers what's cheap to keep but costly to find out about a photo: its EXIF orientation,
+ * its dimensions and its MIME type. Without it every thumbnail and display load queries
+ * MediaStore or parses the EXIF, and decodes the bounds, before it can start decoding.
+ * <p/>
+ * Entries are keyed by the photo's Uri and checked against the last modified time of its file,
+ * so an edited photo is looked at afresh. Photos without a file can't be checked, so are only
+ * remembered for as long as the process lives. Everything else is written to disk in the
+ * background after it changes, and read back the first time the cache is used.
+ * <p/>
+ * Reads may hit the disk, so should only be made from worker threads.
+ *
+ * @author rayboot
+ * @from 14-5-22 10:20
+ * @TODO
+ */
+public class PhotoMetadataCache {
+
+    static final String LOG_TAG = "PhotoMetadataCache";
+    static final String THREAD_METADATA = "metadata_thread";
+
+    static final int FILE_MAGIC = 0x504d4443;
+    static final int FILE_VERSION = 1;
+
+    /** Most entries kept, least recently used are dropped after that */
+    static final int MAX_ENTRIES = 2048;
+    /** Most ids in one prefetch query, well under SQLite's limit on arguments */
+    static final int PREFETCH_BATCH_SIZE = 200;
+
+    /**
+     * What's known about a single photo. Width and height are of the encoded image, before any
+     * orientation is applied.
+     */
+    public static final class Metadata {
+
+        final String path;
+        final long lastModified;
+        final int orientation;
+        final int width;
+        final int height;
+        final String mimeType;
+
+        Metadata(String path, long lastModified, int orientation, int width, int height,
+                String mimeType) {
+            this.path = path;
+            this.lastModified = lastModified;
+            this.orientation = orientation;
+            this.width = width;
+            this.height = height;
+            this.mimeType = mimeType;
+        }
+
+        /**
+         * @return the path of the photo's file, or null if it doesn't have one
+         */
+        public String getPath() {
+            return path;
+        }
+
+        /**
+         * @return clockwise rotation needed to show the photo upright
+         */
+        public int getOrientation() {
+            return orientation;
+        }
+
+        public int getWidth() {
+            return width;
+        }
+
+        public int getHeight() {
+            return height;
+        }
+
+        public String getMimeType() {
+            return mimeType;
+        }
+
+        /**
+         * @return when the photo's file was last modified, or 0 if it doesn't have one
+         */
+        public long getLastModified() {
+            return lastModified;
+        }
+    }
+
+    private final File mFile;
+
+    /** Uri to metadata, in access order */
+    private final LinkedHashMap<String, Metadata> mEntries
+            = new LinkedHashMap<String, Metadata>(0, 0.75f, true);
+
+    private boolean mLoaded;
+    private boolean mSaveScheduled;
+
+    private int mHitCount;
+    private int mMissCount;
+
+    private final ExecutorService mSaveExecutor = Executors
+            .newSingleThreadExecutor(new PhotupThreadFactory(THREAD_METADATA));
+
+    /**
+     * The file isn't read until the cache is first used, so this is safe to call on the UI
+     * thread.
+     *
+     * @param file - File to keep the cache in, used by nothing else
+     */
+    public PhotoMetadataCache(File file) {
+        mFile = file;
+    }
+
+    /**
+     * @return the metadata for uri, looking it up if it isn't cached or the photo has changed
+     * since it was. Null if the photo can't be read.
+     */
+    public Metadata get(ContentResolver resolver, Uri uri) {
+        final String key = uri.toString();
+
+        Metadata metadata;
+        synchronized (this) {
+            load();
+            metadata = mEntries.get(key);
+        }
+
+        if (null != metadata && (null == metadata.path
+                || new File(metadata.path).lastModified() == metadata.lastModified)) {
+            synchronized (this) {
+                mHitCount++;
+            }
+            return metadata;
+        }
+
+        metadata = lookUp(resolver, uri);
+
+        synchronized (this) {
+            mMissCount++;
+            if (null == metadata) {
+                mEntries.remove(key);
+                return null;
+            }
+
+            mEntries.put(key, metadata);
+            trimToMaxEntries();
+            scheduleSave();
+        }
+        return metadata;
+    }
+
+    /**
+     * Looks up every MediaStore photo in uris which isn't already cached, with a single
+     * <code>_id IN (...)</code> query per batch rather than a query per photo. Anything
+     * MediaStore can't answer is left to be looked up when it's asked for.
+     */
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN)
+    public void prefetch(ContentResolver resolver, Collection<Uri> uris) {
+        final long start = Flags.DEBUG ? System.currentTimeMillis() : 0;
+
+        // Ids of the photos to look up, grouped by the table they're in
+        final HashMap<String, ArrayList<String>> idsByTable
+                = new HashMap<String, ArrayList<String>>();
+        synchronized (this) {
+            load();
+            for (Uri uri : uris) {
+                if (!ContentResolver.SCHEME_CONTENT.equals(uri.getScheme())
+                        || !MediaStore.AUTHORITY.equals(uri.getAuthority())
+                        || mEntries.containsKey(uri.toString())) {
+                    continue;
+                }
+                final String key = uri.toString();
+                final int slash = key.lastIndexOf('/');
+                final String id = key.substring(slash + 1);
+                if (id.length() == 0 || !TextUtils.isDigitsOnly(id)) {
+                    continue;
+                }
+
+                final String table = key.substring(0, slash);
+                ArrayList<String> ids = idsByTable.get(table);
+                if (null == ids) {
+                    ids = new ArrayList<String>();
+                    idsByTable.put(table, ids);
+                }
+                ids.add(id);
+            }
+        }
+
+        // Dimensions are only in MediaStore from Jelly Bean, before that they come from the file
+        final boolean hasDimensions = Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN;
+        final String[] proj = hasDimensions
+                ? new String[]{BaseColumns._ID, MediaStore.Images.Media.DATA,
+                MediaStore.Images.Media.ORIENTATION, MediaStore.Images.Media.MIME_TYPE,
+                MediaStore.Images.Media.WIDTH, MediaStore.Images.Media.HEIGHT}
+                : new String[]{BaseColumns._ID, MediaStore.Images.Media.DATA,
+                MediaStore.Images.Media.ORIENTATION, MediaStore.Images.Media.MIME_TYPE};
+
+        final HashMap<String, Metadata> found = new HashMap<String, Metadata>();
+        int queries = 0;
+        for (Map.Entry<String, ArrayList<String>> entry : idsByTable.entrySet()) {
+            final Uri table = Uri.parse(entry.getKey());
+            final ArrayList<String> ids = entry.getValue();
+
+            for (int i = 0, z = ids.size(); i < z; i += PREFETCH_BATCH_SIZE) {
+                final List<String> batch = ids.subList(i, Math.min(z, i + PREFETCH_BATCH_SIZE));
+                final StringBuilder selection = new StringBuilder(BaseColumns._ID)
+                        .append(" IN (");
+                for (int j = 0, y = batch.size(); j < y; j++) {
+                    selection.append(j == 0 ? "?" : ",?");
+                }
+                selection.append(')');
+
+                Cursor cursor = null;
+                try {
+                    cursor = resolver.query(table, proj, selection.toString(),
+                            batch.toArray(new String[batch.size()]), null);
+                    queries++;
+                    while (null != cursor && cursor.moveToNext()) {
+                        final Metadata metadata = fromCursor(cursor, hasDimensions);
+                        if (null != metadata) {
+                            found.put(entry.getKey() + "/" + cursor.getLong(0), metadata);
+                        }
+                    }
+                } catch (RuntimeException e) {
+                    if (Flags.DEBUG) {
+                        e.printStackTrace();
+                    }
+                } finally {
+                    if (null != cursor) {
+                        cursor.close();
+                    }
+                }
+            }
+        }
+
+        if (!found.isEmpty()) {
+            synchronized (this) {
+                for (Map.Entry<String, Metadata> entry : found.entrySet()) {
+                    // Anything looked up in the meantime is at least as fresh
+                    if (!mEntries.containsKey(entry.getKey())) {
+                        mEntries.put(entry.getKey(), entry.getValue());
+                    }
+                }
+                trimToMaxEntries();
+                scheduleSave();
+            }
+        }
+
+        if (Flags.DEBUG) {
+            Log.d(LOG_TAG, "Prefetched " + found.size() + " of " + uris.size() + " photos with "
+                    + queries + " queries in " + (System.currentTimeMillis() - start) + "ms");
+        }
+    }
+
+    public synchronized void remove(Uri uri) {
+        if (null != mEntries.remove(uri.toString())) {
+            scheduleSave();
+        }
+    }
+
+    @Override
+    public synchronized String toString() {
+        final int accesses = mHitCount + mMissCount;
+        final int hitPercent = accesses != 0 ? (100 * mHitCount / accesses) : 0;
+        return String.format("PhotoMetadataCache[entries=%d,hits=%d,misses=%d,hitRate=%d%%]",
+                mEntries.size(), mHitCount, mMissCount, hitPercent);
+    }
+
+    /**
+     * @return the metadata in the cursor's current row, reading the dimensions from the file if
+     * the cursor doesn't have them. Null if the photo has no file, as without one there's
+     * nothing to check the entry against later.
+     */
+    private static Metadata fromCursor(Cursor cursor, boolean hasDimensions) {
+        final String path = cursor.getString(1);
+        if (null == path) {
+            return null;
+        }
+        final int orientation = cursor.getInt(2);
+        String mimeType = cursor.getString(3);
+        int width = hasDimensions ? cursor.getInt(4) : 0;
+        int height = hasDimensions ? cursor.getInt(5) : 0;
+
+        if (width <= 0 || height <= 0) {
+            // Still far cheaper than a query, as it's a short read of a local file
+            InputStream in = null;
+            try {
+                in = new BufferedInputStream(new FileInputStream(path));
+                final ImageHeaderParser.Header header = ImageHeaderParser.parse(in);
+                if (null == header) {
+                    return null;
+                }
+                width = header.width;
+                height = header.height;
+                mimeType = header.mimeType;
+            } catch (IOException e) {
+                return null;
+            } finally {
+                RewindableInputStream.closeQuietly(in);
+            }
+        }
+
+        return new Metadata(path, new File(path).lastModified(), orientation, width, height,
+                mimeType);
+    }
+
+    /**
+     * Must be called with the lock held.
+     */
+    private void trimToMaxEntries() {
+        // Access ordered, so the first entries are the least recently used
+        final Iterator<String> it = mEntries.keySet().iterator();
+        while (mEntries.size() > MAX_ENTRIES && it.hasNext()) {
+            it.next();
+            it.remove();
+        }
+    }
+
+    /**
+     * Finds out everything about the photo from the start of its stream, using
+     * {@link ImageHeaderParser}, with MediaStore only needed for the file's path. Photos which
+     * aren't JPEGs or PNGs take their orientation from MediaStore and dimensions from a bounds
+     * decode instead.
+     */
+    private static Metadata lookUp(ContentResolver resolver, Uri uri) {
+        String path = null;
+        int orientation = 0;
+        String mimeType = null;
+
+        if (ContentResolver.SCHEME_CONTENT.equals(uri.getScheme())) {
+            final String[] proj = {MediaStore.Images.Media.DATA,
+                    MediaStore.Images.Media.ORIENTATION, MediaStore.Images.Media.MIME_TYPE};
+            Cursor cursor = null;
+            try {
+                cursor = resolver.query(uri, proj, null, null, null);
+                if (null != cursor && cursor.moveToFirst()) {
+                    path = cursor.getString(0);
+                    orientation = cursor.getInt(1);
+                    mimeType = cursor.getString(2);
+                }
+            } catch (RuntimeException e) {
+                // Not every provider knows these columns
+                if (Flags.DEBUG) {
+                    e.printStackTrace();
+                }
+            } finally {
+                if (null != cursor) {
+                    cursor.close();
+                }
+            }
+        } else if (ContentResolver.SCHEME_FILE.equals(uri.getScheme())) {
+            path = uri.getPath();
+        }
+
+        int width;
+        int height;
+        RewindableInputStream in = null;
+        try {
+            in = new RewindableInputStream(resolver.openInputStream(uri));
+            final ImageHeaderParser.Header header = ImageHeaderParser.parse(in);
+            if (null != header) {
+                width = header.width;
+                height = header.height;
+                orientation = header.orientation;
+                mimeType = header.mimeType;
+            } else {
+                // Something BitmapFactory knows which the parser doesn't
+                if (!in.rewind()) {
+                    RewindableInputStream.closeQuietly(in);
+                    in = new RewindableInputStream(resolver.openInputStream(uri));
+                }
+                final BitmapFactory.Options opts = new BitmapFactory.Options();
+                opts.inJustDecodeBounds = true;
+                BitmapFactory.decodeStream(in, null, opts);
+                width = opts.outWidth;
+                height = opts.outHeight;
+                if (null == mimeType) {
+                    mimeType = opts.outMimeType;
+                }
+            }
+        } catch (IOException e) {
+            // Includes FileNotFoundException
+            return null;
+        } catch (SecurityException e) {
+            e.printStackTrace();
+            return null;
+        } finally {
+            RewindableInputStream.closeQuietly(in);
+        }
+
+        if (width <= 0 || height <= 0) {
+            return null;
+        }
+
+        final long lastModified = null != path ? new File(path).lastModified() : 0;
+        return new Metadata(path, lastModified, orientation, width, height, mimeType);
+    }
+
+    /**
+     * Reads the cache file, if it hasn't been already. Must be called with the lock held.
+     */
+    private void load() {
+        if (mLoaded) {
+            return;
+        }
+        mLoaded = true;
+
+        if (!mFile.exists()) {
+            return;
+        }
+
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(mFile)));
+            if (in.readInt() != FILE_MAGIC || in.readInt() != FILE_VERSION) {
+                throw new IOException("Unexpected header");
+            }
+
+            for (int i = 0, z = in.readInt(); i < z; i++) {
+                final String key = in.readUTF();
+                final String path = in.readUTF();
+                final long lastModified = in.readLong();
+                final int orientation = in.readInt();
+                final int width = in.readInt();
+                final int height = in.readInt();
+                final String mimeType = in.readUTF();
+                mEntries.put(key, new Metadata(path, lastModified, orientation, width, height,
+                        mimeType.length() > 0 ? mimeType : null));
+            }
+
+            if (Flags.DEBUG) {
+                Log.d(LOG_TAG, "Loaded " + mEntries.size() + " entries");
+            }
+        } catch (IOException e) {
+            // Corrupt or cut short, so start again
+            Log.e(LOG_TAG, "Unable to read metadata cache, clearing it", e);
+            mEntries.clear();
+            mFile.delete();
+        } finally {
+            if (null != in) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    // Do nothing
+                }
+            }
+        }
+    }
+
+    /**
+     * Queues the cache to be written, unless it already is. Must be called with the lock held.
+     */
+    private void scheduleSave() {
+        if (mSaveScheduled) {
+            return;
+        }
+        mSaveScheduled = true;
+
+        mSaveExecutor.submit(new Runnable() {
+            public void run() {
+                final ArrayList<Map.Entry<String, Metadata>> entries;
+                synchronized (PhotoMetadataCache.this) {
+                    mSaveScheduled = false;
+                    entries = new ArrayList<Map.Entry<String, Metadata>>(mEntries.entrySet());
+                }
+                save(entries);
+            }
+        });
+    }
+
+    /**
+     * Writes the entries which can be checked for changes later, replacing the file in one go.
+     */
+    private void save(ArrayList<Map.Entry<String, Metadata>> entries) {
+        int count = 0;
+        for (Map.Entry<String, Metadata> entry : entries) {
+            if (null != entry.getValue().path) {
+                count++;
+            }
+        }
+
+        final File parent = mFile.getParentFile();
+        if (null != parent && !parent.isDirectory() && !parent.mkdirs()) {
+            Log.e(LOG_TAG, "Unable to create " + parent);
+            return;
+        }
+
+        final File temp = new File(mFile.getPath() + ".tmp");
+        DataOutputStream out = null;
+        boolean written = false;
+        try {
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)));
+            out.writeInt(FILE_MAGIC);
+            out.writeInt(FILE_VERSION);
+            out.writeInt(count);
+            for (Map.Entry<String, Metadata> entry : entries) {
+                final Metadata metadata = entry.getValue();
+                if (null == metadata.path) {
+                    continue;
+                }
+                out.writeUTF(entry.getKey());
+                out.writeUTF(metadata.path);
+                out.writeLong(metadata.lastModified);
+                out.writeInt(metadata.orientation);
+                out.writeInt(metadata.width);
+                out.writeInt(metadata.height);
+                out.writeUTF(null != metadata.mimeType ? metadata.mimeType : "");
+            }
+            out.close();
+            out = null;
+            // Only ever expose a complete file under the real name
+            written = temp.renameTo(mFile);
+        } catch (IOException e) {
+            if (Flags.DEBUG) {
+                e.printStackTrace();
+            }
+        } finally {
+            if (null != out) {
+                try {
+                    out.close();
+                } catch (IOException e) {
+                    // Do nothing
+                }
+            }
+            if (!written) {
+                temp.delete();
+            }
+        }
+
+        if (Flags.DEBUG) {
+            Log.d(LOG_TAG, "Saved " + count + " entries. " + this);
+        }
+    }
+}
@@ -18,7 +18,10 @@ package com.rayboot.util;
 
 import android.graphics.Bitmap;
 import android.graphics.Bitmap.Config;
+import android.os.SystemClock;
+import android.util.Log;
 import com.rayboot.ImgProc.R;
+import java.nio.ByteBuffer;
 
 /** 
  * PhotoProcessing 
@@ -44,23 +47,182 @@ public class PhotoProcessing
 	
 	public static final int[] EDIT_ACTIONS = {R.string.edit_action_flip, R.string.edit_action_rotate_90_right, R.string.edit_action_rotate_90_left, R.string.edit_action_rotate_180};
 	
+	/** Filters are run by libphotoprocessing */
+	public static final int BACKEND_NATIVE = 0;
+	/** Filters are run by {@link FilterKernels} */
+	public static final int BACKEND_JAVA = 1;
+	
+	/** Whether libphotoprocessing loaded and its functions are bound, see {@link #loadNativeLibrary()} */
+	private static final boolean sNativeAvailable = loadNativeLibrary();
+	
+	private static volatile int sBackend = sNativeAvailable ? BACKEND_NATIVE : BACKEND_JAVA;
+	
+	public static int getBackend() {
+		return sBackend;
+	}
+	
+	/**
+	 * Selects the backend filters are run with. The native backend is only selected if
+	 * libphotoprocessing is available, otherwise filters stay in Java.
+	 */
+	public static void setBackend(int backend) {
+		sBackend = sNativeAvailable ? backend : BACKEND_JAVA;
+	}
+	
+	/**
+	 * @return whether libphotoprocessing is loaded and usable. If not, {@link NativeImage} can't
+	 *         be used and filters are run by {@link FilterKernels}.
+	 */
+	public static boolean isNativeAvailable() {
+		return sNativeAvailable;
+	}
+	
 	public static Bitmap filterPhoto(Bitmap bitmap, int position) {
 		return filterPhoto(bitmap, position, true);
 	}
 	
 	public static Bitmap filterPhoto(Bitmap bitmap, int position, final boolean modifyOriginal) {
-		if (bitmap != null) { //USe current bitmap in native memory
-			sendBitmapToNative(bitmap);
+		if (bitmap != null && sBackend == BACKEND_JAVA) { //No need to go through native memory
+			return filterPhotoInJava(bitmap, position, modifyOriginal);
+		}
+		
+		if (bitmap == null) { //USe current bitmap in native memory
+			if (!sNativeAvailable) {
+				throw new IllegalStateException("No bitmap in native memory, libphotoprocessing isn't available");
+			}
+			synchronized (PhotoProcessing.class) {
+				filterPhoto(position);
+				Bitmap filteredBitmap = getBitmapFromNative(null);
+				nativeDeleteBitmap();
+				return filteredBitmap;
+			}
+		}
+		
+		NativeImage image = NativeImage.fromBitmap(bitmap);
+		try {
+			image.filter(position);
+			return image.toBitmap(modifyOriginal ? bitmap : null);
+		} finally {
+			image.release();
+		}
+	}
+	
+	/**
+	 * Applies the filter to the image currently held in native memory, using the selected backend.
+	 * Use {@link NativeImage#filter(int)} for work that may run concurrently.
+	 * <p/>
+	 * There is only one image in native memory, however many threads process photos, so every
+	 * method which uses it is synchronized on this class. Callers making several calls which go
+	 * together, such as sending a bitmap, filtering it and reading it back, should hold the same
+	 * lock across all of them.
+	 */
+	public static synchronized void filterPhoto(int position) {
+		if (sBackend == BACKEND_JAVA) {
+			filterNativeBitmapInJava(position);
+		} else {
+			filterPhotoNative(position);
+		}
+	}
+	
+	/**
+	 * Applies the filter to the given ARGB pixels in place, using the selected backend. Safe to
+	 * call from any thread.
+	 */
+	public static void filterPixels(int position, int[] pixels, int width, int height) {
+		filterPixels(position, pixels, width, height, false);
+	}
+	
+	/**
+	 * Same as {@link #filterPixels(int, int[], int, int)}, but point-wise filters are applied
+	 * through their {@link CompiledFilter} tables.
+	 * 
+	 * @param allowApproximate - Whether filters which can only be approximated by tables may use
+	 *            them, fine for anything only shown on screen
+	 */
+	public static void filterPixels(int position, int[] pixels, int width, int height, boolean allowApproximate) {
+		if (position == 0) {
+			return;
+		}
+		
+		CompiledFilter compiled = CompiledFilter.get(position, allowApproximate);
+		if (compiled != null) {
+			compiled.apply(pixels, 0, width * height);
+		} else if (sBackend == BACKEND_JAVA) {
+			FilterKernels.apply(position, pixels, width, height);
+		} else {
+			NativeImage image = NativeImage.create(width, height);
+			try {
+				image.setPixels(pixels);
+				image.filter(position);
+				image.getPixels(pixels);
+			} finally {
+				image.release();
+			}
+		}
+	}
+	
+	/** Filters the bands {@link ParallelFilter} splits an image into, using the selected backend */
+	private static final ParallelFilter.SerialFilter SERIAL_FILTER = new ParallelFilter.SerialFilter() {
+		public void apply(int position, int[] pixels, int width, int height, boolean allowApproximate) {
+			filterPixels(position, pixels, width, height, allowApproximate);
+		}
+	};
+	
+	/**
+	 * Same as {@link #filterPixels(int, int[], int, int, boolean)}, but spreads the work across
+	 * all cores with {@link ParallelFilter}.
+	 * 
+	 * @throws java.util.concurrent.CancellationException if the calling thread is interrupted
+	 *             while the bands run, in which case the pixels are only partly filtered
+	 */
+	public static void filterPixelsInParallel(int position, int[] pixels, int width, int height, boolean allowApproximate) {
+		final long start = Flags.DEBUG ? SystemClock.elapsedRealtime() : 0;
+		
+		ParallelFilter.apply(position, pixels, width, height, allowApproximate, SERIAL_FILTER);
+		
+		if (Flags.DEBUG) {
+			Log.d(TAG, "filterPixelsInParallel " + position + " on " + width + "x" + height + ": "
+					+ (SystemClock.elapsedRealtime() - start) + "ms");
 		}
+	}
+	
+	private static Bitmap filterPhotoInJava(Bitmap bitmap, int position, final boolean modifyOriginal) {
+		int width = bitmap.getWidth();
+		int height = bitmap.getHeight();
+		int[] pixels = new int[width * height];
+		bitmap.getPixels(pixels, 0, width, 0, 0, width, height);
 		
-		filterPhoto(position);
+		FilterKernels.apply(position, pixels, width, height);
 		
-		Bitmap filteredBitmap = getBitmapFromNative(modifyOriginal ? bitmap : null);
-		nativeDeleteBitmap();
+		Bitmap filteredBitmap = bitmap;
+		if (!modifyOriginal || !bitmap.isMutable()) {
+			Config config = Config.ARGB_8888;
+			if (modifyOriginal) {
+				config = bitmap.getConfig();
+				BitmapPool.getDefault().put(bitmap);
+			}
+			filteredBitmap = BitmapPool.getDefault().getOrCreate(width, height, config);
+		}
+		filteredBitmap.setPixels(pixels, 0, width, 0, 0, width, height);
 		return filteredBitmap;
 	}
 	
-	public static void filterPhoto(int position) {
+	private static void filterNativeBitmapInJava(int position) {
+		if (position == 0) {
+			return;
+		}
+		
+		int width = nativeGetBitmapWidth();
+		int height = nativeGetBitmapHeight();
+		int[] pixels = new int[width * height];
+		nativeGetBitmapArray(pixels);
+		
+		FilterKernels.apply(position, pixels, width, height);
+		
+		nativeSetBitmapArray(pixels);
+	}
+	
+	private static void filterPhotoNative(int position) {
 		switch (position) {
 		case 0: // Original
 			break;
@@ -101,34 +263,46 @@ public class PhotoProcessing
 	}
 	
 	public static Bitmap applyEditAction(Bitmap bitmap, int position) {
-		switch (position) {
-		case 0: // Flip
-			bitmap = flipHorizontally(bitmap);
-			break;
-		case 1: // Rotate 90 right
-			bitmap = rotate(bitmap, 90);
-			break;
-		case 2: // Rotate 90 left
-			bitmap = rotate(bitmap, 270);
-			break;
-		case 3: // Rotate 180
-			bitmap = rotate(bitmap, 180);
-			break;
+		return EditTransform.forEditAction(position).apply(bitmap);
+	}
+	
+	/**
+	 * Applies the edit actions in order, combined into a single transform so the bitmap is only
+	 * copied out once.
+	 */
+	public static Bitmap applyEditActions(Bitmap bitmap, int... positions) {
+		EditTransform transform = EditTransform.IDENTITY;
+		for (int position : positions) {
+			transform = transform.then(EditTransform.forEditAction(position));
 		}
-		
-		return bitmap;
+		return transform.apply(bitmap);
 	}
 
-	
 	///////////////////////////////////////////////
 	
-	static {
-		System.loadLibrary("photoprocessing");
+	/**
+	 * Loads libphotoprocessing and checks its functions can be called. Natives are only bound
+	 * the first time they're called, so a library missing for this ABI, or built with its
+	 * functions named for another package, would otherwise only fail part way through a render.
+	 */
+	private static boolean loadNativeLibrary() {
+		try {
+			System.loadLibrary("photoprocessing");
+			nativeReleaseImage(nativeCreateImage());
+			return true;
+		} catch (UnsatisfiedLinkError e) {
+			Log.w(TAG, "libphotoprocessing isn't usable, filtering in Java instead", e);
+			return false;
+		}
 	}
 	
 	public static native int nativeInitBitmap(int width, int height);
 	public static native void nativeGetBitmapRow(int y, int[] pixels);
 	public static native void nativeSetBitmapRow(int y, int[] pixels);
+	public static native void nativeGetBitmapArray(int[] pixels);
+	public static native void nativeSetBitmapArray(int[] pixels);
+	public static native int nativeGetBitmapPixels(Bitmap bitmap);
+	public static native int nativeSetBitmapPixels(Bitmap bitmap);
 	public static native int nativeGetBitmapWidth();
 	public static native int nativeGetBitmapHeight();
 	public static native void nativeDeleteBitmap();
@@ -152,10 +326,55 @@ public class PhotoProcessing
 	public static native void nativeResizeBitmap(int newWidth, int newHeight);
 	public static native int nativeCrop(float left, float top, float right, float bottom);
 	
-	public static void sendBitmapToNative(Bitmap bitmap) {
+	// Handle based versions of the above, each handle being its own image. See NativeImage.
+	static native long nativeCreateImage();
+	static native void nativeReleaseImage(long handle);
+	static native int nativeInitImage(long handle, int width, int height);
+	static native int nativeGetImageWidth(long handle);
+	static native int nativeGetImageHeight(long handle);
+	static native void nativeGetImageArray(long handle, int[] pixels);
+	static native void nativeSetImageArray(long handle, int[] pixels);
+	static native void nativeGetImageRow(long handle, int y, int[] pixels);
+	static native void nativeSetImageRow(long handle, int y, int[] pixels);
+	static native int nativeGetImagePixels(long handle, Bitmap bitmap);
+	static native int nativeGetImagePixelsTransformed(long handle, Bitmap bitmap, int rotation, boolean flip);
+	static native int nativeSetImagePixels(long handle, Bitmap bitmap);
+	static native int nativeGetImageBuffer(long handle, ByteBuffer buffer, int layout, int offset, int stride, int planeSize);
+	static native int nativeSetImageBuffer(long handle, ByteBuffer buffer, int layout, int offset, int stride, int planeSize);
+	static native void nativeImageFlipHorizontally(long handle);
+	static native int nativeImageRotate90(long handle);
+	static native void nativeImageRotate180(long handle);
+	static native int nativeImageCrop(long handle, float left, float top, float right, float bottom);
+	static native void nativeImageApplyFilter(long handle, int position);
+	static native int nativeImageLoadResized(long handle, String filePath, int maxPixels);
+	static native int nativeImageResize(long handle, int newWidth, int newHeight);
+	
+	/**
+	 * Copies the bitmap into native memory. The pixels are locked and copied in a single native
+	 * call; configs libjnigraphics can't read fall back to {@link #sendBitmapToNativeByRow(Bitmap)}.
+	 */
+	public static synchronized void sendBitmapToNative(Bitmap bitmap) {
+		final long start = Flags.DEBUG ? SystemClock.elapsedRealtime() : 0;
+		
+		nativeInitBitmap(bitmap.getWidth(), bitmap.getHeight());
+		final boolean bulk = nativeSetBitmapPixels(bitmap) == 0;
+		if (!bulk) {
+			sendBitmapToNativeByRow(bitmap);
+		}
+		
+		if (Flags.DEBUG) {
+			Log.d(TAG, "sendBitmapToNative " + bitmap.getWidth() + "x" + bitmap.getHeight() + " " + bitmap.getConfig()
+					+ (bulk ? " bulk: " : " by row: ") + (SystemClock.elapsedRealtime() - start) + "ms");
+		}
+	}
+	
+	/**
+	 * Copies the bitmap into native memory one row at a time, through an int[] per row. Expects
+	 * the native bitmap to already be initialised to the bitmap's size.
+	 */
+	public static synchronized void sendBitmapToNativeByRow(Bitmap bitmap) {
 		int width = bitmap.getWidth();
 		int height = bitmap.getHeight();
-		nativeInitBitmap(width, height);
 		int[] pixels = new int[width];
 		for (int y = 0; y < height; y++) {
 			bitmap.getPixels(pixels, 0, width, 0, y, width, 1);
@@ -163,7 +382,9 @@ public class PhotoProcessing
 		}
 	}
 	
-	public static Bitmap getBitmapFromNative(Bitmap bitmap) {
+	public static synchronized Bitmap getBitmapFromNative(Bitmap bitmap) {
+		final long start = Flags.DEBUG ? SystemClock.elapsedRealtime() : 0;
+		
 		int width = nativeGetBitmapWidth();
 		int height = nativeGetBitmapHeight();
 		
@@ -171,77 +392,46 @@ public class PhotoProcessing
 			Config config = Config.ARGB_8888;
 			if (bitmap != null) {
 				config = bitmap.getConfig();
-				bitmap.recycle();
+				BitmapPool.getDefault().put(bitmap);
 			}
-			bitmap = Bitmap.createBitmap(width, height, config);
+			bitmap = BitmapPool.getDefault().getOrCreate(width, height, config);
 		}
 
-		int[] pixels = new int[width];
-		for (int y = 0; y < height; y++) {
-			nativeGetBitmapRow(y, pixels);
-			bitmap.setPixels(pixels, 0, width, 0, y, width, 1);
+		final boolean bulk = nativeGetBitmapPixels(bitmap) == 0;
+		if (!bulk) {
+			getBitmapFromNativeByRow(bitmap);
+		}
+		
+		if (Flags.DEBUG) {
+			Log.d(TAG, "getBitmapFromNative " + width + "x" + height + " " + bitmap.getConfig()
+					+ (bulk ? " bulk: " : " by row: ") + (SystemClock.elapsedRealtime() - start) + "ms");
 		}
 				
 		return bitmap;
 	}
 	
-	public static Bitmap makeBitmapMutable(Bitmap bitmap) {
-		sendBitmapToNative(bitmap);
-		return getBitmapFromNative(bitmap);
-	}
-	
-	public static Bitmap resize(Bitmap bitmap, int newWidth, int newHeight) {
-		nativeInitBitmap(bitmap.getWidth(), bitmap.getHeight());
-		sendBitmapToNative(bitmap);
-		
-		nativeResizeBitmap(newWidth, newHeight);
-		
-		Config config = bitmap.getConfig();
-		bitmap.recycle();
-		bitmap = Bitmap.createBitmap(newWidth, newHeight, config);
-		bitmap = getBitmapFromNative(bitmap);
-		nativeDeleteBitmap();
-		
-		return bitmap;
+	/**
+	 * Copies native memory into the bitmap one row at a time. The bitmap must be mutable and the
+	 * same size as the native bitmap.
+	 */
+	public static synchronized void getBitmapFromNativeByRow(Bitmap bitmap) {
+		int width = bitmap.getWidth();
+		int height = bitmap.getHeight();
+		int[] pixels = new int[width];
+		for (int y = 0; y < height; y++) {
+			nativeGetBitmapRow(y, pixels);
+			bitmap.setPixels(pixels, 0, width, 0, y, width, 1);
+		}
 	}
 	
 	public static Bitmap rotate(Bitmap bitmap, int angle) {
-		int width = bitmap.getWidth();
-		int height = bitmap.getHeight();
-		Config config = bitmap.getConfig();
-		nativeInitBitmap(width, height);
-		sendBitmapToNative(bitmap);
-		
-		if (angle == 90) {
-			nativeRotate90();
-			bitmap.recycle();
-			bitmap = Bitmap.createBitmap(height, width, config);
-			bitmap = getBitmapFromNative(bitmap);
-			nativeDeleteBitmap();
-		} else if (angle == 180) {
-			nativeRotate180();
-			bitmap.recycle();
-			bitmap = Bitmap.createBitmap(width, height, config);
-			bitmap = getBitmapFromNative(bitmap);
-			nativeDeleteBitmap();
-		} else if (angle == 270) {
-			nativeRotate180();
-			nativeRotate90();
-			bitmap.recycle();
-			bitmap = Bitmap.createBitmap(height, width, config);
-			bitmap = getBitmapFromNative(bitmap);
-			nativeDeleteBitmap();
+		if (angle != 90 && angle != 180 && angle != 270) {
+			return bitmap;
 		}
-		
-		return bitmap;
+		return EditTransform.rotation(angle).apply(bitmap);
 	}
 	
 	public static Bitmap flipHorizontally(Bitmap bitmap) {
-		nativeInitBitmap(bitmap.getWidth(), bitmap.getHeight());
-		sendBitmapToNative(bitmap);
-		nativeFlipHorizontally();
-		bitmap = getBitmapFromNative(bitmap);
-		nativeDeleteBitmap();
-		return bitmap;
+		return EditTransform.flipHorizontally().apply(bitmap);
 	}
 }
@@ -0,0 +1,71 @@
+package com.rayboot.util;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Buffered stream which can be rewound to its start, so that an image's header can be parsed
+ * and the image then decoded without opening its source a second time. Everything read up to
+ * the rewind limit is kept in the buffer; bounds decodes read far less than that.
+ * <p/>
+ * BitmapFactory marks streams itself with a small read limit, so marks are never allowed to
+ * shrink the limit below the rewind limit.
+ *
+ * @author rayboot
+ * @from 14-5-22 17:30
+ * @TODO
+ */
+public class RewindableInputStream extends BufferedInputStream {
+
+    static final int BUFFER_SIZE = 16 * 1024;
+    static final int DEFAULT_REWIND_LIMIT = 128 * 1024;
+
+    private final int mRewindLimit;
+
+    public RewindableInputStream(InputStream in) {
+        this(in, DEFAULT_REWIND_LIMIT);
+    }
+
+    /**
+     * @param rewindLimit - Bytes which can be read while still being able to rewind
+     */
+    public RewindableInputStream(InputStream in, int rewindLimit) {
+        super(in, BUFFER_SIZE);
+        mRewindLimit = rewindLimit;
+        mark(rewindLimit);
+    }
+
+    @Override
+    public synchronized void mark(int readlimit) {
+        super.mark(Math.max(readlimit, mRewindLimit));
+    }
+
+    /**
+     * Goes back to the start of the stream, or to wherever it was last marked.
+     *
+     * @return false if too much has been read to go back, in which case the source needs to be
+     * opened again
+     */
+    public boolean rewind() {
+        try {
+            reset();
+            return true;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Closes the stream, ignoring any error. Safe to call with null.
+     */
+    public static void closeQuietly(InputStream in) {
+        if (null != in) {
+            try {
+                in.close();
+            } catch (IOException e) {
+                // Do nothing
+            }
+        }
+    }
+}
@@ -24,6 +24,7 @@ import android.graphics.BitmapFactory;
 import android.graphics.Canvas;
 import android.graphics.Matrix;
 import android.net.Uri;
+import android.os.Build;
 import android.os.Environment;
 import android.provider.MediaStore;
 import android.util.Log;
@@ -31,6 +32,7 @@ import android.view.View;
 import com.rayboot.MyApp;
 import java.io.File;
 import java.io.FileNotFoundException;
+import java.io.IOException;
 
 public class Utils
 {
@@ -112,94 +114,164 @@ public class Utils
     public static Bitmap decodeImage(final ContentResolver resolver,
             final Uri uri, final int MAX_DIM) throws FileNotFoundException
     {
+        return decodeImage(resolver, uri, MAX_DIM, null);
+    }
+
+    /**
+     * Opens the image once, reading its bounds from the start of the stream with
+     * {@link ImageHeaderParser} and then rewinding to decode it from the same stream. The stream is only opened again if the header was too
+     * big to rewind over.
+     *
+     * @param metadata - Cached metadata for the image, which saves decoding its bounds. May be
+     * null.
+     */
+    public static Bitmap decodeImage(final ContentResolver resolver,
+            final Uri uri, final int MAX_DIM, final PhotoMetadataCache.Metadata metadata)
+            throws FileNotFoundException
+    {
+        return decodeImage(resolver, uri, MAX_DIM, metadata, Bitmap.Config.RGB_565);
+    }
 
-        // Get original dimensions
-        BitmapFactory.Options o = new BitmapFactory.Options();
-        o.inJustDecodeBounds = true;
+    /**
+     * @param config - Config to decode to. RGB_565 is fine for display, anything saved needs
+     * ARGB_8888 to avoid banding.
+     */
+    public static Bitmap decodeImage(final ContentResolver resolver,
+            final Uri uri, final int MAX_DIM, final PhotoMetadataCache.Metadata metadata,
+            final Bitmap.Config config) throws FileNotFoundException
+    {
+        RewindableInputStream in = null;
         try
         {
-            BitmapFactory.decodeStream(resolver.openInputStream(uri), null, o);
-        }
-        catch (SecurityException se)
-        {
-            se.printStackTrace();
-            return null;
-        }
+            in = new RewindableInputStream(resolver.openInputStream(uri));
 
-        final int origWidth = o.outWidth;
-        final int origHeight = o.outHeight;
+            BitmapFactory.Options o = new BitmapFactory.Options();
 
-        // Holds returned bitmap
-        Bitmap bitmap;
+            final int origWidth;
+            final int origHeight;
+            if (null != metadata)
+            {
+                origWidth = metadata.getWidth();
+                origHeight = metadata.getHeight();
+            }
+            else
+            {
+                // Get original dimensions, from the header if it's a JPEG or PNG
+                ImageHeaderParser.Header header = null;
+                try
+                {
+                    header = ImageHeaderParser.parse(in);
+                }
+                catch (IOException e)
+                {
+                    // Let BitmapFactory have a go instead
+                }
+                in = rewindOrReopen(resolver, uri, in);
 
-        o.inJustDecodeBounds = false;
-        o.inScaled = false;
-        o.inPurgeable = true;
-        o.inInputShareable = true;
-        o.inDither = true;
-        o.inPreferredConfig = Bitmap.Config.RGB_565;
+                if (null != header)
+                {
+                    origWidth = header.width;
+                    origHeight = header.height;
+                }
+                else
+                {
+                    o.inJustDecodeBounds = true;
+                    BitmapFactory.decodeStream(in, null, o);
+                    in = rewindOrReopen(resolver, uri, in);
 
-        if (origWidth > MAX_DIM || origHeight > MAX_DIM)
-        {
-            int k = 1;
-            int tmpHeight = origHeight, tmpWidth = origWidth;
-            while ((tmpWidth / 2) >= MAX_DIM || (tmpHeight / 2) >= MAX_DIM)
+                    origWidth = o.outWidth;
+                    origHeight = o.outHeight;
+                }
+            }
+
+            // Holds returned bitmap
+            Bitmap bitmap;
+
+            o.inJustDecodeBounds = false;
+            o.inScaled = false;
+            o.inDither = true;
+            o.inPreferredConfig = config;
+
+            if (origWidth > MAX_DIM || origHeight > MAX_DIM)
+            {
+                int k = 1;
+                int tmpHeight = origHeight, tmpWidth = origWidth;
+                while ((tmpWidth / 2) >= MAX_DIM || (tmpHeight / 2) >= MAX_DIM)
+                {
+                    tmpWidth /= 2;
+                    tmpHeight /= 2;
+                    k *= 2;
+                }
+                o.inSampleSize = k;
+            }
+
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB)
+            {
+                // Decode into a pooled bitmap if there's one big enough. The sampled size is
+                // rounded up, so a bitmap is never picked which is too small
+                final int k = Math.max(1, o.inSampleSize);
+                BitmapPool.getDefault().setInBitmap(o, (origWidth + k - 1) / k,
+                        (origHeight + k - 1) / k);
+            }
+            else
+            {
+                o.inPurgeable = true;
+                o.inInputShareable = true;
+            }
+
+            try
             {
-                tmpWidth /= 2;
-                tmpHeight /= 2;
-                k *= 2;
+                bitmap = BitmapFactory.decodeStream(in, null, o);
+            }
+            catch (IllegalArgumentException e)
+            {
+                // The pooled bitmap couldn't be decoded into, so give it back and decode afresh
+                BitmapPool.getDefault().put(o.inBitmap);
+                o.inBitmap = null;
+                in = rewindOrReopen(resolver, uri, in);
+                bitmap = BitmapFactory.decodeStream(in, null, o);
+            }
+
+            if (null != bitmap)
+            {
+                if (Flags.DEBUG)
+                {
+                    Log.d("Utils",
+                            "Resized bitmap to: " + bitmap.getWidth() + "x" + bitmap
+                                    .getHeight());
+                }
             }
-            o.inSampleSize = k;
 
-            bitmap = BitmapFactory.decodeStream(resolver.openInputStream(uri),
-                    null, o);
+            return bitmap;
         }
-        else
+        catch (SecurityException se)
         {
-            bitmap = BitmapFactory.decodeStream(resolver.openInputStream(uri),
-                    null, o);
+            se.printStackTrace();
+            return null;
         }
-
-        if (null != bitmap)
+        finally
         {
-            if (Flags.DEBUG)
-            {
-                Log.d("Utils",
-                        "Resized bitmap to: " + bitmap.getWidth() + "x" + bitmap
-                                .getHeight());
-            }
+            RewindableInputStream.closeQuietly(in);
         }
-
-        return bitmap;
     }
 
-    public static Bitmap fineResizePhoto(final Bitmap bitmap,
-            final int maxDimension)
+    /**
+     * @return in, rewound to the start, or a newly opened stream if it couldn't be rewound
+     */
+    private static RewindableInputStream rewindOrReopen(final ContentResolver resolver,
+            final Uri uri, final RewindableInputStream in) throws FileNotFoundException
     {
-        Utils.checkPhotoProcessingThread();
-
-        final int width = bitmap.getWidth();
-        final int height = bitmap.getHeight();
-        final int biggestDimension = Math.max(width, height);
-
-        if (biggestDimension <= maxDimension)
+        if (in.rewind())
         {
-            return bitmap;
+            return in;
         }
 
-        final float ratio = maxDimension / (float) biggestDimension;
-        Bitmap resized =
-                PhotoProcessing.resize(bitmap, Math.round(width * ratio),
-                        Math.round(height * ratio));
         if (Flags.DEBUG)
         {
-            Log.d("PhotoUpload", "Finely resized to: "
-                    + resized.getWidth()
-                    + "x"
-                    + resized.getHeight());
+            Log.d("Utils", "Header too big to rewind, reopening: " + uri);
         }
-
-        return resized;
+        RewindableInputStream.closeQuietly(in);
+        return new RewindableInputStream(resolver.openInputStream(uri));
     }
 
     public static boolean hasCamera(Context context)
@@ -216,6 +288,14 @@ public class Utils
         return new File(dir, "photup_" + System.currentTimeMillis() + ".jpg");
     }
 
+    public static File getExportPhotoFile()
+    {
+        File dir = new File(Environment.getExternalStoragePublicDirectory(
+                Environment.DIRECTORY_PICTURES), "ImgProc");
+        dir.mkdirs();
+        return new File(dir, "IMG_" + System.currentTimeMillis() + ".jpg");
+    }
+
     public static Bitmap rotate(Bitmap original, final int angle)
     {
         if ((angle % 360) == 0)
@@ -229,8 +309,9 @@ public class Utils
         final int newWidth = dimensionsChanged ? oldHeight : oldWidth;
         final int newHeight = dimensionsChanged ? oldWidth : oldHeight;
 
-        Bitmap bitmap =
-                Bitmap.createBitmap(newWidth, newHeight, original.getConfig());
+        // Every pixel is drawn over, so a pooled bitmap will do
+        Bitmap bitmap = BitmapPool.getDefault()
+                .getOrCreate(newWidth, newHeight, original.getConfig());
         Canvas canvas = new Canvas(bitmap);
 
         Matrix matrix = new Matrix();
@@ -240,7 +321,7 @@ public class Utils
                 bitmap.getHeight() / 2);
         canvas.drawBitmap(original, matrix, null);
 
-        original.recycle();
+        BitmapPool.getDefault().put(original);
 
         return bitmap;
     }
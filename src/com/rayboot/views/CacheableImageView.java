@@ -0,0 +1,87 @@
+package com.rayboot.views;
+
+import android.content.Context;
+import android.graphics.drawable.BitmapDrawable;
+import android.graphics.drawable.Drawable;
+import android.util.AttributeSet;
+import android.widget.ImageView;
+import com.rayboot.util.CacheableBitmap;
+
+/**
+ * ImageView which displays bitmaps from {@link com.rayboot.util.BitmapMemoryCache}. It holds the
+ * lease on the bitmap it's displaying, and releases it as soon as something else is displayed or
+ * the view is detached, so the bitmap can be recycled once the cache has evicted it.
+ *
+ * @author rayboot
+ * @from 14-5-19 14:20
+ * @TODO
+ */
+public class CacheableImageView extends ImageView {
+
+    private CacheableBitmap.Lease mDisplayedLease;
+
+    public CacheableImageView(Context context) {
+        super(context);
+    }
+
+    public CacheableImageView(Context context, AttributeSet attrs) {
+        super(context, attrs);
+    }
+
+    /**
+     * Displays the leased bitmap. The view takes ownership of the lease, so the caller mustn't
+     * release it.
+     */
+    public void setImageCachedBitmap(CacheableBitmap.Lease lease) {
+        if (null != lease) {
+            setImageDrawable(new BitmapDrawable(getResources(), lease.getBitmap()));
+        } else {
+            setImageDrawable(null);
+        }
+        mDisplayedLease = lease;
+    }
+
+    /**
+     * @return the cached bitmap currently displayed, or null. To use it off the UI thread, take
+     * out a lease with {@link CacheableBitmap#acquire()}.
+     */
+    public CacheableBitmap getCachedBitmap() {
+        return null != mDisplayedLease ? mDisplayedLease.getCacheableBitmap() : null;
+    }
+
+    @Override
+    public void setImageDrawable(Drawable drawable) {
+        super.setImageDrawable(drawable);
+        // Released after the new drawable is set, so the old bitmap is never drawn once recycled
+        releaseDisplayedLease();
+    }
+
+    @Override
+    public void setImageResource(int resId) {
+        super.setImageResource(resId);
+        releaseDisplayedLease();
+    }
+
+    /**
+     * Sets the current drawable again, keeping the lease, so that a change in its intrinsic size
+     * is picked up. ImageView only reads the size when a drawable is set.
+     */
+    protected void onDrawableSizeChanged() {
+        final Drawable drawable = getDrawable();
+        super.setImageDrawable(null);
+        super.setImageDrawable(drawable);
+    }
+
+    @Override
+    protected void onDetachedFromWindow() {
+        super.onDetachedFromWindow();
+        setImageDrawable(null);
+    }
+
+    private void releaseDisplayedLease() {
+        if (null != mDisplayedLease) {
+            mDisplayedLease.release();
+            mDisplayedLease = null;
+        }
+    }
+}
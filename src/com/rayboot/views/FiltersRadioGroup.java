@@ -38,7 +38,11 @@ import com.rayboot.MyApp;
 import com.rayboot.model.Filter;
 import com.rayboot.model.PhotoObj;
 import com.rayboot.tasks.PhotupThreadRunnable;
+import com.rayboot.util.BitmapMemoryCache;
+import com.rayboot.util.CacheableBitmap;
+import com.rayboot.util.FilterPreviewCache;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 
 public class FiltersRadioGroup extends RadioGroup implements AnimationListener {
 
@@ -51,26 +55,47 @@ public class FiltersRadioGroup extends RadioGroup implements AnimationListener {
 
         private final PhotoObj mPhotoFilterObj;
         private final Filter mFilter;
+        private final FilterPreviewCache mCache;
+        private final BitmapMemoryCache mImageCache;
 
         public FilterRunnable(Context context, PhotoObj photoFilterObj, Filter filter,
-                RadioButton button) {
+                RadioButton button, FilterPreviewCache cache, BitmapMemoryCache imageCache) {
             mContext = context;
             mPhotoFilterObj = photoFilterObj;
             mFilter = filter;
             mButton = button;
+            mCache = cache;
+            mImageCache = imageCache;
         }
 
         public void runImpl() {
-            Bitmap bitmap = mPhotoFilterObj
-                    .processBitmapUsingFilter(mPhotoFilterObj.getThumbnailImage(mContext), mFilter, false,
-                            true);
+            mPhotoFilterObj.updateSourceVersion(mContext);
+            final String key = mPhotoFilterObj.getFilterPreviewKey(mFilter);
+
+            // May have been rendered in an earlier run of the app
+            Bitmap bitmap = mCache.get(key);
+
+            if (null == bitmap) {
+                final CacheableBitmap.Lease thumbnail = getThumbnail();
+                if (null == thumbnail) {
+                    return;
+                }
+                try {
+                    bitmap = mPhotoFilterObj
+                            .processBitmapUsingFilter(thumbnail.getBitmap(), mFilter, false,
+                                    false);
+                } finally {
+                    thumbnail.release();
+                }
+                // Cache it even if we've been interrupted, it's likely to be asked for again
+                mCache.put(key, bitmap);
+            }
 
             if (isInterrupted()) {
-                bitmap.recycle();
                 return;
             }
 
-            final Drawable background = createDrawable(mContext.getResources(), bitmap);
+            final Drawable background = createDrawable(mContext, bitmap);
 
             mButton.post(new Runnable() {
                 @SuppressWarnings("deprecation")
@@ -80,32 +105,56 @@ public class FiltersRadioGroup extends RadioGroup implements AnimationListener {
             });
         }
 
-        private Drawable createDrawable(final Resources resources, final Bitmap bitmap) {
-            final StateListDrawable stateListD = new StateListDrawable();
-            final Drawable bitmapDrawable = new BitmapDrawable(mContext.getResources(), bitmap);
-            final int inset = resources.getDimensionPixelSize(R.dimen.gridview_item_margin);
+        /**
+         * Every preview is rendered from the same thumbnail, so it's only decoded by whichever
+         * runs first and shared from the image cache after that.
+         */
+        private CacheableBitmap.Lease getThumbnail() {
+            final String key = mPhotoFilterObj.getThumbnailImageKey();
+            synchronized (mPhotoFilterObj) {
+                CacheableBitmap.Lease lease = mImageCache.getOrInflate(key);
+                if (null == lease) {
+                    final Bitmap bitmap = mPhotoFilterObj.getThumbnailImage(mContext);
+                    if (null != bitmap) {
+                        lease = mImageCache.put(key, bitmap);
+                    }
+                }
+                return lease;
+            }
+        }
+    }
+
+    static Drawable createDrawable(final Context context, final Bitmap bitmap) {
+        final Resources resources = context.getResources();
+        final StateListDrawable stateListD = new StateListDrawable();
+        final Drawable bitmapDrawable = new BitmapDrawable(resources, bitmap);
+        final int inset = resources.getDimensionPixelSize(R.dimen.gridview_item_margin);
 
-            Drawable bgDrawable = new ColorDrawable(Color.TRANSPARENT);
-            LayerDrawable layer = new LayerDrawable(new Drawable[]{bgDrawable, bitmapDrawable});
-            layer.setLayerInset(1, inset, inset, inset, inset);
-            stateListD.addState(new int[]{-android.R.attr.state_checked}, layer);
+        Drawable bgDrawable = new ColorDrawable(Color.TRANSPARENT);
+        LayerDrawable layer = new LayerDrawable(new Drawable[]{bgDrawable, bitmapDrawable});
+        layer.setLayerInset(1, inset, inset, inset, inset);
+        stateListD.addState(new int[]{-android.R.attr.state_checked}, layer);
 
-            bgDrawable = resources.getDrawable(R.drawable.photo_gallery_background);
-            layer = new LayerDrawable(new Drawable[]{bgDrawable, bitmapDrawable});
-            layer.setLayerInset(1, inset, inset, inset, inset);
-            stateListD.addState(new int[]{android.R.attr.state_checked}, layer);
+        bgDrawable = resources.getDrawable(R.drawable.photo_gallery_background);
+        layer = new LayerDrawable(new Drawable[]{bgDrawable, bitmapDrawable});
+        layer.setLayerInset(1, inset, inset, inset, inset);
+        stateListD.addState(new int[]{android.R.attr.state_checked}, layer);
 
-            return stateListD;
-        }
-    };
+        return stateListD;
+    }
 
     private final Animation mSlideInBottomAnim, mSlideOutBottomAnim;
     private final ExecutorService mExecutor;
+    private final FilterPreviewCache mPreviewCache;
+    private final BitmapMemoryCache mImageCache;
+    private final Future<?>[] mPendingPreviews = new Future<?>[Filter.values().length];
 
     public FiltersRadioGroup(Context context, AttributeSet attrs) {
         super(context, attrs);
 
         mExecutor = MyApp.getApplication(context).getPhotoFilterThreadExecutorService();
+        mPreviewCache = MyApp.getApplication(context).getFilterPreviewCache();
+        mImageCache = MyApp.getApplication(context).getImageCache();
 
         mSlideInBottomAnim = AnimationUtils.loadAnimation(context, R.anim.slide_in_bottom);
         mSlideInBottomAnim.setAnimationListener(this);
@@ -128,10 +177,26 @@ public class FiltersRadioGroup extends RadioGroup implements AnimationListener {
         }
     }
 
+    @SuppressWarnings("deprecation")
     public void setPhotoUpload(PhotoObj upload) {
         for (final Filter filter : Filter.values()) {
-            final RadioButton button = (RadioButton) findViewById(filter.getId());
-            mExecutor.submit(new FilterRunnable(getContext(), upload, filter, button));
+            final int id = filter.getId();
+
+            // Anything still rendering is for the previous photo
+            if (null != mPendingPreviews[id]) {
+                mPendingPreviews[id].cancel(true);
+                mPendingPreviews[id] = null;
+            }
+
+            final RadioButton button = (RadioButton) findViewById(id);
+            final Bitmap cached = mPreviewCache.getFromMemory(upload.getFilterPreviewKey(filter));
+            if (null != cached) {
+                button.setBackgroundDrawable(createDrawable(getContext(), cached));
+            } else {
+                mPendingPreviews[id] = mExecutor.submit(
+                        new FilterRunnable(getContext(), upload, filter, button, mPreviewCache,
+                                mImageCache));
+            }
         }
 
         Filter filter = upload.getFilterUsed();
@@ -16,20 +16,25 @@
 package com.rayboot.views;
 
 import android.content.Context;
+import android.graphics.Canvas;
 import android.graphics.RectF;
 import android.graphics.drawable.Drawable;
 import android.util.AttributeSet;
 import android.view.View;
 import com.rayboot.listeners.OnPhotoTagTapListener;
 import com.rayboot.listeners.OnSingleTapListener;
+import com.rayboot.model.PhotoObj;
 import com.rayboot.model.PhotoTag;
 import uk.co.senab.photoview.PhotoViewAttacher;
 import uk.co.senab.photoview.PhotoViewAttacher.OnMatrixChangedListener;
 
 public class MultiTouchImageView extends PhotupImageView
-        implements PhotoViewAttacher.OnPhotoTapListener {
+        implements PhotoViewAttacher.OnPhotoTapListener, OnMatrixChangedListener {
 
     private final PhotoViewAttacher mAttacher;
+    private final TileLayer mTileLayer;
+
+    private OnMatrixChangedListener mMatrixChangeListener;
 
     private OnSingleTapListener mSingleTapListener;
     private OnPhotoTagTapListener mTagTapListener;
@@ -41,6 +46,11 @@ public class MultiTouchImageView extends PhotupImageView
     public MultiTouchImageView(Context context, AttributeSet attr) {
         super(context, attr);
         mAttacher = new PhotoViewAttacher(this);
+        // The attacher only takes one listener, so others are passed on from here
+        mAttacher.setOnMatrixChangeListener(this);
+        mTileLayer = new TileLayer(this);
+        // Rotating is then instant, as the render is only turned on screen
+        setUserRotationOnScreen(true);
     }
 
     /**
@@ -53,12 +63,41 @@ public class MultiTouchImageView extends PhotupImageView
         return mAttacher.getDisplayRect();
     }
 
+    /**
+     * As well as loading the display sized image, starts rendering tiles for when the photo is
+     * zoomed in. Tiles have the photo's edits, so are only used when honourFilter is set.
+     */
+    @Override
+    public void requestFullSize(PhotoObj upload, boolean honourFilter,
+            boolean clearDrawableOnLoad, OnPhotoLoadListener listener) {
+        // Before the request, as a cached image is displayed straight away
+        if (honourFilter) {
+            mTileLayer.setPhoto(upload);
+        } else {
+            mTileLayer.reset();
+        }
+        super.requestFullSize(upload, honourFilter, clearDrawableOnLoad, listener);
+    }
+
+    @Override
+    public void setScreenRotation(int rotation) {
+        super.setScreenRotation(rotation);
+        // A half turn doesn't change the display rect, but does change what's visible
+        mTileLayer.update(getDisplayRect());
+    }
+
     @Override
     public void setImageDrawable(Drawable drawable) {
         super.setImageDrawable(drawable);
         mAttacher.update();
     }
 
+    @Override
+    protected void onDrawableSizeChanged() {
+        super.onDrawableSizeChanged();
+        mAttacher.update();
+    }
+
     /**
      * Register a callback to be invoked when the Matrix has changed for this View. An example would be
      * the user panning or scaling the Photo.
@@ -66,7 +105,15 @@ public class MultiTouchImageView extends PhotupImageView
      * @param listener - Listener to be registered.
      */
     public void setOnMatrixChangeListener(OnMatrixChangedListener listener) {
-        mAttacher.setOnMatrixChangeListener(listener);
+        mMatrixChangeListener = listener;
+    }
+
+    public void onMatrixChanged(RectF rect) {
+        mTileLayer.update(rect);
+
+        if (null != mMatrixChangeListener) {
+            mMatrixChangeListener.onMatrixChanged(rect);
+        }
     }
 
     /**
@@ -106,4 +153,16 @@ public class MultiTouchImageView extends PhotupImageView
         mAttacher.setZoomable(zoomable);
     }
 
+    @Override
+    protected void onDraw(Canvas canvas) {
+        super.onDraw(canvas);
+        mTileLayer.draw(canvas, getDisplayRect());
+    }
+
+    @Override
+    protected void onDetachedFromWindow() {
+        super.onDetachedFromWindow();
+        mTileLayer.reset();
+    }
+
 }
@@ -27,12 +27,14 @@ import android.util.Log;
 import com.rayboot.MyApp;
 import com.rayboot.model.PhotoObj;
 import com.rayboot.tasks.PhotupThreadRunnable;
+import com.rayboot.util.BitmapMemoryCache;
+import com.rayboot.util.BitmapPool;
+import com.rayboot.util.CacheableBitmap;
+import com.rayboot.util.DiskBitmapCache;
 import com.rayboot.util.Flags;
 import java.lang.ref.WeakReference;
+import java.util.concurrent.CancellationException;
 import java.util.concurrent.Future;
-import uk.co.senab.bitmapcache.BitmapLruCache;
-import uk.co.senab.bitmapcache.CacheableBitmapWrapper;
-import uk.co.senab.bitmapcache.CacheableImageView;
 
 public class PhotupImageView extends CacheableImageView {
 
@@ -45,18 +47,25 @@ public class PhotupImageView extends CacheableImageView {
     {
 
         private final PhotoObj mUpload;
-        private final CacheableBitmapWrapper mBitmapWrapper;
+        private final CacheableBitmap mBitmap;
 
-        public FaceDetectionRunnable(PhotoObj upload, CacheableBitmapWrapper bitmap) {
+        public FaceDetectionRunnable(PhotoObj upload, CacheableBitmap bitmap) {
             mUpload = upload;
-            mBitmapWrapper = bitmap;
+            mBitmap = bitmap;
         }
 
         public void runImpl() {
-            if (mBitmapWrapper.hasValidBitmap()) {
-                mUpload.detectPhotoTags(mBitmapWrapper.getBitmap());
+            // Only leased once we're running, so nothing is held if we're cancelled while queued
+            final CacheableBitmap.Lease lease = mBitmap.acquire();
+            if (null == lease) {
+                return;
+            }
+
+            try {
+                mUpload.detectPhotoTags(lease.getBitmap());
+            } finally {
+                lease.release();
             }
-            mBitmapWrapper.setBeingUsed(false);
         }
     }
 
@@ -65,16 +74,21 @@ public class PhotupImageView extends CacheableImageView {
         private final WeakReference<PhotupImageView> mImageView;
         private final PhotoObj mUpload;
         private final boolean mFullSize;
-        private final BitmapLruCache mCache;
+        private final boolean mWithUserRotation;
+        private final BitmapMemoryCache mCache;
+        private final DiskBitmapCache mDiskCache;
         private final OnPhotoLoadListener mListener;
 
         public PhotoFilterRunnable(PhotupImageView imageView, PhotoObj upload,
-                BitmapLruCache cache,
-                final boolean fullSize, final OnPhotoLoadListener listener) {
+                BitmapMemoryCache cache, DiskBitmapCache diskCache,
+                final boolean fullSize, final boolean withUserRotation,
+                final OnPhotoLoadListener listener) {
             mImageView = new WeakReference<PhotupImageView>(imageView);
             mUpload = upload;
             mFullSize = fullSize;
+            mWithUserRotation = withUserRotation;
             mCache = cache;
+            mDiskCache = diskCache;
             mListener = listener;
         }
 
@@ -85,45 +99,118 @@ public class PhotupImageView extends CacheableImageView {
             }
 
             final Context context = imageView.getContext();
-            final Bitmap filteredBitmap;
+            mUpload.updateSourceVersion(context);
+            final String renderKey = mUpload.getRenderedImageKey(context, mFullSize,
+                    mWithUserRotation);
+
+            // The same edits may have been rendered while we were queued
+            CacheableBitmap.Lease result = mCache.getOrInflate(renderKey);
+
+            if (null == result) {
+                // Or rendered by an earlier run, and kept on disk
+                final Bitmap renderedOnDisk = mDiskCache.get(renderKey, Bitmap.Config.ARGB_8888);
+                if (null != renderedOnDisk) {
+                    result = mCache.put(renderKey, renderedOnDisk);
+                }
+            }
+
+            if (null == result) {
+                try {
+                    result = render(context, renderKey);
+                } catch (CancellationException e) {
+                    // Interrupted part way through filtering, so there's nothing worth keeping
+                    return;
+                }
+            }
+
+            if (null == result) {
+                return;
+            }
+
+            // If we haven't been interrupted, update the view
+            if (isInterrupted()) {
+                result.release();
+            } else {
+                postResult(imageView, result);
+            }
+        }
 
+        private CacheableBitmap.Lease render(final Context context, final String renderKey) {
             final String key = mFullSize ? mUpload.getDisplayImageKey()
                     : mUpload.getThumbnailImageKey();
-            CacheableBitmapWrapper wrapper = mCache.get(key);
+            CacheableBitmap.Lease source = mCache.getOrInflate(key);
 
-            if (null == wrapper || !wrapper.hasValidBitmap()) {
-                Bitmap bitmap = mFullSize ? mUpload.getDisplayImage(context)
-                        : mUpload.getThumbnailImage(context);
-                wrapper = new CacheableBitmapWrapper(key, bitmap);
-                wrapper.setBeingUsed(true);
-                mCache.put(wrapper);
-            } else {
-                wrapper.setBeingUsed(true);
+            if (null == source) {
+                final Bitmap bitmap = mDiskCache.get(key, Bitmap.Config.RGB_565);
+                if (null != bitmap) {
+                    source = mCache.put(key, bitmap);
+                }
             }
 
-            // Don't process if we've been interrupted
-            if (!isInterrupted()) {
-                filteredBitmap = mUpload.processBitmap(wrapper.getBitmap(), mFullSize, false);
-            } else {
-                filteredBitmap = null;
+            if (mFullSize && null == source) {
+                // Nothing to reuse, so decode and render in one pass
+                return cacheRender(renderKey,
+                        mUpload.getProcessedDisplayImage(context, mWithUserRotation));
+            }
+
+            if (null == source) {
+                final Bitmap bitmap = mFullSize ? mUpload.getDisplayImage(context)
+                        : mUpload.getThumbnailImage(context);
+                if (null == bitmap) {
+                    return null;
+                }
+                source = mCache.put(key, bitmap);
+                mDiskCache.put(key, source.getCacheableBitmap());
             }
 
-            // Make sure we release the original bitmap
-            wrapper.setBeingUsed(false);
+            try {
+                // Don't process if we've been interrupted
+                if (isInterrupted()) {
+                    return null;
+                }
 
-            // If we haven't been interrupted, update the view
-            if (!isInterrupted()) {
+                final Bitmap filtered = mUpload.processBitmap(source.getBitmap(), mFullSize,
+                        false, mWithUserRotation);
+                if (filtered == source.getBitmap()) {
+                    // Nothing needed doing after all, so share the source
+                    return source.getCacheableBitmap().acquire();
+                }
+                return cacheRender(renderKey, filtered);
+            } finally {
+                // Make sure we release the original bitmap
+                source.release();
+            }
+        }
+
+        /**
+         * Caches a finished render. Renders made after we've been interrupted aren't trusted,
+         * as they're stored under the edits' key and would be shown from then on, so are
+         * dropped instead.
+         */
+        private CacheableBitmap.Lease cacheRender(final String renderKey, final Bitmap bitmap) {
+            if (null == bitmap) {
+                return null;
+            }
+            if (isInterrupted()) {
+                BitmapPool.getDefault().put(bitmap);
+                return null;
+            }
+            final CacheableBitmap.Lease lease = mCache.put(renderKey, bitmap);
+            mDiskCache.put(renderKey, lease.getCacheableBitmap());
+            return lease;
+        }
 
-                imageView.post(new Runnable() {
-                    public void run() {
-                        imageView.setImageBitmap(filteredBitmap);
+        private void postResult(final PhotupImageView imageView,
+                final CacheableBitmap.Lease result) {
+            imageView.post(new Runnable() {
+                public void run() {
+                    imageView.setImageCachedBitmap(result);
 
-                        if (null != mListener) {
-                            mListener.onPhotoLoadFinished(filteredBitmap);
-                        }
+                    if (null != mListener) {
+                        mListener.onPhotoLoadFinished(result.getBitmap());
                     }
-                });
-            }
+                }
+            });
         }
     }
 
@@ -132,16 +219,18 @@ public class PhotupImageView extends CacheableImageView {
         private final WeakReference<PhotupImageView> mImageView;
         private final PhotoObj mUpload;
         private final boolean mFullSize;
-        private final BitmapLruCache mCache;
+        private final BitmapMemoryCache mCache;
+        private final DiskBitmapCache mDiskCache;
         private final OnPhotoLoadListener mListener;
 
         public PhotoLoadRunnable(PhotupImageView imageView, PhotoObj upload,
-                BitmapLruCache cache,
+                BitmapMemoryCache cache, DiskBitmapCache diskCache,
                 final boolean fullSize, final OnPhotoLoadListener listener) {
             mImageView = new WeakReference<PhotupImageView>(imageView);
             mUpload = upload;
             mFullSize = fullSize;
             mCache = cache;
+            mDiskCache = diskCache;
             mListener = listener;
         }
 
@@ -152,38 +241,55 @@ public class PhotupImageView extends CacheableImageView {
             }
 
             final Context context = imageView.getContext();
-            final CacheableBitmapWrapper wrapper;
+            mUpload.updateSourceVersion(context);
+            final String key = mFullSize ? mUpload.getDisplayImageKey()
+                    : mUpload.getThumbnailImageKey();
 
-            final Bitmap bitmap = mFullSize ? mUpload.getDisplayImage(context)
-                    : mUpload.getThumbnailImage(context);
+            // Evicted from memory while we were queued, but may still be held compressed
+            final CacheableBitmap.Lease inflated = mCache.getOrInflate(key);
+            if (null != inflated) {
+                postResult(imageView, inflated);
+                return;
+            }
 
-            if (null != bitmap) {
-                final String key = mFullSize ? mUpload.getDisplayImageKey()
-                        : mUpload.getThumbnailImageKey();
-                wrapper = new CacheableBitmapWrapper(key, bitmap);
-            } else {
-                wrapper = null;
+            // Much cheaper than decoding the original again
+            Bitmap bitmap = mDiskCache.get(key, Bitmap.Config.RGB_565);
+            final boolean fromDisk = null != bitmap;
+
+            if (!fromDisk) {
+                bitmap = mFullSize ? mUpload.getDisplayImage(context)
+                        : mUpload.getThumbnailImage(context);
+            }
+
+            if (null == bitmap) {
+                return;
+            }
+
+            final CacheableBitmap.Lease lease = mCache.put(key, bitmap);
+            if (!fromDisk) {
+                mDiskCache.put(key, lease.getCacheableBitmap());
             }
+            postResult(imageView, lease);
+        }
 
-            // If we're interrupted, just update the cache and return
+        private void postResult(final PhotupImageView imageView,
+                final CacheableBitmap.Lease lease) {
+            // If we're interrupted, just leave it in the cache and return
             if (isInterrupted()) {
-                mCache.put(wrapper);
+                lease.release();
                 return;
             }
 
             // If we're still running, update the Views
-            if (null != wrapper) {
-                imageView.post(new Runnable() {
-                    public void run() {
-                        imageView.setImageCachedBitmap(wrapper);
-                        mCache.put(wrapper);
-
-                        if (null != mListener) {
-                            mListener.onPhotoLoadFinished(wrapper.getBitmap());
-                        }
+            imageView.post(new Runnable() {
+                public void run() {
+                    imageView.setImageCachedBitmap(lease);
+
+                    if (null != mListener) {
+                        mListener.onPhotoLoadFinished(lease.getBitmap());
                     }
-                });
-            }
+                }
+            });
         }
     }
 
@@ -213,6 +319,10 @@ public class PhotupImageView extends CacheableImageView {
     private Drawable mFadeFromDrawable;
     private int mFadeDuration;
 
+    private boolean mUserRotationOnScreen;
+    private int mScreenRotation;
+    private RotatedDrawable mRotatedDrawable;
+
     private Runnable mRequestFaceDetectionRunnable;
 
     private Future<?> mCurrentRunnable;
@@ -241,6 +351,9 @@ public class PhotupImageView extends CacheableImageView {
 
     public Bitmap getCurrentBitmap() {
         Drawable d = getDrawable();
+        if (d instanceof RotatedDrawable) {
+            d = ((RotatedDrawable) d).getWrappedDrawable();
+        }
         if (d instanceof BitmapDrawable) {
             return ((BitmapDrawable) d).getBitmap();
         }
@@ -256,6 +369,12 @@ public class PhotupImageView extends CacheableImageView {
     }
 
     public void recycleBitmap() {
+        if (null != getCachedBitmap()) {
+            // Cached bitmaps are recycled once the cache and every other lease are done with them
+            setImageDrawable(null);
+            return;
+        }
+
         Bitmap currentBitmap = getCurrentBitmap();
         if (null != currentBitmap) {
             setImageDrawable(null);
@@ -267,17 +386,21 @@ public class PhotupImageView extends CacheableImageView {
             final boolean clearDrawableOnLoad, final OnPhotoLoadListener listener) {
         resetForRequest(clearDrawableOnLoad);
 
-        if (upload.requiresProcessing(true) && honourFilter) {
+        if (mUserRotationOnScreen) {
+            setScreenRotation(upload.getUserRotation());
+        }
+
+        if (upload.requiresProcessing(true, !mUserRotationOnScreen) && honourFilter) {
             requestFiltered(upload, true, listener);
         } else {
             // Show thumbnail if it's in the cache
-            BitmapLruCache cache = MyApp.getApplication(getContext()).getImageCache();
-            CacheableBitmapWrapper thumbWrapper = cache.get(upload.getThumbnailImageKey());
-            if (null != thumbWrapper && thumbWrapper.hasValidBitmap()) {
+            BitmapMemoryCache cache = MyApp.getApplication(getContext()).getImageCache();
+            CacheableBitmap.Lease thumbLease = cache.get(upload.getThumbnailImageKey());
+            if (null != thumbLease) {
                 if (Flags.DEBUG) {
                     Log.d("requestFullSize", "Got Cached Thumbnail");
                 }
-                setImageCachedBitmap(thumbWrapper);
+                setImageCachedBitmap(thumbLease);
             } else {
                 setImageDrawable(null);
             }
@@ -301,6 +424,31 @@ public class PhotupImageView extends CacheableImageView {
         }
     }
 
+    /**
+     * When enabled, full size images are rendered without the user's rotation, which is instead
+     * applied when drawing. Rotating is then just a call to {@link #setScreenRotation(int)}, with
+     * nothing decoded or rendered, and the pixels are only rotated when the photo is saved.
+     * Thumbnails always have the rotation rendered in.
+     */
+    public void setUserRotationOnScreen(boolean onScreen) {
+        mUserRotationOnScreen = onScreen;
+    }
+
+    public boolean isUserRotationOnScreen() {
+        return mUserRotationOnScreen;
+    }
+
+    /**
+     * Turns whatever is displayed clockwise by rotation degrees. Only has an effect if
+     * {@link #setUserRotationOnScreen(boolean)} is enabled.
+     */
+    public void setScreenRotation(int rotation) {
+        mScreenRotation = rotation;
+        if (null != mRotatedDrawable && mRotatedDrawable.setRotation(rotation)) {
+            onDrawableSizeChanged();
+        }
+    }
+
     public void setFadeInDrawables(boolean fadeIn) {
         mFadeInDrawables = fadeIn;
 
@@ -312,6 +460,13 @@ public class PhotupImageView extends CacheableImageView {
 
     @Override
     public void setImageDrawable(Drawable drawable) {
+        if (mUserRotationOnScreen && null != drawable) {
+            mRotatedDrawable = new RotatedDrawable(drawable, mScreenRotation);
+            drawable = mRotatedDrawable;
+        } else {
+            mRotatedDrawable = null;
+        }
+
         if (mFadeInDrawables && null != drawable) {
             TransitionDrawable newDrawable = new TransitionDrawable(
                     new Drawable[]{mFadeFromDrawable, drawable});
@@ -323,42 +478,53 @@ public class PhotupImageView extends CacheableImageView {
     }
 
     private void requestFaceDetection(final PhotoObj upload) {
-        CacheableBitmapWrapper wrapper = getCachedBitmapWrapper();
-        if (null != wrapper && wrapper.hasValidBitmap()) {
-            wrapper.setBeingUsed(true);
-
+        CacheableBitmap bitmap = getCachedBitmap();
+        if (null != bitmap && bitmap.hasValidBitmap()) {
             MyApp app = MyApp.getApplication(getContext());
-            app.getMultiThreadExecutorService().submit(new FaceDetectionRunnable(upload, wrapper));
+            app.getMultiThreadExecutorService().submit(new FaceDetectionRunnable(upload, bitmap));
         }
     }
 
     private void requestFiltered(final PhotoObj upload, boolean fullSize,
             final OnPhotoLoadListener listener) {
         MyApp app = MyApp.getApplication(getContext());
+
+        // Rotated on screen rather than in the render, if enabled
+        final boolean withUserRotation = !fullSize || !mUserRotationOnScreen;
+
+        // Already rendered with the same edits, so there's nothing to process
+        final String renderKey = upload.getRenderedImageKey(getContext(), fullSize,
+                withUserRotation);
+        final CacheableBitmap.Lease rendered = app.getImageCache().get(renderKey);
+        if (null != rendered) {
+            setImageCachedBitmap(rendered);
+            if (null != listener) {
+                listener.onPhotoLoadFinished(rendered.getBitmap());
+            }
+            return;
+        }
+
         mCurrentRunnable = app.getPhotoFilterThreadExecutorService().submit(
-                new PhotoFilterRunnable(this, upload, app.getImageCache(), fullSize, listener));
+                new PhotoFilterRunnable(this, upload, app.getImageCache(),
+                        app.getDiskImageCache(), fullSize, withUserRotation, listener));
     }
 
     private void requestImage(final PhotoObj upload, final boolean fullSize,
             final OnPhotoLoadListener listener) {
         final String key = fullSize ? upload.getDisplayImageKey() : upload.getThumbnailImageKey();
-        BitmapLruCache cache = MyApp.getApplication(getContext()).getImageCache();
-        final CacheableBitmapWrapper cached = cache.get(key);
+        BitmapMemoryCache cache = MyApp.getApplication(getContext()).getImageCache();
+        final CacheableBitmap.Lease cached = cache.get(key);
 
-        if (null != cached && cached.hasValidBitmap()) {
+        if (null != cached) {
             setImageCachedBitmap(cached);
             if (null != listener) {
                 listener.onPhotoLoadFinished(cached.getBitmap());
             }
         } else {
-            // Means we have an object with an invalid bitmap so remove it
-            if (null != cached) {
-                cache.remove(key);
-            }
-
             MyApp app = MyApp.getApplication(getContext());
             mCurrentRunnable = app.getMultiThreadExecutorService().submit(
-                    new PhotoLoadRunnable(this, upload, cache, fullSize, listener));
+                    new PhotoLoadRunnable(this, upload, cache, app.getDiskImageCache(),
+                            fullSize, listener));
         }
     }
 
@@ -0,0 +1,123 @@
+package com.rayboot.views;
+
+import android.graphics.Canvas;
+import android.graphics.ColorFilter;
+import android.graphics.Rect;
+import android.graphics.drawable.Drawable;
+
+/**
+ * Draws another drawable turned clockwise by a multiple of 90 degrees. The intrinsic size is
+ * that of the turned drawable, so an ImageView lays it out as if the pixels themselves had been
+ * rotated. Changing the rotation only changes how the canvas is turned when drawing, so costs
+ * nothing and allocates nothing.
+ *
+ * @author rayboot
+ * @from 14-5-22 15:40
+ * @TODO
+ */
+public class RotatedDrawable extends Drawable implements Drawable.Callback {
+
+    private final Drawable mDrawable;
+    private int mRotation;
+
+    public RotatedDrawable(Drawable drawable, int rotation) {
+        mDrawable = drawable;
+        mDrawable.setCallback(this);
+        mRotation = normaliseAngle(rotation);
+    }
+
+    public Drawable getWrappedDrawable() {
+        return mDrawable;
+    }
+
+    public int getRotation() {
+        return mRotation;
+    }
+
+    /**
+     * @return true if the rotation changed. If it did and it swapped the intrinsic width and
+     * height, whoever lays out the drawable needs to size it again.
+     */
+    public boolean setRotation(int rotation) {
+        rotation = normaliseAngle(rotation);
+        if (rotation == mRotation) {
+            return false;
+        }
+        mRotation = rotation;
+        onBoundsChange(getBounds());
+        invalidateSelf();
+        return true;
+    }
+
+    @Override
+    public void draw(Canvas canvas) {
+        if (mRotation == 0) {
+            mDrawable.draw(canvas);
+            return;
+        }
+
+        final Rect bounds = getBounds();
+        final int saveCount = canvas.save();
+        canvas.rotate(mRotation, bounds.exactCenterX(), bounds.exactCenterY());
+        mDrawable.draw(canvas);
+        canvas.restoreToCount(saveCount);
+    }
+
+    @Override
+    protected void onBoundsChange(Rect bounds) {
+        if (swapsDimensions()) {
+            // Laid out unturned around the same centre, so it fills the bounds once turned
+            final int dx = (bounds.width() - bounds.height()) / 2;
+            mDrawable.setBounds(bounds.left + dx, bounds.top - dx, bounds.right - dx,
+                    bounds.bottom + dx);
+        } else {
+            mDrawable.setBounds(bounds);
+        }
+    }
+
+    @Override
+    public int getIntrinsicWidth() {
+        return swapsDimensions() ? mDrawable.getIntrinsicHeight() : mDrawable.getIntrinsicWidth();
+    }
+
+    @Override
+    public int getIntrinsicHeight() {
+        return swapsDimensions() ? mDrawable.getIntrinsicWidth() : mDrawable.getIntrinsicHeight();
+    }
+
+    @Override
+    public void setAlpha(int alpha) {
+        mDrawable.setAlpha(alpha);
+    }
+
+    @Override
+    public void setColorFilter(ColorFilter cf) {
+        mDrawable.setColorFilter(cf);
+    }
+
+    @Override
+    public int getOpacity() {
+        return mDrawable.getOpacity();
+    }
+
+    public void invalidateDrawable(Drawable who) {
+        invalidateSelf();
+    }
+
+    public void scheduleDrawable(Drawable who, Runnable what, long when) {
+        scheduleSelf(what, when);
+    }
+
+    public void unscheduleDrawable(Drawable who, Runnable what) {
+        unscheduleSelf(what);
+    }
+
+    private boolean swapsDimensions() {
+        return mRotation == 90 || mRotation == 270;
+    }
+
+    private static int normaliseAngle(int angle) {
+        angle %= 360;
+        return angle < 0 ? angle + 360 : angle;
+    }
+}
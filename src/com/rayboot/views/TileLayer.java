@@ -0,0 +1,373 @@
+package com.rayboot.views;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.RectF;
+import android.graphics.drawable.Drawable;
+import com.rayboot.MyApp;
+import com.rayboot.model.PhotoObj;
+import com.rayboot.model.TileSource;
+import com.rayboot.tasks.PhotupThreadRunnable;
+import com.rayboot.util.BitmapMemoryCache;
+import com.rayboot.util.CacheableBitmap;
+import java.lang.ref.WeakReference;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.Future;
+
+/**
+ * Full resolution detail drawn over a {@link MultiTouchImageView} once it's zoomed in past what
+ * its display sized bitmap can show. That bitmap stays underneath as a low resolution base
+ * layer, so there is always something on screen while tiles are rendered.
+ * <p/>
+ * Only the tiles covering the visible part of the photo are rendered, at the coarsest sample
+ * size which still gives a pixel for every pixel on screen. Tiles which scroll off screen, or
+ * are of the wrong sample size once the zoom changes, are cancelled if they're still queued and
+ * released if they've been drawn. Rendered tiles are kept in {@link MyApp#getTileCache()}, so
+ * panning back over them is quick.
+ * <p/>
+ * Everything here runs on the UI thread, apart from the runnables.
+ *
+ * @author rayboot
+ * @from 14-5-24 16:10
+ * @TODO
+ */
+class TileLayer {
+
+    /** Most decoded tile pixels held at once, as a multiple of the view's area */
+    static final float MAX_TILE_SCREENS = 2f;
+
+    static final class Entry {
+
+        final TileSource.Tile tile;
+        Future<?> future;
+        CacheableBitmap.Lease lease;
+
+        Entry(TileSource.Tile tile) {
+            this.tile = tile;
+        }
+
+        void cancel() {
+            if (null != future) {
+                future.cancel(true);
+                future = null;
+            }
+            if (null != lease) {
+                lease.release();
+                lease = null;
+            }
+        }
+    }
+
+    static final class OpenSourceRunnable extends PhotupThreadRunnable {
+
+        private final WeakReference<TileLayer> mLayer;
+        private final Context mContext;
+        private final PhotoObj mPhoto;
+
+        public OpenSourceRunnable(TileLayer layer, Context context, PhotoObj photo) {
+            mLayer = new WeakReference<TileLayer>(layer);
+            mContext = context;
+            mPhoto = photo;
+        }
+
+        public void runImpl() {
+            final TileSource source = TileSource.open(mContext, mPhoto);
+            if (null == source) {
+                return;
+            }
+
+            final TileLayer layer = mLayer.get();
+            if (null == layer || isInterrupted()) {
+                source.recycle();
+                return;
+            }
+
+            layer.mView.post(new Runnable() {
+                public void run() {
+                    layer.onSourceOpened(mPhoto, source);
+                }
+            });
+        }
+    }
+
+    static final class RenderTileRunnable extends PhotupThreadRunnable {
+
+        private final WeakReference<TileLayer> mLayer;
+        private final TileSource mSource;
+        private final TileSource.Tile mTile;
+        private final BitmapMemoryCache mCache;
+
+        public RenderTileRunnable(TileLayer layer, TileSource source, TileSource.Tile tile,
+                BitmapMemoryCache cache) {
+            mLayer = new WeakReference<TileLayer>(layer);
+            mSource = source;
+            mTile = tile;
+            mCache = cache;
+        }
+
+        public void runImpl() {
+            // Another view may have rendered the same tile while we were queued
+            CacheableBitmap.Lease result = mCache.get(mTile.getKey());
+
+            if (null == result) {
+                if (isInterrupted()) {
+                    return;
+                }
+                final Bitmap bitmap = mSource.renderTile(mTile);
+                if (null == bitmap) {
+                    return;
+                }
+                // Keep it even if we've been interrupted, panning back is likely
+                result = mCache.put(mTile.getKey(), bitmap);
+            }
+
+            final TileLayer layer = mLayer.get();
+            if (null == layer || isInterrupted()) {
+                result.release();
+                return;
+            }
+
+            final CacheableBitmap.Lease lease = result;
+            layer.mView.post(new Runnable() {
+                public void run() {
+                    layer.onTileRendered(mTile, lease);
+                }
+            });
+        }
+    }
+
+    static final class RecycleSourceRunnable implements Runnable {
+
+        private final TileSource mSource;
+
+        public RecycleSourceRunnable(TileSource source) {
+            mSource = source;
+        }
+
+        public void run() {
+            mSource.recycle();
+        }
+    }
+
+    private final MultiTouchImageView mView;
+    private final Paint mPaint = new Paint(Paint.FILTER_BITMAP_FLAG);
+    private final RectF mFrame = new RectF();
+    private final RectF mDest = new RectF();
+
+    private PhotoObj mPhoto;
+    private String mPhotoKey;
+    private TileSource mSource;
+    private Future<?> mOpenFuture;
+
+    private HashMap<String, Entry> mTiles = new HashMap<String, Entry>();
+
+    TileLayer(MultiTouchImageView view) {
+        mView = view;
+    }
+
+    /**
+     * Starts opening the photo for tiling, unless it's already open with the same edits. Until
+     * it's open, or if the edits can't be tiled, only the base layer is shown.
+     */
+    void setPhoto(PhotoObj photo) {
+        final String key = photo.getTileKey();
+        if (photo == mPhoto && key.equals(mPhotoKey)) {
+            return;
+        }
+
+        reset();
+        mPhoto = photo;
+        mPhotoKey = key;
+
+        if (TileSource.canTile(photo)) {
+            final MyApp app = MyApp.getApplication(mView.getContext());
+            mOpenFuture = app.getMultiThreadExecutorService().submit(
+                    new OpenSourceRunnable(this, app, photo));
+        }
+    }
+
+    /**
+     * Drops every tile and closes the source.
+     */
+    void reset() {
+        if (null != mOpenFuture) {
+            mOpenFuture.cancel(true);
+            mOpenFuture = null;
+        }
+        clearTiles();
+
+        if (null != mSource) {
+            // Waits for any tile being decoded, so is done off the UI thread
+            MyApp.getApplication(mView.getContext()).getMultiThreadExecutorService()
+                    .submit(new RecycleSourceRunnable(mSource));
+            mSource = null;
+        }
+        mPhoto = null;
+        mPhotoKey = null;
+    }
+
+    /**
+     * Works out which tiles are needed now that the photo is displayed at displayRect, requests
+     * any which aren't held yet and drops those which are no longer needed.
+     *
+     * @param displayRect - Where the photo is displayed, relative to the view
+     */
+    void update(RectF displayRect) {
+        final Drawable base = mView.getDrawable();
+        if (null == mSource || null == base || null == displayRect
+                || displayRect.width() <= base.getIntrinsicWidth()) {
+            // The base layer is sharp enough until it's magnified
+            clearTiles();
+            return;
+        }
+
+        final RectF visible = new RectF(0f, 0f, mView.getWidth(), mView.getHeight());
+        if (!visible.intersect(displayRect)) {
+            clearTiles();
+            return;
+        }
+        visible.set((visible.left - displayRect.left) / displayRect.width(),
+                (visible.top - displayRect.top) / displayRect.height(),
+                (visible.right - displayRect.left) / displayRect.width(),
+                (visible.bottom - displayRect.top) / displayRect.height());
+
+        final int rotation = mPhoto.getUserRotation();
+        final int renderWidth = rotation % 180 != 0 ? mSource.getRenderHeight()
+                : mSource.getRenderWidth();
+
+        // Coarsest sample size which still has a decoded pixel for each pixel on screen
+        int sampleSize = 1;
+        while (renderWidth / (sampleSize * 2) >= displayRect.width()) {
+            sampleSize *= 2;
+        }
+
+        List<TileSource.Tile> tiles = mSource.getTiles(visible, rotation, sampleSize);
+        final int maxPixels = Math.round(mView.getWidth() * mView.getHeight() * MAX_TILE_SCREENS);
+        while (countPixels(tiles) > maxPixels) {
+            // Softer, but memory stays bounded however the view is sized
+            sampleSize *= 2;
+            tiles = mSource.getTiles(visible, rotation, sampleSize);
+        }
+
+        if (renderWidth / sampleSize <= base.getIntrinsicWidth()) {
+            clearTiles();
+            return;
+        }
+
+        final HashMap<String, Entry> previous = mTiles;
+        mTiles = new HashMap<String, Entry>();
+        for (TileSource.Tile tile : tiles) {
+            Entry entry = previous.remove(tile.getKey());
+            if (null == entry) {
+                entry = new Entry(tile);
+                requestTile(entry);
+            }
+            mTiles.put(tile.getKey(), entry);
+        }
+
+        // Off screen, or at the wrong sample size
+        for (Entry entry : previous.values()) {
+            entry.cancel();
+        }
+
+        mView.invalidate();
+    }
+
+    /**
+     * Draws the rendered tiles over the base layer.
+     *
+     * @param displayRect - Where the photo is displayed, relative to the view
+     */
+    void draw(Canvas canvas, RectF displayRect) {
+        if (mTiles.isEmpty() || null == displayRect) {
+            return;
+        }
+
+        // Tiles don't have the user's rotation, so are laid out unturned around the same centre
+        // and the canvas turned, as RotatedDrawable does
+        final int rotation = mPhoto.getUserRotation();
+        final float centerX = displayRect.centerX();
+        final float centerY = displayRect.centerY();
+        final boolean swaps = rotation % 180 != 0;
+        final float halfWidth = (swaps ? displayRect.height() : displayRect.width()) / 2f;
+        final float halfHeight = (swaps ? displayRect.width() : displayRect.height()) / 2f;
+        mFrame.set(centerX - halfWidth, centerY - halfHeight, centerX + halfWidth,
+                centerY + halfHeight);
+
+        final int saveCount = canvas.save();
+        canvas.rotate(rotation, centerX, centerY);
+        for (Entry entry : mTiles.values()) {
+            if (null == entry.lease) {
+                continue;
+            }
+            final RectF rect = entry.tile.getRenderRect();
+            mDest.set(mFrame.left + rect.left * mFrame.width(),
+                    mFrame.top + rect.top * mFrame.height(),
+                    mFrame.left + rect.right * mFrame.width(),
+                    mFrame.top + rect.bottom * mFrame.height());
+            canvas.drawBitmap(entry.lease.getBitmap(), null, mDest, mPaint);
+        }
+        canvas.restoreToCount(saveCount);
+    }
+
+    void onSourceOpened(PhotoObj photo, TileSource source) {
+        if (photo != mPhoto || null != mSource || !source.getKey().equals(mPhotoKey)) {
+            // Edits changed, or the layer was reset, while opening
+            MyApp.getApplication(mView.getContext()).getMultiThreadExecutorService()
+                    .submit(new RecycleSourceRunnable(source));
+            return;
+        }
+
+        mOpenFuture = null;
+        mSource = source;
+        update(mView.getDisplayRect());
+    }
+
+    void onTileRendered(TileSource.Tile tile, CacheableBitmap.Lease lease) {
+        final Entry entry = mTiles.get(tile.getKey());
+        if (null == entry || null != entry.lease) {
+            // No longer wanted
+            lease.release();
+            return;
+        }
+
+        entry.future = null;
+        entry.lease = lease;
+        mView.invalidate();
+    }
+
+    private void requestTile(Entry entry) {
+        final MyApp app = MyApp.getApplication(mView.getContext());
+        final BitmapMemoryCache cache = app.getTileCache();
+
+        final CacheableBitmap.Lease cached = cache.get(entry.tile.getKey());
+        if (null != cached) {
+            entry.lease = cached;
+        } else {
+            entry.future = app.getPhotoFilterThreadExecutorService().submit(
+                    new RenderTileRunnable(this, mSource, entry.tile, cache));
+        }
+    }
+
+    private void clearTiles() {
+        if (mTiles.isEmpty()) {
+            return;
+        }
+        for (Entry entry : mTiles.values()) {
+            entry.cancel();
+        }
+        mTiles.clear();
+        mView.invalidate();
+    }
+
+    private static int countPixels(List<TileSource.Tile> tiles) {
+        int pixels = 0;
+        for (TileSource.Tile tile : tiles) {
+            pixels += tile.getPixelCount();
+        }
+        return pixels;
+    }
+}
@@ -0,0 +1,185 @@
+package com.rayboot.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collection;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+import org.junit.runners.Parameterized.Parameters;
+
+/**
+ * Checks the tables each filter is compiled into against the same golden images as
+ * {@link FilterKernelsTest}. Exact tables must match bit for bit, on the goldens and on every
+ * colour; approximate ones must stay within a few levels.
+ *
+ * @author rayboot
+ * @from 14-5-28 15:20
+ * @TODO
+ */
+@RunWith(Parameterized.class)
+public class CompiledFilterTest {
+
+    /** Ansel, Retro, Black &amp; White, Sepia, Cyano and Georgia */
+    static final int[] EXACT = {2, 5, 6, 7, 8, 9};
+    /** Testino and XPro */
+    static final int[] APPROXIMATE = {3, 4};
+
+    /** Largest difference in any channel allowed on the golden images */
+    static final int MAX_GOLDEN_ERROR = 8;
+    /** Largest difference in any channel allowed across every colour */
+    static final int MAX_SWEEP_ERROR = 10;
+
+    @Parameters
+    public static Collection<Object[]> filters() {
+        return FilterKernelsTest.filters();
+    }
+
+    private final int mPosition;
+
+    public CompiledFilterTest(int position) {
+        mPosition = position;
+    }
+
+    @Test
+    public void compilesTheExpectedFilters() {
+        final CompiledFilter exact = CompiledFilter.get(mPosition, false);
+        final CompiledFilter approximate = CompiledFilter.get(mPosition, true);
+
+        if (contains(EXACT, mPosition)) {
+            assertTrue(exact.isExact());
+            assertTrue(exact == approximate);
+        } else if (contains(APPROXIMATE, mPosition)) {
+            assertNull(exact);
+            assertFalse(approximate.isExact());
+        } else {
+            assertNull(exact);
+            assertNull(approximate);
+        }
+    }
+
+    @Test
+    public void exactTableMatchesNativeFilter() throws IOException {
+        final CompiledFilter compiled = CompiledFilter.get(mPosition, false);
+        if (null == compiled) {
+            return;
+        }
+
+        final FilterKernelsTest.Image input = FilterKernelsTest.Image.load(
+                FilterKernelsTest.NAMES[0]);
+        final FilterKernelsTest.Image expected = FilterKernelsTest.Image.load(
+                FilterKernelsTest.NAMES[mPosition]);
+
+        final int[] pixels = input.pixels.clone();
+        compiled.apply(pixels, 0, pixels.length);
+
+        for (int i = 0; i < pixels.length; i++) {
+            if (pixels[i] != expected.pixels[i]) {
+                fail(String.format("%s differs at (%d, %d): expected %08x but was %08x",
+                        FilterKernelsTest.NAMES[mPosition], i % input.width, i / input.width,
+                        expected.pixels[i], pixels[i]));
+            }
+        }
+    }
+
+    @Test
+    public void exactTableMatchesKernelForEveryColour() {
+        final CompiledFilter compiled = CompiledFilter.get(mPosition, false);
+        if (null == compiled) {
+            return;
+        }
+
+        // One red value at a time, so only 256 x 256 colours are held at once
+        final int[] pixels = new int[256 * 256];
+        final int[] expected = new int[pixels.length];
+        for (int red = 0; red < 256; red++) {
+            fillColours(red, expected);
+            FilterKernels.apply(mPosition, expected, 256, 256);
+            fillColours(red, pixels);
+            compiled.apply(pixels, 0, pixels.length);
+
+            if (!Arrays.equals(expected, pixels)) {
+                for (int i = 0; i < pixels.length; i++) {
+                    assertEquals(String.format("%s of %06x",
+                            FilterKernelsTest.NAMES[mPosition], red << 16 | i),
+                            expected[i], pixels[i]);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void approximateTableStaysCloseToNativeFilter() throws IOException {
+        final CompiledFilter compiled = CompiledFilter.get(mPosition, true);
+        if (null == compiled || compiled.isExact()) {
+            return;
+        }
+
+        final FilterKernelsTest.Image input = FilterKernelsTest.Image.load(
+                FilterKernelsTest.NAMES[0]);
+        final FilterKernelsTest.Image expected = FilterKernelsTest.Image.load(
+                FilterKernelsTest.NAMES[mPosition]);
+
+        final int[] pixels = input.pixels.clone();
+        compiled.apply(pixels, 0, pixels.length);
+
+        assertMaxError(MAX_GOLDEN_ERROR, expected.pixels, pixels);
+    }
+
+    @Test
+    public void approximateTableStaysCloseToKernelForEveryColour() {
+        final CompiledFilter compiled = CompiledFilter.get(mPosition, true);
+        if (null == compiled || compiled.isExact()) {
+            return;
+        }
+
+        final int[] pixels = new int[256 * 256];
+        final int[] expected = new int[pixels.length];
+        for (int red = 0; red < 256; red++) {
+            fillColours(red, expected);
+            FilterKernels.apply(mPosition, expected, 256, 256);
+            fillColours(red, pixels);
+            compiled.apply(pixels, 0, pixels.length);
+
+            assertMaxError(MAX_SWEEP_ERROR, expected, pixels);
+        }
+    }
+
+    private void assertMaxError(int maxError, int[] expected, int[] actual) {
+        for (int i = 0; i < actual.length; i++) {
+            for (int shift = 0; shift < 24; shift += 8) {
+                final int error = Math.abs(((expected[i] >> shift) & 0xFF)
+                        - ((actual[i] >> shift) & 0xFF));
+                if (error > maxError) {
+                    fail(String.format("%s is %d levels out at %d: expected %08x but was %08x",
+                            FilterKernelsTest.NAMES[mPosition], error, i, expected[i],
+                            actual[i]));
+                }
+            }
+        }
+    }
+
+    /**
+     * Fills pixels with every opaque colour with the given red value.
+     */
+    private static void fillColours(int red, int[] pixels) {
+        for (int i = 0; i < pixels.length; i++) {
+            pixels[i] = 0xFF000000 | red << 16 | i;
+        }
+    }
+
+    private static boolean contains(int[] positions, int position) {
+        for (int p : positions) {
+            if (p == position) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
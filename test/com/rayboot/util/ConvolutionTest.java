@@ -0,0 +1,178 @@
+package com.rayboot.util;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.fail;
+
+import java.util.Random;
+import org.junit.Test;
+
+/**
+ * Checks the separable convolution and running sum box blur against a naive 2D convolution of
+ * the same kernel, with edges clamped the same way. The separable passes round to whole levels
+ * in between, so they may be out by one level; splitting into bands mustn't change anything.
+ *
+ * @author rayboot
+ * @from 14-5-28 16:40
+ * @TODO
+ */
+public class ConvolutionTest {
+
+    static final int WIDTH = 40;
+    static final int HEIGHT = 300;
+
+    /** Band counts to try, including ones which leave the last band short or empty */
+    static final int[] BANDS = {1, 2, 3, 7, 16};
+
+    /** Largest difference in any channel allowed from the naive convolution */
+    static final int MAX_ERROR = 1;
+
+    @Test
+    public void gaussianMatchesNaiveConvolution() {
+        assertConvolution(Convolution.Kernel.gaussian(0.8f), WIDTH, HEIGHT);
+        assertConvolution(Convolution.Kernel.gaussian(2.5f), WIDTH, HEIGHT);
+    }
+
+    @Test
+    public void weightsMatchNaiveConvolution() {
+        assertConvolution(Convolution.Kernel.fromWeights(new float[] {1, 2, 3, 2, 1}), WIDTH,
+                HEIGHT);
+    }
+
+    @Test
+    public void convolutionClampsEdgesOfSmallImages() {
+        // The kernel is wider and taller than the image
+        assertConvolution(Convolution.Kernel.gaussian(2.5f), 7, 5);
+        assertConvolution(Convolution.Kernel.gaussian(0.8f), 1, 1);
+    }
+
+    @Test
+    public void boxBlurMatchesNaiveConvolution() {
+        for (int radius : new int[] {1, 4, 20}) {
+            assertBoxBlur(radius, WIDTH, HEIGHT);
+        }
+    }
+
+    @Test
+    public void boxBlurClampsEdgesOfSmallImages() {
+        assertBoxBlur(6, 7, 5);
+        assertBoxBlur(3, 1, 1);
+    }
+
+    private static void assertConvolution(Convolution.Kernel kernel, int width, int height) {
+        final int[] input = makeInput(width, height);
+        final int size = kernel.mWeights.length;
+        final double[] weights = new double[size * size];
+        for (int j = 0; j < size; j++) {
+            for (int i = 0; i < size; i++) {
+                weights[j * size + i] = kernel.mWeights[j] * (double) kernel.mWeights[i]
+                        / (1 << (2 * Convolution.KERNEL_SHIFT));
+            }
+        }
+        final int[] expected = convolveNaively(input, width, height, weights, kernel.mRadius);
+
+        int[] unbanded = null;
+        for (int bands : BANDS) {
+            final int[] pixels = input.clone();
+            Convolution.convolve(pixels, width, height, kernel, bands);
+            assertClose("Radius " + kernel.mRadius + " in " + bands + " bands", input, expected,
+                    pixels, width);
+            if (null == unbanded) {
+                unbanded = pixels;
+            } else {
+                assertArrayEquals("Radius " + kernel.mRadius + " in " + bands + " bands",
+                        unbanded, pixels);
+            }
+        }
+    }
+
+    private static void assertBoxBlur(int radius, int width, int height) {
+        final int[] input = makeInput(width, height);
+        final int size = 2 * radius + 1;
+        final double[] weights = new double[size * size];
+        for (int i = 0; i < weights.length; i++) {
+            weights[i] = 1.0 / weights.length;
+        }
+        final int[] expected = convolveNaively(input, width, height, weights, radius);
+
+        int[] unbanded = null;
+        for (int bands : BANDS) {
+            final int[] pixels = input.clone();
+            Convolution.boxBlur(pixels, width, height, radius, bands);
+            assertClose("Box of radius " + radius + " in " + bands + " bands", input, expected,
+                    pixels, width);
+            if (null == unbanded) {
+                unbanded = pixels;
+            } else {
+                assertArrayEquals("Box of radius " + radius + " in " + bands + " bands",
+                        unbanded, pixels);
+            }
+        }
+    }
+
+    /**
+     * Convolves with a square kernel of (2 * radius + 1)^2 weights in one pass, clamping
+     * coordinates to the image and rounding once at the end. Alpha is copied from the input.
+     */
+    static int[] convolveNaively(int[] pixels, int width, int height, double[] weights,
+            int radius) {
+        final int size = 2 * radius + 1;
+        final int[] result = new int[pixels.length];
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                double r = 0, g = 0, b = 0;
+                for (int j = -radius; j <= radius; j++) {
+                    final int row = Math.min(height - 1, Math.max(0, y + j)) * width;
+                    for (int i = -radius; i <= radius; i++) {
+                        final int p = pixels[row + Math.min(width - 1, Math.max(0, x + i))];
+                        final double weight = weights[(j + radius) * size + i + radius];
+                        r += (p >> 16 & 0xFF) * weight;
+                        g += (p >> 8 & 0xFF) * weight;
+                        b += (p & 0xFF) * weight;
+                    }
+                }
+                final int i = y * width + x;
+                result[i] = (pixels[i] & 0xFF000000) | toChannel(r) << 16 | toChannel(g) << 8
+                        | toChannel(b);
+            }
+        }
+        return result;
+    }
+
+    private static void assertClose(String message, int[] input, int[] expected, int[] actual,
+            int width) {
+        for (int i = 0; i < actual.length; i++) {
+            boolean close = (input[i] & 0xFF000000) == (actual[i] & 0xFF000000);
+            for (int shift = 0; shift < 24; shift += 8) {
+                close &= Math.abs(((expected[i] >> shift) & 0xFF)
+                        - ((actual[i] >> shift) & 0xFF)) <= MAX_ERROR;
+            }
+            if (!close) {
+                fail(String.format("%s differs at (%d, %d): expected %08x but was %08x", message,
+                        i % width, i / width, expected[i], actual[i]));
+            }
+        }
+    }
+
+    /**
+     * Noise over gradients, with alpha varying too so it's seen to be left alone.
+     */
+    static int[] makeInput(int width, int height) {
+        final Random random = new Random(20140528);
+        final int[] pixels = new int[width * height];
+        for (int y = 0, i = 0; y < height; y++) {
+            for (int x = 0; x < width; x++, i++) {
+                final int r = toChannel(x * 255.0 / Math.max(1, width - 1)
+                        + random.nextInt(64) - 32);
+                final int g = toChannel(y * 255.0 / Math.max(1, height - 1)
+                        + random.nextInt(64) - 32);
+                final int b = random.nextInt(256);
+                pixels[i] = random.nextInt(256) << 24 | r << 16 | g << 8 | b;
+            }
+        }
+        return pixels;
+    }
+
+    private static int toChannel(double value) {
+        return (int) Math.max(0, Math.min(255, Math.round(value)));
+    }
+}
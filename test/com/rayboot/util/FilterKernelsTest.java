@@ -0,0 +1,125 @@
+package com.rayboot.util;
+
+import static org.junit.Assert.fail;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+import org.junit.runners.Parameterized.Parameters;
+
+/**
+ * Checks each of the Java filters against what the native filter in jni/filter.c makes of the
+ * same image. The golden images are written by test/native/make_filter_golden.c, which needs
+ * re-running whenever filter.c changes.
+ *
+ * @author rayboot
+ * @from 14-5-28 10:40
+ * @TODO
+ */
+@RunWith(Parameterized.class)
+public class FilterKernelsTest {
+
+    /** Golden image names, in PhotoProcessing.FILTERS order */
+    static final String[] NAMES = {"input", "instafix", "ansel", "testino", "xpro", "retro",
+            "bw", "sepia", "cyano", "georgia", "sahara", "hdr"};
+
+    @Parameters
+    public static Collection<Object[]> filters() {
+        final ArrayList<Object[]> filters = new ArrayList<Object[]>();
+        for (int position = 1; position < NAMES.length; position++) {
+            filters.add(new Object[] {position});
+        }
+        return filters;
+    }
+
+    private final int mPosition;
+
+    public FilterKernelsTest(int position) {
+        mPosition = position;
+    }
+
+    @Test
+    public void matchesNativeFilter() throws IOException {
+        final Image input = Image.load(NAMES[0]);
+        final Image expected = Image.load(NAMES[mPosition]);
+
+        final int[] pixels = input.pixels.clone();
+        FilterKernels.apply(mPosition, pixels, input.width, input.height);
+
+        for (int i = 0; i < pixels.length; i++) {
+            if (pixels[i] != expected.pixels[i]) {
+                fail(String.format("%s differs at (%d, %d): expected %08x but was %08x",
+                        NAMES[mPosition], i % input.width, i / input.width, expected.pixels[i],
+                        pixels[i]));
+            }
+        }
+    }
+
+    /**
+     * An opaque ARGB image read from a binary PPM on the test classpath.
+     */
+    static final class Image {
+
+        final int width;
+        final int height;
+        final int[] pixels;
+
+        Image(int width, int height, int[] pixels) {
+            this.width = width;
+            this.height = height;
+            this.pixels = pixels;
+        }
+
+        static Image load(String name) throws IOException {
+            final InputStream in = FilterKernelsTest.class.getResourceAsStream(
+                    "/filters/" + name + ".ppm");
+            if (null == in) {
+                throw new IOException("Missing golden image " + name);
+            }
+            try {
+                final DataInputStream data = new DataInputStream(in);
+                if (!"P6".equals(readToken(data))) {
+                    throw new IOException(name + " isn't a binary PPM");
+                }
+                final int width = Integer.parseInt(readToken(data));
+                final int height = Integer.parseInt(readToken(data));
+                if (255 != Integer.parseInt(readToken(data))) {
+                    throw new IOException(name + " isn't 8 bits per channel");
+                }
+
+                final byte[] rgb = new byte[width * height * 3];
+                data.readFully(rgb);
+                final int[] pixels = new int[width * height];
+                for (int i = 0, j = 0; i < pixels.length; i++, j += 3) {
+                    pixels[i] = 0xFF000000 | (rgb[j] & 0xFF) << 16 | (rgb[j + 1] & 0xFF) << 8
+                            | (rgb[j + 2] & 0xFF);
+                }
+                return new Image(width, height, pixels);
+            } finally {
+                in.close();
+            }
+        }
+
+        /**
+         * Reads up to and including the single whitespace byte which ends a header field.
+         */
+        private static String readToken(DataInputStream in) throws IOException {
+            final StringBuilder token = new StringBuilder();
+            for (int b = in.read(); b != -1; b = in.read()) {
+                if (Character.isWhitespace(b)) {
+                    if (token.length() > 0) {
+                        return token.toString();
+                    }
+                } else {
+                    token.append((char) b);
+                }
+            }
+            throw new IOException("Truncated PPM header");
+        }
+    }
+}
@@ -0,0 +1,312 @@
+package com.rayboot.util;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import org.junit.Test;
+
+/**
+ * Parses headers built byte by byte here, so each case only has the segments it's about.
+ *
+ * @author rayboot
+ * @from 14-5-28 14:15
+ * @TODO
+ */
+public class ImageHeaderParserTest {
+
+    static final int WIDTH = 4000;
+    static final int HEIGHT = 3000;
+
+    /** A tiny stand-in for the EXIF thumbnail, only its SOI and EOI have to look right */
+    static final byte[] THUMBNAIL = {(byte) 0xFF, (byte) 0xD8, 1, 2, 3, 4, 5, 6, (byte) 0xFF,
+            (byte) 0xD9};
+
+    @Test
+    public void readsJpegDimensions() throws IOException {
+        final ImageHeaderParser.Header header = parse(new Jpeg().build());
+
+        assertNotNull(header);
+        assertEquals(ImageHeaderParser.MIME_JPEG, header.mimeType);
+        assertEquals(WIDTH, header.width);
+        assertEquals(HEIGHT, header.height);
+        assertEquals(0, header.orientation);
+        assertFalse(header.hasThumbnail());
+    }
+
+    @Test
+    public void readsBigEndianOrientation() throws IOException {
+        assertEquals(180, parse(new Jpeg().exif(false, 3, false).build()).orientation);
+        assertEquals(90, parse(new Jpeg().exif(false, 6, false).build()).orientation);
+        assertEquals(270, parse(new Jpeg().exif(false, 8, false).build()).orientation);
+    }
+
+    @Test
+    public void readsLittleEndianOrientation() throws IOException {
+        assertEquals(180, parse(new Jpeg().exif(true, 3, false).build()).orientation);
+        assertEquals(90, parse(new Jpeg().exif(true, 6, false).build()).orientation);
+        assertEquals(270, parse(new Jpeg().exif(true, 8, false).build()).orientation);
+    }
+
+    @Test
+    public void treatsUprightAndMirroredOrientationsAsUpright() throws IOException {
+        assertEquals(0, parse(new Jpeg().exif(true, 1, false).build()).orientation);
+        assertEquals(0, parse(new Jpeg().exif(false, 2, false).build()).orientation);
+    }
+
+    @Test
+    public void findsBigEndianThumbnail() throws IOException {
+        assertThumbnail(new Jpeg().exif(false, 6, true).build());
+    }
+
+    @Test
+    public void findsLittleEndianThumbnail() throws IOException {
+        assertThumbnail(new Jpeg().exif(true, 6, true).build());
+    }
+
+    @Test
+    public void findsThumbnailAfterOtherSegments() throws IOException {
+        assertThumbnail(new Jpeg().jfif().exif(true, 8, true).build());
+    }
+
+    @Test
+    public void skipsMarkerPadding() throws IOException {
+        final byte[] jpeg = new Jpeg().padding(3).jfif().padding(1).exif(false, 6, true)
+                .padding(2).build();
+        final ImageHeaderParser.Header header = parse(jpeg);
+
+        assertNotNull(header);
+        assertEquals(WIDTH, header.width);
+        assertEquals(HEIGHT, header.height);
+        assertEquals(90, header.orientation);
+        assertThumbnail(jpeg);
+    }
+
+    @Test
+    public void skipsOnStreamsWhichWontSkip() throws IOException {
+        final byte[] jpeg = new Jpeg().jfif().exif(true, 3, true).build();
+        final ImageHeaderParser.Header header = ImageHeaderParser.parse(
+                new ByteArrayInputStream(jpeg) {
+                    @Override
+                    public synchronized long skip(long n) {
+                        return 0;
+                    }
+                });
+
+        // Positions are counted the same whether skipped or read
+        assertNotNull(header);
+        assertEquals(180, header.orientation);
+        assertEquals(WIDTH, header.width);
+        assertEquals(parse(jpeg).thumbnailOffset, header.thumbnailOffset);
+    }
+
+    @Test
+    public void returnsNullForTruncatedJpeg() throws IOException {
+        final Jpeg jpeg = new Jpeg().jfif().exif(false, 6, true);
+        final byte[] data = jpeg.build();
+        for (int length = 0; length < jpeg.mFrameHeaderEnd; length++) {
+            assertNull("Truncated to " + length, parse(Arrays.copyOf(data, length)));
+        }
+        assertNotNull(parse(Arrays.copyOf(data, jpeg.mFrameHeaderEnd)));
+    }
+
+    @Test
+    public void returnsNullWithoutFrameHeader() throws IOException {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(0xFF);
+        out.write(ImageHeaderParser.MARKER_SOI);
+        out.write(0xFF);
+        out.write(ImageHeaderParser.MARKER_SOS);
+        assertNull(parse(out.toByteArray()));
+    }
+
+    @Test
+    public void readsPngDimensions() throws IOException {
+        final ImageHeaderParser.Header header = parse(png(640, 480));
+
+        assertNotNull(header);
+        assertEquals(ImageHeaderParser.MIME_PNG, header.mimeType);
+        assertEquals(640, header.width);
+        assertEquals(480, header.height);
+        assertEquals(0, header.orientation);
+        assertFalse(header.hasThumbnail());
+    }
+
+    @Test
+    public void returnsNullForTruncatedPng() throws IOException {
+        final byte[] data = png(640, 480);
+        // Signature, IHDR length and type, width and height
+        final int headerEnd = 8 + 4 + 4 + 4 + 4;
+        for (int length = 0; length < headerEnd; length++) {
+            assertNull("Truncated to " + length, parse(Arrays.copyOf(data, length)));
+        }
+    }
+
+    @Test
+    public void returnsNullForOtherFormats() throws IOException {
+        assertNull(parse("GIF89a".getBytes("US-ASCII")));
+        assertNull(parse(new byte[0]));
+    }
+
+    private static ImageHeaderParser.Header parse(byte[] data) throws IOException {
+        return ImageHeaderParser.parse(new ByteArrayInputStream(data));
+    }
+
+    /**
+     * Checks the thumbnail's offset and length point at exactly the thumbnail's bytes.
+     */
+    private static void assertThumbnail(byte[] jpeg) throws IOException {
+        final ImageHeaderParser.Header header = parse(jpeg);
+        assertNotNull(header);
+        assertTrue(header.hasThumbnail());
+        assertEquals(THUMBNAIL.length, header.thumbnailLength);
+
+        final InputStream in = new ByteArrayInputStream(jpeg);
+        assertEquals(header.thumbnailOffset, in.skip(header.thumbnailOffset));
+        final byte[] thumbnail = new byte[header.thumbnailLength];
+        assertEquals(thumbnail.length, in.read(thumbnail));
+        assertArrayEquals(THUMBNAIL, thumbnail);
+    }
+
+    private static byte[] png(int width, int height) throws IOException {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(ImageHeaderParser.PNG_SIGNATURE);
+        writeInt(out, 13, false);
+        out.write("IHDR".getBytes("US-ASCII"));
+        writeInt(out, width, false);
+        writeInt(out, height, false);
+        // Bit depth, colour type, compression, filter, interlace, then a CRC which isn't checked
+        out.write(new byte[] {8, 2, 0, 0, 0});
+        writeInt(out, 0, false);
+        return out.toByteArray();
+    }
+
+    private static void writeShort(ByteArrayOutputStream out, int value, boolean littleEndian) {
+        if (littleEndian) {
+            out.write(value);
+            out.write(value >> 8);
+        } else {
+            out.write(value >> 8);
+            out.write(value);
+        }
+    }
+
+    private static void writeInt(ByteArrayOutputStream out, int value, boolean littleEndian) {
+        if (littleEndian) {
+            writeShort(out, value, true);
+            writeShort(out, value >>> 16, true);
+        } else {
+            writeShort(out, value >>> 16, false);
+            writeShort(out, value, false);
+        }
+    }
+
+    /**
+     * Builds a JPEG's segments up to its frame header, in the order they're added.
+     */
+    static final class Jpeg {
+
+        private final ByteArrayOutputStream mOut = new ByteArrayOutputStream();
+        /** Length of the stream up to the end of the frame header's dimensions */
+        int mFrameHeaderEnd;
+
+        Jpeg() {
+            mOut.write(0xFF);
+            mOut.write(ImageHeaderParser.MARKER_SOI);
+        }
+
+        /**
+         * Adds fill bytes, which go in front of the next segment's marker.
+         */
+        Jpeg padding(int count) {
+            for (int i = 0; i < count; i++) {
+                mOut.write(0xFF);
+            }
+            return this;
+        }
+
+        Jpeg jfif() throws IOException {
+            mOut.write(0xFF);
+            mOut.write(0xE0);
+            writeShort(mOut, 16, false);
+            mOut.write("JFIF".getBytes("US-ASCII"));
+            mOut.write(new byte[] {0, 1, 1, 0, 0, 1, 0, 1, 0, 0});
+            return this;
+        }
+
+        /**
+         * Adds an EXIF segment with the orientation in IFD0 and, if wanted, the thumbnail in
+         * IFD1, stored straight after the IFDs.
+         */
+        Jpeg exif(boolean littleEndian, int orientation, boolean thumbnail) throws IOException {
+            final ByteArrayOutputStream tiff = new ByteArrayOutputStream();
+            tiff.write(littleEndian ? 'I' : 'M');
+            tiff.write(littleEndian ? 'I' : 'M');
+            writeShort(tiff, 42, littleEndian);
+            writeInt(tiff, 8, littleEndian);
+
+            // IFD0, the orientation as a SHORT
+            final int ifd1 = 8 + 2 + 12 + 4;
+            writeShort(tiff, 1, littleEndian);
+            writeShort(tiff, ImageHeaderParser.TAG_ORIENTATION, littleEndian);
+            writeShort(tiff, 3, littleEndian);
+            writeInt(tiff, 1, littleEndian);
+            writeShort(tiff, orientation, littleEndian);
+            writeShort(tiff, 0, littleEndian);
+            writeInt(tiff, thumbnail ? ifd1 : 0, littleEndian);
+
+            if (thumbnail) {
+                // IFD1, the thumbnail's offset and length as LONGs
+                final int data = ifd1 + 2 + 2 * 12 + 4;
+                writeShort(tiff, 2, littleEndian);
+                writeShort(tiff, ImageHeaderParser.TAG_THUMBNAIL_OFFSET, littleEndian);
+                writeShort(tiff, 4, littleEndian);
+                writeInt(tiff, 1, littleEndian);
+                writeInt(tiff, data, littleEndian);
+                writeShort(tiff, ImageHeaderParser.TAG_THUMBNAIL_LENGTH, littleEndian);
+                writeShort(tiff, 4, littleEndian);
+                writeInt(tiff, 1, littleEndian);
+                writeInt(tiff, THUMBNAIL.length, littleEndian);
+                writeInt(tiff, 0, littleEndian);
+                tiff.write(THUMBNAIL);
+            }
+
+            mOut.write(0xFF);
+            mOut.write(ImageHeaderParser.MARKER_APP1);
+            writeShort(mOut, 2 + ImageHeaderParser.EXIF_PREAMBLE.length + tiff.size(), false);
+            mOut.write(ImageHeaderParser.EXIF_PREAMBLE);
+            tiff.writeTo(mOut);
+            return this;
+        }
+
+        /**
+         * Finishes with a baseline frame header and the start of the scan.
+         */
+        byte[] build() {
+            mOut.write(0xFF);
+            mOut.write(0xC0);
+            writeShort(mOut, 8 + 3 * 3, false);
+            mOut.write(8);
+            writeShort(mOut, HEIGHT, false);
+            writeShort(mOut, WIDTH, false);
+            mFrameHeaderEnd = mOut.size();
+            mOut.write(3);
+            for (int component = 1; component <= 3; component++) {
+                mOut.write(component);
+                mOut.write(component == 1 ? 0x22 : 0x11);
+                mOut.write(component == 1 ? 0 : 1);
+            }
+            mOut.write(0xFF);
+            mOut.write(ImageHeaderParser.MARKER_SOS);
+            return mOut.toByteArray();
+        }
+    }
+}
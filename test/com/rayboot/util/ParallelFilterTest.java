@@ -0,0 +1,99 @@
+package com.rayboot.util;
+
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Random;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+import org.junit.runners.Parameterized.Parameters;
+
+/**
+ * Checks that every filter comes out of {@link ParallelFilter} the same as from a single serial
+ * pass of {@link FilterKernels}, whatever the number of bands, including counts which leave the
+ * last band short or empty.
+ *
+ * @author rayboot
+ * @from 14-5-28 16:05
+ * @TODO
+ */
+@RunWith(Parameterized.class)
+public class ParallelFilterTest {
+
+    static final int WIDTH = 64;
+    static final int HEIGHT = 250;
+
+    /** Bands of 4 rows, so the fifth is left empty */
+    static final int SHORT_HEIGHT = 16;
+    static final int SHORT_BANDS = 5;
+
+    static final ParallelFilter.SerialFilter KERNELS = new ParallelFilter.SerialFilter() {
+        public void apply(int position, int[] pixels, int width, int height,
+                boolean allowApproximate) {
+            FilterKernels.apply(position, pixels, width, height);
+        }
+    };
+
+    @Parameters
+    public static Collection<Object[]> filters() {
+        final ArrayList<Object[]> filters = new ArrayList<Object[]>();
+        for (int position = 1; position < FilterKernelsTest.NAMES.length; position++) {
+            for (int bands : new int[] {2, 3, 4, 7}) {
+                filters.add(new Object[] {position, bands, HEIGHT});
+            }
+            filters.add(new Object[] {position, SHORT_BANDS, SHORT_HEIGHT});
+        }
+        return filters;
+    }
+
+    private final int mPosition;
+    private final int mBands;
+    private final int mHeight;
+
+    public ParallelFilterTest(int position, int bands, int height) {
+        mPosition = position;
+        mBands = bands;
+        mHeight = height;
+    }
+
+    @Test
+    public void bandsMatchSerialKernel() {
+        final int[] expected = makeInput(WIDTH, mHeight);
+        final int[] pixels = expected.clone();
+
+        FilterKernels.apply(mPosition, expected, WIDTH, mHeight);
+        ParallelFilter.apply(mPosition, pixels, WIDTH, mHeight, false, KERNELS, mBands);
+
+        for (int i = 0; i < pixels.length; i++) {
+            if (pixels[i] != expected[i]) {
+                fail(String.format("%s in %d bands differs at (%d, %d): expected %08x but was %08x",
+                        FilterKernelsTest.NAMES[mPosition], mBands, i % WIDTH, i / WIDTH,
+                        expected[i], pixels[i]));
+            }
+        }
+    }
+
+    /**
+     * Gradients with noise, so the blurs and Instafix's histograms have something to work on.
+     */
+    static int[] makeInput(int width, int height) {
+        final Random random = new Random(20140528);
+        final int[] pixels = new int[width * height];
+        for (int y = 0, i = 0; y < height; y++) {
+            for (int x = 0; x < width; x++, i++) {
+                final int noise = random.nextInt(32) - 16;
+                final int r = clamp(x * 255 / (width - 1) + noise);
+                final int g = clamp(y * 255 / (height - 1) - noise);
+                final int b = clamp(random.nextInt(256));
+                pixels[i] = 0xFF000000 | r << 16 | g << 8 | b;
+            }
+        }
+        return pixels;
+    }
+
+    private static int clamp(int value) {
+        return value < 0 ? 0 : (value > 255 ? 255 : value);
+    }
+}
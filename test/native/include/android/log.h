@@ -0,0 +1,10 @@
+/*
+ * Stand-in for the NDK's android/log.h, so the filters in jni/ build on the host for
+ * make_filter_golden.c. Logging is compiled out.
+ */
+
+#define ANDROID_LOG_DEBUG 3
+#define ANDROID_LOG_INFO 4
+#define ANDROID_LOG_ERROR 6
+
+#define __android_log_print(...) 0
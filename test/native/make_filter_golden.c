@@ -0,0 +1,143 @@
+/*
+ * Writes the golden images FilterKernelsTest compares against, by running the native filters
+ * in jni/filter.c on the host. Rebuild them whenever filter.c changes:
+ *
+ *   gcc -std=gnu99 -fgnu89-inline -O0 -ffp-contract=off -Itest/native/include -Ijni \
+ *       test/native/make_filter_golden.c jni/filter.c jni/colour_space.c jni/matrix.c \
+ *       jni/blur.c jni/mem_utils.c jni/transform.c -lm -o make_filter_golden
+ *   ./make_filter_golden test/resources/filters
+ *
+ * FMA contraction is off so the float arithmetic rounds as it does on the device.
+ */
+
+#include <stdio.h>
+#include <stdlib.h>
+#include <string.h>
+#include <bitmap.h>
+
+void applyInstafix(Bitmap* bitmap);
+void applyAnselFilter(Bitmap* bitmap);
+void applyTestino(Bitmap* bitmap);
+void applyXPro(Bitmap* bitmap);
+void applyRetro(Bitmap* bitmap);
+void applyBlackAndWhiteFilter(Bitmap* bitmap);
+void applySepia(Bitmap* bitmap);
+void applyCyano(Bitmap* bitmap);
+void applyGeorgia(Bitmap* bitmap);
+int applySahara(Bitmap* bitmap);
+int applyHDR(Bitmap* bitmap);
+
+#define WIDTH 48
+#define HEIGHT 32
+#define SIZE (WIDTH * HEIGHT)
+
+// Same numbering as PhotoProcessing.FILTERS
+static const char* NAMES[] = { "input", "instafix", "ansel", "testino", "xpro", "retro", "bw",
+		"sepia", "cyano", "georgia", "sahara", "hdr" };
+
+static unsigned char red[SIZE], green[SIZE], blue[SIZE];
+
+static unsigned char clamp(int value) {
+	return value < 0 ? 0 : (value > 255 ? 255 : value);
+}
+
+// Gradients with noise, plus a bright and a dark patch, so every filter has something to do
+static void makeInput() {
+	unsigned int seed = 20140515;
+	int x, y;
+	for (y = 0; y < HEIGHT; y++) {
+		for (x = 0; x < WIDTH; x++) {
+			int i = y * WIDTH + x;
+			int noise, r, g, b;
+			seed = seed * 1103515245u + 12345u;
+			noise = (int) ((seed >> 16) & 31) - 16;
+			r = x * 255 / (WIDTH - 1) + noise;
+			g = y * 255 / (HEIGHT - 1) - noise;
+			b = (x + y) * 255 / (WIDTH + HEIGHT - 2) / 2 + 64 + noise;
+			if (x >= 8 && x < 16 && y >= 8 && y < 16) {
+				r = 250 + noise / 4;
+				g = 245;
+				b = 240 - noise / 4;
+			}
+			if (x >= 32 && x < 40 && y >= 16 && y < 24) {
+				r = 10 + noise / 4;
+				g = 12;
+				b = 20 + noise / 4;
+			}
+			red[i] = clamp(r);
+			green[i] = clamp(g);
+			blue[i] = clamp(b);
+		}
+	}
+}
+
+static void loadInput(Bitmap* bitmap) {
+	memset(bitmap, 0, sizeof(Bitmap));
+	bitmap->width = bitmap->redWidth = bitmap->greenWidth = bitmap->blueWidth = WIDTH;
+	bitmap->height = bitmap->redHeight = bitmap->greenHeight = bitmap->blueHeight = HEIGHT;
+	bitmap->red = malloc(SIZE);
+	bitmap->green = malloc(SIZE);
+	bitmap->blue = malloc(SIZE);
+	memcpy(bitmap->red, red, SIZE);
+	memcpy(bitmap->green, green, SIZE);
+	memcpy(bitmap->blue, blue, SIZE);
+}
+
+static void releaseInput(Bitmap* bitmap) {
+	free(bitmap->red);
+	free(bitmap->green);
+	free(bitmap->blue);
+}
+
+static int writePpm(const char* dir, const char* name, Bitmap* bitmap) {
+	char path[1024];
+	FILE* file;
+	int i;
+
+	snprintf(path, sizeof(path), "%s/%s.ppm", dir, name);
+	file = fopen(path, "wb");
+	if (file == NULL) {
+		perror(path);
+		return 1;
+	}
+	fprintf(file, "P6\n%d %d\n255\n", WIDTH, HEIGHT);
+	for (i = 0; i < SIZE; i++) {
+		fputc(bitmap->red[i], file);
+		fputc(bitmap->green[i], file);
+		fputc(bitmap->blue[i], file);
+	}
+	return fclose(file) != 0;
+}
+
+int main(int argc, char** argv) {
+	Bitmap bitmap;
+	int position;
+
+	if (argc != 2) {
+		fprintf(stderr, "Usage: %s <output dir>\n", argv[0]);
+		return 2;
+	}
+
+	makeInput();
+	for (position = 0; position <= 11; position++) {
+		loadInput(&bitmap);
+		switch (position) {
+		case 1: applyInstafix(&bitmap); break;
+		case 2: applyAnselFilter(&bitmap); break;
+		case 3: applyTestino(&bitmap); break;
+		case 4: applyXPro(&bitmap); break;
+		case 5: applyRetro(&bitmap); break;
+		case 6: applyBlackAndWhiteFilter(&bitmap); break;
+		case 7: applySepia(&bitmap); break;
+		case 8: applyCyano(&bitmap); break;
+		case 9: applyGeorgia(&bitmap); break;
+		case 10: applySahara(&bitmap); break;
+		case 11: applyHDR(&bitmap); break;
+		}
+		if (writePpm(argv[1], NAMES[position], &bitmap)) {
+			return 1;
+		}
+		releaseInput(&bitmap);
+	}
+	return 0;
+}
@@ -0,0 +1,145 @@
+package com.rayboot.util;
+
+import android.graphics.Bitmap;
+import android.test.AndroidTestCase;
+import android.util.Log;
+import java.util.Arrays;
+
+/**
+ * Times copying a 12 megapixel bitmap to and from native memory in one call, as
+ * {@link PhotoProcessing#sendBitmapToNative(Bitmap)} and
+ * {@link PhotoProcessing#getBitmapFromNative(Bitmap)} now do, against the int[] per row copy they
+ * fall back to. Results are logged under {@link #LOG_TAG}, with the median of {@link #RUNS}
+ * runs after a warm up. Run from tests/ with:
+ * <pre>
+ * ant debug install test
+ * adb logcat -s PixelTransferBenchmark
+ * </pre>
+ * Needs about 48MB of heap for the bitmap and 36MB of native memory for its copy.
+ *
+ * @author rayboot
+ * @from 14-5-28 16:30
+ * @TODO
+ */
+public class PixelTransferBenchmark extends AndroidTestCase {
+
+    static final String LOG_TAG = "PixelTransferBenchmark";
+
+    static final int WIDTH = 4000;
+    static final int HEIGHT = 3000;
+    static final int RUNS = 5;
+
+    private Bitmap mBitmap;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mBitmap = Bitmap.createBitmap(WIDTH, HEIGHT, Bitmap.Config.ARGB_8888);
+        final int[] row = new int[WIDTH];
+        for (int y = 0; y < HEIGHT; y++) {
+            fillRow(row, y);
+            mBitmap.setPixels(row, 0, WIDTH, 0, y, WIDTH, 1);
+        }
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mBitmap.recycle();
+        mBitmap = null;
+        super.tearDown();
+    }
+
+    public void testBulkAgainstByRow() {
+        // A missing library would otherwise pass with nothing timed
+        assertTrue("libphotoprocessing isn't loaded, rebuild it with ndk-build",
+                PhotoProcessing.isNativeAvailable());
+
+        final long[] bulkSend = new long[RUNS];
+        final long[] bulkGet = new long[RUNS];
+        final long[] rowSend = new long[RUNS];
+        final long[] rowGet = new long[RUNS];
+
+        // The native bitmap is global, so hold it for the whole benchmark
+        synchronized (PhotoProcessing.class) {
+            try {
+                for (int run = -1; run < RUNS; run++) {
+                    // The first run warms up, and checks each way copies the pixels intact
+                    final boolean warmUp = run < 0;
+
+                    long start = System.nanoTime();
+                    assertEquals(0, PhotoProcessing.nativeInitBitmap(WIDTH, HEIGHT));
+                    assertEquals("Bulk copy unavailable", 0,
+                            PhotoProcessing.nativeSetBitmapPixels(mBitmap));
+                    final long bulkSendTime = System.nanoTime() - start;
+
+                    if (warmUp) {
+                        mBitmap.eraseColor(0);
+                    }
+                    start = System.nanoTime();
+                    assertEquals(0, PhotoProcessing.nativeGetBitmapPixels(mBitmap));
+                    final long bulkGetTime = System.nanoTime() - start;
+                    if (warmUp) {
+                        assertPattern("Bulk");
+                    }
+
+                    start = System.nanoTime();
+                    assertEquals(0, PhotoProcessing.nativeInitBitmap(WIDTH, HEIGHT));
+                    PhotoProcessing.sendBitmapToNativeByRow(mBitmap);
+                    final long rowSendTime = System.nanoTime() - start;
+
+                    if (warmUp) {
+                        mBitmap.eraseColor(0);
+                    }
+                    start = System.nanoTime();
+                    PhotoProcessing.getBitmapFromNativeByRow(mBitmap);
+                    final long rowGetTime = System.nanoTime() - start;
+                    if (warmUp) {
+                        assertPattern("By row");
+                        continue;
+                    }
+
+                    bulkSend[run] = bulkSendTime;
+                    bulkGet[run] = bulkGetTime;
+                    rowSend[run] = rowSendTime;
+                    rowGet[run] = rowGetTime;
+                }
+            } finally {
+                PhotoProcessing.nativeDeleteBitmap();
+            }
+        }
+
+        report("send", median(bulkSend), median(rowSend));
+        report("get", median(bulkGet), median(rowGet));
+    }
+
+    private void assertPattern(String method) {
+        final int[] expected = new int[WIDTH];
+        final int[] actual = new int[WIDTH];
+        for (int y = 0; y < HEIGHT; y++) {
+            fillRow(expected, y);
+            mBitmap.getPixels(actual, 0, WIDTH, 0, y, WIDTH, 1);
+            assertTrue(method + " copy changed row " + y, Arrays.equals(expected, actual));
+        }
+    }
+
+    /**
+     * Opaque, as native memory has no alpha, and different in every channel.
+     */
+    private static void fillRow(int[] row, int y) {
+        for (int x = 0; x < WIDTH; x++) {
+            row[x] = 0xFF000000 | ((x * 7 + y) & 0xFF) << 16 | ((x ^ y) & 0xFF) << 8
+                    | ((x + y * 3) & 0xFF);
+        }
+    }
+
+    private static long median(long[] times) {
+        final long[] sorted = times.clone();
+        Arrays.sort(sorted);
+        return sorted[sorted.length / 2];
+    }
+
+    private static void report(String direction, long bulk, long byRow) {
+        Log.i(LOG_TAG, String.format("%s %dx%d: bulk %.1fms, by row %.1fms, %.1fx faster",
+                direction, WIDTH, HEIGHT, bulk / 1e6, byRow / 1e6, byRow / (double) bulk));
+    }
+}